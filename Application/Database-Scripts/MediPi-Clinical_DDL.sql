@@ -61,6 +61,37 @@ CREATE TABLE recording_device_data (
 );
 CREATE SEQUENCE recording_device_data_data_id_seq START WITH 1 INCREMENT BY 1 NO MINVALUE NO MAXVALUE CACHE 1;
 
+CREATE TABLE recording_device_data_latest (
+    patient_uuid character varying(100) NOT NULL,
+    attribute_id integer NOT NULL,
+    data_id bigint NOT NULL,
+    data_value_time timestamp without time zone NOT NULL
+);
+
+CREATE FUNCTION recording_device_data_latest_upsert() RETURNS trigger AS $$
+BEGIN
+    LOOP
+        UPDATE recording_device_data_latest SET data_id = NEW.data_id, data_value_time = NEW.data_value_time
+            WHERE patient_uuid = NEW.patient_uuid AND attribute_id = NEW.attribute_id AND data_value_time <= NEW.data_value_time;
+        IF FOUND THEN
+            RETURN NULL;
+        END IF;
+        PERFORM 1 FROM recording_device_data_latest WHERE patient_uuid = NEW.patient_uuid AND attribute_id = NEW.attribute_id;
+        IF FOUND THEN
+            RETURN NULL;
+        END IF;
+        BEGIN
+            INSERT INTO recording_device_data_latest (patient_uuid, attribute_id, data_id, data_value_time) VALUES (NEW.patient_uuid, NEW.attribute_id, NEW.data_id, NEW.data_value_time);
+            RETURN NULL;
+        EXCEPTION WHEN unique_violation THEN
+            -- another transaction inserted the reading for this attribute first, so compare against it
+        END;
+    END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER recording_device_data_latest_trigger AFTER INSERT ON recording_device_data FOR EACH ROW EXECUTE PROCEDURE recording_device_data_latest_upsert();
+
 CREATE TABLE recording_device_type (
     type_id integer NOT NULL,
     type character varying(100) NOT NULL,
@@ -110,6 +141,7 @@ ALTER TABLE ONLY alert ADD CONSTRAINT alert_id PRIMARY KEY (alert_id);
 ALTER TABLE ONLY recording_device_attribute ADD CONSTRAINT attribute_id PRIMARY KEY (attribute_id);
 ALTER TABLE ONLY attribute_threshold ADD CONSTRAINT attribute_threshold_id PRIMARY KEY (attribute_threshold_id);
 ALTER TABLE ONLY recording_device_data ADD CONSTRAINT data_id PRIMARY KEY (data_id);
+ALTER TABLE ONLY recording_device_data_latest ADD CONSTRAINT recording_device_data_latest_pk PRIMARY KEY (patient_uuid, attribute_id);
 ALTER TABLE ONLY patient_details ADD CONSTRAINT patient_details_pk PRIMARY KEY (patient_uuid);
 ALTER TABLE ONLY patient_group ADD CONSTRAINT patient_group_pk PRIMARY KEY (patient_group_uuid);
 ALTER TABLE ONLY patient ADD CONSTRAINT patient_id PRIMARY KEY (patient_uuid);
@@ -122,6 +154,7 @@ ALTER TABLE ONLY recording_device_data ADD CONSTRAINT patient_recording_device_d
 ALTER TABLE ONLY attribute_threshold ADD CONSTRAINT recording_device_attribute_attribute_threshold_fk FOREIGN KEY (attribute_id) REFERENCES recording_device_attribute(attribute_id);
 ALTER TABLE ONLY recording_device_data ADD CONSTRAINT recording_device_attribute_recording_device_data_fk FOREIGN KEY (attribute_id) REFERENCES recording_device_attribute(attribute_id);
 ALTER TABLE ONLY alert ADD CONSTRAINT recording_device_data_alert_fk FOREIGN KEY (data_id) REFERENCES recording_device_data(data_id);
+ALTER TABLE ONLY recording_device_data_latest ADD CONSTRAINT recording_device_data_latest_data_fk FOREIGN KEY (data_id) REFERENCES recording_device_data(data_id);
 ALTER TABLE ONLY recording_device_attribute ADD CONSTRAINT recording_device_type_recording_device_attribute_fk FOREIGN KEY (type_id) REFERENCES recording_device_type(type_id);
 ALTER TABLE ONLY clinician_details ADD CONSTRAINT "patient_group_clinician_details_fk" FOREIGN KEY ("patient_group_uuid") REFERENCES patient_group ("patient_group_uuid");
 ------------------------------------------------------------------------CONSTRAINT:END------------------------------------------------------------------------
\ No newline at end of file
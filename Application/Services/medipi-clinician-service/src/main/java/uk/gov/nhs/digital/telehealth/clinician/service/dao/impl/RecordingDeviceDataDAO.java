@@ -30,6 +30,8 @@ public interface RecordingDeviceDataDAO extends GenericDAO<RecordingDeviceDataMa
 
 	List<DataValueEntity> fetchRecentMeasurementsSQL(String patientUUID);
 
+	List<DataValueEntity> fetchPatientsRecentMeasurementsSQL(List<String> patientUUIDs);
+
 	List<RecordingDeviceDataMaster> fetchPatientMeasurementsByAttribute(String patientUUID, Integer attributeId);
 
 	List<RecordingDeviceAttributeMaster> fetchPatientAttributesHavingData(String patientUUID, List<String> attributeNames);
@@ -39,21 +39,22 @@ public class RecordingDeviceDataDAOImpl extends GenericDAOImpl<RecordingDeviceDa
 
 	private static String FETCH_RECENT_MEASUREMENTS_NATIVE_POSTGRESQL_QUERY;
 
+	private static String FETCH_PATIENTS_RECENT_MEASUREMENTS_NATIVE_POSTGRESQL_QUERY;
+
 	static {
+		//recording_device_data_latest is kept up to date by a trigger on recording_device_data and holds the latest reading of each attribute for each patient
 		StringBuilder query = new StringBuilder();
-		query.append("SELECT rdd.data_id as \"data_id\", rdt.type as \"reading_type\", rdt.display_name as \"device\", rda.attribute_name as \"attribute_name\", rda.attribute_id as \"attribute_id\",");
+		query.append("SELECT rdd.data_id as \"data_id\", rdd.patient_uuid as \"patient_uuid\", rdt.type as \"reading_type\", rdt.display_name as \"device\", rda.attribute_name as \"attribute_name\", rda.attribute_id as \"attribute_id\",");
 		query.append(" rdd.data_value as \"data\", rdt.type_id as \"type_id\", rdd.data_value_time as \"data_time\", rdd.downloaded_time as \"submitted_time\",");
 		query.append(" rdd.schedule_effective_time as \"schedule_effective_time\", rdd.schedule_expiry_time as \"schedule_expiry_time\", rdd.alert_status as \"alert_status\"");
-		query.append(" FROM recording_device_data rdd");
+		query.append(" FROM recording_device_data_latest latest_device_data");
+		query.append(" JOIN recording_device_data rdd ON latest_device_data.data_id = rdd.data_id");
 		query.append(" JOIN recording_device_attribute rda ON rdd.attribute_id = rda.attribute_id");
 		query.append(" JOIN recording_device_type rdt ON rda.type_id = rdt.type_id");
-		query.append(" JOIN  (SELECT MAX(rddd.data_value_time) as data_value_time, rddd.attribute_id as attribute_id FROM recording_device_data rddd");
-		query.append(" WHERE patient_uuid = :patientUUID");
-		query.append(" GROUP BY rddd.attribute_id) latest_device_data ON rdd.attribute_id = latest_device_data.attribute_id AND rdd.data_value_time = latest_device_data.data_value_time");
-		query.append(" WHERE rdd.patient_uuid = :patientUUID");
-		query.append(" ORDER BY rdt.type_id ASC");
+		final String select = query.toString();
 
-		FETCH_RECENT_MEASUREMENTS_NATIVE_POSTGRESQL_QUERY = query.toString();
+		FETCH_RECENT_MEASUREMENTS_NATIVE_POSTGRESQL_QUERY = select + " WHERE latest_device_data.patient_uuid = :patientUUID ORDER BY rdt.type_id ASC";
+		FETCH_PATIENTS_RECENT_MEASUREMENTS_NATIVE_POSTGRESQL_QUERY = select + " WHERE latest_device_data.patient_uuid IN (:patientUUIDs) ORDER BY latest_device_data.patient_uuid ASC, rdt.type_id ASC";
 	}
 
 	@SuppressWarnings("unchecked")
@@ -74,6 +75,15 @@ public class RecordingDeviceDataDAOImpl extends GenericDAOImpl<RecordingDeviceDa
 		return query.getResultList();
 	}
 
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<DataValueEntity> fetchPatientsRecentMeasurementsSQL(final List<String> patientUUIDs) {
+		LOGGER.debug("Get recent measurements for " + patientUUIDs.size() + " patients " + ContextThreadLocal.get());
+		final Query query = this.getEntityManager().createNativeQuery(FETCH_PATIENTS_RECENT_MEASUREMENTS_NATIVE_POSTGRESQL_QUERY, DataValueEntity.class);
+		query.setParameter("patientUUIDs", patientUUIDs);
+		return query.getResultList();
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public List<RecordingDeviceDataMaster> fetchPatientMeasurementsByAttribute(final String patientUUID, final Integer attributeId) {
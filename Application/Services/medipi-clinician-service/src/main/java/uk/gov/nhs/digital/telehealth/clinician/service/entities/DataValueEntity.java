@@ -19,6 +19,7 @@ package uk.gov.nhs.digital.telehealth.clinician.service.entities;
 
 import java.sql.Timestamp;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 
@@ -29,6 +30,8 @@ public class DataValueEntity {
 
 	@Id
 	private Long dataId;
+	@Column(name = "patient_uuid")
+	private String patientUUID;
 	private String readingType;
 	private String device;
 	private Integer attributeId;
@@ -76,6 +79,14 @@ public class DataValueEntity {
 		this.dataId = dataId;
 	}
 
+	public String getPatientUUID() {
+		return patientUUID;
+	}
+
+	public void setPatientUUID(final String patientUUID) {
+		this.patientUUID = patientUUID;
+	}
+
 	public String getReadingType() {
 		return readingType;
 	}
@@ -204,6 +215,6 @@ public class DataValueEntity {
 
 	@Override
 	public String toString() {
-		return "DataValueEntity [dataId=" + dataId + ", readingType=" + readingType + ", device=" + device + ", attributeId=" + attributeId + ", attributeName=" + attributeName + ", data=" + data + ", typeId=" + typeId + ", dataTime=" + dataTime + ", submittedTime=" + submittedTime + ", scheduleEffectiveTime=" + scheduleEffectiveTime + ", scheduleExpiryTime=" + scheduleExpiryTime + ", alertStatus=" + alertStatus + "]";
+		return "DataValueEntity [dataId=" + dataId + ", patientUUID=" + patientUUID + ", readingType=" + readingType + ", device=" + device + ", attributeId=" + attributeId + ", attributeName=" + attributeName + ", data=" + data + ", typeId=" + typeId + ", dataTime=" + dataTime + ", submittedTime=" + submittedTime + ", scheduleEffectiveTime=" + scheduleEffectiveTime + ", scheduleExpiryTime=" + scheduleExpiryTime + ", alertStatus=" + alertStatus + "]";
 	}
 }
\ No newline at end of file
@@ -18,7 +18,11 @@
 package uk.gov.nhs.digital.telehealth.clinician.service.services;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import ma.glasnost.orika.MapperFacade;
 
@@ -104,9 +108,13 @@ public class PatientService {
 
     private List<Patient> setPatientStatus(final List<PatientMaster> patientMasters) {
         final List<Patient> patients = new ArrayList<Patient>();
+        final Map<String, List<DataValueEntity>> recentMeasurements = getRecentMeasurementsByPatient(patientMasters);
         for (final PatientMaster patientMaster : patientMasters) {
             final Patient patient = this.mapperFacade.map(patientMaster, Patient.class);
-            List<DataValueEntity> patientMeasurements = recordingDeviceDataDAO.fetchRecentMeasurementsSQL(patient.getPatientUUID());
+            List<DataValueEntity> patientMeasurements = recentMeasurements.get(patient.getPatientUUID());
+            if (patientMeasurements == null) {
+                patientMeasurements = Collections.emptyList();
+            }
 
             //Clone the required attributes so that we can compare whether all the required attributes has data against it
             List<String> requiredAttributes = new ArrayList<String>(requiredDeviceAttributes);
@@ -149,6 +157,27 @@ public class PatientService {
         return patients;
     }
 
+    //Fetch the latest readings of all the patients in one query rather than one query per patient
+    private Map<String, List<DataValueEntity>> getRecentMeasurementsByPatient(final List<PatientMaster> patientMasters) {
+        final Map<String, List<DataValueEntity>> recentMeasurements = new HashMap<String, List<DataValueEntity>>();
+        if (patientMasters.isEmpty()) {
+            return recentMeasurements;
+        }
+        final List<String> patientUUIDs = new ArrayList<String>(patientMasters.size());
+        for (final PatientMaster patientMaster : patientMasters) {
+            patientUUIDs.add(patientMaster.getPatientUUID());
+        }
+        for (final DataValueEntity measurement : recordingDeviceDataDAO.fetchPatientsRecentMeasurementsSQL(patientUUIDs)) {
+            List<DataValueEntity> patientMeasurements = recentMeasurements.get(measurement.getPatientUUID());
+            if (patientMeasurements == null) {
+                patientMeasurements = new ArrayList<DataValueEntity>();
+                recentMeasurements.put(measurement.getPatientUUID(), patientMeasurements);
+            }
+            patientMeasurements.add(measurement);
+        }
+        return recentMeasurements;
+    }
+
     @SuppressWarnings({"unchecked", "rawtypes"})
     @Transactional(rollbackFor = {Exception.class})
     public List<DataValue> getPatientsRecentMeasurements(final String patientUUID) {
@@ -188,19 +217,15 @@ public class PatientService {
         List<RecordingDeviceDataMaster> patientData = recordingDeviceDataDAO.fetchPatientMeasurementsByAttribute(patientUUID, attributeId);
         int numberOfRecords = patientData.size();
         int counter = 0;
+        List<List<Double>> minMaxValues = getMinMaxValues(patientUUID, attributeId, patientData);
         List<Measurement> measurements = new ArrayList<Measurement>();
         for (RecordingDeviceDataMaster data : patientData) {
             Measurement measurement = this.mapperFacade.map(data, Measurement.class);
-            AttributeThresholdMaster attributeThresholdMaster = attributeThresholdDAO.findEffectiveAttributeThreshold(data.getRecordingDeviceAttribute().getAttributeId(), patientUUID, data.getDataValueTime());
-
-            if (attributeThresholdMaster != null) {
-                AttributeThresholdTest thresholdTest = thresholdTestFactory.getInstance(attributeThresholdMaster.getThresholdType());
-                List<Double> thresholds = thresholdTest.getThreshold(data.getRecordingDeviceAttribute().getAttributeId(), patientUUID, data.getDataValueTime(), data.getDataValue());
-                if (thresholds != null && (thresholds.get(0) == null || thresholds.get(1) == null)) {
-                    LOGGER.debug("AttributeThresholdMaster:<thresholdLowValue=" + attributeThresholdMaster.getThresholdLowValue() + " thresholdHighValue: " + attributeThresholdMaster.getThresholdHighValue() + "> thresholds:<" + thresholds + ">");
-                }
-                measurement.setMinMaxValues(thresholds);
+            List<Double> thresholds = minMaxValues.get(counter);
+            if (thresholds != null && (thresholds.get(0) == null || thresholds.get(1) == null)) {
+                LOGGER.debug("Measurement:<dataValueTime=" + data.getDataValueTime() + "> thresholds:<" + thresholds + ">");
             }
+            measurement.setMinMaxValues(thresholds);
             //Check if this is the last measurement
             if(counter == numberOfRecords - 1) {
                 if(TimestampUtil.getCurentTimestamp().after(data.getScheduleExpiryTime())) {
@@ -215,6 +240,48 @@ public class PatientService {
         return measurements;
     }
 
+    /*
+     * The thresholds of the attribute are loaded once in effective date order and merged with the time ordered measurements.
+     * Each run of measurements for which the same threshold is effective is passed to its threshold test together so that
+     * no threshold or historic measurement has to be read from the database for each measurement.
+     */
+    private List<List<Double>> getMinMaxValues(final String patientUUID, final Integer attributeId, final List<RecordingDeviceDataMaster> patientData) throws Exception {
+        final int numberOfRecords = patientData.size();
+        final List<Date> dataValueTimes = new ArrayList<Date>(numberOfRecords);
+        final List<String> dataValues = new ArrayList<String>(numberOfRecords);
+        for (RecordingDeviceDataMaster data : patientData) {
+            dataValueTimes.add(data.getDataValueTime());
+            dataValues.add(data.getDataValue());
+        }
+        final List<List<Double>> minMaxValues = new ArrayList<List<Double>>(Collections.nCopies(numberOfRecords, (List<Double>) null));
+        final List<AttributeThresholdMaster> attributeThresholds = numberOfRecords == 0 ? Collections.<AttributeThresholdMaster>emptyList() : attributeThresholdDAO.fetchPatientAttributeThresholds(patientUUID, attributeId);
+
+        int thresholdIndex = -1;
+        int runStart = 0;
+        for (int i = 0; i <= numberOfRecords; i++) {
+            int effectiveIndex = thresholdIndex;
+            if (i < numberOfRecords) {
+                //the effective threshold is the latest one which became effective at or before the measurement
+                while (effectiveIndex + 1 < attributeThresholds.size() && !attributeThresholds.get(effectiveIndex + 1).getEffectiveDate().after(dataValueTimes.get(i))) {
+                    effectiveIndex++;
+                }
+            }
+            if (i == numberOfRecords || effectiveIndex != thresholdIndex) {
+                if (thresholdIndex >= 0 && i > runStart) {
+                    final AttributeThresholdMaster attributeThresholdMaster = attributeThresholds.get(thresholdIndex);
+                    final AttributeThresholdTest thresholdTest = thresholdTestFactory.getInstance(attributeThresholdMaster.getThresholdType());
+                    final List<List<Double>> thresholds = thresholdTest.getThresholds(attributeThresholdMaster.getThresholdLowValue(), attributeThresholdMaster.getThresholdHighValue(), dataValueTimes, dataValues, runStart, i);
+                    for (int j = runStart; j < i; j++) {
+                        minMaxValues.set(j, thresholds.get(j - runStart));
+                    }
+                }
+                thresholdIndex = effectiveIndex;
+                runStart = i;
+            }
+        }
+        return minMaxValues;
+    }
+
     @Transactional(rollbackFor = {Exception.class})
     public List<RecordingDeviceAttribute> getPatientAttributesWithDevices(final String patientUUID, final List<String> attributeNames) {
         List<RecordingDeviceAttribute> recordingDeviceAttributes = new ArrayList<RecordingDeviceAttribute>();
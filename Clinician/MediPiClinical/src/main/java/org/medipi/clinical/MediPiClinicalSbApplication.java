@@ -94,6 +94,7 @@ public class MediPiClinicalSbApplication implements CommandLineRunner {
             System.out.println(log + " - MediPi log directory is not set");
             System.exit(1);
         } else if (new File(log).isDirectory()) {
+            logger.configure(properties);
             logger.setAppName("MEDIPI", log);
             logger.log(MediPiClinicalSbApplication.class.getName() + "startup", versionIdent);
         } else {
@@ -16,6 +16,7 @@
 package org.medipi.clinical.dao;
 
 import java.util.Date;
+import java.util.List;
 import org.medipi.clinical.entities.AttributeThreshold;
 
 /**
@@ -34,4 +35,14 @@ public interface AttributeThresholdDAO extends GenericDAO<AttributeThreshold> {
      * @return recording device attribute object 
      */
     public AttributeThreshold findLatestByAttributeAndPatientAndDate(int attributeId, String patientUuid, Date measurementDate);
+
+    /**
+     * Find all the AttributeThresholds for an attribute and patient in the
+     * order in which they became effective
+     *
+     * @param attributeId
+     * @param patientUuid
+     * @return list of attribute thresholds
+     */
+    public List<AttributeThreshold> findAllByAttributeAndPatient(int attributeId, String patientUuid);
 }
@@ -16,6 +16,7 @@
 package org.medipi.clinical.dao;
 
 import java.util.Date;
+import java.util.List;
 import org.medipi.clinical.entities.AttributeThreshold;
 import org.springframework.stereotype.Repository;
 
@@ -36,5 +37,13 @@ public class AttributeThresholdDAOImpl extends GenericDAOImpl<AttributeThreshold
                 .getSingleResult();
     }
 
+    @Override
+    public List<AttributeThreshold> findAllByAttributeAndPatient(int attributeId, String patientUuid) {
+        return this.getEntityManager().createNamedQuery("AttributeThreshold.findAllByAttributeAndPatient", AttributeThreshold.class)
+                .setParameter("attributeId", attributeId)
+                .setParameter("patientUuid", patientUuid)
+                .getResultList();
+    }
+
 
 }
@@ -51,4 +51,24 @@ public interface RecordingDeviceDataDAO extends GenericDAO<RecordingDeviceData>
     public List<RecordingDeviceData> findByPatientAndAttributeAndPeriod(String patientUuid, int attributeId, Date periodStartTime, Date periodEndTime);
 
     public Date findFirstEntryBeforePeriod(String patientUuid, int attributeId, Date periodStartTime);
+
+    public List<RecordingDeviceData> findByPatientAndAttributeFromTime(String patientUuid, int attributeId, Date fromTime);
+
+    /**
+     * Allocate ids for data which is to be inserted using saveBatch
+     *
+     * @param count the number of ids required
+     * @return list of newly allocated data ids
+     */
+    public List<Long> allocateDataIds(int count);
+
+    /**
+     * Insert data using JDBC batches. Each data point must have been given an
+     * id using allocateDataIds
+     *
+     * @param data list of data to be inserted
+     * @param batchSize maximum number of rows in each JDBC batch
+     * @return the number of batches executed
+     */
+    public int saveBatch(List<RecordingDeviceData> data, int batchSize);
 }
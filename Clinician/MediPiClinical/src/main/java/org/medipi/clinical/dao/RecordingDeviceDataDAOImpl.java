@@ -15,12 +15,19 @@
  */
 package org.medipi.clinical.dao;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.Date;
 import java.util.List;
 import org.medipi.clinical.entities.RecordingDeviceData;
 import org.medipi.clinical.entities.Patient;
 import org.medipi.clinical.entities.PatientGroup;
 import org.medipi.clinical.entities.RecordingDeviceAttribute;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
 import org.springframework.stereotype.Repository;
 
 /**
@@ -31,6 +38,12 @@ import org.springframework.stereotype.Repository;
 @Repository
 public class RecordingDeviceDataDAOImpl extends GenericDAOImpl<RecordingDeviceData> implements RecordingDeviceDataDAO {
 
+    private static final String ALLOCATEIDSSQL = "SELECT nextval('recording_device_data_data_id_seq') FROM generate_series(1, ?)";
+    private static final String BATCHINSERTSQL = "INSERT INTO recording_device_data (data_id, attribute_id, data_value, patient_uuid, data_value_time, downloaded_time, schedule_effective_time, schedule_expiry_time, alert_status) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
     @Override
     public List<RecordingDeviceData> isAlreadyStored(RecordingDeviceAttribute rda, Patient patient, String data, Date dataPointTime) {
         return this.getEntityManager().createNamedQuery("RecordingDeviceData.isAlreadyStored", RecordingDeviceData.class)
@@ -96,4 +109,50 @@ public class RecordingDeviceDataDAOImpl extends GenericDAOImpl<RecordingDeviceDa
                 .getSingleResult();
     }
 
+    @Override
+    public List<RecordingDeviceData> findByPatientAndAttributeFromTime(String patientUuid, int attributeId, Date fromTime) {
+        return this.getEntityManager().createNamedQuery("RecordingDeviceData.findByPatientAndAttributeFromTime", RecordingDeviceData.class)
+                .setParameter("patientUuid", patientUuid)
+                .setParameter("attributeId", attributeId)
+                .setParameter("fromTime", fromTime)
+                .getResultList();
+    }
+
+    @Override
+    public List<Long> allocateDataIds(int count) {
+        return jdbcTemplate.queryForList(ALLOCATEIDSSQL, Long.class, count);
+    }
+
+    @Override
+    public int saveBatch(List<RecordingDeviceData> data, int batchSize) {
+        if (data.isEmpty()) {
+            return 0;
+        }
+        // Make sure anything written through the entity manager is visible to the JDBC inserts
+        this.getEntityManager().flush();
+        int[][] result = jdbcTemplate.batchUpdate(BATCHINSERTSQL, data, batchSize, new ParameterizedPreparedStatementSetter<RecordingDeviceData>() {
+            @Override
+            public void setValues(PreparedStatement ps, RecordingDeviceData d) throws SQLException {
+                ps.setLong(1, d.getDataId());
+                ps.setInt(2, d.getAttributeId().getAttributeId());
+                ps.setString(3, d.getDataValue());
+                ps.setString(4, d.getPatientUuid().getPatientUuid());
+                ps.setTimestamp(5, new Timestamp(d.getDataValueTime().getTime()));
+                ps.setTimestamp(6, new Timestamp(d.getDownloadedTime().getTime()));
+                setNullableTimestamp(ps, 7, d.getScheduleEffectiveTime());
+                setNullableTimestamp(ps, 8, d.getScheduleExpiryTime());
+                ps.setString(9, d.getAlertStatus());
+            }
+        });
+        return result.length;
+    }
+
+    private void setNullableTimestamp(PreparedStatement ps, int index, Date date) throws SQLException {
+        if (date == null) {
+            ps.setNull(index, Types.TIMESTAMP);
+        } else {
+            ps.setTimestamp(index, new Timestamp(date.getTime()));
+        }
+    }
+
 }
@@ -46,6 +46,7 @@ import javax.xml.bind.annotation.XmlRootElement;
     @NamedQuery(name = "AttributeThreshold.findByAttribute",
             query = "SELECT a FROM AttributeThreshold a WHERE a.attributeId.attributeId = :attributeId AND a.patientUuid.patientUuid = :patientUuid AND a.effectiveDate IN (SELECT MAX(b.effectiveDate) FROM AttributeThreshold b WHERE b.attributeId.attributeId = :attributeId AND b.patientUuid.patientUuid = :patientUuid AND b.effectiveDate<= :measurementDate)"),
 //
+    @NamedQuery(name = "AttributeThreshold.findAllByAttributeAndPatient", query = "SELECT a FROM AttributeThreshold a WHERE a.attributeId.attributeId = :attributeId AND a.patientUuid.patientUuid = :patientUuid ORDER BY a.effectiveDate, a.attributeThresholdId"),
     @NamedQuery(name = "AttributeThreshold.findAll", query = "SELECT a FROM AttributeThreshold a"),
     @NamedQuery(name = "AttributeThreshold.findByAttributeThresholdId", query = "SELECT a FROM AttributeThreshold a WHERE a.attributeThresholdId = :attributeThresholdId"),
     @NamedQuery(name = "AttributeThreshold.findByThresholdType", query = "SELECT a FROM AttributeThreshold a WHERE a.thresholdType = :thresholdType"),
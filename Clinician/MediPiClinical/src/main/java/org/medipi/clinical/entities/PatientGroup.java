@@ -17,6 +17,7 @@ package org.medipi.clinical.entities;
 
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.Date;
 import javax.persistence.Basic;
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -25,6 +26,8 @@ import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -54,7 +57,9 @@ public class PatientGroup implements Serializable {
     @Size(max = 100)
     @Column(name = "patient_group_name")
     private String patientGroupName;
-
+    @Column(name = "last_sync_time")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date lastSyncTime;
 
     public PatientGroup() {
     }
@@ -78,6 +83,18 @@ public class PatientGroup implements Serializable {
         this.patientGroupName = patientGroupName;
     }
     
+    /**
+     * @return the downloaded time of the latest data point synchronised from
+     * the concentrator for this patient group
+     */
+    public Date getLastSyncTime() {
+        return lastSyncTime;
+    }
+
+    public void setLastSyncTime(Date lastSyncTime) {
+        this.lastSyncTime = lastSyncTime;
+    }
+
     @XmlTransient
     public Collection<Patient> getPatientCollection() {
         return patientCollection;
@@ -51,6 +51,7 @@ import javax.validation.constraints.Size;
     @NamedQuery(name = "RecordingDeviceData.findByGroupedPatientAndScheduledTime", query = "SELECT d.scheduleEffectiveTime FROM RecordingDeviceData d WHERE d.scheduleExpiryTime >= :scheduleEffectiveTime AND d.scheduleEffectiveTime < :scheduleEffectiveTime AND d.patientUuid = :patientUuid GROUP BY d.scheduleEffectiveTime"),
     @NamedQuery(name = "RecordingDeviceData.findByPatientAndAttributeAndPeriod", query = "SELECT d FROM RecordingDeviceData d WHERE d.patientUuid.patientUuid = :patientUuid AND d.attributeId.attributeId = :attributeId AND d.dataValueTime >= :periodStartTime AND d.dataValueTime < :periodEndTime"),
     @NamedQuery(name = "RecordingDeviceData.findFirstEntryBeforePeriod", query = "SELECT MAX(e.dataValueTime) from RecordingDeviceData e WHERE e.patientUuid.patientUuid = :patientUuid AND e.attributeId.attributeId = :attributeId AND e.dataValueTime < :periodStartTime"),
+    @NamedQuery(name = "RecordingDeviceData.findByPatientAndAttributeFromTime", query = "SELECT d FROM RecordingDeviceData d WHERE d.patientUuid.patientUuid = :patientUuid AND d.attributeId.attributeId = :attributeId AND d.dataValueTime >= :fromTime ORDER BY d.dataValueTime, d.dataId"),
 
     @NamedQuery(name = "RecordingDeviceData.findAll", query = "SELECT r FROM RecordingDeviceData r"),
     @NamedQuery(name = "RecordingDeviceData.findByDataId", query = "SELECT r FROM RecordingDeviceData r WHERE r.dataId = :dataId"),
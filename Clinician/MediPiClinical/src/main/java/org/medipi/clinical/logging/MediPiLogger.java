@@ -18,13 +18,12 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.logging.ConsoleHandler;
-import java.util.logging.FileHandler;
-import java.util.logging.Handler;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
-import java.util.logging.SimpleFormatter;
 import org.medipi.clinical.utilities.ConfigurationStringTokeniser;
 import org.medipi.clinical.utilities.Utilities;
+import org.medipi.logging.AsyncLogAppender;
 /**
  *  A Singleton class for logging.
  *
@@ -33,12 +32,16 @@ import org.medipi.clinical.utilities.Utilities;
  *  Note:  setAppName(String name, String ldir) should be called before any logging call.  
  *         closeLog() will close the logging file.
  *         setAppName() and closeLog() should be called as a pair with a logging file.
+ *
+ *  Records are written asynchronously by an AsyncLogAppender so that logging does
+ *  not block the calling thread on file IO. Records below the configured level are
+ *  discarded before any message is constructed and callers with expensive messages
+ *  can check isLoggable() first.
  * 
  * @author Damian Murphy <murff@warlock.org>
  */
 public class MediPiLogger {
     
-    private static java.util.logging.Logger appLogger = null;
     private static final String INTERNALLOGLEVELS = "MediPiInternalLoggingLevels.txt";
 
     /**
@@ -48,19 +51,17 @@ public class MediPiLogger {
     private HashMap<String, Level>logLevelsMap = new HashMap<>();
     private static String logDir = null;
     private String appName = null;
-    private static String dateString = null;
     private static MediPiLogger me = null;
     private static String logFileName = null;
-    private boolean useAppLogger = false;
+    private final AsyncLogAppender appender = new AsyncLogAppender(AsyncLogAppender.FILEDATEFORMAT);
+    private volatile Level threshold = Level.ALL;
+
+    private static final String LOGMAXFILESIZE = "medipi.log.maxfilesize";
+    private static final String LOGMAXFILEAGE = "medipi.log.maxfileage";
+    private static final String LOGLEVEL = "medipi.log.level";
     
     /** Creates a new instance of Logger */
     private MediPiLogger() {
-        dateString = Utilities.INTERNAL_FORMAT.format(new Date());
-        java.util.logging.Logger consoleLogger = java.util.logging.Logger.getLogger(CONSOLE_LOGGER);
-        ConsoleHandler ch = new ConsoleHandler();
-        ch.setFormatter(new SimpleFormatter());
-        consoleLogger.addHandler(ch);
-    
         /* load the Internal Loggin Levels file - this may be updated at a later stage by having an 
          external one but for the time being this will be sufficient */
         InputStreamReader isr = new InputStreamReader(getClass().getResourceAsStream(INTERNALLOGLEVELS));
@@ -102,7 +103,7 @@ public class MediPiLogger {
      */
     public void log(String location, Exception e)
     {
-       log(location, makeMessage(e));
+       log(logLevelsMap.get(location), location, e);
     }    
     
     private String makeMessage(Exception e)
@@ -154,7 +155,30 @@ public class MediPiLogger {
      */
     public void log(Level l, String location, Exception e)
     {
-       log(l, location, makeMessage(e));
+       if (isLoggable(l)) {
+           log(l, location, makeMessage(e));
+       }
+    }
+
+    /**
+     * Check whether a message at the given level would be logged. This should
+     * be used to avoid constructing messages which are expensive to build
+     *
+     * @param l java.util.logging.Level - null is treated as INFO
+     * @return true if a message at the level would be logged
+     */
+    public boolean isLoggable(Level l) {
+        return (l == null ? Level.INFO : l).intValue() >= threshold.intValue();
+    }
+
+    /**
+     * Check whether a message raised from the given location would be logged.
+     *
+     * @param location  where the message would be raised.
+     * @return true if a message from the location would be logged
+     */
+    public boolean isLoggable(String location) {
+        return isLoggable(logLevelsMap.get(location));
     }
     
     /**
@@ -167,31 +191,10 @@ public class MediPiLogger {
      *  @param message   the message to be logged. 
      */
     public void log(Level l, String location, String message) {
-        StringBuilder sb = new StringBuilder();        
-        sb.append("Location: ");
-        if ((location == null) || (location.trim().length() == 0))
-            sb.append("Not given");
-        else
-            sb.append(location);
-        sb.append(" : Message: ");
-        if ((message == null) || (message.trim().length() == 0))
-            sb.append("Not given");
-        else
-            sb.append(message);
-
-        java.util.logging.Logger eventlog = null;
-        if (useAppLogger) {
-            eventlog = appLogger;
-        } else {
-            eventlog = java.util.logging.Logger.getLogger(CONSOLE_LOGGER);
-        }
-        eventlog.setUseParentHandlers(false);
-        eventlog.setLevel(Level.ALL);
-        if(l == null){
-            eventlog.log(Level.INFO, sb.toString());
-        }else{
-            eventlog.log(l, sb.toString());
-        }
+        Level level = (l == null) ? Level.INFO : l;
+        if (level.intValue() < threshold.intValue())
+            return;
+        appender.append(level, location, message);
     }
     
     /**
@@ -205,13 +208,50 @@ public class MediPiLogger {
     }
     
     public void close() {
-        if (appName != null) {
-            java.util.logging.Logger log = null;
-            log = java.util.logging.Logger.getLogger(appName);
-            for (Handler h : log.getHandlers()) {
-                h.close();
+        appender.close();
+    }
+    
+    /**
+     *  configure the level, below which messages are discarded, and the rolling
+     *  policy of the log file from the properties:
+     *  medipi.log.level - java.util.logging.Level name (default ALL)
+     *  medipi.log.maxfilesize - size in bytes at which the log file is rolled (default 10485760)
+     *  medipi.log.maxfileage - age in hours at which the log file is rolled (default 24)
+     *
+     *  Any property which cannot be read is reported via the standard err channel
+     *  and its default is used.
+     *
+     *  @param  properties  MediPi properties
+     */
+    public void configure(Properties properties) {
+        String level = properties.getProperty(LOGLEVEL);
+        if (level != null && level.trim().length() != 0) {
+            try {
+                threshold = Level.parse(level.trim());
+            } catch (IllegalArgumentException iae) {
+                System.err.println("Logging level " + LOGLEVEL + " is not a valid level: " + level + " - using default");
             }
         }
+        long maxFileSize = 10L * 1024L * 1024L;
+        long maxFileAge = 24;
+        try {
+            String size = properties.getProperty(LOGMAXFILESIZE);
+            if (size != null && size.trim().length() != 0) {
+                maxFileSize = Long.parseLong(size.trim());
+            }
+            String age = properties.getProperty(LOGMAXFILEAGE);
+            if (age != null && age.trim().length() != 0) {
+                maxFileAge = Long.parseLong(age.trim());
+            }
+            if (maxFileSize <= 0 || maxFileAge <= 0) {
+                throw new NumberFormatException("must be greater than 0");
+            }
+        } catch (NumberFormatException nfe) {
+            System.err.println("Log file rolling policy " + LOGMAXFILESIZE + "/" + LOGMAXFILEAGE + " is not valid: " + nfe.getMessage() + " - using default");
+            maxFileSize = 10L * 1024L * 1024L;
+            maxFileAge = 24;
+        }
+        appender.setRollingPolicy(maxFileSize, TimeUnit.HOURS.toMillis(maxFileAge));
     }
     
     /**
@@ -234,32 +274,17 @@ public class MediPiLogger {
             logDir = ldir;
             appName = name;
             
-            appLogger = java.util.logging.Logger.getLogger(appName); 
-            appLogger.setUseParentHandlers(false);
-            StringBuilder sb = new StringBuilder(logDir);
-            if(!(logDir.endsWith("/") || logDir.endsWith("\\"))) {
-                sb.append("/");
-            }
-            sb.append(appName);
-            sb.append("_");
-            sb.append(dateString);
-            sb.append(".log");
-            logFileName = sb.toString();
             try {
-                FileHandler fh = new FileHandler(logFileName, 0, 1, true);
-                fh.setFormatter(new SimpleFormatter());
-                appLogger.addHandler(fh);
-                useAppLogger = true;
+                logFileName = appender.open(appName, logDir);
             }
             catch (Exception e) {
-                java.util.logging.Logger consoleLogger = java.util.logging.Logger.getLogger(CONSOLE_LOGGER);
                 StringBuilder sbe = new StringBuilder("Failed to initialise logger ");
                 sbe.append(appName);
                 sbe.append(" to ");
-                sbe.append(logFileName);
+                sbe.append(logDir);
                 sbe.append(" : ");
                 sbe.append(e.toString());
-                consoleLogger.log(Level.SEVERE,  sbe.toString());
+                log(Level.SEVERE, CONSOLE_LOGGER, sbe.toString());
             }            
         }
     }
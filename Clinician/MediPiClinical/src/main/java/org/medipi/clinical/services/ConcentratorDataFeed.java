@@ -0,0 +1,184 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.clinical.services;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
+import org.medipi.clinical.logging.MediPiLogger;
+import org.medipi.clinical.utilities.Utilities;
+import org.medipi.model.DataChangesDO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+/**
+ * Subscriber to the concentrator's data change feed.
+ *
+ * A single background thread repeatedly requests the patient groups which
+ * have had new data committed on the concentrator since the last sequence
+ * number it received. The concentrator holds each request open until there is
+ * new data or the wait expires, so groups are synchronised within moments of
+ * their data arriving while an idle feed costs one small request per wait and
+ * no DB queries on either side. If the concentrator has been restarted all the
+ * groups are synchronised, and if the feed cannot be reached it is retried
+ * with an increasing delay while the scheduled synchronisation takes over
+ *
+ * @author rick@robinsonhq.com
+ */
+@Component
+public class ConcentratorDataFeed {
+
+    private static final String MEDIPICLINICALDATAFEEDENABLED = "medipi.clinical.datafeed.enabled";
+    private static final String MEDIPICLINICALDATAFEEDWAIT = "medipi.clinical.datafeed.wait";
+    private static final String MEDIPICLINICALDATAFEEDFULLSYNCINTERVAL = "medipi.clinical.datafeed.fullsyncinterval";
+    private static final long DEFAULTWAIT = 8000;
+    private static final long DEFAULTFULLSYNCINTERVAL = 300000;
+    private static final long MAXIMUMRETRYDELAY = 60000;
+
+    //Path for subscribing to the data change feed
+    @Value("${medipi.clinical.datafeed.resourcepath:}")
+    private String dataFeedResourcePath;
+
+    @Autowired
+    private SSLClientHttpRequestFactory requestFactory;
+    @Autowired
+    private Utilities utils;
+
+    private Thread thread;
+    private volatile boolean running = false;
+    private volatile boolean connected = false;
+    private String feedId;
+    private long sequence;
+    private final AtomicLong responses = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong resynchronisations = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @return true if the feed is enabled and its resource path is configured
+     */
+    public boolean isEnabled() {
+        String en = utils.getProperties().getProperty(MEDIPICLINICALDATAFEEDENABLED);
+        return en != null && en.toLowerCase().startsWith("y") && dataFeedResourcePath != null && dataFeedResourcePath.trim().length() != 0;
+    }
+
+    /**
+     * @return true if the last request to the feed succeeded
+     */
+    public boolean isConnected() {
+        return running && connected;
+    }
+
+    /**
+     * @return the interval in ms between synchronisations of all the patient
+     * groups while the feed is connected
+     */
+    public long getFullSynchronisationInterval() {
+        return getLongProperty(MEDIPICLINICALDATAFEEDFULLSYNCINTERVAL, DEFAULTFULLSYNCINTERVAL);
+    }
+
+    /**
+     * Start the thread subscribing to the feed if it is not already running
+     *
+     * @param requestDataFromConcentrator used to synchronise the patient groups
+     * which the feed reports
+     */
+    public synchronized void start(RequestDataFromConcentrator requestDataFromConcentrator) {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(() -> subscribe(requestDataFromConcentrator), "concentrator-data-feed");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return a string representation of the feed counters
+     */
+    public String getStatistics() {
+        return "data feed connected: " + isConnected() + ", responses: " + responses.get() + ", notifications: " + notifications.get()
+                + ", resynchronisations: " + resynchronisations.get() + ", failures: " + failures.get();
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void subscribe(RequestDataFromConcentrator requestDataFromConcentrator) {
+        long retryDelay = 1000;
+        while (running) {
+            try {
+                RestTemplate restTemplate = new RestTemplate(requestFactory.getClientHttpRequestFactory());
+                UriComponentsBuilder ucb = UriComponentsBuilder.fromUriString(dataFeedResourcePath.trim())
+                        .queryParam("wait", getLongProperty(MEDIPICLINICALDATAFEEDWAIT, DEFAULTWAIT));
+                if (feedId != null) {
+                    ucb.queryParam("feed", feedId).queryParam("since", sequence);
+                }
+                URI uri = ucb.build().toUri();
+                DataChangesDO changes = restTemplate.getForObject(uri, DataChangesDO.class);
+                if (changes == null || changes.getFeedId() == null) {
+                    throw new IllegalStateException("Empty response from the data change feed");
+                }
+                responses.incrementAndGet();
+                connected = true;
+                retryDelay = 1000;
+                if (changes.isResynchronise()) {
+                    resynchronisations.incrementAndGet();
+                    requestDataFromConcentrator.synchroniseAllGroups(restTemplate);
+                } else if (changes.getPatientGroupUuids() != null && !changes.getPatientGroupUuids().isEmpty()) {
+                    notifications.incrementAndGet();
+                    requestDataFromConcentrator.synchroniseGroups(changes.getPatientGroupUuids(), restTemplate);
+                }
+                feedId = changes.getFeedId();
+                sequence = changes.getSequence();
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                connected = false;
+                failures.incrementAndGet();
+                MediPiLogger.getInstance().log(ConcentratorDataFeed.class.getName() + "error", "Error - Unable to read the concentrator data change feed, retrying in " + retryDelay + "ms: " + e.getLocalizedMessage());
+                System.out.println("Error - Unable to read the concentrator data change feed, retrying in " + retryDelay + "ms: " + e.getLocalizedMessage());
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                retryDelay = Math.min(retryDelay * 2, MAXIMUMRETRYDELAY);
+            }
+        }
+    }
+
+    private long getLongProperty(String name, long defaultValue) {
+        String s = utils.getProperties().getProperty(name);
+        if (s != null && s.trim().length() != 0) {
+            try {
+                return Math.max(1, Long.parseLong(s.trim()));
+            } catch (NumberFormatException numberFormatException) {
+                MediPiLogger.getInstance().log(ConcentratorDataFeed.class.getName() + "error", "Error - Cant read " + name + " from the properties file: " + numberFormatException.getLocalizedMessage());
+            }
+        }
+        return defaultValue;
+    }
+}
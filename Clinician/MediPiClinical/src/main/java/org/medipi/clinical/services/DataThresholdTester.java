@@ -15,21 +15,23 @@
  */
 package org.medipi.clinical.services;
 
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import javax.annotation.PostConstruct;
 import org.medipi.clinical.dao.AlertDAOImpl;
 import org.medipi.clinical.dao.AttributeThresholdDAOImpl;
-import org.medipi.clinical.dao.RecordingDeviceDataDAOImpl;
 import org.medipi.clinical.entities.Alert;
 import org.medipi.clinical.entities.AttributeThreshold;
 import org.medipi.clinical.entities.Patient;
 import org.medipi.clinical.entities.RecordingDeviceAttribute;
 import org.medipi.clinical.entities.RecordingDeviceData;
 import org.medipi.clinical.logging.MediPiLogger;
-import org.medipi.clinical.threshold.AttributeThresholdTest;
-import org.medipi.clinical.threshold.ThresholdTestFactory;
+import org.medipi.clinical.threshold.ThresholdEvaluation;
+import org.medipi.clinical.threshold.ThresholdEvaluatorCache;
 import org.medipi.clinical.utilities.Utilities;
 import org.medipi.model.AlertDO;
 import org.medipi.model.AlertListDO;
@@ -45,8 +47,6 @@ import org.springframework.stereotype.Component;
 @Component
 public class DataThresholdTester implements Tester {
 
-    @Autowired
-    private RecordingDeviceDataDAOImpl recordingDeviceDataDAOImpl;
     @Autowired
     private AttributeThresholdDAOImpl attributeThresholdDAOImpl;
     @Autowired
@@ -54,7 +54,7 @@ public class DataThresholdTester implements Tester {
     @Autowired
     private Utilities utils;
     @Autowired
-    private ThresholdTestFactory thresholdTestFactory;
+    private ThresholdEvaluatorCache thresholdEvaluatorCache;
 
     @Autowired
     private MediPiLogger logger;
@@ -68,10 +68,10 @@ public class DataThresholdTester implements Tester {
     private static final String MEDIPICLINICALALERTSENDNEGATIVEALERTS = "medipi.clinical.alert.sendnegativealerts";
     private static final String MEDIPICLINICALALERTSENDCANNOTCALCULATEALERTS = "medipi.clinical.alert.sendcannotcalculatealerts";
     private static final String MEDIPICLINICALMAXNUMBEROFRETRIES = "medipi.clinical.alert.maxnumberofretries";
-    private boolean enabled = false;
-    private boolean sendPositiveAlerts = false;
-    private boolean sendNegativeAlerts = false;
-    private boolean sendCannotCalculateAlerts = false;
+    private volatile boolean enabled = false;
+    // patient groups are synchronised concurrently so the shared SimpleDateFormat
+    // in Utilities cannot be used - this is the same format as Utilities.DISPLAY_FORMAT
+    private static final DateTimeFormatter MEASUREMENT_DATE_FORMAT = DateTimeFormatter.ofPattern("EEE d MMM yyyy HH:mm:ss z").withZone(ZoneId.systemDefault());
 
     public void init() {
         String en = utils.getProperties().getProperty(MEDIPICLINICALALERTENABLED);
@@ -82,67 +82,89 @@ public class DataThresholdTester implements Tester {
         }
     }
 
-    public void testNewData(RecordingDeviceAttribute rda, Patient patient, RecordingDeviceData rddSet, AlertListDO alertListDO) throws InstantiationException, ClassNotFoundException, IllegalAccessException {
+    /**
+     * Method to read all the thresholds for an attribute of a patient so that
+     * a batch of data points can be tested against them without the DB being
+     * read for each data point
+     *
+     * @param rda attribute of the data points
+     * @param patient patient who the data points belong to
+     * @return the attribute thresholds in the order in which they became
+     * effective
+     */
+    public List<AttributeThreshold> getThresholds(RecordingDeviceAttribute rda, Patient patient) {
+        return this.attributeThresholdDAOImpl.findAllByAttributeAndPatient(rda.getAttributeId(), patient.getPatientUuid());
+    }
+
+    /**
+     * Method to test a new data point against the latest threshold for its
+     * attribute, setting its alert status. The data point is tested before it
+     * is written to the DB so that it only needs to be written once, and any
+     * alert must be created using CreateAlert once it has been written
+     *
+     * @param thresholds all the thresholds for the attribute of the data point
+     * and the patient as returned by getThresholds
+     * @param patient patient who the data point belongs to
+     * @param rddSet the data point to be tested
+     * @return the text of the alert to be sent to the patient or null if no
+     * alert is to be sent
+     * @throws InstantiationException
+     * @throws ClassNotFoundException
+     * @throws IllegalAccessException
+     */
+    public String testNewData(List<AttributeThreshold> thresholds, Patient patient, RecordingDeviceData rddSet) throws InstantiationException, ClassNotFoundException, IllegalAccessException {
 
+        // patient groups are synchronised concurrently so these are held locally rather than in fields
         String spa = utils.getProperties().getProperty(MEDIPICLINICALALERTSENDPOSITIVEALERTS);
-        if (spa != null && spa.toLowerCase().startsWith("y")) {
-            sendPositiveAlerts = true;
-        } else {
-            sendPositiveAlerts = false;
-        }
+        boolean sendPositiveAlerts = spa != null && spa.toLowerCase().startsWith("y");
         String sna = utils.getProperties().getProperty(MEDIPICLINICALALERTSENDNEGATIVEALERTS);
-        if (sna != null && sna.toLowerCase().startsWith("y")) {
-            sendNegativeAlerts = true;
-        } else {
-            sendNegativeAlerts = false;
-        }
+        boolean sendNegativeAlerts = sna != null && sna.toLowerCase().startsWith("y");
         String scca = utils.getProperties().getProperty(MEDIPICLINICALALERTSENDCANNOTCALCULATEALERTS);
-        if (scca != null && scca.toLowerCase().startsWith("y")) {
-            sendCannotCalculateAlerts = true;
-        } else {
-            sendCannotCalculateAlerts = false;
+        boolean sendCannotCalculateAlerts = scca != null && scca.toLowerCase().startsWith("y");
+        // find the latest threshold which was effective at the time of the measurement
+        AttributeThreshold at = null;
+        for (AttributeThreshold t : thresholds) {
+            if (t.getEffectiveDate().after(rddSet.getDataValueTime())) {
+                break;
+            }
+            at = t;
         }
-        // find the latest threshold type using the attribute
-        AttributeThreshold at = this.attributeThresholdDAOImpl.findLatestByAttributeAndPatientAndDate(rda.getAttributeId(), patient.getPatientUuid(), rddSet.getDataValueTime());
         if (at != null) {
             String testType = at.getThresholdType();
             // if there is an unrecognised test type returned
             if (testType != null) {
-                AttributeThresholdTest thresholdTest = thresholdTestFactory.getInstance(testType);
+                String alertText = null;
                 try {
-                    thresholdTest.init(utils.getProperties(), at);
+                    // compiled evaluators are immutable and shared between synchronisation threads
+                    ThresholdEvaluation evaluation = thresholdEvaluatorCache.getEvaluator(utils.getProperties(), at).evaluate(rddSet);
                     String testStatus;
-                    Boolean result = thresholdTest.test(rddSet);
+                    Boolean result = evaluation.getResult();
                     if (result == null) {
                         //This means the result is not calculatable
                         testStatus = "CANNOT_CALCULATE";
                         if (sendCannotCalculateAlerts) {
-                            String alertText = thresholdTest.getCantCalculateTestText()
+                            alertText = evaluation.getCantCalculateTestText()
                                     .replace("__ATTRIBUTE_NAME__", rddSet.getAttributeId().getAttributeName())
-                                    .replace("__MEASUREMENT_DATE__", Utilities.DISPLAY_FORMAT.format(rddSet.getDataValueTime()));
-                            CreateAlert(thresholdTest, rddSet, patient, alertListDO, alertText, testStatus);
+                                    .replace("__MEASUREMENT_DATE__", MEASUREMENT_DATE_FORMAT.format(Instant.ofEpochMilli(rddSet.getDataValueTime().getTime())));
                         }
                     } else if (!result) {
                         // send alert
                         testStatus = "OUT_OF_THRESHOLD";
                         if (sendNegativeAlerts) {
-                            String alertText = thresholdTest.getFailedTestText()
+                            alertText = evaluation.getFailedTestText()
                                     .replace("__ATTRIBUTE_NAME__", rddSet.getAttributeId().getAttributeName())
-                                    .replace("__MEASUREMENT_DATE__", Utilities.DISPLAY_FORMAT.format(rddSet.getDataValueTime()));
-                            CreateAlert(thresholdTest, rddSet, patient, alertListDO, alertText, testStatus);
+                                    .replace("__MEASUREMENT_DATE__", MEASUREMENT_DATE_FORMAT.format(Instant.ofEpochMilli(rddSet.getDataValueTime().getTime())));
                         }
                     } else {
                         testStatus = "IN_THRESHOLD";
                         if (sendPositiveAlerts) {
-                            String alertText = thresholdTest.getPassedTestText()
+                            alertText = evaluation.getPassedTestText()
                                     .replace("__ATTRIBUTE_NAME__", rddSet.getAttributeId().getAttributeName())
-                                    .replace("__MEASUREMENT_DATE__", Utilities.DISPLAY_FORMAT.format(rddSet.getDataValueTime()));
-                            CreateAlert(thresholdTest, rddSet, patient, alertListDO, alertText, testStatus);
+                                    .replace("__MEASUREMENT_DATE__", MEASUREMENT_DATE_FORMAT.format(Instant.ofEpochMilli(rddSet.getDataValueTime().getTime())));
                         }
                     }
                     rddSet.setAlertStatus(testStatus);
-                    this.recordingDeviceDataDAOImpl.update(rddSet);
-
+                    return alertText;
                 } catch (Exception e) {
                     MediPiLogger.getInstance().log(DataThresholdTester.class.getName() + "error", e.getLocalizedMessage());
                     System.out.println(e.getLocalizedMessage());
@@ -151,9 +173,20 @@ public class DataThresholdTester implements Tester {
         } else {
             // if there is no associated test for a data attribute type - no action
         }
+        return null;
     }
 
-    private void CreateAlert(AttributeThresholdTest thresholdTest, RecordingDeviceData rddSet, Patient patient, AlertListDO alertListDO, String alertText, String testStatus) {
+    /**
+     * Method to create an alert for a data point which has been tested and
+     * written to the DB
+     *
+     * @param rddSet the data point which has been tested
+     * @param patient patient who the data point belongs to
+     * @param alertListDO list to add the alert to for sending to the patient
+     * @param alertText text of the alert returned by testNewData
+     */
+    public void CreateAlert(RecordingDeviceData rddSet, Patient patient, AlertListDO alertListDO, String alertText) {
+        String testStatus = rddSet.getAlertStatus();
         if (rddSet.getScheduleEffectiveTime().before(new Date()) && rddSet.getScheduleExpiryTime().after(new Date())) {
             System.out.println(testStatus + " ALERT TO BE SENT");
             //create the Alert
@@ -0,0 +1,235 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.clinical.services;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
+import org.medipi.clinical.logging.MediPiLogger;
+import org.medipi.clinical.utilities.Utilities;
+import org.medipi.security.CertificateDefinitions;
+import org.medipi.security.UploadEncryptionAdapter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+/**
+ * Cache of the encryption adapters used to encrypt and sign direct messages
+ * to patients.
+ *
+ * Each adapter is initialised with the patient's public certificate, fetched
+ * from the concentrator, and with the clinician signing keys. It is cached
+ * until the configured time to live has passed or the certificate expires,
+ * whichever is sooner. An adapter which is used when it is close to expiry is
+ * refreshed in the background so that sending a direct message does not have
+ * to wait for the certificate to be fetched again. A patient whose certificate
+ * is not held by the concentrator is remembered for a shorter time
+ *
+ * @author rick@robinsonhq.com
+ */
+@Component
+public class PatientCertificateCache {
+
+    private static final String MEDIPICLINICALPATIENTCERTIFICATECACHETIMETOLIVE = "medipi.clinical.patientcertificate.cache.timetolive";
+    private static final String MEDIPICLINICALPATIENTCERTIFICATECACHEREFRESHAHEAD = "medipi.clinical.patientcertificate.cache.refreshahead";
+    private static final String MEDIPICLINICALPATIENTCERTIFICATECACHENOTFOUNDTIMETOLIVE = "medipi.clinical.patientcertificate.cache.notfoundtimetolive";
+    private static final long DEFAULTTIMETOLIVE = 3600;
+    private static final long DEFAULTREFRESHAHEAD = 300;
+    private static final long DEFAULTNOTFOUNDTIMETOLIVE = 60;
+
+    private final ConcurrentHashMap<String, CachedCertificate> cache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Boolean> refreshing = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private ExecutorService refresher;
+
+    @Autowired
+    private Utilities utils;
+
+    //Path for requesting the PEM cert of a patient
+    @Value("${medipi.clinical.patientcertificate.resourcepath}")
+    private String patientCertificateResourcePath;
+
+    /**
+     * Method to return an encryption adapter for sending direct messages to a
+     * patient
+     *
+     * @param patientUuid the patient the direct message is for
+     * @param restTemplate template used to connect to the concentrator
+     * @return initialised encryption adapter
+     * @throws HttpClientErrorException with a status of NOT_FOUND if the
+     * concentrator does not hold a certificate for the patient
+     * @throws org.springframework.web.client.RestClientException if the
+     * certificate cannot be fetched from the concentrator
+     * @throws Exception if the adapter cannot be initialised
+     */
+    public UploadEncryptionAdapter getEncryptionAdapter(final String patientUuid, final RestTemplate restTemplate) throws Exception {
+        long now = System.currentTimeMillis();
+        CachedCertificate cc = cache.get(patientUuid);
+        if (cc == null || cc.expiryTime <= now) {
+            misses.incrementAndGet();
+            cc = load(patientUuid, restTemplate);
+        } else {
+            hits.incrementAndGet();
+            if (cc.adapter != null && cc.expiryTime - getSeconds(MEDIPICLINICALPATIENTCERTIFICATECACHEREFRESHAHEAD, DEFAULTREFRESHAHEAD) * 1000 <= now) {
+                refresh(patientUuid, restTemplate);
+            }
+        }
+        if (cc.adapter == null) {
+            throw new HttpClientErrorException(HttpStatus.NOT_FOUND, "No certificate held for patient " + patientUuid);
+        }
+        return cc.adapter;
+    }
+
+    /**
+     * Remove the cached adapter for a patient so that the certificate is
+     * fetched again when it is next used. Called when a direct message to the
+     * patient cannot be encrypted or is rejected by the concentrator, which
+     * happens when the patient's certificate has been replaced
+     *
+     * @param patientUuid the patient
+     */
+    public void invalidate(String patientUuid) {
+        cache.remove(patientUuid);
+    }
+
+    /**
+     * @return a string representation of the cache size and hit/miss counters
+     */
+    public String getStatistics() {
+        return "patient certificates: " + cache.size() + " cached, " + hits.get() + " hits, " + misses.get() + " misses, " + refreshes.get() + " refreshes";
+    }
+
+    /**
+     * Stop the background refresh thread
+     */
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    private CachedCertificate load(String patientUuid, RestTemplate restTemplate) throws Exception {
+        URI targetUrl = UriComponentsBuilder.fromUriString(patientCertificateResourcePath)
+                .path("/")
+                .path(patientUuid)
+                .build()
+                .toUri();
+        long now = System.currentTimeMillis();
+        byte[] pem;
+        try {
+            // transmit request to concentrator
+            pem = restTemplate.getForObject(targetUrl, byte[].class);
+        } catch (HttpClientErrorException hcee) {
+            if (hcee.getStatusCode().equals(HttpStatus.NOT_FOUND)) {
+                cache.put(patientUuid, new CachedCertificate(null, now + getSeconds(MEDIPICLINICALPATIENTCERTIFICATECACHENOTFOUNDTIMETOLIVE, DEFAULTNOTFOUNDTIMETOLIVE) * 1000));
+            }
+            throw hcee;
+        }
+        if (pem == null) {
+            throw new Exception("No certificate returned for patient " + patientUuid);
+        }
+        X509Certificate cert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(pem));
+        //Set up the encryption and signing adaptor
+        UploadEncryptionAdapter uploadEncryptionAdapter = new UploadEncryptionAdapter();
+        CertificateDefinitions cd = new CertificateDefinitions(utils.getProperties());
+        cd.setSIGNKEYSTORELOCATION("medipi.json.sign.keystore.clinician.location", CertificateDefinitions.INTERNAL);
+        cd.setSIGNKEYSTOREALIAS("medipi.json.sign.keystore.clinician.alias", CertificateDefinitions.INTERNAL);
+        cd.setSIGNKEYSTOREPASSWORD("medipi.json.sign.keystore.clinician.password", CertificateDefinitions.INTERNAL);
+        cd.setEncryptTruststorePEM(pem);
+        String error = uploadEncryptionAdapter.init(cd, UploadEncryptionAdapter.CLIENTMODE);
+        if (error != null) {
+            throw new Exception(error);
+        }
+        uploadEncryptionAdapter.setPayloadCodec(utils.getProperties().getProperty("medipi.clinical.directmessage.payloadcodec"));
+        long expiryTime = Math.min(now + getSeconds(MEDIPICLINICALPATIENTCERTIFICATECACHETIMETOLIVE, DEFAULTTIMETOLIVE) * 1000, cert.getNotAfter().getTime());
+        CachedCertificate cc = new CachedCertificate(uploadEncryptionAdapter, expiryTime);
+        if (expiryTime > now) {
+            cache.put(patientUuid, cc);
+        }
+        return cc;
+    }
+
+    private void refresh(final String patientUuid, final RestTemplate restTemplate) {
+        if (refreshing.putIfAbsent(patientUuid, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            getRefresher().execute(() -> {
+                try {
+                    load(patientUuid, restTemplate);
+                    refreshes.incrementAndGet();
+                } catch (Exception e) {
+                    // the cached adapter is used until it expires
+                    MediPiLogger.getInstance().log(PatientCertificateCache.class.getName() + "error", "Error refreshing the certificate for patient " + patientUuid + ": " + e.getLocalizedMessage());
+                } finally {
+                    refreshing.remove(patientUuid);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            refreshing.remove(patientUuid);
+        }
+    }
+
+    private synchronized ExecutorService getRefresher() {
+        if (refresher == null) {
+            refresher = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "patient-certificate-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return refresher;
+    }
+
+    private long getSeconds(String property, long defaultValue) {
+        String s = utils.getProperties().getProperty(property);
+        if (s == null || s.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException numberFormatException) {
+            MediPiLogger.getInstance().log(PatientCertificateCache.class.getName() + "error", "Error - Cant read " + property + " from the properties file (default to " + defaultValue + "): " + numberFormatException.getLocalizedMessage());
+            return defaultValue;
+        }
+    }
+
+    private static class CachedCertificate {
+
+        // null if the concentrator does not hold a certificate for the patient
+        private final UploadEncryptionAdapter adapter;
+        private final long expiryTime;
+
+        CachedCertificate(UploadEncryptionAdapter adapter, long expiryTime) {
+            this.adapter = adapter;
+            this.expiryTime = expiryTime;
+        }
+    }
+}
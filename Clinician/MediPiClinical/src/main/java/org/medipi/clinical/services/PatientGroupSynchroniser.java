@@ -0,0 +1,284 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.clinical.services;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.medipi.clinical.dao.PatientDAOImpl;
+import org.medipi.clinical.dao.PatientGroupDAOImpl;
+import org.medipi.clinical.dao.RecordingDeviceDataDAOImpl;
+import org.medipi.clinical.entities.AttributeThreshold;
+import org.medipi.clinical.entities.Patient;
+import org.medipi.clinical.entities.PatientGroup;
+import org.medipi.clinical.entities.RecordingDeviceData;
+import org.medipi.clinical.exception.InternalServerError500Exception;
+import org.medipi.clinical.logging.MediPiLogger;
+import org.medipi.clinical.model.PatientDataRequestDO;
+import org.medipi.clinical.threshold.RegressionWindowCache;
+import org.medipi.clinical.utilities.Utilities;
+import org.medipi.model.AlertListDO;
+import org.medipi.model.DirectPatientMessage;
+import org.medipi.model.SimpleMessageDO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+/**
+ * Class to synchronise the data for a single patient group from the
+ * concentrator.
+ *
+ * Each patient group is synchronised in its own transaction so that a failure
+ * for one group does not roll back the data persisted for any other. The
+ * downloaded time of the latest data point received is stored against the
+ * patient group in the same transaction as the data, and is used as the
+ * starting point of the next synchronisation of the group.
+ *
+ * Each data point is tested against its thresholds before it is written so
+ * that it is written once with its alert status. Data points are inserted in
+ * JDBC batches using ids allocated from the DB sequence in advance
+ *
+ * @author rick@robinsonhq.com
+ */
+@Component
+public class PatientGroupSynchroniser {
+
+    @Autowired
+    private PatientDAOImpl patientDAOImpl;
+    @Autowired
+    private PatientGroupDAOImpl patientGroupDAOImpl;
+    @Autowired
+    private RecordingDeviceDataDAOImpl recordingDeviceDataDAOImpl;
+    @Autowired
+    private RecordingDeviceReferenceCache recordingDeviceReferenceCache;
+    @Autowired
+    private SendAlertService sendAlertService;
+    @Autowired
+    private DataThresholdTester dataThresholdTester;
+    @Autowired
+    private LinkedSubmissionsTester linkedSubmissionsTester;
+    @Autowired
+    private RegressionWindowCache regressionWindowCache;
+    @Autowired
+    private Utilities utils;
+    @Autowired
+    private MediPiLogger logger;
+
+    private static final String MEDIPICLINICALSYNCDATABATCHSIZE = "medipi.clinical.syncdata.batchsize";
+    private static final int DEFAULTBATCHSIZE = 500;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    //Path for posting requests for synchronising patient data
+    @Value("${medipi.clinical.syncdata.resourcepath}")
+    private String syncDataResourcePath;
+
+    /**
+     * Resend any direct messages to patients which have not yet been
+     * successfully transmitted to the concentrator
+     *
+     * @param restTemplate template used to connect to the concentrator
+     */
+    @Transactional(rollbackFor = RuntimeException.class)
+    public void resendDirectMessages(RestTemplate restTemplate) {
+        if (dataThresholdTester.isEnabled()) {
+            sendAlertService.resendDirectMessages(dataThresholdTester, restTemplate);
+        }
+        if (linkedSubmissionsTester.isEnabled()) {
+            sendAlertService.resendDirectMessages(linkedSubmissionsTester, restTemplate);
+        }
+    }
+
+    /**
+     * Request the data received by the concentrator for a patient group since
+     * its last synchronisation, persist it, test it against any thresholds and
+     * send any resulting direct messages to the patients
+     *
+     * @param patientGroupUuid the patient group to be synchronised
+     * @param restTemplate template used to connect to the concentrator
+     * @return the number of data points persisted
+     * @throws Exception if the group cannot be synchronised, in which case
+     * nothing is persisted for the group
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public int synchronise(String patientGroupUuid, RestTemplate restTemplate) throws Exception {
+        PatientGroup pg = patientGroupDAOImpl.findByPrimaryKey(patientGroupUuid);
+        if (pg == null) {
+            return 0;
+        }
+        Date lastMeasurementDate = pg.getLastSyncTime();
+        if (lastMeasurementDate == null) {
+            // no stored high water mark - use the latest data held for the group or the epoch date if there is none
+            Date d = recordingDeviceDataDAOImpl.dateOfLatestPatientGroupSync(pg);
+            lastMeasurementDate = d == null ? new Date(0L) : d;
+        }
+
+        // create a URL of the concentrator inclusing the patient group uuid and the last sync time
+        URI targetUrl = UriComponentsBuilder.fromUriString(syncDataResourcePath)
+                .path("/")
+                .path(pg.getPatientGroupUuid())
+                .queryParam("date", lastMeasurementDate.getTime())
+                .build()
+                .toUri();
+
+        // transmit request to concentrator
+        String responseString = restTemplate.getForObject(targetUrl, String.class);
+        if (responseString == null) {
+            return 0;
+        }
+// TO DO - THIS RESPONSE SHOULD BE ENCRYPTED AND SIGNED AND THERFORE WILL NEED DECRYTING AND VERIFIYING
+        List<PatientDataRequestDO> response = mapper.readValue(responseString, new TypeReference<List<PatientDataRequestDO>>() {
+        });
+        int rows = 0;
+        int batchSize = getBatchSize();
+        Date latestDownloadedTime = lastMeasurementDate;
+        // direct messages are only sent once all the data for the group has been persisted
+        List<DirectPatientMessage> alerts = new ArrayList<>();
+        List<DirectPatientMessage> simpleMessages = new ArrayList<>();
+        // data points waiting to be inserted in the next JDBC batch
+        List<RecordingDeviceData> pending = new ArrayList<>();
+        //Loop through each patient in the response and persist any returned data
+        for (PatientDataRequestDO pdr : response) {
+            if (pdr != null) {
+                //find the patient in the clinical db
+                Patient patient = patientDAOImpl.findByPrimaryKey(pdr.getPatientUuid());
+                if (patient != null) {
+                    // Create the container for any possible alerts
+                    AlertListDO alertListDO = new AlertListDO(patient.getPatientUuid());
+                    // loop through all the individual datapoints, test them for any thresholds and queue them to be persisted to the DB
+                    System.out.println("patient:" + patient.getPatientUuid() + " data items:" + pdr.getRecordingDeviceDataList().size());
+                    List<Long> dataIds = recordingDeviceDataDAOImpl.allocateDataIds(pdr.getRecordingDeviceDataList().size());
+                    // alerts can only be created once the data points they refer to have been written
+                    List<RecordingDeviceData> alertedData = new ArrayList<>();
+                    List<String> alertTexts = new ArrayList<>();
+                    // the patient's thresholds are read once for each attribute in the response
+                    Map<Integer, List<AttributeThreshold>> thresholds = new HashMap<>();
+                    for (int i = 0; i < pdr.getRecordingDeviceDataList().size(); i++) {
+                        RecordingDeviceData rdd = pdr.getRecordingDeviceDataList().get(i);
+                        RecordingDeviceData rddSet = createRecordingDeviceData(rdd, patient, dataIds.get(i));
+                        String alertText = testRecordingDeviceData(rddSet, patient, thresholds);
+                        if (alertText != null) {
+                            alertedData.add(rddSet);
+                            alertTexts.add(alertText);
+                        }
+                        pending.add(rddSet);
+                        if (pending.size() >= batchSize) {
+                            writePending(pending, batchSize);
+                        }
+                        rows++;
+                        if (rdd.getDownloadedTime() != null && rdd.getDownloadedTime().after(latestDownloadedTime)) {
+                            latestDownloadedTime = rdd.getDownloadedTime();
+                        }
+                    }
+                    if (!alertedData.isEmpty() || linkedSubmissionsTester.isEnabled()) {
+                        writePending(pending, batchSize);
+                    }
+                    for (int i = 0; i < alertedData.size(); i++) {
+                        dataThresholdTester.CreateAlert(alertedData.get(i), patient, alertListDO, alertTexts.get(i));
+                    }
+
+                    if (!alertListDO.getAlert().isEmpty() && dataThresholdTester.isEnabled()) {
+                        alerts.add(alertListDO);
+                    }
+
+                    if (linkedSubmissionsTester.isEnabled()) {
+                        SimpleMessageDO simpleMessageDO = new SimpleMessageDO(patient.getPatientUuid());
+                        linkedSubmissionsTester.testNewData(patient, simpleMessageDO);
+                        simpleMessages.add(simpleMessageDO);
+                    }
+
+                } else {
+                    MediPiLogger.getInstance().log(PatientGroupSynchroniser.class.getName() + "error", "Error - Can't find a returned patient in the local DB: " + pdr.getPatientUuid());
+                    System.out.println("Error - Can't find a returned patient in the local DB: " + pdr.getPatientUuid());
+                }
+            }
+        }
+        writePending(pending, batchSize);
+        pg.setLastSyncTime(latestDownloadedTime);
+        patientGroupDAOImpl.update(pg);
+        if (!alerts.isEmpty()) {
+            sendAlertService.sendDirectMessages(dataThresholdTester, alerts, restTemplate);
+        }
+        if (!simpleMessages.isEmpty()) {
+            sendAlertService.sendDirectMessages(linkedSubmissionsTester, simpleMessages, restTemplate);
+        }
+        return rows;
+    }
+
+    private RecordingDeviceData createRecordingDeviceData(RecordingDeviceData rdd, Patient patient, Long dataId) {
+        RecordingDeviceData rddSet = new RecordingDeviceData();
+        rddSet.setDataId(dataId);
+        rddSet.setAttributeId(recordingDeviceReferenceCache.getAttribute(rdd));
+        rddSet.setDataValue(rdd.getDataValue());
+        rddSet.setDataValueTime(rdd.getDataValueTime());
+        rddSet.setDownloadedTime(rdd.getDownloadedTime());
+        rddSet.setPatientUuid(patient);
+        rddSet.setScheduleEffectiveTime(rdd.getScheduleEffectiveTime());
+        rddSet.setScheduleExpiryTime(rdd.getScheduleExpiryTime());
+        return rddSet;
+    }
+
+    // the data point is tested before it is written so that it is written once with its alert status
+    private String testRecordingDeviceData(RecordingDeviceData rddSet, Patient patient, Map<Integer, List<AttributeThreshold>> thresholds) {
+        regressionWindowCache.dataPersisted(rddSet);
+        try {
+            if (dataThresholdTester.isEnabled()) {
+                List<AttributeThreshold> attributeThresholds = thresholds.computeIfAbsent(rddSet.getAttributeId().getAttributeId(), id -> dataThresholdTester.getThresholds(rddSet.getAttributeId(), patient));
+                return dataThresholdTester.testNewData(attributeThresholds, patient, rddSet);
+            }
+        } catch (EmptyResultDataAccessException e) {
+            // Nothing to do if there is no Attribute threshold for the reading
+        } catch (Exception e) {
+            logger.log(PatientGroupSynchroniser.class.getName() + ".dbIssue", "Attempt to test data for " + rddSet.getAttributeId().getAttributeName() + " failed");
+            throw new InternalServerError500Exception("Attempt to test data for " + rddSet.getAttributeId().getAttributeName() + " failed");
+        }
+        return null;
+    }
+
+    private void writePending(List<RecordingDeviceData> pending, int batchSize) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            recordingDeviceDataDAOImpl.saveBatch(pending, batchSize);
+        } catch (Exception e) {
+            logger.log(PatientGroupSynchroniser.class.getName() + ".dbIssue", "Attempt to write " + pending.size() + " data points to DB failed: " + e.getLocalizedMessage());
+            throw new InternalServerError500Exception("Attempt to write " + pending.size() + " data points to DB failed");
+        }
+        pending.clear();
+    }
+
+    private int getBatchSize() {
+        String batchSizeString = utils.getProperties().getProperty(MEDIPICLINICALSYNCDATABATCHSIZE);
+        if (batchSizeString != null && batchSizeString.trim().length() != 0) {
+            try {
+                return Math.max(1, Integer.parseInt(batchSizeString.trim()));
+            } catch (NumberFormatException numberFormatException) {
+                MediPiLogger.getInstance().log(PatientGroupSynchroniser.class.getName() + "error", "Error - Cant read the synchronisation batch size from the properties file: " + numberFormatException.getLocalizedMessage());
+            }
+        }
+        return DEFAULTBATCHSIZE;
+    }
+}
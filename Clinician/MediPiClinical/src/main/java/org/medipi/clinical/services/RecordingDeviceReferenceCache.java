@@ -0,0 +1,125 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.clinical.services;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.medipi.clinical.dao.RecordingDeviceAttributeDAOImpl;
+import org.medipi.clinical.dao.RecordingDeviceTypeDAOImpl;
+import org.medipi.clinical.entities.RecordingDeviceAttribute;
+import org.medipi.clinical.entities.RecordingDeviceData;
+import org.medipi.clinical.entities.RecordingDeviceType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded, thread safe cache of the RecordingDeviceType and
+ * RecordingDeviceAttribute reference data used when data synchronised from
+ * the concentrator is persisted.
+ *
+ * The cache is filled from the DB on a miss. Types and attributes which are
+ * new to the clinical DB are created by the RecordingDeviceReferenceCreator
+ * in their own committed transactions and so may be cached straight away
+ *
+ * @author rick@robinsonhq.com
+ */
+@Component
+public class RecordingDeviceReferenceCache {
+
+    private static final int MAXIMUMSIZE = 10000;
+
+    private final ConcurrentHashMap<List<Object>, RecordingDeviceType> typeCache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<List<Object>, RecordingDeviceAttribute> attributeCache = new ConcurrentHashMap<>();
+
+    @Autowired
+    private RecordingDeviceTypeDAOImpl recordingDeviceTypeDAOImpl;
+    @Autowired
+    private RecordingDeviceAttributeDAOImpl recordingDeviceAttributeDAOImpl;
+    @Autowired
+    private RecordingDeviceReferenceCreator recordingDeviceReferenceCreator;
+
+    /**
+     * Find the recording device attribute of a data point received from the
+     * concentrator, creating it and its type if they are new to the clinical
+     * DB
+     *
+     * @param rdd data point received from the concentrator
+     * @return the recording device attribute
+     */
+    public RecordingDeviceAttribute getAttribute(RecordingDeviceData rdd) {
+        RecordingDeviceType rdt = getType(rdd);
+        List<Object> key = Arrays.<Object>asList(rdt.getTypeId(),
+                rdd.getAttributeId().getAttributeName(),
+                rdd.getAttributeId().getAttributeType(),
+                rdd.getAttributeId().getAttributeUnits());
+        RecordingDeviceAttribute rda = attributeCache.get(key);
+        if (rda == null) {
+            try {
+                rda = recordingDeviceAttributeDAOImpl.findByAttributeNameTypeUnitsTypeId(
+                        rdd.getAttributeId().getAttributeName(),
+                        rdd.getAttributeId().getAttributeType(),
+                        rdd.getAttributeId().getAttributeUnits(),
+                        rdt.getTypeId());
+            } catch (EmptyResultDataAccessException emptyAttribute) {
+                Integer attributeId;
+                synchronized (RecordingDeviceReferenceCreator.LOCK) {
+                    attributeId = recordingDeviceReferenceCreator.findOrCreateAttribute(rdd, rdt.getTypeId());
+                }
+                rda = recordingDeviceAttributeDAOImpl.findByPrimaryKey(attributeId);
+            }
+            makeRoom(attributeCache);
+            attributeCache.put(key, rda);
+        }
+        return rda;
+    }
+
+    private RecordingDeviceType getType(RecordingDeviceData rdd) {
+        List<Object> key = Arrays.<Object>asList(rdd.getAttributeId().getTypeId().getType(),
+                rdd.getAttributeId().getTypeId().getMake(),
+                rdd.getAttributeId().getTypeId().getModel(),
+                rdd.getAttributeId().getTypeId().getDisplayName());
+        RecordingDeviceType rdt = typeCache.get(key);
+        if (rdt == null) {
+            try {
+                rdt = recordingDeviceTypeDAOImpl.findByTypeMakeModelDisplayName(
+                        rdd.getAttributeId().getTypeId().getType(),
+                        rdd.getAttributeId().getTypeId().getMake(),
+                        rdd.getAttributeId().getTypeId().getModel(),
+                        rdd.getAttributeId().getTypeId().getDisplayName());
+            } catch (EmptyResultDataAccessException emptyType) {
+                Integer typeId;
+                synchronized (RecordingDeviceReferenceCreator.LOCK) {
+                    typeId = recordingDeviceReferenceCreator.findOrCreateType(rdd);
+                }
+                rdt = recordingDeviceTypeDAOImpl.findByPrimaryKey(typeId);
+            }
+            makeRoom(typeCache);
+            typeCache.put(key, rdt);
+        }
+        return rdt;
+    }
+
+    private void makeRoom(ConcurrentHashMap<List<Object>, ?> cache) {
+        Iterator<List<Object>> it = cache.keySet().iterator();
+        while (cache.size() >= MAXIMUMSIZE && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.clinical.services;
+
+import org.medipi.clinical.dao.RecordingDeviceAttributeDAOImpl;
+import org.medipi.clinical.dao.RecordingDeviceTypeDAOImpl;
+import org.medipi.clinical.entities.RecordingDeviceAttribute;
+import org.medipi.clinical.entities.RecordingDeviceData;
+import org.medipi.clinical.entities.RecordingDeviceType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Class to create the recording device types and attributes which are new to
+ * the clinical DB.
+ *
+ * Patient groups are synchronised concurrently, so the same new type or
+ * attribute may be received by more than one group at once. Each is created
+ * in its own transaction, which is committed before the caller continues, and
+ * callers hold LOCK while doing so, so that only one copy is ever created
+ *
+ * @author rick@robinsonhq.com
+ */
+@Component
+public class RecordingDeviceReferenceCreator {
+
+    /**
+     * Lock to be held while calling the methods of this class
+     */
+    public static final Object LOCK = new Object();
+
+    @Autowired
+    private RecordingDeviceTypeDAOImpl recordingDeviceTypeDAOImpl;
+    @Autowired
+    private RecordingDeviceAttributeDAOImpl recordingDeviceAttributeDAOImpl;
+
+    /**
+     * Find or create the recording device type of a data point
+     *
+     * @param rdd data point received from the concentrator
+     * @return the id of the recording device type
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW, rollbackFor = RuntimeException.class)
+    public Integer findOrCreateType(RecordingDeviceData rdd) {
+        try {
+            return recordingDeviceTypeDAOImpl.findByTypeMakeModelDisplayName(
+                    rdd.getAttributeId().getTypeId().getType(),
+                    rdd.getAttributeId().getTypeId().getMake(),
+                    rdd.getAttributeId().getTypeId().getModel(),
+                    rdd.getAttributeId().getTypeId().getDisplayName()).getTypeId();
+        } catch (EmptyResultDataAccessException emptyType) {
+            RecordingDeviceType rdt = new RecordingDeviceType();
+            rdt.setType(rdd.getAttributeId().getTypeId().getType());
+            rdt.setMake(rdd.getAttributeId().getTypeId().getMake());
+            rdt.setModel(rdd.getAttributeId().getTypeId().getModel());
+            rdt.setDisplayName(rdd.getAttributeId().getTypeId().getDisplayName());
+            recordingDeviceTypeDAOImpl.save(rdt);
+            return rdt.getTypeId();
+        }
+    }
+
+    /**
+     * Find or create the recording device attribute of a data point
+     *
+     * @param rdd data point received from the concentrator
+     * @param typeId id of the recording device type of the data point
+     * @return the id of the recording device attribute
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW, rollbackFor = RuntimeException.class)
+    public Integer findOrCreateAttribute(RecordingDeviceData rdd, Integer typeId) {
+        try {
+            return recordingDeviceAttributeDAOImpl.findByAttributeNameTypeUnitsTypeId(
+                    rdd.getAttributeId().getAttributeName(),
+                    rdd.getAttributeId().getAttributeType(),
+                    rdd.getAttributeId().getAttributeUnits(),
+                    typeId).getAttributeId();
+        } catch (EmptyResultDataAccessException emptyAttribute) {
+            RecordingDeviceAttribute rda = new RecordingDeviceAttribute();
+            rda.setAttributeName(rdd.getAttributeId().getAttributeName());
+            rda.setAttributeType(rdd.getAttributeId().getAttributeType());
+            rda.setAttributeUnits(rdd.getAttributeId().getAttributeUnits());
+            rda.setTypeId(recordingDeviceTypeDAOImpl.findByPrimaryKey(typeId));
+            recordingDeviceAttributeDAOImpl.save(rda);
+            return rda.getAttributeId();
+        }
+    }
+}
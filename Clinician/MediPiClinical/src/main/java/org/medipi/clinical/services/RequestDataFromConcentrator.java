@@ -15,75 +15,78 @@
  */
 package org.medipi.clinical.services;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import java.io.IOException;
-import java.net.URI;
 import java.text.SimpleDateFormat;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
-import org.medipi.clinical.dao.PatientDAOImpl;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
 import org.medipi.clinical.dao.PatientGroupDAOImpl;
-import org.medipi.clinical.dao.RecordingDeviceAttributeDAOImpl;
-import org.medipi.clinical.dao.RecordingDeviceDataDAOImpl;
-import org.medipi.clinical.dao.RecordingDeviceTypeDAOImpl;
-import org.medipi.clinical.entities.Patient;
 import org.medipi.clinical.entities.PatientGroup;
-import org.medipi.clinical.entities.RecordingDeviceAttribute;
-import org.medipi.clinical.entities.RecordingDeviceData;
-import org.medipi.clinical.entities.RecordingDeviceType;
-import org.medipi.clinical.exception.InternalServerError500Exception;
 import org.medipi.clinical.logging.MediPiLogger;
-import org.medipi.clinical.model.PatientDataRequestDO;
-import org.medipi.model.AlertListDO;
-import org.medipi.model.SimpleMessageDO;
+import org.medipi.clinical.utilities.Utilities;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
-import org.springframework.web.util.UriComponentsBuilder;
 
 /**
+ * Scheduled synchronisation of data from the concentrator.
+ *
+ * Each patient group is synchronised as a separate task on a bounded pool of
+ * threads, in its own transaction and from its own stored high water mark, so
+ * that a slow or failing group does not delay or roll back any other. A group
+ * whose previous synchronisation is still running when the next one is due is
+ * skipped. The latency and number of data points of the synchronisations of
+ * each group are recorded and logged.
+ *
+ * When the concentrator's data change feed is enabled, groups are synchronised
+ * as soon as the feed reports that they have new data and the scheduled
+ * synchronisation of all the groups only runs while the feed is not connected
+ * or once every full synchronisation interval as a safety net
  *
  * @author rick@robinsonhq.com
  */
 @Component
 public class RequestDataFromConcentrator {
 
-    @Autowired
-    private PatientDAOImpl patientDAOImpl;
+    private static final String MEDIPICLINICALSYNCDATATHREADS = "medipi.clinical.syncdata.threads";
+    private static final int DEFAULTTHREADS = 4;
+
     @Autowired
     private PatientGroupDAOImpl patientGroupDAOImpl;
     @Autowired
-    private RecordingDeviceDataDAOImpl recordingDeviceDataDAOImpl;
-    @Autowired
-    private RecordingDeviceTypeDAOImpl recordingDeviceTypeDAOImpl;
-    @Autowired
-    private RecordingDeviceAttributeDAOImpl recordingDeviceAttributeDAOImpl;
-    @Autowired
     private SSLClientHttpRequestFactory requestFactory;
     @Autowired
-    private SendAlertService sendAlertService;
+    private PatientGroupSynchroniser patientGroupSynchroniser;
     @Autowired
     private DataThresholdTester dataThresholdTester;
     @Autowired
     private LinkedSubmissionsTester linkedSubmissionsTester;
     @Autowired
+    private ConcentratorDataFeed concentratorDataFeed;
+    @Autowired
+    private Utilities utils;
+    @Autowired
     private MediPiLogger logger;
 
     private static final SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
 
-    //Path for posting requests for synchronising patient data
-    @Value("${medipi.clinical.syncdata.resourcepath}")
-    private String syncDataResourcePath;
+    private ExecutorService executor;
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    // groups with new data reported by the feed while they were being synchronised
+    private final Set<String> rerun = ConcurrentHashMap.newKeySet();
+    private volatile long lastFullSynchronisation = 0;
+    private final Map<String, GroupSyncStatistics> statistics = new ConcurrentHashMap<>();
 
-    //FIX - Connection refused or any unexpected results
     @Scheduled(fixedRateString = "${medipi.clinical.dataRefreshRate}")
-    @Transactional(rollbackFor = RuntimeException.class)
     public void requestDataFromConcentrator() {
         System.out.println("The time is now " + dateFormat.format(new Date()));
 
@@ -99,88 +102,41 @@ public class RequestDataFromConcentrator {
         dataThresholdTester.init();
         linkedSubmissionsTester.init();
         // Check for any unsent alerts and send on any found until they reach the upper resend limit
-        if (dataThresholdTester.isEnabled()) {
-            sendAlertService.resendDirectMessages(dataThresholdTester, restTemplate);
+        try {
+            patientGroupSynchroniser.resendDirectMessages(restTemplate);
+        } catch (Exception e) {
+            MediPiLogger.getInstance().log(RequestDataFromConcentrator.class.getName() + "error", "Error resending direct messages: " + e.getLocalizedMessage());
+            System.out.println("Error resending direct messages: " + e.getLocalizedMessage());
         }
-        if (linkedSubmissionsTester.isEnabled()) {
-            sendAlertService.resendDirectMessages(linkedSubmissionsTester, restTemplate);
+
+        if (concentratorDataFeed.isEnabled()) {
+            concentratorDataFeed.start(this);
+            if (concentratorDataFeed.isConnected() && System.currentTimeMillis() - lastFullSynchronisation < concentratorDataFeed.getFullSynchronisationInterval()) {
+                return;
+            }
         }
+        lastFullSynchronisation = System.currentTimeMillis();
+        logger.log(RequestDataFromConcentrator.class.getName() + ".info", "Starting full synchronisation - " + getStatistics());
 
         // get List of all the patient groups to retreive data for 
         List<PatientGroup> patGrpList = patientGroupDAOImpl.getAllGroups();
 
-        // Loop through the patient group list and retreive the latest date of retreival
-        if (!patGrpList.isEmpty() && !patGrpList.isEmpty()) {
+        if (!patGrpList.isEmpty()) {
+            ExecutorService ex = getExecutor();
             for (PatientGroup pg : patGrpList) {
-                Date d = recordingDeviceDataDAOImpl.dateOfLatestPatientGroupSync(pg);
-                Date lastMeasurementDate;
-                if (d == null) {
-                    // if there is no date found use epoch date
-                    lastMeasurementDate = new Date(0L);
-                } else {
-                    lastMeasurementDate = d;
+                final String patientGroupUuid = pg.getPatientGroupUuid();
+                final GroupSyncStatistics gss = statistics.computeIfAbsent(patientGroupUuid, k -> new GroupSyncStatistics());
+                if (!inFlight.add(patientGroupUuid)) {
+                    // the previous synchronisation of this group has not finished
+                    gss.skipped();
+                    System.out.println("Synchronisation of patient group " + patientGroupUuid + " is still running - skipped");
+                    continue;
                 }
-
-                // create a URL of the concentrator inclusing the patient group uuid and the last sync time
-                URI targetUrl = UriComponentsBuilder.fromUriString(syncDataResourcePath)
-                        .path("/")
-                        .path(pg.getPatientGroupUuid())
-                        .queryParam("date", lastMeasurementDate.getTime())
-                        .build()
-                        .toUri();
-
                 try {
-                    // transmit request to concentrator
-                    String responseString = restTemplate.getForObject(targetUrl, String.class);
-
-                    if (responseString != null) {
-                        ObjectMapper mapper = new ObjectMapper();
-// TO DO - THIS RESPONSE SHOULD BE ENCRYPTED AND SIGNED AND THERFORE WILL NEED DECRYTING AND VERIFIYING
-                        List<PatientDataRequestDO> response;
-                        try {
-                            response = mapper.readValue(responseString, new TypeReference<List<PatientDataRequestDO>>() {
-                            });
-                            //Loop through each patient in the response and persist any returned data
-                            for (PatientDataRequestDO pdr : response) {
-                                if (pdr != null) {
-                                    //find the patient in the clinical db
-                                    Patient patient = patientDAOImpl.findByPrimaryKey(pdr.getPatientUuid());
-                                    if (patient != null) {
-                                        // Create the container for any possible alerts
-                                        AlertListDO alertListDO = new AlertListDO(patient.getPatientUuid());
-                                        // loop through all the individual datapoints, persiste them to the DB and test for any thresholds
-                                        System.out.println("patient:" + patient.getPatientUuid() + " data items:" + pdr.getRecordingDeviceDataList().size());
-                                        for (RecordingDeviceData rdd : pdr.getRecordingDeviceDataList()) {
-                                            updateRecordingDeviceData(rdd, patient, alertListDO);
-                                        }
-
-                                        if (!alertListDO.getAlert().isEmpty() && dataThresholdTester.isEnabled()) {
-                                            sendAlertService.sendDirectMessage(dataThresholdTester, alertListDO, patient.getPatientUuid(), restTemplate);
-                                        }
-
-                                        if (linkedSubmissionsTester.isEnabled()) {
-                                            SimpleMessageDO simpleMessageDO = new SimpleMessageDO(patient.getPatientUuid());
-                                            linkedSubmissionsTester.testNewData(patient, simpleMessageDO);
-                                            sendAlertService.sendDirectMessage(linkedSubmissionsTester, simpleMessageDO, patient.getPatientUuid(), restTemplate);
-                                        }
-
-                                    } else {
-                                        MediPiLogger.getInstance().log(RequestDataFromConcentrator.class.getName() + "error", "Error - Can't find a returned patient in the local DB: " + pdr.getPatientUuid());
-                                        System.out.println("Error - Can't find a returned patient in the local DB: " + pdr.getPatientUuid());
-                                    }
-                                }
-                            }
-                        } catch (IOException ex) {
-                            MediPiLogger.getInstance().log(RequestDataFromConcentrator.class.getName() + "error", "Error mapping values from host response onto the PatientDataRequestDO: " + ex.getLocalizedMessage());
-                            System.out.println("Error mapping values from host response onto the PatientDataRequestDO: " + ex.getLocalizedMessage());
-                        }
-                    }
-                } catch (ResourceAccessException e) {
-                    MediPiLogger.getInstance().log(RequestDataFromConcentrator.class.getName() + "error", "Error in connectiong to target system using SSL: " + e.getLocalizedMessage());
-                    System.out.println("Error in connectiong to target system using SSL: " + e.getLocalizedMessage());
-                } catch (Exception e) {
-                    MediPiLogger.getInstance().log(RequestDataFromConcentrator.class.getName() + "error", "Error occurred: " + e.getLocalizedMessage());
-                    System.out.println("Error occurred: " + e.getLocalizedMessage());
+                    ex.execute(() -> synchronise(patientGroupUuid, restTemplate, gss));
+                } catch (RuntimeException re) {
+                    inFlight.remove(patientGroupUuid);
+                    throw re;
                 }
             }
         } else {
@@ -188,72 +144,154 @@ public class RequestDataFromConcentrator {
         }
     }
 
-    @Transactional
-    private void updateRecordingDeviceData(RecordingDeviceData rdd, Patient patient, AlertListDO alertListDO) {
-        RecordingDeviceType rdt = null;
-        try {
-            rdt = recordingDeviceTypeDAOImpl.findByTypeMakeModelDisplayName(
-                    rdd.getAttributeId().getTypeId().getType(),
-                    rdd.getAttributeId().getTypeId().getMake(),
-                    rdd.getAttributeId().getTypeId().getModel(),
-                    rdd.getAttributeId().getTypeId().getDisplayName());
-        } catch (EmptyResultDataAccessException emptyType) {
-            rdt = updateRecordingDeviceType(rdt, rdd);
+    /**
+     * Synchronise patient groups which the data change feed has reported as
+     * having new data. A group which is already being synchronised is
+     * synchronised again once that has finished
+     *
+     * @param patientGroupUuids the patient groups to be synchronised
+     * @param restTemplate template used to connect to the concentrator
+     */
+    public void synchroniseGroups(Collection<String> patientGroupUuids, RestTemplate restTemplate) {
+        for (String patientGroupUuid : patientGroupUuids) {
+            submitRerun(patientGroupUuid, restTemplate);
         }
-        RecordingDeviceAttribute rda = null;
-        try {
-            rda = recordingDeviceAttributeDAOImpl.findByAttributeNameTypeUnitsTypeId(
-                    rdd.getAttributeId().getAttributeName(),
-                    rdd.getAttributeId().getAttributeType(),
-                    rdd.getAttributeId().getAttributeUnits(),
-                    rdt.getTypeId());
-        } catch (EmptyResultDataAccessException emptyAttribute) {
-            rda = updateRecordingDeviceAttribute(rda, rdd, rdt);
+    }
+
+    /**
+     * Synchronise all the patient groups, as when the data change feed has
+     * been restarted and changes may have been missed
+     *
+     * @param restTemplate template used to connect to the concentrator
+     */
+    public void synchroniseAllGroups(RestTemplate restTemplate) {
+        lastFullSynchronisation = System.currentTimeMillis();
+        for (PatientGroup pg : patientGroupDAOImpl.getAllGroups()) {
+            submitRerun(pg.getPatientGroupUuid(), restTemplate);
         }
+    }
 
-        RecordingDeviceData rddSet = new RecordingDeviceData();
-        rddSet.setAttributeId(rda);
-        rddSet.setDataValue(rdd.getDataValue());
-        rddSet.setDataValueTime(rdd.getDataValueTime());
-        rddSet.setDownloadedTime(rdd.getDownloadedTime());
-        rddSet.setPatientUuid(patient);
-        rddSet.setScheduleEffectiveTime(rdd.getScheduleEffectiveTime());
-        rddSet.setScheduleExpiryTime(rdd.getScheduleExpiryTime());
+    private void submitRerun(String patientGroupUuid, RestTemplate restTemplate) {
+        GroupSyncStatistics gss = statistics.computeIfAbsent(patientGroupUuid, k -> new GroupSyncStatistics());
+        if (!inFlight.add(patientGroupUuid)) {
+            rerun.add(patientGroupUuid);
+            // the synchronisation may have finished before the group was marked
+            if (!inFlight.add(patientGroupUuid)) {
+                return;
+            }
+            rerun.remove(patientGroupUuid);
+        }
+        try {
+            getExecutor().execute(() -> synchronise(patientGroupUuid, restTemplate, gss));
+        } catch (RuntimeException re) {
+            inFlight.remove(patientGroupUuid);
+            throw re;
+        }
+    }
 
+    private void synchronise(String patientGroupUuid, RestTemplate restTemplate, GroupSyncStatistics gss) {
+        long start = System.nanoTime();
         try {
-            this.recordingDeviceDataDAOImpl.save(rddSet);
-            if (dataThresholdTester.isEnabled()) {
-                dataThresholdTester.testNewData(rda, patient, rddSet, alertListDO);
+            int rows = patientGroupSynchroniser.synchronise(patientGroupUuid, restTemplate);
+            gss.succeeded(System.nanoTime() - start, rows);
+            if (rows > 0) {
+                logger.log(RequestDataFromConcentrator.class.getName() + ".info", "Synchronised patient group " + patientGroupUuid + " - " + gss + " - " + requestFactory.getStatistics());
             }
-        } catch (EmptyResultDataAccessException e) {
-            // Nothing to do if there is no Attribute threshold for the reading
+        } catch (ResourceAccessException e) {
+            gss.failed(System.nanoTime() - start);
+            MediPiLogger.getInstance().log(RequestDataFromConcentrator.class.getName() + "error", "Error in connectiong to target system using SSL: " + e.getLocalizedMessage());
+            System.out.println("Error in connectiong to target system using SSL: " + e.getLocalizedMessage());
         } catch (Exception e) {
-            logger.log(RequestDataFromConcentrator.class.getName() + ".dbIssue", "Attempt to write data for " + rdd.getAttributeId().getAttributeName() + " to DB failed");
-            throw new InternalServerError500Exception("Attempt to write data for " + rdd.getAttributeId().getAttributeName() + " to DB failed");
+            gss.failed(System.nanoTime() - start);
+            MediPiLogger.getInstance().log(RequestDataFromConcentrator.class.getName() + "error", "Error occurred synchronising patient group " + patientGroupUuid + ": " + e.getLocalizedMessage());
+            System.out.println("Error occurred synchronising patient group " + patientGroupUuid + ": " + e.getLocalizedMessage());
+        } finally {
+            inFlight.remove(patientGroupUuid);
+        }
+        if (rerun.remove(patientGroupUuid)) {
+            submitRerun(patientGroupUuid, restTemplate);
+        }
+    }
 
+    // the synchronisation latency and number of data points for each patient group, the data feed and the connection pool
+    private String getStatistics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(requestFactory.getStatistics()).append("\n");
+        sb.append(concentratorDataFeed.getStatistics()).append("\n");
+        for (Map.Entry<String, GroupSyncStatistics> e : new TreeMap<>(statistics).entrySet()) {
+            sb.append(e.getKey()).append(": ").append(e.getValue()).append("\n");
         }
+        return sb.toString();
     }
 
-    @Transactional
-    private RecordingDeviceAttribute updateRecordingDeviceAttribute(RecordingDeviceAttribute rda, RecordingDeviceData rdd, RecordingDeviceType rdt) {
-        rda = new RecordingDeviceAttribute();
-        rda.setAttributeName(rdd.getAttributeId().getAttributeName());
-        rda.setAttributeType(rdd.getAttributeId().getAttributeType());
-        rda.setAttributeUnits(rdd.getAttributeId().getAttributeUnits());
-        rda.setTypeId(rdt);
-        recordingDeviceAttributeDAOImpl.save(rda);
-        return rda;
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int threads = DEFAULTTHREADS;
+            String threadsString = utils.getProperties().getProperty(MEDIPICLINICALSYNCDATATHREADS);
+            if (threadsString != null && threadsString.trim().length() != 0) {
+                try {
+                    threads = Math.max(1, Integer.parseInt(threadsString.trim()));
+                } catch (NumberFormatException numberFormatException) {
+                    MediPiLogger.getInstance().log(RequestDataFromConcentrator.class.getName() + "error", "Error - Cant read the number of synchronisation threads from the properties file: " + numberFormatException.getLocalizedMessage());
+                }
+            }
+            executor = Executors.newFixedThreadPool(threads);
+        }
+        return executor;
     }
 
-    @Transactional
-    private RecordingDeviceType updateRecordingDeviceType(RecordingDeviceType rdt, RecordingDeviceData rdd) {
-        rdt = new RecordingDeviceType();
-        rdt.setType(rdd.getAttributeId().getTypeId().getType());
-        rdt.setMake(rdd.getAttributeId().getTypeId().getMake());
-        rdt.setModel(rdd.getAttributeId().getTypeId().getModel());
-        rdt.setDisplayName(rdd.getAttributeId().getTypeId().getDisplayName());
-        recordingDeviceTypeDAOImpl.save(rdt);
-        return rdt;
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
+    /**
+     * Synchronisation counters for a patient group
+     */
+    private static class GroupSyncStatistics {
+
+        private long runs;
+        private long failures;
+        private long skips;
+        private long totalRows;
+        private int lastRows;
+        private long lastMillis;
+        private long maximumMillis;
+        private long totalMillis;
+
+        synchronized void succeeded(long nanos, int rows) {
+            record(nanos);
+            lastRows = rows;
+            totalRows += rows;
+        }
+
+        synchronized void failed(long nanos) {
+            record(nanos);
+            failures++;
+        }
+
+        synchronized void skipped() {
+            skips++;
+        }
+
+        private void record(long nanos) {
+            runs++;
+            lastMillis = nanos / 1000000;
+            totalMillis += lastMillis;
+            maximumMillis = Math.max(maximumMillis, lastMillis);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "runs: " + runs + ", failures: " + failures + ", skipped: " + skips + ", last rows: " + lastRows + ", total rows: " + totalRows
+                    + ", last latency: " + lastMillis + "ms, avg latency: " + (runs == 0 ? 0 : totalMillis / runs) + "ms, max latency: " + maximumMillis + "ms";
+        }
+    }
 }
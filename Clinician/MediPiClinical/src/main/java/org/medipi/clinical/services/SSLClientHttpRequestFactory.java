@@ -15,16 +15,26 @@
  */
 package org.medipi.clinical.services;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.security.KeyStore;
 import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManagerFactory;
-import org.apache.http.client.HttpClient;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.medipi.clinical.logging.MediPiLogger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.client.ClientHttpRequestFactory;
@@ -33,7 +43,13 @@ import org.springframework.stereotype.Component;
 
 /**
  * Class to create a ClientHttpRequestFactory from the trust and keystores and
- * configured passwords
+ * configured passwords.
+ *
+ * A single pooled HttpClient is built and shared by every request to the
+ * concentrator so that connections are kept alive and TLS sessions resumed
+ * between synchronisations. The client is only rebuilt when the trust or
+ * keystore file changes, and connections which have been idle for longer than
+ * the configured time are closed
  *
  * @author rick@robinsonhq.com
  */
@@ -54,16 +70,45 @@ public class SSLClientHttpRequestFactory {
     private String connectionRT;
     @Value("${medipi.clinical.readtimeout}")
     private String readTO;
-    
+    @Value("${medipi.clinical.connectionpool.maxtotal:20}")
+    private int maxTotal;
+    @Value("${medipi.clinical.connectionpool.maxperroute:10}")
+    private int maxPerRoute;
+    @Value("${medipi.clinical.connectionpool.keepalive:60000}")
+    private long keepAlive;
+    @Value("${medipi.clinical.connectionpool.idletimeout:30000}")
+    private long idleTimeout;
+    @Value("${medipi.clinical.connectionpool.sslsessiontimeout:86400}")
+    private int sslSessionTimeout;
+
     private int connectTimeout = 0;
     private int connectionRequestTimeout = 0;
     private int readTimeout = 0;
 
+    private ClientHttpRequestFactory requestFactory;
+    private CloseableHttpClient httpClient;
+    private PoolingHttpClientConnectionManager connectionManager;
+    // client replaced by a rebuild which may still be in use by a synchronisation
+    private CloseableHttpClient retiredHttpClient;
+    private String storeFingerprint;
+    private int builds = 0;
+
     public SSLClientHttpRequestFactory() {
 
     }
 
-    public ClientHttpRequestFactory getClientHttpRequestFactory() throws Exception {
+    /**
+     * Method to return the shared request factory, building it the first time
+     * it is requested and rebuilding it if the trust or keystore has changed
+     *
+     * @return request factory using the pooled HttpClient
+     * @throws Exception if the request factory cannot be built
+     */
+    public synchronized ClientHttpRequestFactory getClientHttpRequestFactory() throws Exception {
+        String fingerprint = getStoreFingerprint();
+        if (requestFactory != null && fingerprint.equals(storeFingerprint)) {
+            return requestFactory;
+        }
         try{
                 connectTimeout = Integer.parseInt(connectTO);
                 connectionRequestTimeout = Integer.parseInt(connectionRT);
@@ -72,16 +117,92 @@ public class SSLClientHttpRequestFactory {
             
         }
         //Create RestTemplate to send message to MediPiConcentrator
-        SSLConnectionSocketFactory socketFactory = new SSLConnectionSocketFactory(createSSLContext(), NoopHostnameVerifier.INSTANCE);
-        HttpClient httpClient = HttpClients.custom().setSSLSocketFactory(socketFactory).build();
-        HttpComponentsClientHttpRequestFactory componentsRequestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+        SSLContext sslContext = createSSLContext();
+        // TLS sessions are cached by the SSLContext and resumed on new connections to the same host
+        sslContext.getClientSessionContext().setSessionTimeout(sslSessionTimeout);
+        SSLConnectionSocketFactory socketFactory = new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE);
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("https", socketFactory)
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .build();
+        PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(registry);
+        cm.setMaxTotal(maxTotal);
+        cm.setDefaultMaxPerRoute(maxPerRoute);
+        cm.setValidateAfterInactivity(1000);
+        CloseableHttpClient client = HttpClients.custom()
+                .setConnectionManager(cm)
+                .setKeepAliveStrategy((response, context) -> {
+                    long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return duration > 0 ? duration : keepAlive;
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
+                // every connection uses the same client certificate so there is no per user connection state
+                .disableConnectionState()
+                .build();
+        HttpComponentsClientHttpRequestFactory componentsRequestFactory = new HttpComponentsClientHttpRequestFactory(client);
         componentsRequestFactory.setConnectTimeout(connectTimeout);
         componentsRequestFactory.setConnectionRequestTimeout(connectionRequestTimeout);
         componentsRequestFactory.setReadTimeout(readTimeout);
-        ClientHttpRequestFactory requestFactory = componentsRequestFactory;
+
+        closeQuietly(retiredHttpClient);
+        retiredHttpClient = httpClient;
+        httpClient = client;
+        connectionManager = cm;
+        requestFactory = componentsRequestFactory;
+        storeFingerprint = fingerprint;
+        builds++;
+        MediPiLogger.getInstance().log(SSLClientHttpRequestFactory.class.getName() + ".info", "Pooled SSL HTTP client built (" + builds + ") with at most " + maxTotal + " connections, " + maxPerRoute + " per route");
         return requestFactory;
     }
 
+    /**
+     * @return a string representation of the connection pool statistics
+     */
+    public synchronized String getStatistics() {
+        if (connectionManager == null) {
+            return "connection pool not built";
+        }
+        PoolStats ps = connectionManager.getTotalStats();
+        return "connection pool leased: " + ps.getLeased() + ", available: " + ps.getAvailable() + ", pending: " + ps.getPending() + ", max: " + ps.getMax() + ", builds: " + builds;
+    }
+
+    /**
+     * Close the pooled HttpClients
+     */
+    @PreDestroy
+    public synchronized void shutdown() {
+        closeQuietly(retiredHttpClient);
+        closeQuietly(httpClient);
+        retiredHttpClient = null;
+        httpClient = null;
+        connectionManager = null;
+        requestFactory = null;
+    }
+
+    private void closeQuietly(CloseableHttpClient client) {
+        if (client != null) {
+            try {
+                client.close();
+            } catch (Exception e) {
+                MediPiLogger.getInstance().log(SSLClientHttpRequestFactory.class.getName() + "error", "Error closing HttpClient: " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    // the last modified time and size of the stores are used to detect a change
+    private String getStoreFingerprint() {
+        return fingerprint(truststoreLocation) + "|" + fingerprint(keystoreLocation);
+    }
+
+    private String fingerprint(String location) {
+        if (location == null) {
+            return "";
+        }
+        File f = new File(location);
+        return f.lastModified() + ":" + f.length();
+    }
+
     private SSLContext createSSLContext() throws Exception {
         if (truststoreLocation == null || truststoreLocation.trim().equals("")) {
             MediPiLogger.getInstance().log(SSLClientHttpRequestFactory.class
@@ -125,7 +246,9 @@ public class SSLClientHttpRequestFactory {
 
     private KeyStore loadStore(String trustStoreFile, String password) throws Exception {
         KeyStore store = KeyStore.getInstance("JKS");
-        store.load(new FileInputStream(trustStoreFile), password.toCharArray());
+        try (FileInputStream fis = new FileInputStream(trustStoreFile)) {
+            store.load(fis, password.toCharArray());
+        }
         return store;
     }
 }
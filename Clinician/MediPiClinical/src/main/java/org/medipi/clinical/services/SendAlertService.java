@@ -17,15 +17,18 @@ package org.medipi.clinical.services;
 
 import java.io.Serializable;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
 import org.medipi.clinical.logging.MediPiLogger;
 import org.medipi.clinical.utilities.Utilities;
+import org.medipi.model.DirectMessageBatchDO;
+import org.medipi.model.DirectMessageBatchItemDO;
+import org.medipi.model.DirectMessageBatchResultDO;
+import org.medipi.model.DirectMessageStatusDO;
 import org.medipi.model.DirectPatientMessage;
-import org.medipi.security.CertificateDefinitions;
 import org.medipi.model.EncryptedAndSignedUploadDO;
 import org.medipi.security.UploadEncryptionAdapter;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -43,64 +46,75 @@ import org.springframework.web.util.UriComponentsBuilder;
 @Component
 public class SendAlertService {
 
+    private static final String MEDIPICLINICALDIRECTMESSAGEBATCHSIZE = "medipi.clinical.directmessage.batchsize";
+    private static final int DEFAULTBATCHSIZE = 100;
+
     @Autowired
-    private Utilities utils;
+    private PatientCertificateCache patientCertificateCache;
 
-    //Path for posting alerts for patients
-    @Value("${medipi.clinical.patientcertificate.resourcepath}")
-    private String patientCertificateResourcePath;
+    @Autowired
+    private Utilities utils;
 
     public void resendDirectMessages(Tester tester, RestTemplate restTemplate) {
 
         List<DirectPatientMessage> retryDirectMessageList = tester.findDirectPatientMessagesToResend();
-        for (DirectPatientMessage dpm : retryDirectMessageList) {
-            if (!sendDirectMessage(tester, dpm, dpm.getPatientUuid(), restTemplate)) {
-                tester.updateDirectPatientMessageTableWithFail(dpm);
+        for (DirectPatientMessage dpm : sendDirectMessages(tester, retryDirectMessageList, restTemplate)) {
+            tester.updateDirectPatientMessageTableWithFail(dpm);
+        }
+    }
 
+    /**
+     * Send direct messages to many patients using the concentrator's batch
+     * interface. The messages are encrypted for each patient and posted in
+     * batches of medipi.clinical.directmessage.batchsize. If the concentrator
+     * does not provide the batch interface the messages are sent one at a time
+     *
+     * @param tester the tester which created the messages
+     * @param directPatientMessages messages to be sent, each addressed using
+     * its patientUuid
+     * @param restTemplate template used to connect to the concentrator
+     * @return the messages which were not successfully sent
+     */
+    public List<DirectPatientMessage> sendDirectMessages(Tester tester, List<DirectPatientMessage> directPatientMessages, RestTemplate restTemplate) {
+        List<DirectPatientMessage> failed = new ArrayList<>();
+        List<DirectPatientMessage> batchMessages = new ArrayList<>();
+        DirectMessageBatchDO batch = new DirectMessageBatchDO();
+        int batchSize = getBatchSize();
+        boolean batchSupported = true;
+        for (DirectPatientMessage dpm : directPatientMessages) {
+            if (!batchSupported) {
+                if (!sendDirectMessage(tester, dpm, dpm.getPatientUuid(), restTemplate)) {
+                    failed.add(dpm);
+                }
+                continue;
+            }
+            EncryptedAndSignedUploadDO encryptedMessage = encryptDirectMessage(tester, dpm, dpm.getPatientUuid(), restTemplate);
+            if (encryptedMessage == null) {
+                failed.add(dpm);
+                continue;
+            }
+            batchMessages.add(dpm);
+            batch.addMessage(new DirectMessageBatchItemDO(dpm.getPatientUuid(), encryptedMessage));
+            if (batchMessages.size() >= batchSize) {
+                batchSupported = postDirectMessageBatch(tester, batchMessages, batch, failed, restTemplate);
+                batchMessages = new ArrayList<>();
+                batch = new DirectMessageBatchDO();
             }
         }
+        if (!batchMessages.isEmpty()) {
+            postDirectMessageBatch(tester, batchMessages, batch, failed, restTemplate);
+        }
+        return failed;
     }
 
     public boolean sendDirectMessage(Tester tester, DirectPatientMessage directPatientMessage, String patientUuid, RestTemplate restTemplate) {
 
-        // create a URL of the concentrator inclusing the patient group uuid and the last sync time
-        URI targetUrl = UriComponentsBuilder.fromUriString(patientCertificateResourcePath)
-                .path("/")
-                .path(patientUuid)
-                .build()
-                .toUri();
-        byte[] response;
-        try {
-            // transmit request to concentrator
-            response = restTemplate.getForObject(targetUrl, byte[].class);
-            System.out.println(response);
-
-        } catch (HttpClientErrorException hcee) {
-            if (hcee.getStatusCode().equals(HttpStatus.NOT_FOUND)) {
-                //The patient certificate has not been loaded onto the concentrator therefore ignore sending direct message
-                tester.failDirectPatientMessageTable(directPatientMessage);
-            }
-            return false;
-        } catch (Exception e) {
-            MediPiLogger.getInstance().log(SendAlertService.class.getName() + "error", "Error in connectiong to target system using SSL: " + e.getLocalizedMessage());
-            System.out.println("Error in connectiong to target system using SSL: " + e.getLocalizedMessage());
-            tester.failDirectPatientMessageTable(directPatientMessage);
+        EncryptedAndSignedUploadDO encryptedMessage = encryptDirectMessage(tester, directPatientMessage, patientUuid, restTemplate);
+        if (encryptedMessage == null) {
             return false;
         }
         // Send the alert to the concentrator
         try {
-            //Set up the encryption and signing adaptor
-            UploadEncryptionAdapter uploadEncryptionAdapter = new UploadEncryptionAdapter();
-            CertificateDefinitions cd = new CertificateDefinitions(utils.getProperties());
-            cd.setSIGNKEYSTORELOCATION("medipi.json.sign.keystore.clinician.location", CertificateDefinitions.INTERNAL);
-            cd.setSIGNKEYSTOREALIAS("medipi.json.sign.keystore.clinician.alias", CertificateDefinitions.INTERNAL);
-            cd.setSIGNKEYSTOREPASSWORD("medipi.json.sign.keystore.clinician.password", CertificateDefinitions.INTERNAL);
-            cd.setEncryptTruststorePEM(response);
-            String error = uploadEncryptionAdapter.init(cd, UploadEncryptionAdapter.CLIENTMODE);
-            if (error != null) {
-                throw new Exception(error);
-            }
-            EncryptedAndSignedUploadDO encryptedMessage = uploadEncryptionAdapter.encryptAndSign((Serializable) directPatientMessage);
             HttpEntity<EncryptedAndSignedUploadDO> request = new HttpEntity<>(encryptedMessage);
             // create a URL of the concentrator Alert url including the patient uuid
             URI uri = UriComponentsBuilder.fromUriString(tester.getDirectPatientMessageResourcePath())
@@ -117,6 +131,8 @@ public class SendAlertService {
                     // the concentrator and makes no claim on its progress to the patient unit per se
                     return tester.updateDirectPatientMessageTableWithSuccess(directPatientMessage);
                 } else {
+                    // the patient's certificate may have been replaced so fetch it again for the next attempt
+                    patientCertificateCache.invalidate(patientUuid);
                     return false;
                 }
             } catch (IllegalArgumentException iae) {
@@ -132,11 +148,132 @@ public class SendAlertService {
                 System.out.println("Error - A rest client error has been thrown: " + rce.getLocalizedMessage());
                 return false;
             }
+        } catch (HttpClientErrorException hcee) {
+            MediPiLogger.getInstance().log(SendAlertService.class.getName() + "error", "Error - The concentrator has rejected the ALERT: " + hcee.getLocalizedMessage());
+            System.out.println("Error - The concentrator has rejected the ALERT: " + hcee.getLocalizedMessage());
+            // the patient's certificate may have been replaced so fetch it again for the next attempt
+            patientCertificateCache.invalidate(patientUuid);
+            return false;
+        } catch (Exception ex) {
+            MediPiLogger.getInstance().log(SendAlertService.class.getName() + "error", "Error - Unable to send the ALERT: " + ex.getLocalizedMessage());
+            System.out.println("Error - Unable to send the ALERT: " + ex.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Encrypt and sign a message for the patient using the encryption adapter
+     * which is cached along with their certificate
+     *
+     * @return the encrypted message or null if it cannot be encrypted
+     */
+    private EncryptedAndSignedUploadDO encryptDirectMessage(Tester tester, DirectPatientMessage directPatientMessage, String patientUuid, RestTemplate restTemplate) {
+        UploadEncryptionAdapter uploadEncryptionAdapter;
+        try {
+            uploadEncryptionAdapter = patientCertificateCache.getEncryptionAdapter(patientUuid, restTemplate);
+        } catch (HttpClientErrorException hcee) {
+            if (hcee.getStatusCode().equals(HttpStatus.NOT_FOUND)) {
+                //The patient certificate has not been loaded onto the concentrator therefore ignore sending direct message
+                tester.failDirectPatientMessageTable(directPatientMessage);
+            }
+            return null;
+        } catch (RestClientException e) {
+            MediPiLogger.getInstance().log(SendAlertService.class.getName() + "error", "Error in connectiong to target system using SSL: " + e.getLocalizedMessage());
+            System.out.println("Error in connectiong to target system using SSL: " + e.getLocalizedMessage());
+            tester.failDirectPatientMessageTable(directPatientMessage);
+            return null;
         } catch (Exception ex) {
             MediPiLogger.getInstance().log(SendAlertService.class.getName() + "error", "Error - Unable to encrypt and sign the ALERT: " + ex.getLocalizedMessage());
             System.out.println("Error - Unable to encrypt and sign the ALERT: " + ex.getLocalizedMessage());
-            return false;
+            return null;
+        }
+        try {
+            return uploadEncryptionAdapter.encryptAndSign((Serializable) directPatientMessage);
+        } catch (Exception ex) {
+            MediPiLogger.getInstance().log(SendAlertService.class.getName() + "error", "Error - Unable to encrypt and sign the ALERT: " + ex.getLocalizedMessage());
+            System.out.println("Error - Unable to encrypt and sign the ALERT: " + ex.getLocalizedMessage());
+            patientCertificateCache.invalidate(patientUuid);
+            return null;
+        }
+    }
+
+    /**
+     * Post a batch of encrypted messages to the concentrator and record the
+     * outcome of each. Messages which are not accepted are added to the failed
+     * list. If the concentrator does not provide the batch interface the
+     * messages are sent one at a time
+     *
+     * @return false if the concentrator does not provide the batch interface
+     */
+    private boolean postDirectMessageBatch(Tester tester, List<DirectPatientMessage> batchMessages, DirectMessageBatchDO batch, List<DirectPatientMessage> failed, RestTemplate restTemplate) {
+        DirectMessageBatchResultDO result;
+        try {
+            URI uri = UriComponentsBuilder.fromUriString(tester.getDirectPatientMessageResourcePath())
+                    .build()
+                    .toUri();
+            result = restTemplate.postForObject(uri, new HttpEntity<>(batch), DirectMessageBatchResultDO.class);
+        } catch (HttpClientErrorException hcee) {
+            if (hcee.getStatusCode().equals(HttpStatus.NOT_FOUND) || hcee.getStatusCode().equals(HttpStatus.METHOD_NOT_ALLOWED)) {
+                MediPiLogger.getInstance().log(SendAlertService.class.getName() + "error", "The concentrator does not accept batches of direct messages - sending them individually");
+                System.out.println("The concentrator does not accept batches of direct messages - sending them individually");
+                for (DirectPatientMessage dpm : batchMessages) {
+                    if (!sendDirectMessage(tester, dpm, dpm.getPatientUuid(), restTemplate)) {
+                        failed.add(dpm);
+                    }
+                }
+                return false;
+            }
+            MediPiLogger.getInstance().log(SendAlertService.class.getName() + "error", "Error - The concentrator has rejected a batch of direct messages: " + hcee.getLocalizedMessage());
+            System.out.println("Error - The concentrator has rejected a batch of direct messages: " + hcee.getLocalizedMessage());
+            failed.addAll(batchMessages);
+            return true;
+        } catch (RestClientException rce) {
+            MediPiLogger.getInstance().log(SendAlertService.class.getName() + "error", "Error - A rest client error has been thrown: " + rce.getLocalizedMessage());
+            System.out.println("Error - A rest client error has been thrown: " + rce.getLocalizedMessage());
+            failed.addAll(batchMessages);
+            return true;
+        }
+        if (result == null || result.getResults() == null || result.getResults().size() != batchMessages.size()) {
+            MediPiLogger.getInstance().log(SendAlertService.class.getName() + "error", "Error - The concentrator did not return a status for each direct message in the batch");
+            System.out.println("Error - The concentrator did not return a status for each direct message in the batch");
+            failed.addAll(batchMessages);
+            return true;
+        }
+        for (int i = 0; i < batchMessages.size(); i++) {
+            DirectPatientMessage dpm = batchMessages.get(i);
+            DirectMessageStatusDO status = result.getResults().get(i);
+            if (status.getStatus() != HttpStatus.OK.value()) {
+                MediPiLogger.getInstance().log(SendAlertService.class.getName() + "error", "Error - The concentrator did not accept the direct message for patient: " + dpm.getPatientUuid() + " " + status.getStatus() + " " + status.getReason());
+                // the patient's certificate may have been replaced so fetch it again for the next attempt
+                patientCertificateCache.invalidate(dpm.getPatientUuid());
+                failed.add(dpm);
+                continue;
+            }
+            try {
+                // Note: The only thing this proves is that it was sucessfully transmitted and persisted to
+                // the concentrator and makes no claim on its progress to the patient unit per se
+                if (!tester.updateDirectPatientMessageTableWithSuccess(dpm)) {
+                    failed.add(dpm);
+                }
+            } catch (Exception ex) {
+                MediPiLogger.getInstance().log(SendAlertService.class.getName() + "error", "Error - Cant update the alert with a transmit successful date as it no longer exists in the DB: " + ex.getLocalizedMessage());
+                System.out.println("Error - Cant update the alert with a transmit successful date as it no longer exists in the DB: " + ex.getLocalizedMessage());
+                failed.add(dpm);
+            }
+        }
+        return true;
+    }
+
+    private int getBatchSize() {
+        String batchSizeString = utils.getProperties().getProperty(MEDIPICLINICALDIRECTMESSAGEBATCHSIZE);
+        if (batchSizeString != null && batchSizeString.trim().length() != 0) {
+            try {
+                return Math.max(1, Integer.parseInt(batchSizeString.trim()));
+            } catch (NumberFormatException numberFormatException) {
+                MediPiLogger.getInstance().log(SendAlertService.class.getName() + "error", "Error - Cant read the direct message batch size from the properties file: " + numberFormatException.getLocalizedMessage());
+            }
         }
+        return DEFAULTBATCHSIZE;
     }
 
 }
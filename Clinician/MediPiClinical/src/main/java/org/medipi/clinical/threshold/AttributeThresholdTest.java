@@ -30,22 +30,17 @@ import org.springframework.stereotype.Component;
 public interface AttributeThresholdTest {
     
     /**
-     * Initialises the threshold test setting the parameters for its use
+     * Compiles the threshold test for an attribute threshold. The threshold
+     * values are parsed and the alert text templates read once, and the
+     * returned evaluator holds no reference to any mutable state so it may be
+     * cached and used concurrently
      *
      * @param properties properties class
      * @param attributeThreshold to obtain attributes from the DB
-     * @throws Exception
-     */
-    public void init(Properties properties,AttributeThreshold attributeThreshold) throws Exception;
-
-    /**
-     * Method to test if a new measurement is in or out of threshold
-     *
-     * @param rdd data to be tested as part of a RecordingDeviceData object
-     * @return returns true if test in within bounds false if test is out of
-     * bounds
+     * @return immutable evaluator for the attribute threshold
+     * @throws Exception if the attribute threshold cannot be compiled
      */
-    public Boolean test(RecordingDeviceData rdd);
+    public ThresholdEvaluator compile(Properties properties, AttributeThreshold attributeThreshold) throws Exception;
 
     /**
      * Method to return upper and lower boundary values of the threshold of a
@@ -60,26 +55,25 @@ public interface AttributeThresholdTest {
     public List<Double> getThreshold(int attributeId, String patientUuid, Date dataValueTime, String dataValue)throws Exception;
 
     /**
-     * Method to return a descriptive string taken from the properties file and
-     * substituted with values from the measurement data describing a failure condition
+     * Method to return upper and lower boundary values of the threshold of
+     * each of a time ordered series of measurements of one attribute for one
+     * patient which are all tested against the same attribute threshold. The
+     * threshold values are read once and no DB access is needed, the
+     * measurements before fromIndex only being used as history (e.g. for the
+     * regression line of the ChangeOverTimeTest)
      *
-     * @return descriptive string of the alert
-     */
-    public String getFailedTestText();
-
-    /**
-     * Method to return a descriptive string taken from the properties file and
-     * substituted with values from the measurement data describing a cant calculate condition
-     *
-     * @return descriptive string of the alert
-     */
-    public String getCantCalculateTestText();
-
-    /**
-     * Method to return a descriptive string taken from the properties file and
-     * substituted with values from the measurement data describing a non-failure condition
-     *
-     * @return descriptive string of the alert
+     * @param thresholdLowValue low value of the attribute threshold
+     * @param thresholdHighValue high value of the attribute threshold
+     * @param dataValueTimes times of the measurements of the attribute for the
+     * patient in time order
+     * @param dataValues values of the measurements in the same order
+     * @param fromIndex index of the first measurement tested against the
+     * attribute threshold
+     * @param toIndex index after the last measurement tested against the
+     * attribute threshold
+     * @return List of threshold boundary values for each measurement from
+     * fromIndex up to toIndex
+     * @throws Exception
      */
-    public String getPassedTestText();
+    public List<List<Double>> getThresholds(String thresholdLowValue, String thresholdHighValue, List<Date> dataValueTimes, List<String> dataValues, int fromIndex, int toIndex) throws Exception;
 }
@@ -22,25 +22,26 @@
 package org.medipi.clinical.threshold;
 
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
 
 import org.medipi.clinical.dao.AttributeThresholdDAOImpl;
 import org.medipi.clinical.dao.DirectMessageTextDAOImpl;
-import org.medipi.clinical.dao.RecordingDeviceDataDAOImpl;
 import org.medipi.clinical.entities.AttributeThreshold;
 import org.medipi.clinical.entities.RecordingDeviceData;
 import org.medipi.clinical.logging.MediPiLogger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
  * Class to measure the change in a measurement over time. This is done using
  * least squares regression method of determining whether the most recent
  * measurement is above or below the calculated least squares prediction as
- * determined by previous measurements.
+ * determined by previous measurements. The regression is calculated from a
+ * sliding window of the measurements for the patient and attribute which is
+ * maintained by the RegressionWindowCache.
  *
  * The class also has a method for calculating the threshold boundaries for any
  * single point which can be used to create graphical representations of the
@@ -61,7 +62,7 @@ public class ChangeOverTimeTest implements AttributeThresholdTest {
     private static final String MEDIPICLINICALFEWESTNUMBEROFDATAPOINTSTOCALCULATEFROM = "medipi.clinical.alert.changeovertimetest.fewestnumberofdatapointstocalculatefrom";
 
     @Autowired
-    private RecordingDeviceDataDAOImpl recordingDeviceDataDAOImpl;
+    private RegressionWindowCache regressionWindowCache;
 
     @Autowired
     private AttributeThresholdDAOImpl attributeThresholdDAOImpl;
@@ -69,50 +70,64 @@ public class ChangeOverTimeTest implements AttributeThresholdTest {
     @Autowired
     private DirectMessageTextDAOImpl directMessageTextDAOImpl;
 
-    private AttributeThreshold attributeThreshold;
-    // This measures the number of hours' period the change should be measured over - IT IS AN INTEGER
-    private int measurementPeriod;
-    // This measure the maximum allowable change which is acceptable
-    private double measurementChangeThreshold;
-
-    private double currentValue;
-    private String attributeUnits = null;
-
-    private String failedTestText = null;
-    private String cantCalculateTestText = null;
-    private String passedTestText = null;
-    private int fewestCalculatingPoints = 3;
+    // The fewest number of points used when calculating threshold boundaries for
+    // graphical representations, read from the Spring environment of the application
+    // drawing them. Compiled evaluators hold their own value read from the properties
+    // passed to compile
+    @Value("${" + MEDIPICLINICALFEWESTNUMBEROFDATAPOINTSTOCALCULATEFROM + ":3}")
+    private int fewestCalculatingPoints;
 
     /**
-     * Initialises the threshold test setting the parameters for its use
+     * Compiles the threshold test for an attribute threshold
      *
      * @param properties properties class
      * @param attributeThreshold to obtain attributes from the DB
+     * @return immutable evaluator for the attribute threshold
      * @throws Exception
      */
     @Override
-    public void init(Properties properties, AttributeThreshold attributeThreshold) throws Exception {
-        failedTestText = this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTFAILEDTESTTEXT).getDirectMessageText();
-        cantCalculateTestText = this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTCANTCALCULATETESTTEXT).getDirectMessageText();
-        passedTestText = this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTPASSEDTESTTEXT).getDirectMessageText();
+    public ThresholdEvaluator compile(Properties properties, AttributeThreshold attributeThreshold) throws Exception {
+        // This measures the number of hours' period the change should be measured over - IT IS AN INTEGER
+        final int measurementPeriod = getMeasurementPeriod(attributeThreshold.getThresholdLowValue());
+        // This measure the maximum allowable change which is acceptable
+        final double measurementChangeThreshold = getMeasurementChangeThreshold(attributeThreshold.getThresholdHighValue());
+        final int fewestPoints = getFewestCalculatingPoints(properties);
+        final ThresholdTextTemplates templates = new ThresholdTextTemplates(
+                this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTFAILEDTESTTEXT).getDirectMessageText(),
+                this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTPASSEDTESTTEXT).getDirectMessageText(),
+                this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTCANTCALCULATETESTTEXT).getDirectMessageText())
+                .substitute(MEASUREMENT_PERIOD, String.valueOf(measurementPeriod))
+                .substitute(MEASUREMENT_CHANGE_THRESHOLD, String.valueOf(measurementChangeThreshold));
+        return (RecordingDeviceData rdd) -> {
+            String attributeUnits = String.valueOf(rdd.getAttributeId().getAttributeUnits());
+            double currentValue;
+            try {
+                currentValue = Double.valueOf(rdd.getDataValue());
+            } catch (NumberFormatException nfe) {
+                MediPiLogger.getInstance().log(ChangeOverTimeTest.class.getName() + "error", "Error in converting the incoming data value to be tested to a double " + nfe.getLocalizedMessage());
+                System.out.println("Error in converting the incoming data value to be tested to a double" + nfe.getLocalizedMessage());
+                return new ThresholdEvaluation(null, templates, DATA_VALUE, String.valueOf(rdd.getDataValue()), ATTRIBUTE_UNITS, attributeUnits);
+            }
+            Boolean result = test(rdd, currentValue, measurementPeriod, measurementChangeThreshold, fewestPoints);
+            return new ThresholdEvaluation(result, templates, DATA_VALUE, String.valueOf(currentValue), ATTRIBUTE_UNITS, attributeUnits);
+        };
+    }
 
-        measurementPeriod = getMeasurementPeriod(attributeThreshold.getThresholdLowValue());
-        measurementChangeThreshold = getMeasurementChangeThreshold(attributeThreshold.getThresholdHighValue());
+    private int getFewestCalculatingPoints(Properties properties) {
         String fewestCalculatingPointsString = properties.getProperty(MEDIPICLINICALFEWESTNUMBEROFDATAPOINTSTOCALCULATEFROM);
         if (fewestCalculatingPointsString == null || fewestCalculatingPointsString.trim().length() == 0) {
             MediPiLogger.getInstance().log(ChangeOverTimeTest.class.getName() + "warning", "Warning - The fewest number of calculating points to be used is not set on the properties file (default to 3)");
             System.out.println("Warning - The fewest number of calculating points to be used is not set on the properties file (default to 3)");
-            fewestCalculatingPoints = 3;
+            return 3;
         } else {
             try {
-                fewestCalculatingPoints = Integer.parseInt(fewestCalculatingPointsString);
+                return Integer.parseInt(fewestCalculatingPointsString);
             } catch (NumberFormatException numberFormatException) {
                 MediPiLogger.getInstance().log(ChangeOverTimeTest.class.getName() + "error", "Error - Can't read the fewest number of calculating points to be used from the properties file (default to 3): " + numberFormatException.getLocalizedMessage());
                 System.out.println("Error - Can't read the fewest number of calculating points to be used from the properties file (default to 3): " + numberFormatException.getLocalizedMessage());
-                fewestCalculatingPoints = 3;
+                return 3;
             }
         }
-
     }
 
     private double getMeasurementChangeThreshold(String threshold) throws Exception {
@@ -152,13 +167,10 @@ public class ChangeOverTimeTest implements AttributeThresholdTest {
      * @return returns true if test in within bounds false if test is out of
      * bounds
      */
-    @Override
-    public Boolean test(RecordingDeviceData rdd) {
+    private Boolean test(RecordingDeviceData rdd, double currentValue, int measurementPeriod, double measurementChangeThreshold, int fewestPoints) {
 
         try {
-            attributeUnits = rdd.getAttributeId().getAttributeUnits();
-            currentValue = Double.valueOf(rdd.getDataValue());
-            Double historicValue = getHistoricValue(rdd.getAttributeId().getAttributeId(), rdd.getPatientUuid().getPatientUuid(), rdd.getDataValueTime(), measurementPeriod);
+            Double historicValue = regressionWindowCache.getHistoricValue(rdd.getAttributeId().getAttributeId(), rdd.getPatientUuid().getPatientUuid(), rdd.getDataValueTime(), measurementPeriod, fewestPoints);
             if (historicValue == null) {
                 return null;
             } else if (historicValue + measurementChangeThreshold <= currentValue) { // Gained too much
@@ -168,10 +180,6 @@ public class ChangeOverTimeTest implements AttributeThresholdTest {
             } else {
                 return true;
             }
-        } catch (NumberFormatException nfe) {
-            MediPiLogger.getInstance().log(ChangeOverTimeTest.class.getName() + "error", "Error in converting the incoming data value to be tested to a double " + nfe.getLocalizedMessage());
-            System.out.println("Error in converting the incoming data value to be tested to a double" + nfe.getLocalizedMessage());
-            return null;
         } catch (Exception e) {
             MediPiLogger.getInstance().log(ChangeOverTimeTest.class.getName() + "error", "Error in testing the change over time: " + e.getLocalizedMessage());
             System.out.println("Error in testing the change over time: " + e.getLocalizedMessage());
@@ -180,86 +188,6 @@ public class ChangeOverTimeTest implements AttributeThresholdTest {
 
     }
 
-    private Double getHistoricValue(int attributeId, String patientUuid, Date dataValueTime, int period) {
-        try {
-            // Can  a date value be found for x hours ago? we will use linear least squared method
-            Calendar start = Calendar.getInstance();
-            start.setTime(dataValueTime);
-            start.add(Calendar.HOUR, -period);
-            Date periodStartTime = start.getTime();
-            // Access the database and find the first  entry before the started period so that the least square method will have at least the epriod stated
-            Date firstBeforePeriod = recordingDeviceDataDAOImpl.findFirstEntryBeforePeriod(patientUuid, attributeId, periodStartTime);
-            if (firstBeforePeriod == null) {
-                return null;
-            }
-            // Access the database and collect all records within this period
-            List<RecordingDeviceData> historicList = recordingDeviceDataDAOImpl.findByPatientAndAttributeAndPeriod(patientUuid, attributeId, firstBeforePeriod, dataValueTime);
-
-            if (historicList == null || historicList.isEmpty()) {
-                // DONT KNOW WHAT TO DO HERE WHERE THERE IS NOT PRECEDING DATAPOINT?
-                // 1. return null and count as failure - but this will fail whenever there is a new patient for n days
-                // 2. return a true - however the test hagetHistoricValues not passed
-                // 3. return a false - however the test has not failed
-                // 4. interpolate from surrounding data and perform test - tricky and dangerous
-
-                return null;
-            } else {
-                int MAXN = 1000;
-                int n = 0;
-                double[] x = new double[MAXN];
-                double[] y = new double[MAXN];
-
-                // first pass: read in data, compute xbar and ybar
-                double sumx = 0.0, sumy = 0.0, sumx2 = 0.0;
-                for (RecordingDeviceData historic : historicList) {
-                    Long startMillis = firstBeforePeriod.getTime();
-                    Long pointMillis = historic.getDataValueTime().getTime();
-                    Long millisAfterStart = pointMillis - startMillis;
-                    x[n] = Double.valueOf(millisAfterStart);
-                    y[n] = Double.valueOf(historic.getDataValue());
-                    sumx += x[n];
-                    sumx2 += x[n] * x[n];
-                    sumy += y[n];
-                    n++;
-                }
-                //if there are fewer than 2 values its not got enough data to perform a least squarea
-                if (n < fewestCalculatingPoints || n <= 1) {
-                    return null;
-                }
-                double xbar = sumx / n;
-                double ybar = sumy / n;
-
-                // second pass: compute summary statistics
-                double xxbar = 0.0, yybar = 0.0, xybar = 0.0;
-                for (int i = 0; i < n; i++) {
-                    xxbar += (x[i] - xbar) * (x[i] - xbar);
-                    yybar += (y[i] - ybar) * (y[i] - ybar);
-                    xybar += (x[i] - xbar) * (y[i] - ybar);
-                }
-                double beta1 = xybar / xxbar;
-                double beta0 = ybar - beta1 * xbar;
-
-                // print results
-                System.out.println("y   = " + beta1 + " * x + " + beta0);
-                long millisAtPeriodStartTime = dataValueTime.getTime() - periodStartTime.getTime();
-                // As we are wanting the value at millisecondsAfter Start=0 need to return beta1*0+ beta0
-                // y=ax * b
-                Double h = (beta1 * millisAtPeriodStartTime) + beta0;
-                System.out.println("millisAtPeriodStartTime=" + millisAtPeriodStartTime);
-                System.out.println("weight at lastPoint==" + h);
-                return h;
-            }
-        } catch (NumberFormatException nfe) {
-            MediPiLogger.getInstance().log(ChangeOverTimeTest.class.getName() + "error", "Error in converting the incoming data value to be tested to a double " + nfe.getLocalizedMessage());
-            System.out.println("Error in converting the incoming data value to be tested to a double" + nfe.getLocalizedMessage());
-            return null;
-        } catch (Exception e) {
-            MediPiLogger.getInstance().log(ChangeOverTimeTest.class.getName() + "error", "Error in testing the change over time: " + e.getLocalizedMessage());
-            System.out.println("Error in testing the change over time: " + e.getLocalizedMessage());
-            return null;
-        }
-
-    }
 //    private Double getHistoricValue(RecordingDeviceData rdd, int period) {
 //        try {
 //            // Can  a date value be found for x hours ago? This is x hours according to the scheduled time periods
@@ -321,7 +249,7 @@ public class ChangeOverTimeTest implements AttributeThresholdTest {
             int period = getMeasurementPeriod(at.getThresholdLowValue());
             double threshold = getMeasurementChangeThreshold(at.getThresholdHighValue());
             List<Double> thresholdList = new ArrayList<>();
-            Double historicValue = getHistoricValue(attributeId, patientUuid, dataValueTime, period);
+            Double historicValue = regressionWindowCache.getHistoricValue(attributeId, patientUuid, dataValueTime, period, fewestCalculatingPoints);
             if (historicValue == null) {
                 thresholdList.add(getDataValue(dataValue));
                 thresholdList.add(getDataValue(dataValue));
@@ -333,55 +261,35 @@ public class ChangeOverTimeTest implements AttributeThresholdTest {
         }
     }
 
-    /**
-     * Method to return a descriptive string taken from the properties file and
-     * substituted with values from the measurement data describing a failure
-     * condition
-     *
-     * @return descriptive string of the alert
-     */
-    @Override
-    public String getFailedTestText() {
-        String response = failedTestText
-                .replace(DATA_VALUE, String.valueOf(currentValue))
-                .replace(ATTRIBUTE_UNITS, attributeUnits)
-                .replace(MEASUREMENT_PERIOD, String.valueOf(measurementPeriod))
-                .replace(MEASUREMENT_CHANGE_THRESHOLD, String.valueOf(measurementChangeThreshold));
-        return response;
-    }
-
-    /**
-     * Method to return a descriptive string taken from the properties file and
-     * substituted with values from the measurement data describing a
-     * non-failure condition
-     *
-     * @return descriptive string of the alert
-     */
-    @Override
-    public String getPassedTestText() {
-        String response = passedTestText
-                .replace(DATA_VALUE, String.valueOf(currentValue))
-                .replace(ATTRIBUTE_UNITS, attributeUnits)
-                .replace(MEASUREMENT_PERIOD, String.valueOf(measurementPeriod))
-                .replace(MEASUREMENT_CHANGE_THRESHOLD, String.valueOf(measurementChangeThreshold));
-        return response;
-    }
-
-    /**
-     * Method to return a descriptive string taken from the properties file and
-     * substituted with values from the measurement data describing a cant
-     * calculate condition
-     *
-     * @return descriptive string of the alert
-     */
     @Override
-    public String getCantCalculateTestText() {
-        String response = cantCalculateTestText
-                .replace(DATA_VALUE, String.valueOf(currentValue))
-                .replace(ATTRIBUTE_UNITS, attributeUnits)
-                .replace(MEASUREMENT_PERIOD, String.valueOf(measurementPeriod))
-                .replace(MEASUREMENT_CHANGE_THRESHOLD, String.valueOf(measurementChangeThreshold));
-        return response;
+    public List<List<Double>> getThresholds(String thresholdLowValue, String thresholdHighValue, List<Date> dataValueTimes, List<String> dataValues, int fromIndex, int toIndex) throws Exception {
+        int period = getMeasurementPeriod(thresholdLowValue);
+        double threshold = getMeasurementChangeThreshold(thresholdHighValue);
+        int fewestPoints = fewestCalculatingPoints;
+        long periodMillis = period * 3600000L;
+        // The regression window is slid over the measurements rather than being loaded from the DB for each of them
+        RegressionWindow w = new RegressionWindow(periodMillis);
+        int next = 0;
+        List<List<Double>> thresholds = new ArrayList<>(toIndex - fromIndex);
+        for (int i = fromIndex; i < toIndex; i++) {
+            long time = dataValueTimes.get(i).getTime();
+            while (next < dataValueTimes.size() && dataValueTimes.get(next).getTime() < time) {
+                w.add(dataValueTimes.get(next).getTime(), dataValues.get(next));
+                next++;
+            }
+            w.evictBefore(time - periodMillis);
+            Double historicValue = w.estimate(time, fewestPoints);
+            List<Double> thresholdList = new ArrayList<>();
+            if (historicValue == null) {
+                thresholdList.add(getDataValue(dataValues.get(i)));
+                thresholdList.add(getDataValue(dataValues.get(i)));
+            } else {
+                thresholdList.add(historicValue - threshold);
+                thresholdList.add(historicValue + threshold);
+            }
+            thresholds.add(thresholdList);
+        }
+        return thresholds;
     }
 
 }
@@ -18,6 +18,7 @@ package org.medipi.clinical.threshold;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
@@ -46,40 +47,29 @@ public class QuestionnaireTest implements AttributeThresholdTest {
     private static final String MEDIPICLINICALALERTPASSEDTESTTEXT = "medipi.clinical.alert.questionnairetest.passedtesttext";
     private static final String MEDIPICLINICALALERTFAILEDTESTTEXT = "medipi.clinical.alert.questionnairetest.failedtesttext";
     private static final String MEDIPICLINICALALERTCANTCALCULATETESTTEXT = "medipi.clinical.alert.questionnairetest.cantcalculatetesttext";
-
-    private String failedTestText = null;
-    private String passedTestText = null;
-    private String questionnaireType = null;
-    private String cantCalculateTestText = null;
+    // an ObjectMapper is thread safe once configured
+    private static final ObjectMapper MAPPER = new ObjectMapper();
 
     /**
-     * Initialises the threshold test setting the parameters for its use
+     * Compiles the threshold test for an attribute threshold
      *
      * @param properties properties class
      * @param attributeThreshold to obtain attributes from the DB
+     * @return immutable evaluator for the attribute threshold
      * @throws Exception
      */
     @Override
-    public void init(Properties properties, AttributeThreshold attributeThreshold) throws Exception {
-        failedTestText = this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTFAILEDTESTTEXT).getDirectMessageText();
-        cantCalculateTestText = this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTCANTCALCULATETESTTEXT).getDirectMessageText();
-        passedTestText = this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTPASSEDTESTTEXT).getDirectMessageText();
-
+    public ThresholdEvaluator compile(Properties properties, AttributeThreshold attributeThreshold) throws Exception {
+        final ThresholdTextTemplates templates = new ThresholdTextTemplates(
+                this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTFAILEDTESTTEXT).getDirectMessageText(),
+                this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTPASSEDTESTTEXT).getDirectMessageText(),
+                this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTCANTCALCULATETESTTEXT).getDirectMessageText());
+        return (RecordingDeviceData rdd) -> new ThresholdEvaluation(test(rdd), templates, QUESTIONNAIRE_TYPE, String.valueOf(rdd.getAttributeId().getTypeId().getDisplayName()));
     }
 
-    /**
-     * Method to test if a new measurement is in or out of threshold
-     *
-     * @param rdd data to be tested as part of a RecordingDeviceData object
-     * @return returns true if test in within bounds false if test is out of
-     * bounds
-     */
-    @Override
-    public Boolean test(RecordingDeviceData rdd) {
-            questionnaireType = rdd.getAttributeId().getTypeId().getDisplayName();
+    private Boolean test(RecordingDeviceData rdd) {
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            QuestionnaireDO qdo = mapper.readValue(rdd.getDataValue(), new TypeReference<QuestionnaireDO>() {
+            QuestionnaireDO qdo = MAPPER.readValue(rdd.getDataValue(), new TypeReference<QuestionnaireDO>() {
             });
             
             switch (qdo.getStatus()) {
@@ -118,32 +108,9 @@ public class QuestionnaireTest implements AttributeThresholdTest {
         return null;
     }
 
-    /**
-     * Method to return a descriptive string taken from the properties file and
-     * substituted with values from the measurement data describing a
-     * non-failure condition
-     *
-     * @return descriptive string of the alert
-     */
-    @Override
-    public String getFailedTestText() {
-        String response = failedTestText
-                .replace(QUESTIONNAIRE_TYPE, String.valueOf(questionnaireType));
-        return response;
-    }
-
-    @Override
-    public String getPassedTestText() {
-        String response = passedTestText
-                .replace(QUESTIONNAIRE_TYPE, String.valueOf(questionnaireType));
-        return response;
-    }
-
     @Override
-    public String getCantCalculateTestText() {
-        String response = cantCalculateTestText
-                .replace(QUESTIONNAIRE_TYPE, String.valueOf(questionnaireType));
-        return response;
+    public List<List<Double>> getThresholds(String thresholdLowValue, String thresholdHighValue, List<Date> dataValueTimes, List<String> dataValues, int fromIndex, int toIndex) throws Exception {
+        return Collections.nCopies(toIndex - fromIndex, (List<Double>) null);
     }
 
 }
@@ -0,0 +1,196 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.clinical.threshold;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Sliding window of the measurements of one attribute for one patient used to
+ * calculate a least squares regression line.
+ *
+ * The window holds the last measurement taken before the measurement period
+ * and every measurement taken since. Running sums of x, y, xy and x squared
+ * are updated as measurements are added and evicted so that the regression
+ * line can be calculated without reading the historic measurements again. x
+ * is the number of milliseconds after an origin which is moved forward to the
+ * start of the window from time to time, recalculating the sums, so that they
+ * keep their precision.
+ *
+ * The class is not thread safe and callers must synchronise on the instance
+ *
+ * @author rick@robinsonhq.com
+ */
+class RegressionWindow {
+
+    private final long period;
+    private final ArrayDeque<Point> points = new ArrayDeque<>();
+    private long origin;
+    private int n = 0;
+    // number of measurements in the window which could not be read as a number
+    private int invalid = 0;
+    private double sumx = 0.0, sumy = 0.0, sumxy = 0.0, sumx2 = 0.0;
+
+    /**
+     * @param period length of the measurement period in milliseconds
+     */
+    RegressionWindow(long period) {
+        this.period = period;
+    }
+
+    long getPeriod() {
+        return period;
+    }
+
+    /**
+     * @return the time of the latest measurement in the window or
+     * Long.MIN_VALUE if the window is empty
+     */
+    long getLastTime() {
+        return points.isEmpty() ? Long.MIN_VALUE : points.peekLast().time;
+    }
+
+    /**
+     * Add a measurement to the window. Measurements must be added in time
+     * order
+     *
+     * @param time time of the measurement in milliseconds
+     * @param dataValue value of the measurement
+     */
+    void add(long time, String dataValue) {
+        if (points.isEmpty()) {
+            origin = time;
+        }
+        double y;
+        try {
+            y = Double.valueOf(dataValue);
+        } catch (NumberFormatException | NullPointerException e) {
+            y = Double.NaN;
+        }
+        Point p = new Point(time, y);
+        points.addLast(p);
+        accumulate(p, 1);
+    }
+
+    /**
+     * Evict the measurements which are no longer needed to calculate the
+     * regression line for a measurement period starting at periodStart,
+     * keeping the last measurement taken before it
+     *
+     * @param periodStart start of the measurement period in milliseconds
+     */
+    void evictBefore(long periodStart) {
+        while (points.size() > 1) {
+            Point first = points.pollFirst();
+            if (points.peekFirst().time < periodStart) {
+                accumulate(first, -1);
+            } else {
+                points.addFirst(first);
+                break;
+            }
+        }
+        if (!points.isEmpty() && points.peekFirst().time - origin > period) {
+            rebase(points.peekFirst().time);
+        }
+    }
+
+    /**
+     * Method to calculate the value of the regression line through the
+     * measurements taken from the last measurement before the period up to
+     * (but not including) the time of the measurement being tested. The line
+     * is evaluated at one period after the first measurement in the window
+     *
+     * @param time time of the measurement being tested in milliseconds
+     * @param fewestPoints the fewest number of measurements the line may be
+     * calculated from
+     * @return the historic value or null if it cannot be calculated
+     */
+    Double estimate(long time, int fewestPoints) {
+        Point first = points.peekFirst();
+        // no measurement before the period
+        if (first == null || first.time >= time - period) {
+            return null;
+        }
+        int count = n, bad = invalid;
+        double sx = sumx, sy = sumy, sxy = sumxy, sx2 = sumx2;
+        // exclude any measurements taken at or after the measurement being tested
+        Iterator<Point> it = points.descendingIterator();
+        while (it.hasNext()) {
+            Point p = it.next();
+            if (p.time < time) {
+                break;
+            }
+            if (Double.isNaN(p.y)) {
+                bad--;
+            } else {
+                double x = p.time - origin;
+                count--;
+                sx -= x;
+                sy -= p.y;
+                sxy -= x * p.y;
+                sx2 -= x * x;
+            }
+        }
+        //if there are fewer than 2 values its not got enough data to perform a least squares
+        if (bad > 0 || count < fewestPoints || count <= 1) {
+            return null;
+        }
+        double xbar = sx / count;
+        double ybar = sy / count;
+        double xxbar = sx2 - sx * xbar;
+        double xybar = sxy - sx * ybar;
+        double beta1 = xybar / xxbar;
+        double beta0 = ybar - beta1 * xbar;
+        return beta1 * (first.time + period - origin) + beta0;
+    }
+
+    private void accumulate(Point p, int sign) {
+        if (Double.isNaN(p.y)) {
+            invalid += sign;
+            return;
+        }
+        double x = p.time - origin;
+        n += sign;
+        sumx += sign * x;
+        sumy += sign * p.y;
+        sumxy += sign * x * p.y;
+        sumx2 += sign * x * x;
+    }
+
+    private void rebase(long newOrigin) {
+        origin = newOrigin;
+        n = 0;
+        invalid = 0;
+        sumx = 0.0;
+        sumy = 0.0;
+        sumxy = 0.0;
+        sumx2 = 0.0;
+        for (Point p : points) {
+            accumulate(p, 1);
+        }
+    }
+
+    private static class Point {
+
+        private final long time;
+        private final double y;
+
+        Point(long time, double y) {
+            this.time = time;
+            this.y = y;
+        }
+    }
+}
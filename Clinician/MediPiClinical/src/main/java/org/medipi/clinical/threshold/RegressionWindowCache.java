@@ -0,0 +1,198 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.clinical.threshold;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.medipi.clinical.dao.RecordingDeviceDataDAOImpl;
+import org.medipi.clinical.entities.RecordingDeviceData;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Cache of the regression windows used by the ChangeOverTimeTest, one for each
+ * patient and attribute which has been tested.
+ *
+ * A window is built from the DB the first time a measurement for the patient
+ * and attribute is tested (and so is rebuilt after a restart) and is then kept
+ * up to date as new measurements are persisted. A measurement which is older
+ * than the latest measurement in its window cannot be added to it and the
+ * window is discarded to be rebuilt, as are the windows changed by a
+ * transaction which is rolled back.
+ *
+ * Measurements persisted in the current transaction are remembered until it
+ * completes so that a window rebuilt within the transaction includes any
+ * which have not yet been written to the DB (e.g. while they are waiting in a
+ * JDBC batch)
+ *
+ * @author rick@robinsonhq.com
+ */
+@Component
+public class RegressionWindowCache {
+
+    private final ConcurrentHashMap<String, RegressionWindow> windows = new ConcurrentHashMap<>();
+
+    @Autowired
+    private RecordingDeviceDataDAOImpl recordingDeviceDataDAOImpl;
+
+    /**
+     * Method to add a newly persisted measurement to the window for its
+     * patient and attribute if there is one
+     *
+     * @param rdd the measurement which has been persisted
+     */
+    public void dataPersisted(RecordingDeviceData rdd) {
+        String key = getKey(rdd.getPatientUuid().getPatientUuid(), rdd.getAttributeId().getAttributeId());
+        TransactionState ts = getTransactionState();
+        if (ts != null) {
+            ts.touched.add(key);
+            List<RecordingDeviceData> persisted = ts.persisted.get(key);
+            if (persisted == null) {
+                persisted = new ArrayList<>();
+                ts.persisted.put(key, persisted);
+            }
+            persisted.add(rdd);
+        }
+        RegressionWindow w = windows.get(key);
+        if (w == null) {
+            return;
+        }
+        long time = rdd.getDataValueTime().getTime();
+        synchronized (w) {
+            if (time < w.getLastTime()) {
+                windows.remove(key, w);
+                return;
+            }
+            w.add(time, rdd.getDataValue());
+            w.evictBefore(time - w.getPeriod());
+        }
+    }
+
+    /**
+     * Method to calculate the historic value of an attribute for a patient
+     * from the regression line through the measurements taken over the period
+     * before a measurement
+     *
+     * @param attributeId attribute of the measurement
+     * @param patientUuid patient of the measurement
+     * @param dataValueTime time of the measurement
+     * @param period length of the measurement period in hours
+     * @param fewestPoints the fewest number of measurements the regression
+     * line may be calculated from
+     * @return the historic value or null if it cannot be calculated
+     */
+    public Double getHistoricValue(int attributeId, String patientUuid, Date dataValueTime, int period, int fewestPoints) {
+        String key = getKey(patientUuid, attributeId);
+        long time = dataValueTime.getTime();
+        long periodMillis = period * 3600000L;
+        RegressionWindow w = windows.get(key);
+        if (w == null || w.getPeriod() != periodMillis) {
+            w = load(attributeId, patientUuid, time, periodMillis);
+            windows.put(key, w);
+            TransactionState ts = getTransactionState();
+            if (ts != null) {
+                ts.touched.add(key);
+            }
+            synchronized (w) {
+                return w.estimate(time, fewestPoints);
+            }
+        }
+        synchronized (w) {
+            if (time < w.getLastTime()) {
+                // a measurement from before the latest one in the window (e.g. when drawing thresholds for historic data)
+                RegressionWindow historic = load(attributeId, patientUuid, time, periodMillis);
+                return historic.estimate(time, fewestPoints);
+            }
+            w.evictBefore(time - periodMillis);
+            return w.estimate(time, fewestPoints);
+        }
+    }
+
+    private RegressionWindow load(int attributeId, String patientUuid, long time, long periodMillis) {
+        Date periodStartTime = new Date(time - periodMillis);
+        // Access the database and find the first entry before the started period so that the least square method will have at least the period stated
+        Date firstBeforePeriod = recordingDeviceDataDAOImpl.findFirstEntryBeforePeriod(patientUuid, attributeId, periodStartTime);
+        Date fromTime = firstBeforePeriod == null ? periodStartTime : firstBeforePeriod;
+        List<RecordingDeviceData> historicList = recordingDeviceDataDAOImpl.findByPatientAndAttributeFromTime(patientUuid, attributeId, fromTime);
+        // add any measurements persisted by this transaction which are not yet in the DB
+        TransactionState ts = getTransactionState();
+        List<RecordingDeviceData> persisted = ts == null ? null : ts.persisted.get(getKey(patientUuid, attributeId));
+        if (persisted != null) {
+            Set<Long> ids = new HashSet<>();
+            for (RecordingDeviceData historic : historicList) {
+                ids.add(historic.getDataId());
+            }
+            List<RecordingDeviceData> merged = new ArrayList<>(historicList);
+            for (RecordingDeviceData rdd : persisted) {
+                if (!ids.contains(rdd.getDataId()) && !rdd.getDataValueTime().before(fromTime)) {
+                    merged.add(rdd);
+                }
+            }
+            merged.sort(Comparator.comparing(RecordingDeviceData::getDataValueTime));
+            historicList = merged;
+        }
+        RegressionWindow w = new RegressionWindow(periodMillis);
+        for (RecordingDeviceData historic : historicList) {
+            w.add(historic.getDataValueTime().getTime(), historic.getDataValue());
+        }
+        return w;
+    }
+
+    private String getKey(String patientUuid, int attributeId) {
+        return patientUuid + ":" + attributeId;
+    }
+
+    // windows which have been changed by a transaction are discarded if it is rolled back
+    private TransactionState getTransactionState() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null;
+        }
+        TransactionState ts = (TransactionState) TransactionSynchronizationManager.getResource(this);
+        if (ts == null) {
+            final TransactionState state = new TransactionState();
+            ts = state;
+            TransactionSynchronizationManager.bindResource(this, state);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(RegressionWindowCache.this);
+                    if (status != TransactionSynchronization.STATUS_COMMITTED) {
+                        for (String k : state.touched) {
+                            windows.remove(k);
+                        }
+                    }
+                }
+            });
+        }
+        return ts;
+    }
+
+    private static class TransactionState {
+
+        private final Set<String> touched = new HashSet<>();
+        private final Map<String, List<RecordingDeviceData>> persisted = new HashMap<>();
+    }
+}
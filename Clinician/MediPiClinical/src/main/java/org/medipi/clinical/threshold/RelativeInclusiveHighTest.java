@@ -16,6 +16,7 @@
 package org.medipi.clinical.threshold;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
@@ -52,33 +53,35 @@ public class RelativeInclusiveHighTest implements AttributeThresholdTest {
     @Autowired
     private DirectMessageTextDAOImpl directMessageTextDAOImpl;
 
-    private Properties properties;
-    private AttributeThreshold attributeThreshold;
-    private double absoluteReference;
-    private double highValue;
-    private double dataValue;
-    private String attributeUnits = null;
-
-    private String failedTestText = null;
-    private String passedTestText = null;
-    private String cantCalculateTestText = null;
-
     /**
-     * Initialises the threshold test setting the parameters for its use
+     * Compiles the threshold test for an attribute threshold
      *
      * @param properties properties class
      * @param attributeThreshold to obtain attributes from the DB
+     * @return immutable evaluator for the attribute threshold
      * @throws Exception
      */
     @Override
-    public void init(Properties properties, AttributeThreshold attributeThreshold) throws Exception {
-        failedTestText = this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTFAILEDTESTTEXT).getDirectMessageText();
-        cantCalculateTestText = this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTCANTCALCULATETESTTEXT).getDirectMessageText();
-        passedTestText = this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTPASSEDTESTTEXT).getDirectMessageText();
-
-        absoluteReference = getLowValue(attributeThreshold.getThresholdLowValue());
-        highValue = getHighValue(attributeThreshold.getThresholdHighValue());
-
+    public ThresholdEvaluator compile(Properties properties, AttributeThreshold attributeThreshold) throws Exception {
+        final double absoluteReference = getLowValue(attributeThreshold.getThresholdLowValue());
+        final double highValue = getHighValue(attributeThreshold.getThresholdHighValue());
+        final ThresholdTextTemplates templates = new ThresholdTextTemplates(
+                this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTFAILEDTESTTEXT).getDirectMessageText(),
+                this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTPASSEDTESTTEXT).getDirectMessageText(),
+                this.directMessageTextDAOImpl.findByDirectMessageTextId(MEDIPICLINICALALERTCANTCALCULATETESTTEXT).getDirectMessageText())
+                .substitute(UPPER_THRESHOLD_LIMIT, String.valueOf(highValue))
+                .substitute(ABSOLUTE_REFERENCE, String.valueOf(absoluteReference));
+        return (RecordingDeviceData rdd) -> {
+            String attributeUnits = String.valueOf(rdd.getAttributeId().getAttributeUnits());
+            try {
+                double dataValue = Double.valueOf(rdd.getDataValue());
+                return new ThresholdEvaluation(dataValue < absoluteReference + highValue, templates, DATA_VALUE, String.valueOf(dataValue), ATTRIBUTE_UNITS, attributeUnits);
+            } catch (NumberFormatException nfe) {
+                MediPiLogger.getInstance().log(RelativeInclusiveHighTest.class.getName() + "error", "Error in converting the incoming data value to be tested to a double " + nfe.getLocalizedMessage());
+                System.out.println("Error in converting the incoming data value to be tested to a double" + nfe.getLocalizedMessage());
+                return new ThresholdEvaluation(null, templates, DATA_VALUE, String.valueOf(rdd.getDataValue()), ATTRIBUTE_UNITS, attributeUnits);
+            }
+        };
     }
 
     private double getLowValue(String low) throws Exception {
@@ -101,42 +104,6 @@ public class RelativeInclusiveHighTest implements AttributeThresholdTest {
         }
     }
 
-    private double getDataValue(String data) throws Exception {
-        try {
-            return Double.valueOf(data);
-        } catch (NumberFormatException nfe) {
-            MediPiLogger.getInstance().log(RelativeInclusiveHighTest.class.getName() + "error", "Error in converting the data values to a double " + nfe.getLocalizedMessage());
-            System.out.println("Error in converting the data values to a double" + nfe.getLocalizedMessage());
-            throw new Exception("Error in converting the data values to a double");
-        }
-    }
-
-    /**
-     * Method to test if a new measurement is in or out of threshold
-     *
-     * @param rdd data to be tested as part of a RecordingDeviceData object
-     * @return returns true if test in within bounds false if test is out of
-     * bounds
-     */
-    @Override
-    public Boolean test(RecordingDeviceData rdd) {
-        try {
-            attributeUnits = rdd.getAttributeId().getAttributeUnits();
-            dataValue = Double.valueOf(rdd.getDataValue());
-
-            return (dataValue < absoluteReference + highValue);
-
-        } catch (NumberFormatException nfe) {
-            MediPiLogger.getInstance().log(RelativeInclusiveHighTest.class.getName() + "error", "Error in converting the incoming data value to be tested to a double " + nfe.getLocalizedMessage());
-            System.out.println("Error in converting the incoming data value to be tested to a double" + nfe.getLocalizedMessage());
-            return null;
-        } catch (Exception e) {
-            MediPiLogger.getInstance().log(RelativeInclusiveHighTest.class.getName() + "error", "Error in testing the simple inclusive high low value: " + e.getLocalizedMessage());
-            System.out.println("Error in testing the simple inclusive high low value: " + e.getLocalizedMessage());
-            return null;
-        }
-    }
-
     /**
      * Method to return a descriptive string taken from the properties file and
      * substituted with values from the measurement data describing a failure
@@ -155,51 +122,24 @@ public class RelativeInclusiveHighTest implements AttributeThresholdTest {
         if (at == null) {
             return null;
         } else {
-            double low = getLowValue(at.getThresholdLowValue());
-            double high = low + getHighValue(at.getThresholdHighValue());
-            List<Double> thresholdList = new ArrayList<>();
-
-            thresholdList.add(low);
-            thresholdList.add(high);
-            return thresholdList;
+            return getThreshold(at.getThresholdLowValue(), at.getThresholdHighValue());
         }
     }
 
-    /**
-     * Method to return a descriptive string taken from the properties file and
-     * substituted with values from the measurement data describing a
-     * non-failure condition
-     *
-     * @return descriptive string of the alert
-     */
     @Override
-    public String getFailedTestText() {
-        String response = failedTestText
-                .replace(DATA_VALUE, String.valueOf(dataValue))
-                .replace(ATTRIBUTE_UNITS, attributeUnits)
-                .replace(UPPER_THRESHOLD_LIMIT, String.valueOf(highValue))
-                .replace(ABSOLUTE_REFERENCE, String.valueOf(absoluteReference));
-        return response;
+    public List<List<Double>> getThresholds(String thresholdLowValue, String thresholdHighValue, List<Date> dataValueTimes, List<String> dataValues, int fromIndex, int toIndex) throws Exception {
+        // the boundaries do not depend on the measurement
+        return Collections.nCopies(toIndex - fromIndex, getThreshold(thresholdLowValue, thresholdHighValue));
     }
 
-    @Override
-    public String getPassedTestText() {
-        String response = passedTestText
-                .replace(DATA_VALUE, String.valueOf(dataValue))
-                .replace(ATTRIBUTE_UNITS, attributeUnits)
-                .replace(UPPER_THRESHOLD_LIMIT, String.valueOf(highValue))
-                .replace(ABSOLUTE_REFERENCE, String.valueOf(absoluteReference));
-        return response;
-    }
+    private List<Double> getThreshold(String thresholdLowValue, String thresholdHighValue) throws Exception {
+        double low = getLowValue(thresholdLowValue);
+        double high = low + getHighValue(thresholdHighValue);
+        List<Double> thresholdList = new ArrayList<>();
 
-    @Override
-    public String getCantCalculateTestText() {
-        String response = cantCalculateTestText
-                .replace(DATA_VALUE, String.valueOf(dataValue))
-                .replace(ATTRIBUTE_UNITS, attributeUnits)
-                .replace(UPPER_THRESHOLD_LIMIT, String.valueOf(highValue))
-                .replace(ABSOLUTE_REFERENCE, String.valueOf(absoluteReference));
-        return response;
+        thresholdList.add(low);
+        thresholdList.add(high);
+        return thresholdList;
     }
 
 }
@@ -0,0 +1,91 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.clinical.threshold;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable result of testing a single measurement against a threshold.
+ *
+ * The alert texts are produced on request from the templates of the evaluator
+ * by substituting the values recorded for the measurement
+ *
+ * @author rick@robinsonhq.com
+ */
+public final class ThresholdEvaluation {
+
+    private final Boolean result;
+    private final ThresholdTextTemplates templates;
+    private final Map<String, String> values;
+
+    /**
+     * Constructor
+     *
+     * @param result true if the measurement is within threshold, false if it
+     * is out of threshold and null if it cannot be calculated
+     * @param templates alert text templates of the evaluator
+     * @param values pairs of placeholder and value to be substituted into the
+     * templates
+     */
+    public ThresholdEvaluation(Boolean result, ThresholdTextTemplates templates, String... values) {
+        this.result = result;
+        this.templates = templates;
+        Map<String, String> m = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < values.length; i += 2) {
+            m.put(values[i], values[i + 1]);
+        }
+        this.values = Collections.unmodifiableMap(m);
+    }
+
+    /**
+     * @return true if the measurement is within threshold, false if it is out
+     * of threshold and null if the test cannot be calculated
+     */
+    public Boolean getResult() {
+        return result;
+    }
+
+    /**
+     * @return descriptive string of a failure condition
+     */
+    public String getFailedTestText() {
+        return substitute(templates.getFailedTestText());
+    }
+
+    /**
+     * @return descriptive string of a non-failure condition
+     */
+    public String getPassedTestText() {
+        return substitute(templates.getPassedTestText());
+    }
+
+    /**
+     * @return descriptive string of a cant calculate condition
+     */
+    public String getCantCalculateTestText() {
+        return substitute(templates.getCantCalculateTestText());
+    }
+
+    private String substitute(String template) {
+        String response = template;
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            response = response.replace(e.getKey(), e.getValue());
+        }
+        return response;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.clinical.threshold;
+
+import org.medipi.clinical.entities.RecordingDeviceData;
+
+/**
+ * Interface for a threshold test compiled for a single AttributeThreshold.
+ *
+ * Evaluators are immutable: the threshold values are parsed and the alert
+ * text templates are read when the evaluator is compiled, so an evaluator may
+ * be cached and used concurrently by any number of threads
+ *
+ * @author rick@robinsonhq.com
+ */
+public interface ThresholdEvaluator {
+
+    /**
+     * Method to test if a new measurement is in or out of threshold
+     *
+     * @param rdd data to be tested as part of a RecordingDeviceData object
+     * @return the result of the test and the alert texts describing it
+     */
+    public ThresholdEvaluation evaluate(RecordingDeviceData rdd);
+}
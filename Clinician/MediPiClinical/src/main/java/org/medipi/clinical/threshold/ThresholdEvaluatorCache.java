@@ -0,0 +1,107 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.clinical.threshold;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import org.medipi.clinical.entities.AttributeThreshold;
+import org.medipi.clinical.logging.MediPiLogger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Cache of compiled threshold tests.
+ *
+ * Each attribute threshold is compiled into an immutable ThresholdEvaluator
+ * once and the evaluator is then shared by every thread testing data against
+ * that threshold. An attribute threshold is identified by its id, effective
+ * date, type and values so that a change to any of them produces a new
+ * evaluator. Evaluators are recompiled after a configurable time so that
+ * changes to the alert texts in the DB are picked up
+ *
+ * @author rick@robinsonhq.com
+ */
+@Component
+public class ThresholdEvaluatorCache {
+
+    private static final String MEDIPICLINICALALERTTHRESHOLDCACHETIMETOLIVE = "medipi.clinical.alert.thresholdcache.timetolive";
+    private static final long DEFAULTTIMETOLIVE = 60;
+
+    private final ConcurrentHashMap<String, CachedEvaluator> cache = new ConcurrentHashMap<>();
+
+    @Autowired
+    private ThresholdTestFactory thresholdTestFactory;
+
+    /**
+     * Method to return the compiled evaluator for an attribute threshold,
+     * compiling it if it is not cached or has expired
+     *
+     * @param properties properties class
+     * @param attributeThreshold the attribute threshold to be evaluated
+     * @return evaluator for the attribute threshold
+     * @throws Exception if the attribute threshold cannot be compiled
+     */
+    public ThresholdEvaluator getEvaluator(Properties properties, AttributeThreshold attributeThreshold) throws Exception {
+        String key = getKey(attributeThreshold);
+        long now = System.currentTimeMillis();
+        CachedEvaluator ce = cache.get(key);
+        if (ce == null || ce.expiryTime < now) {
+            ThresholdEvaluator evaluator = thresholdTestFactory.getInstance(attributeThreshold.getThresholdType()).compile(properties, attributeThreshold);
+            ce = new CachedEvaluator(evaluator, now + getTimeToLive(properties) * 1000);
+            cache.put(key, ce);
+        }
+        return ce.evaluator;
+    }
+
+    /**
+     * Remove all compiled evaluators from the cache
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    private String getKey(AttributeThreshold at) {
+        return at.getAttributeThresholdId() + ":"
+                + (at.getEffectiveDate() == null ? "" : at.getEffectiveDate().getTime()) + ":"
+                + at.getThresholdType() + ":"
+                + at.getThresholdLowValue() + ":"
+                + at.getThresholdHighValue();
+    }
+
+    private long getTimeToLive(Properties properties) {
+        String ttl = properties.getProperty(MEDIPICLINICALALERTTHRESHOLDCACHETIMETOLIVE);
+        if (ttl == null || ttl.trim().length() == 0) {
+            return DEFAULTTIMETOLIVE;
+        }
+        try {
+            return Long.parseLong(ttl.trim());
+        } catch (NumberFormatException numberFormatException) {
+            MediPiLogger.getInstance().log(ThresholdEvaluatorCache.class.getName() + "error", "Error - Cant read the threshold cache time to live from the properties file (default to " + DEFAULTTIMETOLIVE + "): " + numberFormatException.getLocalizedMessage());
+            return DEFAULTTIMETOLIVE;
+        }
+    }
+
+    private static class CachedEvaluator {
+
+        private final ThresholdEvaluator evaluator;
+        private final long expiryTime;
+
+        CachedEvaluator(ThresholdEvaluator evaluator, long expiryTime) {
+            this.evaluator = evaluator;
+            this.expiryTime = expiryTime;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.clinical.threshold;
+
+/**
+ * Immutable set of the alert text templates of a threshold test, with any
+ * values known when the test is compiled already substituted
+ *
+ * @author rick@robinsonhq.com
+ */
+public final class ThresholdTextTemplates {
+
+    private final String failedTestText;
+    private final String passedTestText;
+    private final String cantCalculateTestText;
+
+    public ThresholdTextTemplates(String failedTestText, String passedTestText, String cantCalculateTestText) {
+        this.failedTestText = failedTestText;
+        this.passedTestText = passedTestText;
+        this.cantCalculateTestText = cantCalculateTestText;
+    }
+
+    /**
+     * Returns a copy of these templates with a placeholder replaced by a value
+     *
+     * @param placeholder placeholder to be replaced
+     * @param value value to replace it with
+     * @return the templates with the value substituted
+     */
+    public ThresholdTextTemplates substitute(String placeholder, String value) {
+        return new ThresholdTextTemplates(failedTestText.replace(placeholder, value), passedTestText.replace(placeholder, value), cantCalculateTestText.replace(placeholder, value));
+    }
+
+    public String getFailedTestText() {
+        return failedTestText;
+    }
+
+    public String getPassedTestText() {
+        return passedTestText;
+    }
+
+    public String getCantCalculateTestText() {
+        return cantCalculateTestText;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.logging;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * Asynchronous appender shared by the MediPiLogger of each MediPi application.
+ *
+ * The calling thread only timestamps the record and places it on a bounded
+ * lock-free queue. A single daemon thread formats the records and writes them
+ * in batches, flushing at the end of each batch. If the queue is full the
+ * record is dropped, unless it is SEVERE, and the number of dropped records
+ * is written to the log once there is space again.
+ *
+ * Until a log file has been set the records are written to the standard err
+ * channel. The log file is rolled to a new [application name]_[date].log file,
+ * the date being formatted by the application's file date formatter, when it
+ * has reached the maximum size or has been open for longer than the maximum
+ * age
+ *
+ * @author rick@robinsonhq.com
+ */
+public class AsyncLogAppender {
+
+    private static final int QUEUECAPACITY = 8192;
+    private static final int BATCHSIZE = 256;
+    private static final long FLUSHPERIOD = 500;
+    private static final long CLOSETIMEOUT = 5000;
+
+    /**
+     * Log file date formatter which uses the local time zone
+     */
+    public static final DateTimeFormatter FILEDATEFORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter RECORDDATEFORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final String NEWLINE = System.lineSeparator();
+
+    private final DateTimeFormatter fileDateFormat;
+    private final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    // the following are guarded by this
+    private Writer out = null;
+    private File logDir = null;
+    private String appName = null;
+    private long fileSize = 0;
+    private long fileOpened = 0;
+    private long maxFileSize = 10L * 1024L * 1024L;
+    private long maxFileAge = TimeUnit.HOURS.toMillis(24);
+
+    /**
+     * Start the writer thread
+     *
+     * @param fileDateFormat formatter for the date in the log file name
+     */
+    public AsyncLogAppender(DateTimeFormatter fileDateFormat) {
+        this.fileDateFormat = fileDateFormat;
+        writerThread = new Thread(this::run, "MediPiLogger");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        // make sure that whatever is queued is written when the application exits
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /**
+     * Queue a record to be written. This never blocks the caller
+     *
+     * @param level level of the record
+     * @param location where the message has been raised
+     * @param message the message to be logged
+     */
+    public void append(Level level, String location, String message) {
+        int size = queued.incrementAndGet();
+        if (size > QUEUECAPACITY && level.intValue() < Level.SEVERE.intValue()) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(new Record(System.currentTimeMillis(), level, location, message));
+        if (size == BATCHSIZE) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Set the rolling policy for the log file
+     *
+     * @param maxFileSize size in bytes at which the log file is rolled
+     * @param maxFileAge age in milliseconds at which the log file is rolled
+     */
+    public synchronized void setRollingPolicy(long maxFileSize, long maxFileAge) {
+        this.maxFileSize = maxFileSize;
+        this.maxFileAge = maxFileAge;
+    }
+
+    /**
+     * Open the log file which all subsequent records are written to
+     *
+     * @param name application name
+     * @param dir the log file directory
+     * @return the name of the opened log file
+     * @throws IOException if the log file cannot be opened
+     */
+    public synchronized String open(String name, String dir) throws IOException {
+        logDir = new File(dir);
+        appName = name;
+        return roll(System.currentTimeMillis());
+    }
+
+    /**
+     * Write everything which has been queued and close the log file
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(CLOSETIMEOUT);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (running || !queue.isEmpty()) {
+            int written = writeBatch();
+            if (written < BATCHSIZE && running) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(FLUSHPERIOD));
+            }
+        }
+        synchronized (this) {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ioe) {
+                    System.err.println("Failed to close the log file - " + ioe.toString());
+                }
+                out = null;
+            }
+        }
+    }
+
+    private synchronized int writeBatch() {
+        int written = 0;
+        try {
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                write(new Record(System.currentTimeMillis(), Level.WARNING, AsyncLogAppender.class.getName(), lost + " log records have been dropped as the logging queue was full"));
+            }
+            Record r;
+            while (written < BATCHSIZE && (r = queue.poll()) != null) {
+                queued.decrementAndGet();
+                write(r);
+                written++;
+            }
+            if (written > 0 || lost > 0) {
+                if (out != null) {
+                    out.flush();
+                } else {
+                    System.err.flush();
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println("Failed to write to the log file - " + ioe.toString());
+        }
+        return written;
+    }
+
+    private void write(Record r) throws IOException {
+        String line = format(r);
+        if (out == null) {
+            System.err.print(line);
+            return;
+        }
+        if (fileSize >= maxFileSize || r.time - fileOpened >= maxFileAge) {
+            roll(r.time);
+        }
+        out.write(line);
+        fileSize += line.length();
+    }
+
+    private String roll(long time) throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        String date = fileDateFormat.format(Instant.ofEpochMilli(time));
+        File file = new File(logDir, appName + "_" + date + ".log");
+        for (int i = 1; file.exists() && file.length() >= maxFileSize; i++) {
+            file = new File(logDir, appName + "_" + date + "_" + i + ".log");
+        }
+        fileSize = file.length();
+        fileOpened = time;
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        return file.getPath();
+    }
+
+    private static String format(Record r) {
+        StringBuilder sb = new StringBuilder(64 + (r.message == null ? 0 : r.message.length()));
+        sb.append(RECORDDATEFORMAT.format(Instant.ofEpochMilli(r.time)));
+        sb.append(" ");
+        sb.append(r.level.getName());
+        sb.append(" Location: ");
+        if ((r.location == null) || (r.location.trim().length() == 0)) {
+            sb.append("Not given");
+        } else {
+            sb.append(r.location);
+        }
+        sb.append(" : Message: ");
+        if ((r.message == null) || (r.message.trim().length() == 0)) {
+            sb.append("Not given");
+        } else {
+            sb.append(r.message);
+        }
+        sb.append(NEWLINE);
+        return sb.toString();
+    }
+
+    private static class Record {
+
+        private final long time;
+        private final Level level;
+        private final String location;
+        private final String message;
+
+        private Record(long time, Level level, String location, String message) {
+            this.time = time;
+            this.level = level;
+            this.location = location;
+            this.message = message;
+        }
+    }
+}
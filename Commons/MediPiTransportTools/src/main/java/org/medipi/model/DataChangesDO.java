@@ -0,0 +1,84 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Data Object returned by the concentrator's data change feed. It lists the
+ * patient groups which have had new data committed since the sequence number
+ * passed by the subscriber, and the sequence number to be passed in the next
+ * request. The feedId identifies the running concentrator - if it changes, or
+ * resynchronise is set, the subscriber must synchronise all its patient groups
+ *
+ * @author rick@robinsonhq.com
+ */
+public class DataChangesDO implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private String feedId;
+    private long sequence;
+    private boolean resynchronise;
+    private List<String> patientGroupUuids = new ArrayList<>();
+
+    public DataChangesDO() {
+    }
+
+    public DataChangesDO(String feedId, long sequence, boolean resynchronise) {
+        this.feedId = feedId;
+        this.sequence = sequence;
+        this.resynchronise = resynchronise;
+    }
+
+    public String getFeedId() {
+        return feedId;
+    }
+
+    public void setFeedId(String feedId) {
+        this.feedId = feedId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public boolean isResynchronise() {
+        return resynchronise;
+    }
+
+    public void setResynchronise(boolean resynchronise) {
+        this.resynchronise = resynchronise;
+    }
+
+    public List<String> getPatientGroupUuids() {
+        return patientGroupUuids;
+    }
+
+    public void setPatientGroupUuids(List<String> patientGroupUuids) {
+        this.patientGroupUuids = patientGroupUuids;
+    }
+
+    public void addPatientGroupUuid(String patientGroupUuid) {
+        this.patientGroupUuids.add(patientGroupUuid);
+    }
+
+}
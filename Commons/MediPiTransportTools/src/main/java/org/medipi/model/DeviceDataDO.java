@@ -15,10 +15,24 @@
  */
 package org.medipi.model;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Class to hold data from one device in order to send to the MediPi Concentrator
+ *
+ * The payload is either held as a String or is written when it is needed by a
+ * PayloadWriter. A written payload is streamed by writePayload without ever
+ * being held as a String. It is only turned into a String if getPayload is
+ * called or the object is Java serialized
+ *
  * @author rick@robinsonhq.com
  */
 public class DeviceDataDO implements Serializable {
@@ -27,6 +41,7 @@ public class DeviceDataDO implements Serializable {
     private String deviceDataUuid;
     private String profileId;
     private String payload;
+    private transient PayloadWriter payloadWriter;
 
     /**
      * Constructor
@@ -71,11 +86,68 @@ public class DeviceDataDO implements Serializable {
     }
 
     public String getPayload() {
+        if (payloadWriter != null) {
+            return getWrittenPayload();
+        }
         return payload;
     }
 
     public void setPayload(String payload) {
         this.payload = payload;
+        this.payloadWriter = null;
+    }
+
+    /**
+     * Sets the writer of the payload in place of a String payload
+     *
+     * @param payloadWriter writer of the payload
+     */
+    public void setPayloadWriter(PayloadWriter payloadWriter) {
+        this.payloadWriter = payloadWriter;
+        this.payload = null;
+    }
+
+    /**
+     * @return true if the payload is written by a PayloadWriter
+     */
+    public boolean isPayloadWritten() {
+        return payloadWriter != null;
+    }
+
+    /**
+     * Writes the payload as UTF-8 to a stream without holding it as a String
+     *
+     * @param out stream to which the payload is written. It is flushed but
+     * not closed
+     * @throws IOException
+     */
+    public void writePayload(OutputStream out) throws IOException {
+        if (payloadWriter != null) {
+            Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            payloadWriter.writePayload(w);
+            w.flush();
+        } else if (payload != null) {
+            out.write(payload.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+
+    private String getWrittenPayload() {
+        StringWriter sw = new StringWriter();
+        try {
+            payloadWriter.writePayload(sw);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to write the device data payload", ex);
+        }
+        return sw.toString();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // Java serialization needs the payload as a String
+        if (payloadWriter != null) {
+            payload = getWrittenPayload();
+        }
+        out.defaultWriteObject();
     }
 
     @Override
@@ -0,0 +1,52 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Data Object for a batch of encrypted and signed direct messages sent from a
+ * clinical system to the concentrator, each addressed to an individual patient
+ *
+ * @author rick@robinsonhq.com
+ */
+public class DirectMessageBatchDO implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private List<DirectMessageBatchItemDO> messages = new ArrayList<>();
+
+    public DirectMessageBatchDO() {
+    }
+
+    public DirectMessageBatchDO(List<DirectMessageBatchItemDO> messages) {
+        this.messages = messages;
+    }
+
+    public List<DirectMessageBatchItemDO> getMessages() {
+        return messages;
+    }
+
+    public void setMessages(List<DirectMessageBatchItemDO> messages) {
+        this.messages = messages;
+    }
+
+    public void addMessage(DirectMessageBatchItemDO message) {
+        this.messages.add(message);
+    }
+
+}
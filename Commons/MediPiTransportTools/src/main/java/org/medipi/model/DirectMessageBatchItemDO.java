@@ -0,0 +1,56 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.model;
+
+import java.io.Serializable;
+
+/**
+ * Data Object for a single encrypted and signed direct message within a
+ * DirectMessageBatchDO and the patient to whom it is addressed
+ *
+ * @author rick@robinsonhq.com
+ */
+public class DirectMessageBatchItemDO implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private String patientUuid;
+    private EncryptedAndSignedUploadDO message;
+
+    public DirectMessageBatchItemDO() {
+    }
+
+    public DirectMessageBatchItemDO(String patientUuid, EncryptedAndSignedUploadDO message) {
+        this.patientUuid = patientUuid;
+        this.message = message;
+    }
+
+    public String getPatientUuid() {
+        return patientUuid;
+    }
+
+    public void setPatientUuid(String patientUuid) {
+        this.patientUuid = patientUuid;
+    }
+
+    public EncryptedAndSignedUploadDO getMessage() {
+        return message;
+    }
+
+    public void setMessage(EncryptedAndSignedUploadDO message) {
+        this.message = message;
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Data Object returned by the concentrator for a DirectMessageBatchDO. It
+ * holds one DirectMessageStatusDO for each message in the batch, in the same
+ * order as the messages were sent
+ *
+ * @author rick@robinsonhq.com
+ */
+public class DirectMessageBatchResultDO implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private List<DirectMessageStatusDO> results = new ArrayList<>();
+
+    public DirectMessageBatchResultDO() {
+    }
+
+    public List<DirectMessageStatusDO> getResults() {
+        return results;
+    }
+
+    public void setResults(List<DirectMessageStatusDO> results) {
+        this.results = results;
+    }
+
+    public void addResult(DirectMessageStatusDO result) {
+        this.results.add(result);
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.model;
+
+import java.io.Serializable;
+
+/**
+ * Data Object for the outcome of persisting a single direct message from a
+ * DirectMessageBatchDO. The status uses the HTTP status code which the message
+ * would have received had it been sent on its own
+ *
+ * @author rick@robinsonhq.com
+ */
+public class DirectMessageStatusDO implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private String patientUuid;
+    private String uploadUuid;
+    private int status;
+    private String reason;
+
+    public DirectMessageStatusDO() {
+    }
+
+    public DirectMessageStatusDO(String patientUuid, String uploadUuid, int status, String reason) {
+        this.patientUuid = patientUuid;
+        this.uploadUuid = uploadUuid;
+        this.status = status;
+        this.reason = reason;
+    }
+
+    public String getPatientUuid() {
+        return patientUuid;
+    }
+
+    public void setPatientUuid(String patientUuid) {
+        this.patientUuid = patientUuid;
+    }
+
+    public String getUploadUuid() {
+        return uploadUuid;
+    }
+
+    public void setUploadUuid(String uploadUuid) {
+        this.uploadUuid = uploadUuid;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public void setReason(String reason) {
+        this.reason = reason;
+    }
+
+}
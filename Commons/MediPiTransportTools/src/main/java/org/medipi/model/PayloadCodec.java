@@ -0,0 +1,461 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compact, versioned binary codec for the data objects which are signed and
+ * encrypted by the UploadEncryptionAdapter: DevicesPayloadDO (with its
+ * DeviceDataDO entries) and the DirectPatientMessage implementations
+ * AlertListDO and SimpleMessageDO.
+ *
+ * An encoded object starts with the magic bytes "MPB", a version byte and a
+ * type byte followed by the fields of the object in a fixed order. Strings
+ * are written as a variable length byte count followed by UTF-8, null values
+ * are marked explicitly and nothing but the known data object classes can be
+ * created when decoding.
+ *
+ * Use of the codec is declared by a sender with the codec parameter of the
+ * Data-Format HTTP header e.g. "MediPiNative; codec=medipi-binary-1". Senders
+ * which do not declare a codec are assumed to use Java serialization, which
+ * is still read but is restricted to the MediPi data object classes. A sender
+ * which compresses the payload also declares it in the compression parameter
+ * e.g. "MediPiNative; codec=medipi-binary-1; compression=gzip"
+ *
+ * Objects may be encoded straight into a stream, e.g. a compressing stream.
+ * A DeviceDataDO payload which is written by a PayloadWriter is written twice,
+ * first to measure its length and then into the stream, so that it is never
+ * held in memory
+ *
+ * @author rick@robinsonhq.com
+ */
+public final class PayloadCodec {
+
+    /**
+     * Codec token for version 1 of the binary encoding
+     */
+    public static final String BINARY = "medipi-binary-1";
+
+    private static final String CODECPARAMETER = "codec";
+    private static final String COMPRESSIONPARAMETER = "compression";
+    private static final byte[] MAGIC = {'M', 'P', 'B'};
+    private static final byte VERSION = 1;
+    private static final byte DEVICESPAYLOAD = 1;
+    private static final byte ALERTLIST = 2;
+    private static final byte SIMPLEMESSAGE = 3;
+    private static final Set<String> SERIALIZABLECLASSES = new HashSet<>(Arrays.asList(
+            "java.util.ArrayList",
+            "java.util.Date",
+            "java.lang.Number",
+            "java.lang.Long",
+            DevicesPayloadDO.class.getName(),
+            DeviceDataDO.class.getName(),
+            AlertListDO.class.getName(),
+            AlertDO.class.getName(),
+            SimpleMessageDO.class.getName()));
+
+    private PayloadCodec() {
+    }
+
+    /**
+     * @param codec codec token
+     * @return true if the codec is one which can be read by this class
+     */
+    public static boolean isSupported(String codec) {
+        return BINARY.equals(codec);
+    }
+
+    /**
+     * Returns the data format from a Data-Format header, without any codec
+     * or compression parameters
+     *
+     * @param header value of the Data-Format header
+     * @return data format token
+     */
+    public static String getDataFormat(String header) {
+        if (header == null) {
+            return null;
+        }
+        int i = header.indexOf(';');
+        return (i == -1 ? header : header.substring(0, i)).trim();
+    }
+
+    /**
+     * Returns the codec declared in a Data-Format header
+     *
+     * @param header value of the Data-Format header
+     * @return codec token or null if no codec is declared
+     */
+    public static String getCodec(String header) {
+        return getParameter(header, CODECPARAMETER);
+    }
+
+    /**
+     * Returns the compression declared in a Data-Format header
+     *
+     * @param header value of the Data-Format header
+     * @return compression token or null if no compression is declared
+     */
+    public static String getCompression(String header) {
+        return getParameter(header, COMPRESSIONPARAMETER);
+    }
+
+    /**
+     * Creates the value of a Data-Format header
+     *
+     * @param dataFormat data format token
+     * @param codec codec token or null for Java serialization
+     * @return Data-Format header value
+     */
+    public static String getDataFormatHeader(String dataFormat, String codec) {
+        return getDataFormatHeader(dataFormat, codec, null);
+    }
+
+    /**
+     * Creates the value of a Data-Format header
+     *
+     * @param dataFormat data format token
+     * @param codec codec token or null for Java serialization
+     * @param compression compression token or null for no compression
+     * @return Data-Format header value
+     */
+    public static String getDataFormatHeader(String dataFormat, String codec, String compression) {
+        StringBuilder sb = new StringBuilder(dataFormat);
+        if (codec != null && !codec.trim().isEmpty()) {
+            sb.append("; ").append(CODECPARAMETER).append("=").append(codec.trim());
+        }
+        if (compression != null && !compression.trim().isEmpty()) {
+            sb.append("; ").append(COMPRESSIONPARAMETER).append("=").append(compression.trim());
+        }
+        return sb.toString();
+    }
+
+    private static String getParameter(String header, String name) {
+        if (header == null) {
+            return null;
+        }
+        for (String parameter : header.split(";")) {
+            int i = parameter.indexOf('=');
+            if (i != -1 && parameter.substring(0, i).trim().equalsIgnoreCase(name)) {
+                return parameter.substring(i + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param b bytes to be tested
+     * @return true if the bytes are a binary encoded object
+     */
+    public static boolean isEncoded(byte[] b) {
+        return b.length > MAGIC.length && b[0] == MAGIC[0] && b[1] == MAGIC[1] && b[2] == MAGIC[2];
+    }
+
+    /**
+     * Encodes a data object
+     *
+     * @param o DevicesPayloadDO, AlertListDO or SimpleMessageDO
+     * @return the encoded bytes
+     * @throws IOException if the object is not of a type which can be encoded
+     */
+    public static byte[] encode(Object o) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
+        encode(o, bos);
+        return bos.toByteArray();
+    }
+
+    /**
+     * Encodes a data object into a stream
+     *
+     * @param o DevicesPayloadDO, AlertListDO or SimpleMessageDO
+     * @param os stream to which the encoded object is written. It is flushed
+     * but not closed
+     * @throws IOException if the object is not of a type which can be encoded
+     * or cannot be written
+     */
+    public static void encode(Object o, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        if (o instanceof DevicesPayloadDO) {
+            DevicesPayloadDO dp = (DevicesPayloadDO) o;
+            out.writeByte(DEVICESPAYLOAD);
+            writeString(out, dp.getUploadUuid());
+            writeDate(out, dp.getUploadedDate());
+            List<DeviceDataDO> payload = dp.getPayload();
+            writeLength(out, payload == null ? 0 : payload.size());
+            if (payload != null) {
+                for (DeviceDataDO dd : payload) {
+                    writeString(out, dd.getDeviceDataUuid());
+                    writeString(out, dd.getProfileId());
+                    if (dd.isPayloadWritten()) {
+                        writePayload(out, dd);
+                    } else {
+                        writeString(out, dd.getPayload());
+                    }
+                }
+            }
+        } else if (o instanceof AlertListDO) {
+            AlertListDO al = (AlertListDO) o;
+            out.writeByte(ALERTLIST);
+            writeString(out, al.getPatientUuid());
+            List<AlertDO> alerts = al.getAlert();
+            writeLength(out, alerts == null ? 0 : alerts.size());
+            if (alerts != null) {
+                for (AlertDO a : alerts) {
+                    writeLong(out, a.getAlertId());
+                    writeDate(out, a.getAlertTime());
+                    writeString(out, a.getAlertText());
+                    writeString(out, a.getPatientUuid());
+                    writeString(out, a.getDataValue());
+                    writeDate(out, a.getDataValueTime());
+                    writeString(out, a.getAttributeName());
+                    writeString(out, a.getType());
+                    writeString(out, a.getMake());
+                    writeString(out, a.getModel());
+                    writeString(out, a.getStatus());
+                    writeDate(out, a.getTransmitSuccessDate());
+                }
+            }
+        } else if (o instanceof SimpleMessageDO) {
+            SimpleMessageDO sm = (SimpleMessageDO) o;
+            out.writeByte(SIMPLEMESSAGE);
+            writeString(out, sm.getPatientUuid());
+            writeString(out, sm.getSimpleMessageText());
+            writeLong(out, sm.getSimpleMessageId());
+            writeDate(out, sm.getSimpleMessageTime());
+        } else {
+            throw new IOException("There is no binary encoding for " + (o == null ? "null" : o.getClass().getName()));
+        }
+        out.flush();
+    }
+
+    /**
+     * Decodes a binary encoded data object
+     *
+     * @param b encoded bytes
+     * @return DevicesPayloadDO, AlertListDO or SimpleMessageDO
+     * @throws IOException if the bytes are not a valid encoding
+     */
+    public static Object decode(byte[] b) throws IOException {
+        if (!isEncoded(b)) {
+            throw new IOException("Payload is not binary encoded");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(b, MAGIC.length, b.length - MAGIC.length));
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary encoding version: " + version);
+        }
+        byte type = in.readByte();
+        switch (type) {
+            case DEVICESPAYLOAD: {
+                DevicesPayloadDO dp = new DevicesPayloadDO(readString(in));
+                dp.setUploadedDate(readDate(in));
+                int count = readLength(in);
+                for (int i = 0; i < count; i++) {
+                    DeviceDataDO dd = new DeviceDataDO(readString(in));
+                    dd.setProfileId(readString(in));
+                    dd.setPayload(readString(in));
+                    dp.addPayload(dd);
+                }
+                return dp;
+            }
+            case ALERTLIST: {
+                AlertListDO al = new AlertListDO(readString(in));
+                int count = readLength(in);
+                for (int i = 0; i < count; i++) {
+                    AlertDO a = new AlertDO();
+                    a.setAlertId(readLong(in));
+                    a.setAlertTime(readDate(in));
+                    a.setAlertText(readString(in));
+                    a.setPatientUuid(readString(in));
+                    a.setDataValue(readString(in));
+                    a.setDataValueTime(readDate(in));
+                    a.setAttributeName(readString(in));
+                    a.setType(readString(in));
+                    a.setMake(readString(in));
+                    a.setModel(readString(in));
+                    a.setStatus(readString(in));
+                    a.setTransmitSuccessDate(readDate(in));
+                    al.addAlert(a);
+                }
+                return al;
+            }
+            case SIMPLEMESSAGE: {
+                SimpleMessageDO sm = new SimpleMessageDO(readString(in));
+                sm.setSimpleMessageText(readString(in));
+                sm.setSimpleMessageId(readLong(in));
+                sm.setSimpleMessageTime(readDate(in));
+                return sm;
+            }
+            default:
+                throw new IOException("Unknown binary encoded type: " + type);
+        }
+    }
+
+    /**
+     * Reads a Java serialized data object. Only the MediPi data object classes
+     * and the standard classes which they use may be deserialized
+     *
+     * @param b serialized bytes
+     * @return the deserialized object
+     * @throws IOException if the bytes cannot be read or contain a class which
+     * is not allowed
+     * @throws ClassNotFoundException if a class cannot be found
+     */
+    public static Object readSerialized(byte[] b) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new RestrictedObjectInputStream(new ByteArrayInputStream(b))) {
+            return in.readObject();
+        }
+    }
+
+    private static void writeLength(DataOutputStream out, int value) throws IOException {
+        // unsigned variable length integer - 7 bits per byte
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0 || value > in.available() + 1) {
+                    throw new IOException("Invalid length in binary encoded payload: " + value);
+                }
+                return value;
+            }
+        }
+        throw new IOException("Invalid length in binary encoded payload");
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        // length is written plus one so that zero can represent null
+        if (s == null) {
+            writeLength(out, 0);
+        } else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            writeLength(out, b.length + 1);
+            out.write(b);
+        }
+    }
+
+    private static void writePayload(DataOutputStream out, DeviceDataDO dd) throws IOException {
+        // the length is needed before the payload so it is measured by writing it once without keeping it
+        CountingOutputStream length = new CountingOutputStream(null);
+        dd.writePayload(length);
+        if (length.count > Integer.MAX_VALUE - 1) {
+            throw new IOException("Device data payload is too large to be encoded: " + length.count);
+        }
+        writeLength(out, (int) length.count + 1);
+        CountingOutputStream written = new CountingOutputStream(out);
+        dd.writePayload(written);
+        if (written.count != length.count) {
+            throw new IOException("Device data payload changed whilst it was being encoded");
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readLength(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] b = new byte[length - 1];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void writeLong(DataOutputStream out, Long l) throws IOException {
+        out.writeBoolean(l != null);
+        if (l != null) {
+            out.writeLong(l);
+        }
+    }
+
+    private static Long readLong(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    private static void writeDate(DataOutputStream out, Date d) throws IOException {
+        writeLong(out, d == null ? null : d.getTime());
+    }
+
+    private static Date readDate(DataInputStream in) throws IOException {
+        Long l = readLong(in);
+        return l == null ? null : new Date(l);
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+            if (out != null) {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+            if (out != null) {
+                out.write(b, off, len);
+            }
+        }
+    }
+
+    private static class RestrictedObjectInputStream extends ObjectInputStream {
+
+        RestrictedObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (!SERIALIZABLECLASSES.contains(desc.getName())) {
+                throw new InvalidClassException(desc.getName(), "Class is not allowed in a MediPi payload");
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.model;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Interface for a class which writes the payload of a DeviceDataDO as text
+ * when it is needed rather than holding it as a String.
+ *
+ * The payload may be written more than once (e.g. once to measure it and
+ * again to encode it) so it must write the same text every time it is called
+ *
+ * @author rick@robinsonhq.com
+ */
+public interface PayloadWriter {
+
+    /**
+     * Write the payload
+     *
+     * @param out writer to which the payload is written. It is not to be
+     * closed
+     * @throws IOException
+     */
+    public void writePayload(Writer out) throws IOException;
+}
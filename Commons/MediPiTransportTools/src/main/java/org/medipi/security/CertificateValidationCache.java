@@ -0,0 +1,188 @@
+/*
+ Copyright 2016  Richard Robinson @ HSCIC <rrobinson@hscic.gov.uk, rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.security;
+
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Singleton cache of the results of certificate chain validation.
+ *
+ * Patient signing certificates rarely change, so once a certificate has been
+ * validated against a truststore the result is remembered, keyed by the
+ * SHA-256 fingerprint of the certificate and the version of the truststore
+ * used. Only successful validations are cached. An entry expires after the
+ * time to live or when the certificate itself expires, whichever is sooner,
+ * and a reloaded truststore has a new version so its entries are never
+ * reused. The latency of recent validations is recorded so that percentiles
+ * can be reported
+ *
+ * @author rick@robinsonhq.com
+ */
+public class CertificateValidationCache {
+
+    /**
+     * Default time in milliseconds for which a successful validation is
+     * remembered
+     */
+    public static final long DEFAULTTIMETOLIVE = 3600000L;
+    private static final int MAXIMUMSIZE = 10000;
+    private static final int LATENCYSAMPLES = 1024;
+
+    private static CertificateValidationCache me = null;
+    private final ConcurrentHashMap<String, Long> validUntil = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final long[] latencies = new long[LATENCYSAMPLES];
+    private int latencyCount = 0;
+    private volatile long timeToLive = DEFAULTTIMETOLIVE;
+
+    private CertificateValidationCache() {
+    }
+
+    /**
+     * @return the singleton instance of this class.
+     */
+    public static synchronized CertificateValidationCache getInstance() {
+        if (me == null) {
+            me = new CertificateValidationCache();
+        }
+        return me;
+    }
+
+    /**
+     * Sets the time for which a successful validation is remembered
+     *
+     * @param timeToLive time in milliseconds
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Validates a certificate against a set of trusted certificates, using a
+     * previous result if one is held for the certificate and truststore
+     * version
+     *
+     * @param client certificate to be validated
+     * @param trustStoreVersion version of the truststore containing the trusted
+     * certificates
+     * @param trustedCerts trusted certificates
+     * @return true if the certificate chains to a trusted root certificate
+     * @throws Exception if the certificate cannot be validated
+     */
+    public boolean validate(X509Certificate client, long trustStoreVersion, X509Certificate... trustedCerts) throws Exception {
+        long start = System.nanoTime();
+        try {
+            String key = fingerprint(client) + ":" + trustStoreVersion;
+            long now = System.currentTimeMillis();
+            Long expiry = validUntil.get(key);
+            if (expiry != null && expiry > now) {
+                hits.incrementAndGet();
+                return true;
+            }
+            misses.incrementAndGet();
+            boolean valid = UploadEncryptionAdapter.validateKeyChain(client, trustedCerts);
+            if (valid) {
+                if (validUntil.size() >= MAXIMUMSIZE) {
+                    removeExpired(now);
+                }
+                validUntil.put(key, Math.min(now + timeToLive, client.getNotAfter().getTime()));
+            } else {
+                validUntil.remove(key);
+            }
+            return valid;
+        } finally {
+            recordLatency(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Discards all remembered validation results
+     */
+    public void clear() {
+        validUntil.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns a percentile of the latency of the most recent validations,
+     * including those answered from the cache
+     *
+     * @param percentile percentile between 0 and 100
+     * @return latency in microseconds or 0 if no validations have been made
+     */
+    public long getLatencyPercentile(double percentile) {
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCYSAMPLES));
+        }
+        if (sorted.length == 0) {
+            return 0;
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1000;
+    }
+
+    /**
+     * @return a string representation of the hit/miss counters and validation
+     * latency percentiles
+     */
+    public String getStatistics() {
+        return "certificate validation: " + hits.get() + " hits, " + misses.get() + " misses, latency p50=" + getLatencyPercentile(50) + "us p90=" + getLatencyPercentile(90) + "us p99=" + getLatencyPercentile(99) + "us";
+    }
+
+    private void recordLatency(long nanos) {
+        synchronized (latencies) {
+            latencies[latencyCount % LATENCYSAMPLES] = nanos;
+            latencyCount++;
+            if (latencyCount == 2 * LATENCYSAMPLES) {
+                latencyCount = LATENCYSAMPLES;
+            }
+        }
+    }
+
+    private void removeExpired(long now) {
+        Iterator<Map.Entry<String, Long>> it = validUntil.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue() <= now) {
+                it.remove();
+            }
+        }
+        if (validUntil.size() >= MAXIMUMSIZE) {
+            validUntil.clear();
+        }
+    }
+
+    private String fingerprint(X509Certificate cert) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        return new String(Hex.encodeHex(md.digest(cert.getEncoded())));
+    }
+}
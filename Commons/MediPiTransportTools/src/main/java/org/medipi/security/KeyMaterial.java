@@ -0,0 +1,218 @@
+/*
+ Copyright 2016  Richard Robinson @ HSCIC <rrobinson@hscic.gov.uk, rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.security;
+
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.crypto.RSADecrypter;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable holder of the key material read from a JKS keystore or truststore.
+ *
+ * Loading a keystore and extracting its keys is expensive compared with the
+ * cryptographic operations which use them, so each keystore is read once and
+ * the resulting KeyMaterial is shared between all UploadEncryptionAdapter
+ * instances using the same location, alias and password. The signer and
+ * decrypter held here are thread safe and may be used concurrently. An entry
+ * is reloaded when the keystore file on disk has changed
+ *
+ * @author rick@robinsonhq.com
+ */
+public final class KeyMaterial {
+
+    private static final ConcurrentHashMap<List<String>, KeyMaterial> CACHE = new ConcurrentHashMap<>();
+    private static final String PRIVATEKEY = "PRIVATEKEY";
+    private static final String TRUSTEDCERTIFICATE = "TRUSTEDCERTIFICATE";
+    private static final String TRUSTSTORE = "TRUSTSTORE";
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final long version = VERSIONS.incrementAndGet();
+
+    private final long lastModified;
+    private final long length;
+    private final RSAPrivateKey privateKey;
+    private final RSAPublicKey publicKey;
+    private final X509Certificate certificate;
+    private final List<com.nimbusds.jose.util.Base64> certChain;
+    private final X509Certificate[] trustedCerts;
+    private final JWSSigner signer;
+    private final RSADecrypter decrypter;
+
+    private KeyMaterial(File file, RSAPrivateKey privateKey, X509Certificate certificate, List<com.nimbusds.jose.util.Base64> certChain, X509Certificate[] trustedCerts) {
+        this.lastModified = file.lastModified();
+        this.length = file.length();
+        this.privateKey = privateKey;
+        this.certificate = certificate;
+        this.publicKey = certificate == null ? null : (RSAPublicKey) certificate.getPublicKey();
+        this.certChain = certChain == null ? null : Collections.unmodifiableList(certChain);
+        this.trustedCerts = trustedCerts;
+        this.signer = privateKey == null ? null : new RSASSASigner(privateKey);
+        this.decrypter = privateKey == null ? null : new RSADecrypter(privateKey);
+    }
+
+    /**
+     * Returns the private key, certificate and certificate chain held under an
+     * alias in a JKS keystore
+     *
+     * @param location keystore file location
+     * @param alias alias of the private key entry
+     * @param password keystore and key password
+     * @return key material for the alias
+     * @throws Exception if the keystore cannot be read or the alias is not a
+     * private key entry
+     */
+    public static KeyMaterial getPrivateKeyEntry(String location, String alias, String password) throws Exception {
+        List<String> key = Arrays.asList(PRIVATEKEY, location, alias, password);
+        File file = new File(location);
+        KeyMaterial km = CACHE.get(key);
+        if (km == null || km.isStale(file)) {
+            KeyStore ks = loadStore(file, password);
+            KeyStore.PasswordProtection pp = new KeyStore.PasswordProtection(password.toCharArray());
+            RSAPrivateKey pk = (RSAPrivateKey) (((KeyStore.PrivateKeyEntry) ks.getEntry(alias, pp)).getPrivateKey());
+            List<com.nimbusds.jose.util.Base64> chain = new ArrayList<>();
+            Certificate[] c = ks.getCertificateChain(alias);
+            if (c != null) {
+                for (Certificate cert : c) {
+                    chain.add(com.nimbusds.jose.util.Base64.encode(cert.getEncoded()));
+                }
+            }
+            km = new KeyMaterial(file, pk, (X509Certificate) ks.getCertificate(alias), chain, null);
+            CACHE.put(key, km);
+        }
+        return km;
+    }
+
+    /**
+     * Returns a trusted certificate held under an alias in a JKS truststore
+     *
+     * @param location truststore file location
+     * @param alias alias of the certificate
+     * @param password truststore password
+     * @return key material containing the certificate and its public key
+     * @throws Exception if the truststore cannot be read or the alias is not
+     * present
+     */
+    public static KeyMaterial getTrustedCertificate(String location, String alias, String password) throws Exception {
+        List<String> key = Arrays.asList(TRUSTEDCERTIFICATE, location, alias, password);
+        File file = new File(location);
+        KeyMaterial km = CACHE.get(key);
+        if (km == null || km.isStale(file)) {
+            KeyStore ks = loadStore(file, password);
+            X509Certificate cert = (X509Certificate) ks.getCertificate(alias);
+            if (cert == null) {
+                throw new Exception("alias " + alias + " is not present in " + location);
+            }
+            km = new KeyMaterial(file, null, cert, null, null);
+            CACHE.put(key, km);
+        }
+        return km;
+    }
+
+    /**
+     * Returns all the certificates held in a JKS truststore
+     *
+     * @param location truststore file location
+     * @param password truststore password
+     * @return key material containing the trusted certificates
+     * @throws Exception if the truststore cannot be read
+     */
+    public static KeyMaterial getTrustStore(String location, String password) throws Exception {
+        List<String> key = Arrays.asList(TRUSTSTORE, location, password);
+        File file = new File(location);
+        KeyMaterial km = CACHE.get(key);
+        if (km == null || km.isStale(file)) {
+            KeyStore ks = loadStore(file, password);
+            X509Certificate[] certs = new X509Certificate[ks.size()];
+            int i = 0;
+            Enumeration<String> alias = ks.aliases();
+            while (alias.hasMoreElements()) {
+                certs[i++] = (X509Certificate) ks.getCertificate(alias.nextElement());
+            }
+            km = new KeyMaterial(file, null, null, null, certs);
+            CACHE.put(key, km);
+        }
+        return km;
+    }
+
+    private static KeyStore loadStore(File file, String password) throws Exception {
+        KeyStore store = KeyStore.getInstance("JKS");
+        try (InputStream is = new FileInputStream(file)) {
+            store.load(is, password.toCharArray());
+        }
+        return store;
+    }
+
+    private boolean isStale(File file) {
+        return file.lastModified() != lastModified || file.length() != length;
+    }
+
+    /**
+     * @return a number identifying this load of the keystore. A keystore
+     * which is reloaded is given a new version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public RSAPrivateKey getPrivateKey() {
+        return privateKey;
+    }
+
+    public RSAPublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    public X509Certificate getCertificate() {
+        return certificate;
+    }
+
+    public List<com.nimbusds.jose.util.Base64> getCertChain() {
+        return certChain;
+    }
+
+    public X509Certificate[] getTrustedCerts() {
+        return trustedCerts == null ? null : trustedCerts.clone();
+    }
+
+    /**
+     * @return a thread safe signer using the private key
+     */
+    public JWSSigner getSigner() {
+        return signer;
+    }
+
+    /**
+     * @return a thread safe decrypter using the private key
+     */
+    public RSADecrypter getDecrypter() {
+        return decrypter;
+    }
+}
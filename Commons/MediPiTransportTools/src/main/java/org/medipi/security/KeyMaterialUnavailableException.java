@@ -0,0 +1,36 @@
+/*
+ Copyright 2016  Richard Robinson @ HSCIC <rrobinson@hscic.gov.uk, rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.security;
+
+/**
+ * Exception thrown by the UploadEncryptionAdapter when the key material needed
+ * for an operation has not been loaded. The fault lies with the local
+ * keystores and truststores rather than with the payload, so the operation
+ * may succeed once the key material has been reloaded
+ *
+ * @author rick@robinsonhq.com
+ */
+public class KeyMaterialUnavailableException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message description of the key material which is not available
+     */
+    public KeyMaterialUnavailableException(String message) {
+        super(message);
+    }
+}
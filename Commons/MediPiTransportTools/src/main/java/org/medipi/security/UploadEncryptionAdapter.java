@@ -30,23 +30,21 @@ import com.nimbusds.jose.crypto.AESDecrypter;
 import com.nimbusds.jose.crypto.AESEncrypter;
 import com.nimbusds.jose.crypto.RSADecrypter;
 import com.nimbusds.jose.crypto.RSAEncrypter;
-import com.nimbusds.jose.crypto.RSASSASigner;
 import com.nimbusds.jose.crypto.RSASSAVerifier;
 import com.nimbusds.jwt.EncryptedJWT;
 import com.nimbusds.jwt.JWTClaimsSet;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PublicKey;
@@ -62,20 +60,20 @@ import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.PKIXParameters;
 import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
-import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
 import java.text.ParseException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Enumeration;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import org.apache.commons.codec.binary.Base64;
 import org.medipi.model.EncryptedAndSignedUploadDO;
+import org.medipi.model.PayloadCodec;
 
 /**
  * Service to provide conversion to- and from- the encrypted and/or signed
@@ -87,8 +85,6 @@ import org.medipi.model.EncryptedAndSignedUploadDO;
  */
 public class UploadEncryptionAdapter {
 
-    private List<com.nimbusds.jose.util.Base64> certChain;
-
     /**
      * Client mode encrypts and signs the payload - used for sending data from
      * the patient device to the concentrator
@@ -119,13 +115,23 @@ public class UploadEncryptionAdapter {
     private int mode;
     private CertificateDefinitions cd;
 
-    private RSAPrivateKey signPrivateKey;
-    private X509Certificate[] signTrustCerts;
-
-    private RSAPublicKey encryptPublicKey;
-    private RSAPrivateKey encryptPrivateKey;
+    // the key material may be replaced by reload whilst the adapter is in use. It is only
+    // ever replaced as a whole, once all of it has been loaded and validated
+    private volatile Keys keys = Keys.NONE;
+    private String payloadCodec = null;
     private static final int AESKEYSIZE = 256;
 
+    /**
+     * Compression token for gzip compression of the payload
+     */
+    public static final String GZIPCOMPRESSION = "gzip";
+    // JWS header parameter marking a payload which was compressed before signing
+    private static final String COMPRESSIONHEADER = "zip";
+    private static final String GZIPHEADERVALUE = "GZIP";
+    // limit on the size of a decompressed payload to protect against decompression bombs
+    private static final int MAXIMUMDECOMPRESSEDSIZE = 64 * 1024 * 1024;
+    private String compression = null;
+
     /**
      * Constructor
      */
@@ -141,259 +147,271 @@ public class UploadEncryptionAdapter {
      * @return
      * @throws NoSuchAlgorithmException
      */
-    public String init(CertificateDefinitions cd, int mode) throws NoSuchAlgorithmException {
+    public synchronized String init(CertificateDefinitions cd, int mode) throws NoSuchAlgorithmException {
 
         this.mode = mode;
         this.cd = cd;
-        String error;
-        switch (mode) {
-            case CLIENTMODE:
-                if ((error = loadClientSigningKeys()) != null) {
-                    return error;
-                }
-                if ((error = loadClientEncryptionKeys()) != null) {
-                    return error;
-                }
-                break;
-            case SERVERMODE:
-                if ((error = loadServerSigningKeys()) != null) {
-                    return error;
-                }
-                if ((error = loadServerEncryptionKeys()) != null) {
-                    return error;
-                }
-                break;
-            case SIGNMODE:
-                if ((error = loadClientSigningKeys()) != null) {
-                    return error;
-                }
-                break;
-            case VERIFYSIGNATUREMODE:
-                if ((error = loadServerSigningKeys()) != null) {
-                    return error;
-                }
-                break;
-            case ALLMODE: // both client and server modes
-                if ((error = loadClientSigningKeys()) != null) {
-                    return error;
-                }
-                if ((error = loadClientEncryptionKeys()) != null) {
-                    return error;
-                }
-                if ((error = loadServerSigningKeys()) != null) {
-                    return error;
-                }
-                if ((error = loadServerEncryptionKeys()) != null) {
-                    return error;
-                }
-                break;
-            default:
-                return "No recognised mode has been selected. ";
+        Keys k = Keys.NONE;
+        try {
+            switch (mode) {
+                case CLIENTMODE:
+                    k = loadClientSigningKeys(k);
+                    k = loadClientEncryptionKeys(k);
+                    break;
+                case SERVERMODE:
+                    k = loadServerSigningKeys(k);
+                    k = loadServerEncryptionKeys(k);
+                    break;
+                case SIGNMODE:
+                    k = loadClientSigningKeys(k);
+                    break;
+                case VERIFYSIGNATUREMODE:
+                    k = loadServerSigningKeys(k);
+                    break;
+                case ALLMODE: // both client and server modes
+                    k = loadClientSigningKeys(k);
+                    k = loadClientEncryptionKeys(k);
+                    k = loadServerSigningKeys(k);
+                    k = loadServerEncryptionKeys(k);
+                    break;
+                default:
+                    return "No recognised mode has been selected. ";
+            }
+        } catch (Exception e) {
+            // the key material in use is left as it was
+            return e.getLocalizedMessage();
         }
+        keys = k;
         return null;
     }
 
-    private String loadClientSigningKeys() {
+    private Keys loadClientSigningKeys(Keys k) throws Exception {
         String signKey = cd.getSIGNKEYSTORELOCATION();
         String signAlias = cd.getSIGNKEYSTOREALIAS();
         String signPassword = cd.getSIGNKEYSTOREPASSWORD();
-        if (signKey != null) {
-            if (signAlias != null) {
-                if (signPassword != null) {
-                    try {
-                        KeyStore.PasswordProtection pp = new KeyStore.PasswordProtection(signPassword.toCharArray());
-                        KeyStore sks = KeyStore.getInstance("JKS");
-                        FileInputStream fis = new FileInputStream(signKey);
-                        sks.load(fis, signPassword.toCharArray());
-                        signPrivateKey = (RSAPrivateKey) (((KeyStore.PrivateKeyEntry) sks.getEntry(signAlias, pp)).getPrivateKey());
-                        // We pass the full certificate chain but will only use the signing cert when this arrives at the host concentrator.
-                        // The signing cert will be used to walk up the chain in the local trusted store
-                        Certificate[] c = sks.getCertificateChain(signAlias);
-                        certChain = new ArrayList<>();
-                        for (Certificate cert : c) {
-                            X509Certificate xcert = (X509Certificate) cert;
-                            com.nimbusds.jose.util.Base64 b64 = com.nimbusds.jose.util.Base64.encode(xcert.getEncoded());
-                            certChain.add(b64);
-                        }
-                        X509Certificate signingCert = (X509Certificate) sks.getCertificate(signAlias);
-                        RSAPublicKey signPublicKey = (RSAPublicKey) signingCert.getPublicKey();
-                        if (signingCert == null) {
-                            return "Signing certificate is not present";
-                        }
-                        try {
-                            signingCert.checkValidity();
-                            return null;
-                        } catch (CertificateNotYetValidException e) {
-                            return "Signing Certificate is not yet valid";
-                        } catch (CertificateExpiredException e) {
-                            return "Signing Certificate has expired";
-                        }
-
-                    } catch (Exception e) {
-                        return "error loading signing certificate: " + e.getLocalizedMessage();
-                    }
-
-                } else {
-                    return "Warning: Property SIGNKEYSTOREPASSWORD not set";
-                }
-            } else {
-                return "Warning: Property SIGNKEYSTOREALIAS not set";
-            }
-        } else {
-            return "Warning: Property SIGNKEYSTORELOCATION not set";
+        if (signKey == null) {
+            throw new Exception("Warning: Property SIGNKEYSTORELOCATION not set");
+        }
+        if (signAlias == null) {
+            throw new Exception("Warning: Property SIGNKEYSTOREALIAS not set");
+        }
+        if (signPassword == null) {
+            throw new Exception("Warning: Property SIGNKEYSTOREPASSWORD not set");
+        }
+        KeyMaterial km;
+        try {
+            // The keystore is only read the first time it is used or when it has changed on disk
+            km = KeyMaterial.getPrivateKeyEntry(signKey, signAlias, signPassword);
+        } catch (Exception e) {
+            throw new Exception("error loading signing certificate: " + e.getLocalizedMessage());
+        }
+        X509Certificate signingCert = km.getCertificate();
+        if (signingCert == null) {
+            throw new Exception("Signing certificate is not present");
+        }
+        try {
+            signingCert.checkValidity();
+        } catch (CertificateNotYetValidException e) {
+            throw new Exception("Signing Certificate is not yet valid");
+        } catch (CertificateExpiredException e) {
+            throw new Exception("Signing Certificate has expired");
         }
+        // We pass the full certificate chain but will only use the signing cert when this arrives at the host concentrator.
+        // The signing cert will be used to walk up the chain in the local trusted store
+        return new Keys(km.getSigner(), km.getCertChain(), k.encryptPublicKey, k.signTrustCerts, k.signTrustStoreVersion, k.decrypter);
     }
 
-    private String loadClientEncryptionKeys() {
+    private Keys loadClientEncryptionKeys(Keys k) throws Exception {
 //THIS IS FOR THE CLIENT TO ENCRYPT
-        try {
-            if (cd.getEncryptTruststorePEM() != null) {
+        RSAPublicKey encryptPublicKey;
+        if (cd.getEncryptTruststorePEM() != null) {
+            try {
                 InputStream stream = new ByteArrayInputStream(cd.getEncryptTruststorePEM());
                 CertificateFactory cf = CertificateFactory.getInstance("X.509");
                 Certificate cert = cf.generateCertificate(stream);
                 X509Certificate x509cert = (X509Certificate) cert;
                 encryptPublicKey = (RSAPublicKey) x509cert.getPublicKey();
-            } else {
-                String truststoreLocation = cd.getENCRYPTTRUSTSTORELOCATION();
-                String truststorePass = cd.getENCRYPTTRUSTSTOREPASSWORD();
-                String truststoreAlias = cd.getENCRYPTTRUSTSTOREALIAS();
-                if (truststoreLocation != null) {
-                    if (truststorePass != null) {
-                        if (truststoreAlias != null) {
-                            KeyStore trustStore = loadStore(truststoreLocation, truststorePass);
-                            X509Certificate trustcert = (X509Certificate) trustStore.getCertificate(truststoreAlias);
-                            encryptPublicKey = (RSAPublicKey) trustcert.getPublicKey();
-                        } else {
-                            return "Encryption truststore alias not set";
-                        }
-                    } else {
-                        return "Encryption truststore password not set";
-                    }
-                } else {
-                    return "Encryption truststore location not set";
-                }
+            } catch (Exception e) {
+                throw new Exception("error loading encrypt certificate: " + e.getLocalizedMessage());
+            }
+        } else {
+            String truststoreLocation = cd.getENCRYPTTRUSTSTORELOCATION();
+            String truststorePass = cd.getENCRYPTTRUSTSTOREPASSWORD();
+            String truststoreAlias = cd.getENCRYPTTRUSTSTOREALIAS();
+            if (truststoreLocation == null) {
+                throw new Exception("Encryption truststore location not set");
+            }
+            if (truststorePass == null) {
+                throw new Exception("Encryption truststore password not set");
+            }
+            if (truststoreAlias == null) {
+                throw new Exception("Encryption truststore alias not set");
+            }
+            try {
+                encryptPublicKey = KeyMaterial.getTrustedCertificate(truststoreLocation, truststoreAlias, truststorePass).getPublicKey();
+            } catch (Exception e) {
+                throw new Exception("error loading encrypt certificate: " + e.getLocalizedMessage());
             }
-            return null;
-        } catch (Exception e) {
-            return "error loading encrypt certificate: " + e.getLocalizedMessage();
         }
+        return new Keys(k.signer, k.certChain, encryptPublicKey, k.signTrustCerts, k.signTrustStoreVersion, k.decrypter);
     }
 
-    private String loadServerSigningKeys() {
+    private Keys loadServerSigningKeys(Keys k) throws Exception {
+        String truststoreLocation = cd.getSIGNTRUSTSTORELOCATION();
+        String truststorePass = cd.getSIGNTRUSTSTOREPASSWORD();
+        if (truststoreLocation == null) {
+            throw new Exception("Signature truststore location not set");
+        }
+        if (truststorePass == null) {
+            throw new Exception("Signature truststore password not set");
+        }
+        KeyMaterial km;
         try {
-
-            String truststoreLocation = cd.getSIGNTRUSTSTORELOCATION();
-            String truststorePass = cd.getSIGNTRUSTSTOREPASSWORD();
-            if (truststoreLocation != null) {
-                if (truststorePass != null) {
-
-                    KeyStore trustStore = loadStore(truststoreLocation, truststorePass);
-
-                    signTrustCerts = new X509Certificate[trustStore.size()];
-                    int i = 0;
-                    Enumeration<String> alias = trustStore.aliases();
-
-                    while (alias.hasMoreElements()) {
-                        signTrustCerts[i++] = (X509Certificate) trustStore.getCertificate(alias
-                                .nextElement());
-                    }
-                } else {
-                    return "Signature truststore password not set";
-                }
-            } else {
-                return "Signature truststore location not set";
-            }
-
-            return null;
+            km = KeyMaterial.getTrustStore(truststoreLocation, truststorePass);
         } catch (Exception e) {
-            return "error loading Signing certificate: " + e.getLocalizedMessage();
+            throw new Exception("error loading Signing certificate: " + e.getLocalizedMessage());
         }
+        return new Keys(k.signer, k.certChain, k.encryptPublicKey, km.getTrustedCerts(), km.getVersion(), k.decrypter);
     }
 
-    private String loadServerEncryptionKeys() {
+    private Keys loadServerEncryptionKeys(Keys k) throws Exception {
 // This for SERVER decryption
         String encryptKey = cd.getENCRYPTKEYSTORELOCATION();
         String encryptAlias = cd.getENCRYPTKEYSTOREALIAS();
         String encryptPassword = cd.getENCRYPTKEYSTOREPASSWORD();
-        if (encryptKey != null) {
-            if (encryptAlias != null) {
-                if (encryptPassword != null) {
-                    try {
-                        //THIS IS FOR THE SERVER DECRYPT
-                        KeyStore.PasswordProtection pp = new KeyStore.PasswordProtection(encryptPassword.toCharArray());
-                        KeyStore sks = KeyStore.getInstance("JKS");
-                        FileInputStream fis = new FileInputStream(encryptKey);
-                        sks.load(fis, encryptPassword.toCharArray());
-                        encryptPrivateKey = (RSAPrivateKey) (((KeyStore.PrivateKeyEntry) sks.getEntry(encryptAlias, pp)).getPrivateKey());
-                        return null;
-                    } catch (Exception e) {
-                        return "error loading Encryption certificate: " + e.getLocalizedMessage();
-                    }
-                } else {
-                    return "Warning: Property ENCRYPTKEYSTOREPASSWORD not set";
-                }
-            } else {
-                return "Warning: Property ENCRYPTKEYSTOREALIAS not set";
-            }
-        } else {
-            return "Warning: Property " + "medipi.json.encrypt.keystore.location" + " not set";
+        if (encryptKey == null) {
+            throw new Exception("Warning: Property " + "medipi.json.encrypt.keystore.location" + " not set");
+        }
+        if (encryptAlias == null) {
+            throw new Exception("Warning: Property ENCRYPTKEYSTOREALIAS not set");
+        }
+        if (encryptPassword == null) {
+            throw new Exception("Warning: Property ENCRYPTKEYSTOREPASSWORD not set");
+        }
+        KeyMaterial km;
+        try {
+            //THIS IS FOR THE SERVER DECRYPT
+            km = KeyMaterial.getPrivateKeyEntry(encryptKey, encryptAlias, encryptPassword);
+        } catch (Exception e) {
+            throw new Exception("error loading Encryption certificate: " + e.getLocalizedMessage());
+        }
+        return new Keys(k.signer, k.certChain, k.encryptPublicKey, k.signTrustCerts, k.signTrustStoreVersion, km.getDecrypter());
+    }
+
+    /**
+     * Re-initialises the adapter with the certificate definitions and mode it
+     * was last initialised with so that a long lived adapter picks up
+     * keystores and truststores which have been replaced on disk. Only the
+     * stores which have changed are read again, so this is cheap enough to be
+     * called periodically. The new key material replaces the old only when all
+     * of it has loaded and the signing certificate is valid, otherwise the key
+     * material in use is left as it was
+     *
+     * @return null if the adapter was reloaded, otherwise an error message
+     * @throws NoSuchAlgorithmException
+     */
+    public synchronized String reload() throws NoSuchAlgorithmException {
+        if (cd == null) {
+            return "The adapter has not been initialised";
         }
+        return init(cd, mode);
     }
 
-    private KeyStore loadStore(String trustStoreFile, String password) throws Exception {
-        KeyStore store = KeyStore.getInstance("JKS");
-        store.load(new FileInputStream(trustStoreFile), password.toCharArray());
-        return store;
+    /**
+     * Sets the codec used to encode payloads before they are signed. When the
+     * codec is null the payload is encoded using Java serialization
+     *
+     * @param payloadCodec codec token e.g. PayloadCodec.BINARY or null
+     * @throws Exception if the codec is not supported
+     */
+    public void setPayloadCodec(String payloadCodec) throws Exception {
+        if (payloadCodec != null && payloadCodec.trim().isEmpty()) {
+            payloadCodec = null;
+        }
+        if (payloadCodec != null && !PayloadCodec.isSupported(payloadCodec)) {
+            throw new Exception("Payload codec is not supported: " + payloadCodec);
+        }
+        this.payloadCodec = payloadCodec;
+    }
+
+    public String getPayloadCodec() {
+        return payloadCodec;
+    }
+
+    /**
+     * Sets the compression applied to encoded payloads before they are signed
+     * and encrypted. A compressed payload is marked in its signed JWS header
+     * so that it is decompressed automatically by decryptAndVerify
+     *
+     * @param compression GZIPCOMPRESSION or null for no compression
+     * @throws Exception if the compression is not supported
+     */
+    public void setCompression(String compression) throws Exception {
+        if (compression != null && compression.trim().isEmpty()) {
+            compression = null;
+        }
+        if (compression != null && !isCompressionSupported(compression)) {
+            throw new Exception("Payload compression is not supported: " + compression);
+        }
+        this.compression = compression;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    /**
+     * @param compression compression token
+     * @return true if payloads using the compression can be decompressed
+     */
+    public static boolean isCompressionSupported(String compression) {
+        return GZIPCOMPRESSION.equalsIgnoreCase(compression);
     }
 
     /**
      * Method to encryptAndSign a payload
      *
+     * The payload is encoded straight into the compression stream when the
+     * payload is to be compressed so that the uncompressed encoding is never
+     * held in memory
+     *
      * @param dp payload to be encrypted
      * @return Encrypted and signed representation of the data payload
      * @throws Exception
      */
     public EncryptedAndSignedUploadDO encryptAndSign(Serializable dp) throws Exception {
-        // serialize the object
-        try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutput out = null;
-            try {
-                out = new ObjectOutputStream(bos);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(8192);
+        if (payloadCodec != null) {
+            try (OutputStream out = compression == null ? bos : new GZIPOutputStream(bos)) {
+                PayloadCodec.encode(dp, out);
+            } catch (IOException ex) {
+                throw new Exception("cannot encode payload for transmission ." + ex.getLocalizedMessage());
+            }
+        } else {
+            // serialize the object
+            try (ObjectOutput out = new ObjectOutputStream(compression == null ? bos : new GZIPOutputStream(bos))) {
                 out.writeObject(dp);
-                byte[] yourBytes = bos.toByteArray();
-                String signedPayload = signPayload(yourBytes);
-                KeyGenerator kgen;
-                try {
-                    kgen = KeyGenerator.getInstance("AES");
-                    kgen.init(AESKEYSIZE);
-                } catch (NoSuchAlgorithmException ex) {
-                    throw new Exception("encryption algorithm is unrecognised. " + ex.getLocalizedMessage());
-                }
-                SecretKey key = kgen.generateKey();
-                EncryptedAndSignedUploadDO easu = new EncryptedAndSignedUploadDO(UUID.randomUUID().toString());
-                String aesEncryptedPayload = symmetricallyEncrypt(signedPayload, key);
-                String rsaEncryptedSharedKey = encryptSharedKey(key);
-                return new EncryptedAndSignedUploadDO(UUID.randomUUID().toString(), rsaEncryptedSharedKey, aesEncryptedPayload);
-
-            } finally {
-                try {
-                    if (out != null) {
-                        out.close();
-                    }
-                } catch (IOException ex) {
-                    // ignore close exception
-                }
-                try {
-                    bos.close();
-                } catch (IOException ex) {
-                    // ignore close exception
-                }
+            } catch (IOException ex) {
+                throw new Exception("cannot serialise payload for transmission ." + ex.getLocalizedMessage());
             }
+        }
+        return encryptAndSignBytes(bos.toByteArray(), compression != null);
+    }
 
-        } catch (IOException ex) {
-            throw new Exception("cannot serialise payload for transmission ." + ex.getLocalizedMessage());
+    private EncryptedAndSignedUploadDO encryptAndSignBytes(byte[] yourBytes, boolean compressed) throws Exception {
+        Keys k = keys;
+        String signedPayload = signPayload(k, yourBytes, compressed);
+        KeyGenerator kgen;
+        try {
+            kgen = KeyGenerator.getInstance("AES");
+            kgen.init(AESKEYSIZE);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new Exception("encryption algorithm is unrecognised. " + ex.getLocalizedMessage());
         }
+        SecretKey key = kgen.generateKey();
+        String aesEncryptedPayload = symmetricallyEncrypt(signedPayload, key);
+        String rsaEncryptedSharedKey = encryptSharedKey(k, key);
+        return new EncryptedAndSignedUploadDO(UUID.randomUUID().toString(), rsaEncryptedSharedKey, aesEncryptedPayload);
     }
 
     /**
@@ -404,17 +422,25 @@ public class UploadEncryptionAdapter {
      * @throws Exception
      */
     public String signPayload(byte[] pay) throws Exception {
-        try {
-            // Create RSA-signer with the private key
-            JWSSigner signer = new RSASSASigner(signPrivateKey);
+        return signPayload(keys, pay, false);
+    }
 
+    private String signPayload(Keys k, byte[] pay, boolean compressed) throws Exception {
+        if (k.signer == null) {
+            throw new KeyMaterialUnavailableException("unable to sign the payload. The signing key has not been loaded");
+        }
+        try {
+            // The RSA-signer with the private key is shared with all adapters using the same keystore
             // Prepare JWS object with simple string as payload
             JWSHeader.Builder builder = new JWSHeader.Builder(JWSAlgorithm.RS256);
-            builder.x509CertChain(certChain);
+            builder.x509CertChain(k.certChain);
+            if (compressed) {
+                builder.customParam(COMPRESSIONHEADER, GZIPHEADERVALUE);
+            }
             JWSObject jwsObject = new JWSObject(builder.build(), new Payload(pay));
 
             // Compute the RSA signature
-            jwsObject.sign(signer);
+            jwsObject.sign(k.signer);
 
             return jwsObject.serialize();
         } catch (JOSEException ex) {
@@ -444,7 +470,10 @@ public class UploadEncryptionAdapter {
         }
     }
 
-    private String encryptSharedKey(SecretKey key) throws Exception {
+    private String encryptSharedKey(Keys k, SecretKey key) throws Exception {
+        if (k.encryptPublicKey == null) {
+            throw new KeyMaterialUnavailableException("cannot encrypt key. The encryption certificate has not been loaded");
+        }
         try {
             // ENCRYPT THE SHARED KEY WITH ASYMETRIC ENCRYPTION AND PUT IN JWT
             Base64 b64 = new Base64();
@@ -463,7 +492,7 @@ public class UploadEncryptionAdapter {
             EncryptedJWT jwt = new EncryptedJWT(header, claimsSet);
 
             // Create an encrypter with the specified public RSA key
-            RSAEncrypter encrypter = new RSAEncrypter(encryptPublicKey);
+            RSAEncrypter encrypter = new RSAEncrypter(k.encryptPublicKey);
 
             // Do the actual encryption
             jwt.encrypt(encrypter);
@@ -480,9 +509,36 @@ public class UploadEncryptionAdapter {
      *
      * @param easu Encrypted and signed object
      * @return object in the clear
+     * @throws KeyMaterialUnavailableException if the adapter's key material
+     * has not been loaded
      * @throws Exception
      */
     public Object decryptAndVerify(EncryptedAndSignedUploadDO easu) throws Exception {
+        return decryptAndVerify(easu, null, true);
+    }
+
+    /**
+     * Method to decrypt and verify the signature of an object which the sender
+     * has declared to be encoded using a particular codec
+     *
+     * @param easu Encrypted and signed object
+     * @param codec codec declared by the sender or null for Java
+     * serialization
+     * @return object in the clear
+     * @throws KeyMaterialUnavailableException if the adapter's key material
+     * has not been loaded
+     * @throws Exception if the object cannot be decrypted, does not verify or
+     * is not encoded using the declared codec
+     */
+    public Object decryptAndVerify(EncryptedAndSignedUploadDO easu, String codec) throws Exception {
+        return decryptAndVerify(easu, codec, false);
+    }
+
+    private Object decryptAndVerify(EncryptedAndSignedUploadDO easu, String codec, boolean anyCodec) throws Exception {
+        Keys k = keys;
+        if (k.decrypter == null) {
+            throw new KeyMaterialUnavailableException("cannot decrypt shared key. The decryption key has not been loaded");
+        }
 
         // Decrypt assymmetric key
         EncryptedJWT jwt;
@@ -492,12 +548,10 @@ public class UploadEncryptionAdapter {
             throw new Exception("cannot understand incoming encrypted key. " + ex.getLocalizedMessage());
         }
 
-        // Create a decrypter with the specified private RSA key
-        RSADecrypter decrypter = new RSADecrypter(encryptPrivateKey);
-
+        // The decrypter with the private RSA key is shared with all adapters using the same keystore
         try {
             // Decrypt
-            jwt.decrypt(decrypter);
+            jwt.decrypt(k.decrypter);
         } catch (JOSEException ex) {
             throw new Exception("cannot decrypt shared key. " + ex.getLocalizedMessage());
         }
@@ -527,8 +581,8 @@ public class UploadEncryptionAdapter {
             throw new Exception("cannot understand incoming payload. " + ex.getLocalizedMessage());
         }
 
-        if (verifySignature(jwsObject)) {
-            return serializePayload(jwsObject);
+        if (verifySignature(k, jwsObject)) {
+            return serializePayload(jwsObject, codec, anyCodec);
         } else {
             throw new Exception("Signature does not verify.");
         }
@@ -544,7 +598,14 @@ public class UploadEncryptionAdapter {
      * @throws CertificateException
      */
     public boolean verifySignature(JWSObject jwsObject) throws Exception, CertificateException {
+        return verifySignature(keys, jwsObject);
+    }
+
+    private boolean verifySignature(Keys k, JWSObject jwsObject) throws Exception, CertificateException {
         // Verify the Signature
+        if (k.signTrustCerts == null) {
+            throw new KeyMaterialUnavailableException("The signature truststore has not been loaded");
+        }
 
         List<com.nimbusds.jose.util.Base64> certs = jwsObject.getHeader().getX509CertChain();
         RSAPublicKey signPublicKey = null;
@@ -560,7 +621,7 @@ public class UploadEncryptionAdapter {
         }
         if (signPublicKey == null) {
             throw new Exception("No valid patient signing certificate was recevied with the signature");
-        } else if (validateKeyChain(clientCert, signTrustCerts)) {
+        } else if (CertificateValidationCache.getInstance().validate(clientCert, k.signTrustStoreVersion, k.signTrustCerts)) {
             try {
                 JWSVerifier verifier = new RSASSAVerifier(signPublicKey);
                 if (jwsObject.verify(verifier)) {
@@ -578,17 +639,49 @@ public class UploadEncryptionAdapter {
         }
     }
 
-    private Object serializePayload(JWSObject jwsObject) throws Exception {
+    private Object serializePayload(JWSObject jwsObject, String codec, boolean anyCodec) throws Exception {
+        byte b[] = jwsObject.getPayload().toBytes();
+        Object zip = jwsObject.getHeader().getCustomParam(COMPRESSIONHEADER);
+        if (zip != null) {
+            if (!GZIPHEADERVALUE.equals(zip)) {
+                throw new Exception("Signed and encrypted payload uses an unsupported compression: " + zip);
+            }
+            b = decompress(b);
+        }
+        boolean encoded = PayloadCodec.isEncoded(b);
+        if (!anyCodec && encoded != PayloadCodec.isSupported(codec)) {
+            throw new Exception("Signed and encrypted payload is not encoded using the declared codec: " + codec);
+        }
         try {
-            byte b[] = jwsObject.getPayload().toBytes();
-            ByteArrayInputStream bi = new ByteArrayInputStream(b);
-            ObjectInputStream si = new ObjectInputStream(bi);
-            return si.readObject();
+            if (encoded) {
+                return PayloadCodec.decode(b);
+            }
+            // Java serialization is restricted to the MediPi data object classes
+            return PayloadCodec.readSerialized(b);
         } catch (Exception e) {
             throw new Exception("Unable to parse signed and encrypted payload. " + e.getLocalizedMessage());
         }
     }
 
+    private byte[] decompress(byte[] b) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(b.length * 4);
+        try (GZIPInputStream gz = new GZIPInputStream(new ByteArrayInputStream(b))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = gz.read(buffer)) != -1) {
+                if (bos.size() + read > MAXIMUMDECOMPRESSEDSIZE) {
+                    throw new Exception("decompressed payload is larger than " + MAXIMUMDECOMPRESSEDSIZE + " bytes");
+                }
+                bos.write(buffer, 0, read);
+            }
+        } catch (EOFException ex) {
+            throw new Exception("compressed payload is truncated. " + ex.getLocalizedMessage());
+        } catch (IOException ex) {
+            throw new Exception("cannot decompress payload. " + ex.getLocalizedMessage());
+        }
+        return bos.toByteArray();
+    }
+
     /**
      * Validate keychain
      *
@@ -668,4 +761,30 @@ public class UploadEncryptionAdapter {
             return false;
         }
     }
+
+    /**
+     * Immutable snapshot of the key material used by the adapter. The signer
+     * and decrypter hold the private keys
+     */
+    private static final class Keys {
+
+        private static final Keys NONE = new Keys(null, null, null, null, 0, null);
+
+        private final JWSSigner signer;
+        private final List<com.nimbusds.jose.util.Base64> certChain;
+        private final RSAPublicKey encryptPublicKey;
+        private final X509Certificate[] signTrustCerts;
+        private final long signTrustStoreVersion;
+        private final RSADecrypter decrypter;
+
+        private Keys(JWSSigner signer, List<com.nimbusds.jose.util.Base64> certChain, RSAPublicKey encryptPublicKey,
+                X509Certificate[] signTrustCerts, long signTrustStoreVersion, RSADecrypter decrypter) {
+            this.signer = signer;
+            this.certChain = certChain;
+            this.encryptPublicKey = encryptPublicKey;
+            this.signTrustCerts = signTrustCerts;
+            this.signTrustStoreVersion = signTrustStoreVersion;
+            this.decrypter = decrypter;
+        }
+    }
 }
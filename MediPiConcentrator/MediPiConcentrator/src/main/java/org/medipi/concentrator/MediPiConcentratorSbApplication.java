@@ -18,12 +18,19 @@ package org.medipi.concentrator;
 import java.io.File;
 import java.util.Date;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.ServletContext;
 import org.medipi.security.CertificateDefinitions;
+import org.medipi.security.CertificateValidationCache;
 import org.medipi.concentrator.dataformat.DataFormatFactory;
 import org.medipi.concentrator.dataformat.PatientUploadDataFormat;
 import org.medipi.security.UploadEncryptionAdapter;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.notification.SubmissionNotificationDispatcher;
+import org.medipi.concentrator.services.PatientMessagingService;
+import org.medipi.concentrator.services.PatientUploadQueue;
 import org.medipi.concentrator.utilities.ConfigurationStringTokeniser;
 import org.medipi.concentrator.utilities.Utilities;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -69,6 +76,15 @@ public class MediPiConcentratorSbApplication implements CommandLineRunner {
     @Autowired
     DataFormatFactory dff;
 
+    @Autowired
+    PatientUploadQueue patientUploadQueue;
+
+    @Autowired
+    SubmissionNotificationDispatcher submissionNotificationDispatcher;
+
+    @Autowired
+    PatientMessagingService patientMessagingService;
+
     /**
      * Run method inherited by the commandLineRunner. This method sets the
      * version, calls the properties and utilities classes and instantiates any
@@ -106,6 +122,7 @@ public class MediPiConcentratorSbApplication implements CommandLineRunner {
             System.out.println(log + " - MediPi log directory is not set");
             System.exit(1);
         } else if (new File(log).isDirectory()) {
+            logger.configure(properties);
             logger.setAppName("MEDIPI", log);
             logger.log(MediPiConcentratorSbApplication.class.getName() + "startup", versionIdent);
         } else {
@@ -113,6 +130,16 @@ public class MediPiConcentratorSbApplication implements CommandLineRunner {
             System.exit(1);
         }
 
+        // set how long a validated signing certificate chain is remembered
+        String ttl = properties.getProperty("medipi.json.sign.truststore.validationcachetimetolive");
+        if (ttl != null && ttl.trim().length() != 0) {
+            try {
+                CertificateValidationCache.getInstance().setTimeToLive(Long.parseLong(ttl.trim()) * 1000L);
+            } catch (NumberFormatException nfe) {
+                logger.log(MediPiConcentratorSbApplication.class.getName() + ".error", "Certificate validation cache time to live is not a number: " + ttl + " - using default");
+            }
+        }
+
         // instantiate the patient encryption adapter
         CertificateDefinitions patientCD = new CertificateDefinitions(utils.getProperties());
         String patientAdapterError = patientEncryptionAdapter.init(patientCD, UploadEncryptionAdapter.SERVERMODE);
@@ -133,6 +160,8 @@ public class MediPiConcentratorSbApplication implements CommandLineRunner {
             logger.log(MediPiConcentratorSbApplication.class.getName() + ".error", "Failed to instantiate Clinician Encryption Adapter: " + ClinicicanAdapterError);
             System.out.println("Failed to instantiate Clinician Encryption Adapter: " + ClinicicanAdapterError);
         }
+        // periodically reload the adapters so that keystores and truststores replaced on disk are used without a restart
+        startKeyMaterialReload(properties);
 
         try {
             // loop through all the data format class tokens defined in the properties file and instantiate
@@ -169,10 +198,62 @@ public class MediPiConcentratorSbApplication implements CommandLineRunner {
             logger.log(MediPiConcentratorSbApplication.class.getName() + ".fatal", "FATAL: Failed to tokenise the data format class token list- " + e.getMessage());
             System.exit(1);
         }
+        // start the submission notification dispatcher before any upload can be processed
+        String notificationError = submissionNotificationDispatcher.init();
+        if (notificationError != null) {
+            System.out.println("FATAL: Cannot start the submission notification dispatcher - " + notificationError);
+            logger.log(MediPiConcentratorSbApplication.class.getName() + ".fatal", "FATAL: Cannot start the submission notification dispatcher - " + notificationError);
+            System.exit(1);
+        }
+        // start the asynchronous upload queue once the data formats are available to process queued uploads
+        String queueError = patientUploadQueue.init();
+        if (queueError != null) {
+            System.out.println("FATAL: Cannot start the asynchronous upload queue - " + queueError);
+            logger.log(MediPiConcentratorSbApplication.class.getName() + ".fatal", "FATAL: Cannot start the asynchronous upload queue - " + queueError);
+            System.exit(1);
+        }
         System.out.println("ServletContextListener started");
 
     }
 
+    private void startKeyMaterialReload(Properties properties) {
+        long period = 300;
+        String p = properties.getProperty("medipi.json.keymaterial.reloadperiod");
+        if (p != null && p.trim().length() != 0) {
+            try {
+                period = Long.parseLong(p.trim());
+            } catch (NumberFormatException nfe) {
+                logger.log(MediPiConcentratorSbApplication.class.getName() + ".error", "Key material reload period is not a number: " + p + " - using default");
+            }
+        }
+        if (period <= 0) {
+            return;
+        }
+        ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "key-material-reload");
+            t.setDaemon(true);
+            return t;
+        });
+        reloader.scheduleWithFixedDelay(() -> {
+            try {
+                String patientReloadError = patientEncryptionAdapter.reload();
+                if (patientReloadError != null) {
+                    logger.log(MediPiConcentratorSbApplication.class.getName() + ".error", "Failed to reload Patient Encryption Adapter: " + patientReloadError);
+                }
+                String clinicianReloadError = clinicianEncryptionAdapter.reload();
+                if (clinicianReloadError != null) {
+                    logger.log(MediPiConcentratorSbApplication.class.getName() + ".error", "Failed to reload Clinician Encryption Adapter: " + clinicianReloadError);
+                }
+                String signingReloadError = patientMessagingService.reloadSigningAdapter();
+                if (signingReloadError != null) {
+                    logger.log(MediPiConcentratorSbApplication.class.getName() + ".error", "Failed to reload Clinician Signing Adapter: " + signingReloadError);
+                }
+            } catch (Exception e) {
+                logger.log(MediPiConcentratorSbApplication.class.getName() + ".error", "Failed to reload the encryption and signing adapters: " + e.getLocalizedMessage());
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
     /**
      * Bean to access the ServletContext for use in the configuration run method
      *
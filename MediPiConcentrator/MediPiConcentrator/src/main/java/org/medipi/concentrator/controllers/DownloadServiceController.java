@@ -15,7 +15,6 @@
  */
 package org.medipi.concentrator.controllers;
 
-import java.util.Date;
 import java.util.List;
 import org.medipi.concentrator.logging.MediPiLogger;
 import org.medipi.concentrator.model.DownloadableDO;
@@ -82,7 +81,7 @@ public class DownloadServiceController {
     @RequestMapping(value = "/patient/{downloadableUuid}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
     public ResponseEntity<FileSystemResource> getPatientDownloadable(@PathVariable("downloadableUuid") String downloadableUuid) {
-        logger.log(DownloadServiceController.class.getName(), new Date().toString() + " get PatientDownloadable for downloadableUuid: " + downloadableUuid);
+        logger.log(DownloadServiceController.class.getName(), "get PatientDownloadable for downloadableUuid: " + downloadableUuid);
         return this.patientDownloadableService.getDownload(downloadableUuid);
     }
 
@@ -98,7 +97,7 @@ public class DownloadServiceController {
     @RequestMapping(value = "/hardware/{downloadableUuid}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
     public ResponseEntity<FileSystemResource> getHardwareDownloadable(@PathVariable("downloadableUuid") String downloadableUuid) {
-        logger.log(DownloadServiceController.class.getName(), new Date().toString() + " get HardwareDownloadable for downloadableUuid: " + downloadableUuid);
+        logger.log(DownloadServiceController.class.getName(), "get HardwareDownloadable for downloadableUuid: " + downloadableUuid);
         return this.hardwareDownloadableService.getDownload(downloadableUuid);
     }
 
@@ -115,7 +114,7 @@ public class DownloadServiceController {
     @RequestMapping(value = "/hardware/{downloadableUuid}/{hardwareName}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
     public ResponseEntity<FileSystemResource> getAllHardwareDownloadable(@PathVariable("downloadableUuid") String downloadableUuid, @PathVariable("hardwareName") String hardwareName) {
-        logger.log(DownloadServiceController.class.getName(), new Date().toString() + " get AllHardwareDownloadable for downloadableUuid: " + downloadableUuid + " and hardwareName: " + hardwareName);
+        logger.log(DownloadServiceController.class.getName(), "get AllHardwareDownloadable for downloadableUuid: " + downloadableUuid + " and hardwareName: " + hardwareName);
         return this.hardwareDownloadableService.getAllDownload(downloadableUuid, hardwareName);
     }
 
@@ -131,7 +130,7 @@ public class DownloadServiceController {
     @RequestMapping(value = "/patient/{downloadableUuid}", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
     public ResponseEntity<DownloadableDO> acknowledgePatientDownload(@PathVariable("downloadableUuid") String downloadableUuid) {
-        logger.log(DownloadServiceController.class.getName(), new Date().toString() + " acknowledge download of patient DownloadableId: " + downloadableUuid);
+        logger.log(DownloadServiceController.class.getName(), "acknowledge download of patient DownloadableId: " + downloadableUuid);
         return this.patientDownloadableService.acknowledgeDownload(downloadableUuid);
     }
 
@@ -147,7 +146,7 @@ public class DownloadServiceController {
     @RequestMapping(value = "/hardware/{downloadableUuid}", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
     public ResponseEntity<DownloadableDO> acknowledgeHardwareDownload(@PathVariable("downloadableUuid") String downloadableUuid) {
-        logger.log(DownloadServiceController.class.getName(), new Date().toString() + " acknowledge download of hardware DownloadableId: " + downloadableUuid);
+        logger.log(DownloadServiceController.class.getName(), "acknowledge download of hardware DownloadableId: " + downloadableUuid);
         return this.hardwareDownloadableService.acknowledgeDownload(downloadableUuid);
     }
 
@@ -165,7 +164,7 @@ public class DownloadServiceController {
     @RequestMapping(value = "/hardware/{downloadableUuid}/{hardwareName}", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
     public ResponseEntity<DownloadableDO> acknowledgeAllHardwareDownload(@PathVariable("downloadableUuid") String downloadableUuid, @PathVariable("hardwareName") String hardwareName) {
-        logger.log(DownloadServiceController.class.getName(), new Date().toString() + " acknowledge download of hardware DownloadableId: " + downloadableUuid + " and hardwareName: " + hardwareName);
+        logger.log(DownloadServiceController.class.getName(), "acknowledge download of hardware DownloadableId: " + downloadableUuid + " and hardwareName: " + hardwareName);
         return this.hardwareDownloadableService.acknowledgeAllDownload(downloadableUuid, hardwareName);
     }
 }
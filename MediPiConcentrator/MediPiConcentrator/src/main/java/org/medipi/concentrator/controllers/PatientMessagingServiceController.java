@@ -15,9 +15,10 @@
  */
 package org.medipi.concentrator.controllers;
 
-import java.util.Date;
 import org.medipi.concentrator.logging.MediPiLogger;
 import org.medipi.concentrator.services.PatientMessagingService;
+import org.medipi.model.DirectMessageBatchDO;
+import org.medipi.model.DirectMessageBatchResultDO;
 import org.medipi.model.EncryptedAndSignedUploadDO;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.MediaType;
@@ -60,7 +61,7 @@ public class PatientMessagingServiceController {
     @RequestMapping(value = "/alert/{patientUuid}", method = RequestMethod.POST, produces = {MediaType.APPLICATION_JSON_VALUE}, consumes = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
     public ResponseEntity<EncryptedAndSignedUploadDO> sendAlert(@PathVariable("patientUuid") String patientUuid, @RequestBody EncryptedAndSignedUploadDO easu) {
-        logger.log(PatientMessagingServiceController.class.getName(), new Date().toString() + " Alert received for patientUuid: " + patientUuid);
+        logger.log(PatientMessagingServiceController.class.getName(), "Alert received for patientUuid: " + patientUuid);
         EncryptedAndSignedUploadDO encryptedContent = easu;
 
         return this.patientMessagingService.persistDirectMessage(patientUuid, encryptedContent, ALERT);
@@ -78,9 +79,43 @@ public class PatientMessagingServiceController {
     @RequestMapping(value = "/simplemessage/{patientUuid}", method = RequestMethod.POST, produces = {MediaType.APPLICATION_JSON_VALUE}, consumes = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
     public ResponseEntity<EncryptedAndSignedUploadDO> sendSimpleMessage(@PathVariable("patientUuid") String patientUuid, @RequestBody EncryptedAndSignedUploadDO easu) {
-        logger.log(PatientMessagingServiceController.class.getName(), new Date().toString() + " Simple Message received for patientUuid: " + patientUuid);
+        logger.log(PatientMessagingServiceController.class.getName(), "Simple Message received for patientUuid: " + patientUuid);
         EncryptedAndSignedUploadDO encryptedContent = easu;
 
         return this.patientMessagingService.persistDirectMessage(patientUuid, encryptedContent, SIMPLEMESSAGE);
     }
+
+    /**
+     * Controller for uploading a batch of encrypted and signed alert messages,
+     * each addressed to an individual patient. The messages are persisted in a
+     * single transaction and the status of each is returned
+     *
+     * @param batch Batch of encrypted and signed alert data objects and the
+     * patientUuids of their intended recipients
+     * @return Status of each message in the batch
+     */
+    @RequestMapping(value = "/alert", method = RequestMethod.POST, produces = {MediaType.APPLICATION_JSON_VALUE}, consumes = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<DirectMessageBatchResultDO> sendAlerts(@RequestBody DirectMessageBatchDO batch) {
+        logger.log(PatientMessagingServiceController.class.getName(), "Alert batch of " + (batch.getMessages() == null ? 0 : batch.getMessages().size()) + " received");
+
+        return this.patientMessagingService.persistDirectMessages(batch, ALERT);
+    }
+
+    /**
+     * Controller for uploading a batch of encrypted and signed simple messages,
+     * each addressed to an individual patient. The messages are persisted in a
+     * single transaction and the status of each is returned
+     *
+     * @param batch Batch of encrypted and signed simple message data objects and
+     * the patientUuids of their intended recipients
+     * @return Status of each message in the batch
+     */
+    @RequestMapping(value = "/simplemessage", method = RequestMethod.POST, produces = {MediaType.APPLICATION_JSON_VALUE}, consumes = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<DirectMessageBatchResultDO> sendSimpleMessages(@RequestBody DirectMessageBatchDO batch) {
+        logger.log(PatientMessagingServiceController.class.getName(), "Simple Message batch of " + (batch.getMessages() == null ? 0 : batch.getMessages().size()) + " received");
+
+        return this.patientMessagingService.persistDirectMessages(batch, SIMPLEMESSAGE);
+    }
 }
@@ -19,13 +19,18 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Date;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.services.PatientUploadQueue;
 import org.medipi.concentrator.services.PatientUploadService;
 import org.medipi.concentrator.utilities.Utilities;
+import org.medipi.model.DevicesPayloadDO;
 import org.medipi.model.EncryptedAndSignedUploadDO;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -50,6 +55,9 @@ public class PatientUploadServiceController {
     @Autowired
     private PatientUploadService patientUploadService;
 
+    @Autowired
+    private PatientUploadQueue patientUploadQueue;
+
     @Autowired
     private MediPiLogger logger;
 
@@ -67,6 +75,10 @@ public class PatientUploadServiceController {
      * 1.saves the incoming message to file, if configured and passes the
      * incoming message to the service layer for processing
      *
+     * 2.when asynchronous upload is configured the message is only verified
+     * before it is durably queued and a 202 response is returned with the
+     * tracking id of the queued upload in the Tracking-Id header and body
+     *
      * @param deviceId incoming deviceId parameter from RESTful message
      * @param patientUuid incoming patientUuid parameter from RESTful message
      * @param dataFormat incoming Data-Format HTTP header parameter from RESTful
@@ -77,7 +89,7 @@ public class PatientUploadServiceController {
     @RequestMapping(value = "/{deviceId}/{patientUuid}", method = RequestMethod.PUT, produces = {MediaType.APPLICATION_JSON_VALUE}, consumes = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
     public ResponseEntity<?> updateMessage(@PathVariable("deviceId") String deviceId, @PathVariable("patientUuid") String patientUuid, @RequestHeader(value = "Data-Format") String dataFormat, @RequestBody EncryptedAndSignedUploadDO easu) {
-        logger.log(PatientUploadServiceController.class.getName(), new Date().toString() + " Called by patientUuid: " + patientUuid + " using deviceId: " + deviceId);
+        logger.log(PatientUploadServiceController.class.getName(), "Called by patientUuid: " + patientUuid + " using deviceId: " + deviceId);
         EncryptedAndSignedUploadDO content = easu;
 
         if (savemessagestofile) {
@@ -105,7 +117,7 @@ public class PatientUploadServiceController {
                 writeJSON(content, fop);
                 fop.flush();
                 fop.close();
-                logger.log(PatientUploadServiceController.class.getName(), new Date().toString() + " Encrypted payload uuid: " + easu.getUploadUuid());
+                logger.log(PatientUploadServiceController.class.getName(), "Encrypted payload uuid: " + easu.getUploadUuid());
             } catch (IOException e) {
                 logger.log(PatientUploadServiceController.class.getName() + ".error", "Cannot save outbound message payload to local drive - check the configured directory: " + inboundsavedmessagedir);
             } finally {
@@ -118,6 +130,17 @@ public class PatientUploadServiceController {
                 }
             }
         }
+        if (patientUploadQueue.isEnabled()) {
+            DevicesPayloadDO payload = this.patientUploadService.acceptRecordingDeviceData(deviceId, patientUuid, dataFormat, content);
+            if (payload != null) {
+                String trackingId = patientUploadQueue.enqueue(deviceId, patientUuid, dataFormat, content, payload);
+                logger.log(PatientUploadServiceController.class.getName(), "Encrypted payload uuid: " + content.getUploadUuid() + " queued with trackingId: " + trackingId);
+                HttpHeaders headers = new HttpHeaders();
+                headers.set("Tracking-Id", trackingId);
+                return new ResponseEntity<>(Collections.singletonMap("trackingId", trackingId), headers, HttpStatus.ACCEPTED);
+            }
+            return new ResponseEntity(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
         return this.patientUploadService.uploadRecordingDeviceData(deviceId, patientUuid, dataFormat, content);
     }
 
@@ -15,7 +15,6 @@
  */
 package org.medipi.concentrator.controllers;
 
-import java.util.Date;
 import org.medipi.concentrator.logging.MediPiLogger;
 import org.medipi.concentrator.services.PublicCertificateService;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -53,7 +52,7 @@ public class PublicCertificateServerServiceController {
     @RequestMapping(value = "/patient/{patientUuid}", method = RequestMethod.GET)
     @ResponseBody
     public ResponseEntity<byte[]> getPublicCertificate(@PathVariable("patientUuid") String patientUuid) {
-        logger.log(PublicCertificateServerServiceController.class.getName(), new Date().toString() + " get Patient Public Certificate for patientUuid: " + patientUuid);
+        logger.log(PublicCertificateServerServiceController.class.getName(), "get Patient Public Certificate for patientUuid: " + patientUuid);
         return this.publicCertificateService.getCertificate(patientUuid);
     }
 
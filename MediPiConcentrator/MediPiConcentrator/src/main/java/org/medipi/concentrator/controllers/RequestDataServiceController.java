@@ -16,12 +16,17 @@
 package org.medipi.concentrator.controllers;
 
 import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
+import java.io.IOException;
 import java.util.Date;
 import java.util.List;
+import javax.servlet.http.HttpServletResponse;
+import org.medipi.concentrator.exception.BadRequest400Exception;
 import org.medipi.concentrator.exception.InternalServerError500Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
 import org.medipi.concentrator.model.PatientDataRequestDO;
+import org.medipi.concentrator.notification.DataChangeFeed;
 import org.medipi.concentrator.services.RequestDataService;
+import org.medipi.model.DataChangesDO;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -31,6 +36,7 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 /**
  * Class to receive incoming RESTful message containing data from MediPi patient
@@ -46,6 +52,9 @@ public class RequestDataServiceController {
     @Autowired
     private RequestDataService requestDataService;
 
+    @Autowired
+    private DataChangeFeed dataChangeFeed;
+
     @Autowired
     private MediPiLogger logger;
 
@@ -74,11 +83,63 @@ public class RequestDataServiceController {
     public ResponseEntity<List<PatientDataRequestDO>> requestNewData(@PathVariable("patientGroupUuid") String patientGroupUuid, @RequestParam("date") Long lastDownloadEpochMillis) {
 
         if (lastDownloadEpochMillis < 0) {
-            logger.log(PatientUploadServiceController.class.getName(), new Date().toString() + " new data requested from Patient Group: " + patientGroupUuid + " Invalid Unix epoch representation of date");
+            logger.log(PatientUploadServiceController.class.getName(), "new data requested from Patient Group: " + patientGroupUuid + " Invalid Unix epoch representation of date");
             throw new InternalServerError500Exception("Invalid Unix epoch representation of date since last synchronisation");
         }
         Date lastDownloadDate = new Date(lastDownloadEpochMillis);
 //Removed to Reduce Logs size        logger.log(PatientUploadServiceController.class.getName(), new Date().toString() + " new data requested from Patient Group: " + patientGroupUuid + " since the last download at: " + new ISO8601DateFormat().format(lastDownloadDate));
         return this.requestDataService.getData(patientGroupUuid, lastDownloadDate);
     }
+
+    /**
+     * Controller for synchronising data from all patients within a patient
+     * group a page at a time. Each page is streamed to the requesting clinical
+     * system as it is read from the MediPi Concentrator Database and contains a
+     * continuation cursor which is passed back to request the next page, so an
+     * interrupted synchronisation can be resumed from the last page received.
+     *
+     * @param patientGroupUuid the patient group for which to synchronise
+     * @param lastDownloadEpochMillis This is the date in the format of Unix
+     * epoch time (millis after January 1, 1970, 00:00:00 GMT) when this data
+     * was last synchronised. Required for the first page and ignored when a
+     * cursor is passed
+     * @param cursor the continuation cursor returned in the previous page
+     * @param limit the maximum number of data points to be returned in the page
+     * @param response response to which the page is streamed
+     * @throws IOException if the response cannot be written
+     */
+    @RequestMapping(value = "/requestdata/pagedData/{patientGroupUuid}", method = RequestMethod.GET, produces = {MediaType.APPLICATION_JSON_VALUE})
+    public void requestPagedData(@PathVariable("patientGroupUuid") String patientGroupUuid, @RequestParam(value = "date", required = false) Long lastDownloadEpochMillis, @RequestParam(value = "cursor", required = false) String cursor, @RequestParam(value = "limit", required = false) Integer limit, HttpServletResponse response) throws IOException {
+
+        if (cursor == null && (lastDownloadEpochMillis == null || lastDownloadEpochMillis < 0)) {
+            logger.log(RequestDataServiceController.class.getName(), "paged data requested from Patient Group: " + patientGroupUuid + " Invalid Unix epoch representation of date");
+            throw new BadRequest400Exception("Invalid Unix epoch representation of date since last synchronisation");
+        }
+        Date lastDownloadDate = lastDownloadEpochMillis == null ? null : new Date(lastDownloadEpochMillis);
+        this.requestDataService.streamData(patientGroupUuid, lastDownloadDate, cursor, limit, response);
+    }
+
+    /**
+     * Controller for subscribing to the patient groups which have had new data
+     * committed. If no data has been committed since the sequence number
+     * passed the request is held open until new data is committed or the wait
+     * expires, so the requesting clinical system can synchronise each patient
+     * group as soon as it has new data rather than repeatedly polling all of
+     * them.
+     *
+     * @param feedId the feedId returned by the previous request. If it is not
+     * passed or does not match the running concentrator the response asks the
+     * requesting system to resynchronise all its patient groups
+     * @param since the sequence number returned by the previous request
+     * @param wait the maximum time in ms to hold the request open
+     * @return the patient groups with new data and the sequence number for the
+     * next request
+     */
+    @RequestMapping(value = "/requestdata/changes", method = RequestMethod.GET, produces = {MediaType.APPLICATION_JSON_VALUE})
+    public DeferredResult<DataChangesDO> requestChanges(@RequestParam(value = "feed", required = false) String feedId, @RequestParam(value = "since", required = false) Long since, @RequestParam(value = "wait", required = false, defaultValue = "0") Long wait) {
+        if (wait < 0) {
+            throw new BadRequest400Exception("The wait must not be negative");
+        }
+        return this.dataChangeFeed.subscribe(feedId, since, wait);
+    }
 }
@@ -70,14 +70,20 @@ public abstract class GenericDAOImpl<T> implements GenericDAO<T> {
     @Override
     public T save(final T object) {
         this.getEntityManager().persist(object);
-        logger.log(object.getClass().getName() + ".info", "Object persisted:" + object + " of type:" + object.getClass());
+        String location = object.getClass().getName() + ".info";
+        if (logger.isLoggable(location)) {
+            logger.log(location, "Object persisted:" + object + " of type:" + object.getClass());
+        }
         return object;
     }
 
     @Override
     public T update(final T object) {
         final T updatedObject = this.getEntityManager().merge(object);
-        logger.log(object.getClass().getName() + ".info", "Object updated:" + object + " of type:" + object.getClass());
+        String location = object.getClass().getName() + ".info";
+        if (logger.isLoggable(location)) {
+            logger.log(location, "Object updated:" + object + " of type:" + object.getClass());
+        }
         return updatedObject;
     }
 
@@ -15,6 +15,8 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.util.Collection;
+import java.util.List;
 import org.medipi.concentrator.entities.PatientCertificate;
 import org.springframework.stereotype.Repository;
 
@@ -30,4 +32,11 @@ public class PatientCertificateDAOImpl extends GenericDAOImpl<PatientCertificate
                 .setParameter("patientUuid", patientUuid)
                 .getSingleResult();
     }
+
+    @Override
+    public List<PatientCertificate> findByPatientUuids(Collection<String> patientUuids) {
+        return this.getEntityManager().createNamedQuery("PatientCertificate.findByPatientUuids", PatientCertificate.class)
+                .setParameter("patientUuids", patientUuids)
+                .getResultList();
+    }
 }
\ No newline at end of file
@@ -15,6 +15,7 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.util.Collection;
 import java.util.List;
 import org.medipi.concentrator.entities.Patient;
 
@@ -26,4 +27,6 @@ import org.medipi.concentrator.entities.Patient;
 public interface PatientDAO extends GenericDAO<Patient> {
 
     public List<Patient> findByGroup(String patientGroupUuid);
+
+    public List<Patient> findByPatientUuids(Collection<String> patientUuids);
 }
@@ -15,6 +15,7 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.util.Collection;
 import java.util.List;
 import org.medipi.concentrator.entities.Patient;
 import org.springframework.stereotype.Repository;
@@ -32,5 +33,12 @@ public class PatientDAOImpl extends GenericDAOImpl<Patient> implements PatientDA
                 .getResultList();
     }
 
+    @Override
+    public List<Patient> findByPatientUuids(Collection<String> patientUuids) {
+        return this.getEntityManager().createNamedQuery("Patient.findByPatientUuids", Patient.class)
+                .setParameter("patientUuids", patientUuids)
+                .getResultList();
+    }
+
     
 }
\ No newline at end of file
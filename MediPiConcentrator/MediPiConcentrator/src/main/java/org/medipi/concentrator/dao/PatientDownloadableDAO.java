@@ -25,4 +25,14 @@ import org.medipi.concentrator.entities.PatientDownloadable;
 public interface PatientDownloadableDAO extends GenericDAO<PatientDownloadable> {
     public List<PatientDownloadable> getPatientDownloads(String patientUuid);
     public PatientDownloadable getPatientDownload(String downloadUuid);
+
+    /**
+     * Insert new downloadables using JDBC batch inserts rather than persisting
+     * each through the entity manager
+     *
+     * @param downloadables new downloadables to be inserted
+     * @param batchSize maximum number of rows sent to the DB in each batch
+     * @return number of downloadables inserted
+     */
+    public int saveBatch(List<PatientDownloadable> downloadables, int batchSize);
 }
@@ -15,8 +15,14 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.List;
 import org.medipi.concentrator.entities.PatientDownloadable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
 import org.springframework.stereotype.Repository;
 
 /**
@@ -26,6 +32,11 @@ import org.springframework.stereotype.Repository;
 @Repository
 public class PatientDownloadableDAOImpl extends GenericDAOImpl<PatientDownloadable> implements PatientDownloadableDAO {
 
+    private static final String BATCHINSERTSQL = "INSERT INTO patient_downloadable (downloadable_uuid, patient_uuid, version, version_author, version_date, script_location, signature) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
     @Override
     public List<PatientDownloadable> getPatientDownloads(String patientUuid) {
         return this.getEntityManager().createNamedQuery("PatientDownloadable.findByPatientUuid", PatientDownloadable.class)
@@ -40,4 +51,25 @@ public class PatientDownloadableDAOImpl extends GenericDAOImpl<PatientDownloadab
                 .getSingleResult();
     }
 
+    @Override
+    public int saveBatch(List<PatientDownloadable> downloadables, int batchSize) {
+        if (downloadables.isEmpty()) {
+            return 0;
+        }
+        this.getEntityManager().flush();
+        jdbcTemplate.batchUpdate(BATCHINSERTSQL, downloadables, batchSize, new ParameterizedPreparedStatementSetter<PatientDownloadable>() {
+            @Override
+            public void setValues(PreparedStatement ps, PatientDownloadable pd) throws SQLException {
+                ps.setString(1, pd.getDownloadableUuid());
+                ps.setString(2, pd.getPatientUuid().getPatientUuid());
+                ps.setString(3, pd.getVersion());
+                ps.setString(4, pd.getVersionAuthor());
+                ps.setTimestamp(5, new Timestamp(pd.getVersionDate().getTime()));
+                ps.setString(6, pd.getScriptLocation());
+                ps.setString(7, pd.getSignature());
+            }
+        });
+        return downloadables.size();
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.dao;
+
+import org.medipi.concentrator.entities.PatientUpload;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Implementation of Data Access Object for PatientUpload
+ * @author rick@robinsonhq.com
+ */
+@Repository
+public class PatientUploadDAOImpl extends GenericDAOImpl<PatientUpload> implements PatientUploadDAO {
+
+    @Override
+    public boolean isAlreadyProcessed(String uploadUuid) {
+        return uploadUuid != null && this.findByPrimaryKey(uploadUuid) != null;
+    }
+}
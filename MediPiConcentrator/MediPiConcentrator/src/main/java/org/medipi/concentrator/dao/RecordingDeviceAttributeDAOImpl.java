@@ -15,6 +15,7 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.util.List;
 import org.medipi.concentrator.entities.RecordingDeviceAttribute;
 import org.medipi.concentrator.entities.RecordingDeviceType;
 import org.springframework.stereotype.Repository;
@@ -36,4 +37,10 @@ public class RecordingDeviceAttributeDAOImpl extends GenericDAOImpl<RecordingDev
                 .setParameter("format", format)
                 .getSingleResult();
     }
+
+    @Override
+    public List<RecordingDeviceAttribute> findAll() {
+        return this.getEntityManager().createNamedQuery("RecordingDeviceAttribute.findAll", RecordingDeviceAttribute.class)
+                .getResultList();
+    }
 }
@@ -1,47 +1,86 @@
-/*
- Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
-
- Licensed under the Apache License, Version 2.0 (the "License");
- you may not use this file except in compliance with the License.
- You may obtain a copy of the License at
-
- http://www.apache.org/licenses/LICENSE-2.0
-
- Unless required by applicable law or agreed to in writing, software
- distributed under the License is distributed on an "AS IS" BASIS,
- WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- See the License for the specific language governing permissions and
- limitations under the License.
- */
-package org.medipi.concentrator.dao;
-
-import java.util.Date;
-import java.util.List;
-import org.medipi.concentrator.entities.RecordingDeviceData;
-import org.medipi.concentrator.entities.Patient;
-import org.medipi.concentrator.entities.RecordingDeviceAttribute;
-
-/**
- * Data Access Object interface for RecordingDeviceData
- *
- * @author rick@robinsonhq.com
- */
-public interface RecordingDeviceDataDAO extends GenericDAO<RecordingDeviceData> {
-
-    /**
-     * Method to check if a data point has already been persisted to the DB
-     *
-     * @param rda recordingDeviceAttribute
-     * @param patient patient
-     * @param data data value of the data point
-     * @param dataPointTime time at which the measurement was taken
-     * @return
-     */
-    public List<RecordingDeviceData> isAlreadyStored(RecordingDeviceAttribute rda, Patient patient, String data, Date dataPointTime);
-
-    public List<RecordingDeviceData> findByPatientUuidAfterDate(String patientUuid, Date requestDate, String type);
-
-    public RecordingDeviceData findByTypeAttributeAndData(String patientUuid, String type, String AttributeName, Date dataValueTime, String dataValue);
-
-    public List<RecordingDeviceData> findByPatientAndDownloadedTime(String patientUuid, Date downloadedTime, Date endTime);
-}
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.dao;
+
+import java.util.Date;
+import java.util.List;
+import org.medipi.concentrator.entities.RecordingDeviceData;
+import org.medipi.concentrator.entities.Patient;
+import org.medipi.concentrator.entities.RecordingDeviceAttribute;
+
+/**
+ * Data Access Object interface for RecordingDeviceData
+ *
+ * @author rick@robinsonhq.com
+ */
+public interface RecordingDeviceDataDAO extends GenericDAO<RecordingDeviceData> {
+
+    /**
+     * Method to check if a data point has already been persisted to the DB
+     *
+     * @param rda recordingDeviceAttribute
+     * @param patient patient
+     * @param data data value of the data point
+     * @param dataPointTime time at which the measurement was taken
+     * @return
+     */
+    public List<RecordingDeviceData> isAlreadyStored(RecordingDeviceAttribute rda, Patient patient, String data, Date dataPointTime);
+
+    /**
+     * Method to return the identifying values (attribute id, data value time
+     * and data value) of every data point already persisted for a patient
+     * within a period. This allows a whole incoming payload to be checked for
+     * duplicates using a single query
+     *
+     * @param patient patient
+     * @param startTime earliest data value time in the incoming payload
+     * @param endTime latest data value time in the incoming payload
+     * @return list of Object arrays containing attribute id, data value time
+     * and data value
+     */
+    public List<Object[]> findStoredKeysByPatientAndPeriod(Patient patient, Date startTime, Date endTime);
+
+    /**
+     * Method to persist a list of data points using JDBC batch inserts
+     *
+     * @param data data points to be persisted
+     * @param batchSize maximum number of rows sent to the DB in each batch
+     * @return the number of batches sent to the DB
+     */
+    public int saveBatch(List<RecordingDeviceData> data, int batchSize);
+
+    public List<RecordingDeviceData> findByPatientUuidAfterDate(String patientUuid, Date requestDate, String type);
+
+    public RecordingDeviceData findByTypeAttributeAndData(String patientUuid, String type, String AttributeName, Date dataValueTime, String dataValue);
+
+    public List<RecordingDeviceData> findByPatientAndDownloadedTime(String patientUuid, Date downloadedTime, Date endTime);
+
+    /**
+     * Method to return the data points for all the patients in a patient group
+     * which were downloaded to the concentrator after a position, in order of
+     * downloaded time and data id. The position is given by the downloaded
+     * time and data id of the last data point already received, so successive
+     * calls page through the data without repeating or missing any rows
+     *
+     * @param patientGroupUuid patient group
+     * @param downloadedTime downloaded time of the last data point received
+     * @param dataId data id of the last data point received
+     * @param endTime latest downloaded time to be returned
+     * @param maxResults maximum number of data points to be returned
+     * @return list of data points
+     */
+    public List<RecordingDeviceData> findByGroupAfterDownloadCursor(String patientGroupUuid, Date downloadedTime, int dataId, Date endTime, int maxResults);
+}
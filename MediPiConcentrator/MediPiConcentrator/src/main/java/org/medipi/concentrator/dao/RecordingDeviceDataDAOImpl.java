@@ -15,11 +15,18 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.Date;
 import java.util.List;
 import org.medipi.concentrator.entities.RecordingDeviceData;
 import org.medipi.concentrator.entities.Patient;
 import org.medipi.concentrator.entities.RecordingDeviceAttribute;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
 import org.springframework.stereotype.Repository;
 
 /**
@@ -30,6 +37,11 @@ import org.springframework.stereotype.Repository;
 @Repository
 public class RecordingDeviceDataDAOImpl extends GenericDAOImpl<RecordingDeviceData> implements RecordingDeviceDataDAO {
 
+    private static final String BATCHINSERTSQL = "INSERT INTO recording_device_data (attribute_id, data_value, patient_uuid, data_value_time, schedule_effective_time, schedule_expiry_time) VALUES (?, ?, ?, ?, ?, ?)";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
     @Override
     public List<RecordingDeviceData> isAlreadyStored(RecordingDeviceAttribute rda, Patient patient, String data, Date dataPointTime) {
         return this.getEntityManager().createNamedQuery("RecordingDeviceData.isAlreadyStored", RecordingDeviceData.class)
@@ -40,6 +52,44 @@ public class RecordingDeviceDataDAOImpl extends GenericDAOImpl<RecordingDeviceDa
                 .getResultList();
 
     }
+    @Override
+    public List<Object[]> findStoredKeysByPatientAndPeriod(Patient patient, Date startTime, Date endTime) {
+        return this.getEntityManager().createNamedQuery("RecordingDeviceData.findStoredKeysByPatientAndPeriod", Object[].class)
+                .setParameter("patientUuid", patient)
+                .setParameter("startTime", startTime)
+                .setParameter("endTime", endTime)
+                .getResultList();
+    }
+
+    @Override
+    public int saveBatch(List<RecordingDeviceData> data, int batchSize) {
+        if (data.isEmpty()) {
+            return 0;
+        }
+        // Make sure any types or attributes created through the entity manager are visible to the JDBC inserts
+        this.getEntityManager().flush();
+        int[][] result = jdbcTemplate.batchUpdate(BATCHINSERTSQL, data, batchSize, new ParameterizedPreparedStatementSetter<RecordingDeviceData>() {
+            @Override
+            public void setValues(PreparedStatement ps, RecordingDeviceData d) throws SQLException {
+                ps.setInt(1, d.getAttributeId().getAttributeId());
+                ps.setString(2, d.getDataValue());
+                ps.setString(3, d.getPatientUuid().getPatientUuid());
+                ps.setTimestamp(4, new Timestamp(d.getDataValueTime().getTime()));
+                setNullableTimestamp(ps, 5, d.getScheduleEffectiveTime());
+                setNullableTimestamp(ps, 6, d.getScheduleExpiryTime());
+            }
+        });
+        return result.length;
+    }
+
+    private void setNullableTimestamp(PreparedStatement ps, int index, Date date) throws SQLException {
+        if (date == null) {
+            ps.setNull(index, Types.TIMESTAMP);
+        } else {
+            ps.setTimestamp(index, new Timestamp(date.getTime()));
+        }
+    }
+
     @Override
     public List<RecordingDeviceData> findByPatientUuidAfterDate(String patientUuid, Date requestDate, String type) {
         return this.getEntityManager().createNamedQuery("RecordingDeviceData.findByPatientUuidAfterDate", RecordingDeviceData.class)
@@ -69,4 +119,15 @@ public class RecordingDeviceDataDAOImpl extends GenericDAOImpl<RecordingDeviceDa
                 .getResultList();
 
     }
+
+    @Override
+    public List<RecordingDeviceData> findByGroupAfterDownloadCursor(String patientGroupUuid, Date downloadedTime, int dataId, Date endTime, int maxResults) {
+        return this.getEntityManager().createNamedQuery("RecordingDeviceData.findByGroupAfterDownloadCursor", RecordingDeviceData.class)
+                .setParameter("patientGroupUuid", patientGroupUuid)
+                .setParameter("downloadedTime", downloadedTime)
+                .setParameter("dataId", dataId)
+                .setParameter("endTime", endTime)
+                .setMaxResults(maxResults)
+                .getResultList();
+    }
 }
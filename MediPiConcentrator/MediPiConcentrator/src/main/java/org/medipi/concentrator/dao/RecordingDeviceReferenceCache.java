@@ -0,0 +1,245 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.dao;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.medipi.concentrator.entities.RecordingDeviceAttribute;
+import org.medipi.concentrator.entities.RecordingDeviceType;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Bounded, thread safe cache of the RecordingDeviceType and
+ * RecordingDeviceAttribute reference data used when incoming data is
+ * persisted.
+ *
+ * The cache is loaded from the DB at startup and filled from the DB on a miss.
+ * Types and attributes created during an upload are only added to the cache
+ * once the transaction which created them has committed so that a rolled back
+ * upload cannot leave an entry for a row which does not exist
+ *
+ * @author rick@robinsonhq.com
+ */
+@Component
+public class RecordingDeviceReferenceCache {
+
+    /**
+     * Default maximum number of entries held in each of the type and attribute
+     * caches
+     */
+    public static final int DEFAULTMAXIMUMSIZE = 10000;
+
+    private final ConcurrentHashMap<List<Object>, RecordingDeviceType> typeCache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<List<Object>, RecordingDeviceAttribute> attributeCache = new ConcurrentHashMap<>();
+    private final AtomicLong typeHits = new AtomicLong();
+    private final AtomicLong typeMisses = new AtomicLong();
+    private final AtomicLong attributeHits = new AtomicLong();
+    private final AtomicLong attributeMisses = new AtomicLong();
+    private int maximumSize = DEFAULTMAXIMUMSIZE;
+
+    @Autowired
+    private RecordingDeviceTypeDAOImpl recordingDeviceTypeDAO;
+
+    @Autowired
+    private RecordingDeviceAttributeDAOImpl recordingDeviceAttributeDAO;
+
+    @Autowired
+    private MediPiLogger logger;
+
+    /**
+     * Sets the maximum number of entries held in each of the type and
+     * attribute caches
+     *
+     * @param maximumSize maximum number of entries
+     */
+    public void setMaximumSize(int maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Method to load all the existing types and attributes from the DB. Any
+     * entries already cached are discarded
+     */
+    public void load() {
+        typeCache.clear();
+        attributeCache.clear();
+        for (RecordingDeviceType rdt : recordingDeviceTypeDAO.findAll()) {
+            putType(rdt);
+        }
+        for (RecordingDeviceAttribute rda : recordingDeviceAttributeDAO.findAll()) {
+            putAttribute(rda);
+        }
+        logger.log(RecordingDeviceReferenceCache.class.getName() + ".info", "Recording device reference cache loaded " + typeCache.size() + " types and " + attributeCache.size() + " attributes");
+    }
+
+    /**
+     * Find RecordingDeviceType by type, make, model and display name, going to
+     * the DB if it has not already been cached
+     *
+     * @param type device type
+     * @param make device make
+     * @param model device model
+     * @param displayName device display name
+     * @return recording device type
+     * @throws EmptyResultDataAccessException if the type does not exist in the
+     * DB
+     */
+    public RecordingDeviceType findRecordingDeviceType(String type, String make, String model, String displayName) throws EmptyResultDataAccessException {
+        RecordingDeviceType rdt = typeCache.get(typeKey(type, make, model, displayName));
+        if (rdt != null) {
+            typeHits.incrementAndGet();
+            return rdt;
+        }
+        typeMisses.incrementAndGet();
+        rdt = recordingDeviceTypeDAO.findByTypeMakeModelDisplayName(type, make, model, displayName);
+        putType(rdt);
+        return rdt;
+    }
+
+    /**
+     * Find RecordingDeviceAttribute by type, attribute name, units and format,
+     * going to the DB if it has not already been cached
+     *
+     * @param rdt recording device type
+     * @param attributeName attribute name
+     * @param units attribute units
+     * @param format attribute format
+     * @return recording device attribute
+     * @throws EmptyResultDataAccessException if the attribute does not exist in
+     * the DB
+     */
+    public RecordingDeviceAttribute findRecordingDeviceAttribute(RecordingDeviceType rdt, String attributeName, String units, String format) throws EmptyResultDataAccessException {
+        RecordingDeviceAttribute rda = attributeCache.get(attributeKey(rdt.getTypeId(), attributeName, units, format));
+        if (rda != null) {
+            attributeHits.incrementAndGet();
+            return rda;
+        }
+        attributeMisses.incrementAndGet();
+        rda = recordingDeviceAttributeDAO.findByTypeUnitsFormatAndAttributeName(rdt, attributeName, units, format);
+        putAttribute(rda);
+        return rda;
+    }
+
+    /**
+     * Method to record that a new type has been persisted in the current
+     * transaction. It is cached if the transaction commits and any stale entry
+     * is removed if it does not
+     *
+     * @param rdt newly persisted recording device type
+     */
+    public void typeCreated(final RecordingDeviceType rdt) {
+        final List<Object> key = typeKey(rdt.getType(), rdt.getMake(), rdt.getModel(), rdt.getDisplayName());
+        typeCache.remove(key);
+        afterCompletion(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == STATUS_COMMITTED) {
+                    putType(rdt);
+                } else {
+                    typeCache.remove(key);
+                }
+            }
+        });
+    }
+
+    /**
+     * Method to record that a new attribute has been persisted in the current
+     * transaction. It is cached if the transaction commits and any stale entry
+     * is removed if it does not
+     *
+     * @param rda newly persisted recording device attribute
+     */
+    public void attributeCreated(final RecordingDeviceAttribute rda) {
+        final List<Object> key = attributeKey(rda.getTypeId().getTypeId(), rda.getAttributeName(), rda.getAttributeUnits(), rda.getAttributeType());
+        attributeCache.remove(key);
+        afterCompletion(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == STATUS_COMMITTED) {
+                    putAttribute(rda);
+                } else {
+                    attributeCache.remove(key);
+                }
+            }
+        });
+    }
+
+    public long getTypeHits() {
+        return typeHits.get();
+    }
+
+    public long getTypeMisses() {
+        return typeMisses.get();
+    }
+
+    public long getAttributeHits() {
+        return attributeHits.get();
+    }
+
+    public long getAttributeMisses() {
+        return attributeMisses.get();
+    }
+
+    /**
+     * @return a string representation of the cache size and hit/miss counters
+     */
+    public String getStatistics() {
+        return "types: " + typeCache.size() + " cached, " + typeHits.get() + " hits, " + typeMisses.get() + " misses; attributes: " + attributeCache.size() + " cached, " + attributeHits.get() + " hits, " + attributeMisses.get() + " misses";
+    }
+
+    private void afterCompletion(TransactionSynchronizationAdapter synchronization) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(synchronization);
+        } else {
+            // Not in a transaction so the row has already been written
+            synchronization.afterCompletion(TransactionSynchronizationAdapter.STATUS_COMMITTED);
+        }
+    }
+
+    private void putType(RecordingDeviceType rdt) {
+        makeRoom(typeCache);
+        typeCache.put(typeKey(rdt.getType(), rdt.getMake(), rdt.getModel(), rdt.getDisplayName()), rdt);
+    }
+
+    private void putAttribute(RecordingDeviceAttribute rda) {
+        makeRoom(attributeCache);
+        attributeCache.put(attributeKey(rda.getTypeId().getTypeId(), rda.getAttributeName(), rda.getAttributeUnits(), rda.getAttributeType()), rda);
+    }
+
+    private void makeRoom(ConcurrentHashMap<List<Object>, ?> cache) {
+        Iterator<List<Object>> it = cache.keySet().iterator();
+        while (cache.size() >= maximumSize && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private List<Object> typeKey(String type, String make, String model, String displayName) {
+        return Arrays.<Object>asList(type, make, model, displayName);
+    }
+
+    private List<Object> attributeKey(Integer typeId, String attributeName, String units, String format) {
+        return Arrays.<Object>asList(typeId, attributeName, units, format);
+    }
+}
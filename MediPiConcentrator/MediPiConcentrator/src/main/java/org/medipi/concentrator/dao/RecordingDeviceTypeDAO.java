@@ -29,4 +29,11 @@ public interface RecordingDeviceTypeDAO extends GenericDAO<RecordingDeviceType>
 
     public List<String> findByPatient(String patientUuid);
     public RecordingDeviceType findByType(String type);
+
+    /**
+     * Find all the recording device types
+     *
+     * @return list of all recording device types
+     */
+    public List<RecordingDeviceType> findAll();
 }
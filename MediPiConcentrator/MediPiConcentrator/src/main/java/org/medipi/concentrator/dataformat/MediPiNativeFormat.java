@@ -15,19 +15,18 @@
  */
 package org.medipi.concentrator.dataformat;
 
-import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import javax.persistence.EntityExistsException;
 import org.apache.commons.io.IOUtils;
 import org.medipi.concentrator.MediPiProperties;
+import org.medipi.concentrator.dao.PatientDAOImpl;
 import org.medipi.concentrator.dao.RecordingDeviceDataDAOImpl;
+import org.medipi.concentrator.dao.RecordingDeviceReferenceCache;
 import org.medipi.concentrator.dao.RecordingDeviceAttributeDAOImpl;
 import org.medipi.concentrator.dao.RecordingDeviceTypeDAOImpl;
 import org.medipi.concentrator.entities.RecordingDeviceData;
@@ -37,6 +36,8 @@ import org.medipi.concentrator.entities.RecordingDeviceType;
 import org.medipi.concentrator.exception.BadRequest400Exception;
 import org.medipi.concentrator.exception.InternalServerError500Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.notification.DataChangeFeed;
+import org.medipi.concentrator.notification.SubmissionNotificationDispatcher;
 import org.medipi.concentrator.utilities.Utilities;
 import org.medipi.model.DeviceDataDO;
 import org.medipi.model.DevicesPayloadDO;
@@ -57,11 +58,16 @@ import org.springframework.transaction.annotation.Transactional;
 @Service
 public class MediPiNativeFormat extends PatientUploadDataFormat {
 
-    private static final String SUCCESSFULLYPROCESSEDSUBMISSIONSCRIPT = "medipi.concentrator.successfullyprocessedsubmissionscript";
+    private static final String DATAFORMATPREFIX = "medipi.concentrator.dataformat.";
+    private static final String BATCHINGEST = ".batchingest";
+    private static final String BATCHSIZE = ".batchsize";
+    private static final int DEFAULTBATCHSIZE = 500;
+    private static final String REFERENCECACHEMAXIMUMSIZE = "medipi.concentrator.referencecache.maximumsize";
     private String classToken;
+    private boolean batchIngest = false;
+    private int batchSize = DEFAULTBATCHSIZE;
     private final MediPiLogger logger = MediPiLogger.getInstance();
     private String trackingId;
-    private String successfullyProcessedSubmission;
 
     @Autowired
     private RecordingDeviceTypeDAOImpl recordingDeviceTypeDAO;
@@ -72,6 +78,18 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
     @Autowired
     private RecordingDeviceDataDAOImpl recordingDeviceDataDAO;
 
+    @Autowired
+    private RecordingDeviceReferenceCache recordingDeviceReferenceCache;
+
+    @Autowired
+    private SubmissionNotificationDispatcher submissionNotificationDispatcher;
+
+    @Autowired
+    private DataChangeFeed dataChangeFeed;
+
+    @Autowired
+    private PatientDAOImpl patientDAO;
+
     @Autowired
     private Utilities utils;
 
@@ -82,7 +100,32 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
 
     @Override
     public String init() {
-        successfullyProcessedSubmission = utils.getProperties().getProperty(SUCCESSFULLYPROCESSEDSUBMISSIONSCRIPT);
+        String batchIngestString = utils.getProperties().getProperty(DATAFORMATPREFIX + classToken + BATCHINGEST);
+        batchIngest = batchIngestString != null && batchIngestString.trim().toLowerCase().startsWith("y");
+        String batchSizeString = utils.getProperties().getProperty(DATAFORMATPREFIX + classToken + BATCHSIZE);
+        if (batchSizeString != null && batchSizeString.trim().length() != 0) {
+            try {
+                batchSize = Integer.parseInt(batchSizeString.trim());
+            } catch (NumberFormatException e) {
+                return "Batch size for data format " + classToken + " is not a number: " + batchSizeString;
+            }
+            if (batchSize < 1) {
+                return "Batch size for data format " + classToken + " must be greater than 0: " + batchSizeString;
+            }
+        }
+        String cacheSizeString = utils.getProperties().getProperty(REFERENCECACHEMAXIMUMSIZE);
+        if (cacheSizeString != null && cacheSizeString.trim().length() != 0) {
+            try {
+                recordingDeviceReferenceCache.setMaximumSize(Integer.parseInt(cacheSizeString.trim()));
+            } catch (NumberFormatException e) {
+                return "Recording device reference cache size is not a number: " + cacheSizeString;
+            }
+        }
+        try {
+            recordingDeviceReferenceCache.load();
+        } catch (Exception e) {
+            return "Unable to load the recording device reference cache: " + e.getLocalizedMessage();
+        }
         return null;
     }
 
@@ -99,6 +142,8 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
             }
             // Added data to the database - the design of the DB is that these are individual data points NOT rows of data
             int totalRowsWrittenToDB = 0;
+            int totalBatchesWrittenToDB = 0;
+            long ingestStartTime = System.nanoTime();
             // Loop through each of the data Payloads
             for (DeviceDataDO pay : p) {
                 if (pay == null) {
@@ -107,6 +152,8 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
 
                 }
                 int rowsWrittenToDBPerPayload = 0;
+                // data points waiting to be written to the DB when in batch ingest mode
+                List<RecordingDeviceData> pendingData = new ArrayList<>();
                 String make = null;
                 String model = null;
                 String displayName = null;
@@ -126,192 +173,195 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
                 } catch (IndexOutOfBoundsException e) {
                     throwBadRequest400("Unable to parse the content from the payload");
                 }
-                BufferedReader br = null;
-                try {
-                    //Read the Device's content
-                    br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(pay.getPayload().getBytes())));
-                } catch (Exception e) {
+                if (pay.getPayload() == null) {
                     //Unable to parse device's content
                     throwBadRequest400("Unable to parse the content from the payload with profile Id: " + pay.getProfileId());
                 }
-                logger.log(MediPiNativeFormat.class.getName(), new Date().toString() + " Payload device: " + type + ". Device data uuid:" + pay.getDeviceDataUuid());
-                try {
-                    String line;
-                    Boolean readAllMetadata = false;
-                    RecordingDeviceType rdt = null;
-                    while ((line = br.readLine()) != null) {
-
-                        String[] metaSplit = line.split("->");
-                        if (metaSplit[0].equals("metadata")) {
-                            // Found metadata
-                            if (metaSplit[1].equals("persist")) {
-                                //Data to be stored againast the delta of the whole downloaded dataset
-                                persistentMetadata.put(metaSplit[2], metaSplit[3]);
-                                if (metaSplit.length > 4) {
-                                    throwBadRequest400("Failed to parse metadata->persist: " + line + "in payload: " + pay.getProfileId());
-                                }
-                            } else {
-                                //Other metadata
-//                                System.out.println(metaSplit[1]);
-                                switch (metaSplit[1]) {
-                                    case "datadelimiter":
-                                        datadelimeter = metaSplit[2];
-                                        // if delimeter is a special regex charater then prpend with a double //
-                                        if ("\\.[]{}()*+-?^$|".contains(datadelimeter)) {
-                                            datadelimeter = "\\" + datadelimeter;
-                                        }
-                                        break;
-                                    case "make":
-                                        make = metaSplit[2];
-                                        break;
-                                    case "model":
-                                        model = metaSplit[2];
-                                        break;
-                                    case "displayname":
-                                        displayName = metaSplit[2];
-                                        break;
-                                    case "columns":
-                                        columnsArray = metaSplit[2].split(datadelimeter);
-                                        if (columnsArray == null || !columnsArray[0].equals("iso8601time")) {
-                                            throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId() + " iso8601date field is not the first column");
-                                        }
-                                        break;
-                                    case "format":
-                                        formatArray = metaSplit[2].split(datadelimeter);
-                                        if (formatArray == null || !formatArray[0].equals("DATE")) {
-                                            throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId() + " iso8601date field is not in the correct format");
-                                        }
-                                        break;
-                                    case "units":
-                                        unitsArray = metaSplit[2].split(datadelimeter);
-                                        if (unitsArray == null) {
-                                            throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId() + " units field is not in the correct format");
-                                        }
-                                        break;
-                                    case "scheduleeffectivedate":
-                                        try {
-                                            scheduleeffectivedate = new ISO8601DateFormat().parse(metaSplit[2]);
-                                        } catch (ParseException ex) {
-                                            throwBadRequest400("scheduleeffectivedate for device: " + displayName + " metatdata->scheduleeffectivedate is in an invalid format");
-                                        }
-                                        break;
-                                    case "scheduleexpirydate":
-                                        try {
-                                            scheduleexpirydate = new ISO8601DateFormat().parse(metaSplit[2]);
-                                        } catch (ParseException ex) {
-                                            throwBadRequest400("scheduleexpirydate for device: " + displayName + " metatdata->scheduleexpirydate is in an invalid format");
-                                        }
-                                        break;
-                                    default:
-                                        // Fail - bad data
-                                        throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId());
-                                }
+                // Read the Device's content in a single pass
+                MediPiNativePayloadParser parser = new MediPiNativePayloadParser(pay.getPayload());
+                logger.log(MediPiNativeFormat.class.getName(), "Payload device: " + type + ". Device data uuid:" + pay.getDeviceDataUuid());
+                Boolean readAllMetadata = false;
+                RecordingDeviceType rdt = null;
+                while (parser.next()) {
+
+                    if (parser.isMetadata()) {
+                        // Found metadata
+                        if (parser.fieldEquals(0, "persist")) {
+                            //Data to be stored againast the delta of the whole downloaded dataset
+                            if (parser.getFieldCount() != 3) {
+                                throwBadRequest400("Failed to parse metadata->persist: " + parser.getLine() + "in payload: " + pay.getProfileId());
                             }
-
-                        } else if (readAllMetadata || checkMetadata(make, model, displayName, datadelimeter, columnsArray, formatArray, unitsArray)) {
-                            readAllMetadata = true;
-                            // It's data
-                            if (rdt == null) {
-                                // need to find the type - only needs to be done once per device type
-                                // Check to find the device in the device_type table
-                                try {
-                                    rdt = this.recordingDeviceTypeDAO.findByTypeMakeModelDisplayName(type, make, model, displayName);
-                                } catch (EmptyResultDataAccessException e) {
-                                    // Device does NOT exist in the database
-                                    // if not in db add it
-                                    rdt = updateRecordingDeviceType(rdt, type, make, model, displayName);
-                                }
+                            persistentMetadata.put(parser.getField(1), parser.getField(2));
+                        } else {
+                            //Other metadata
+                            if (parser.getFieldCount() < 2) {
+                                throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId());
                             }
-                            String[] dataArray = line.split(datadelimeter);
-                            int columnNo = 0;
-                            Date dataPointTime = null;
-                            for (String data : dataArray) {
-                                if (columnNo == 0) {
+                            String metadataValue = parser.getField(1);
+                            switch (parser.getField(0)) {
+                                case "datadelimiter":
+                                    // The delimiter is matched literally so no escaping of special characters is needed
+                                    datadelimeter = metadataValue;
+                                    if (datadelimeter.isEmpty()) {
+                                        throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId() + " datadelimiter is empty");
+                                    }
+                                    parser.setDataDelimiter(datadelimeter);
+                                    break;
+                                case "make":
+                                    make = metadataValue;
+                                    break;
+                                case "model":
+                                    model = metadataValue;
+                                    break;
+                                case "displayname":
+                                    displayName = metadataValue;
+                                    break;
+                                case "columns":
+                                    columnsArray = splitMetadataValue(parser, metadataValue, pay);
+                                    if (!columnsArray[0].equals("iso8601time")) {
+                                        throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId() + " iso8601date field is not the first column");
+                                    }
+                                    break;
+                                case "format":
+                                    formatArray = splitMetadataValue(parser, metadataValue, pay);
+                                    if (!formatArray[0].equals("DATE")) {
+                                        throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId() + " iso8601date field is not in the correct format");
+                                    }
+                                    break;
+                                case "units":
+                                    unitsArray = splitMetadataValue(parser, metadataValue, pay);
+                                    break;
+                                case "scheduleeffectivedate":
                                     try {
-                                        // The concentrator expects the incoming string representation of the time to be UTC in ISO
-                                        dataPointTime = new ISO8601DateFormat().parse(data);
+                                        scheduleeffectivedate = new Date(MediPiNativePayloadParser.parseTime(metadataValue, 0, metadataValue.length()));
                                     } catch (ParseException ex) {
-                                        throwBadRequest400("Datapoint time for device: " + displayName + " is in an invalid format: " + data);
+                                        throwBadRequest400("scheduleeffectivedate for device: " + displayName + " metatdata->scheduleeffectivedate is in an invalid format");
                                     }
-                                } else {
-                                    RecordingDeviceAttribute rda = null;
+                                    break;
+                                case "scheduleexpirydate":
                                     try {
-                                        rda = this.recordingDeviceAttributeDAO.findByTypeUnitsFormatAndAttributeName(rdt, columnsArray[columnNo], unitsArray[columnNo], formatArray[columnNo]);
-                                    } catch (EmptyResultDataAccessException e) {
-                                        // Attribute Name does NOT exist in the database
-                                        // add new entry to DB
-                                        rda = updateRecordingDeviceAttribute(rda, rdt, columnsArray[columnNo], unitsArray[columnNo], formatArray[columnNo]);
+                                        scheduleexpirydate = new Date(MediPiNativePayloadParser.parseTime(metadataValue, 0, metadataValue.length()));
+                                    } catch (ParseException ex) {
+                                        throwBadRequest400("scheduleexpirydate for device: " + displayName + " metatdata->scheduleexpirydate is in an invalid format");
                                     }
-                                    //First check for duplicates - this is only to record the delta on machines with storage
-                                    boolean writeData = false;
-                                    List<RecordingDeviceData> dd = null;
-                                    try {
-                                        dd = this.recordingDeviceDataDAO.isAlreadyStored(rda, patient, data, dataPointTime);
-                                        if (dd.isEmpty()) {
-                                            writeData = true;
-                                        } else {
-                                            System.out.println("Duplicate data: " + data + " @ " + dataPointTime.getTime());
-                                            break;
-                                        }
-                                    } catch (Exception e) {
-                                        System.out.println("exception thrown when finding if data is already stored");
+                                    break;
+                                default:
+                                    // Fail - bad data
+                                    throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId());
+                            }
+                        }
+
+                    } else if (readAllMetadata || checkMetadata(make, model, displayName, datadelimeter, columnsArray, formatArray, unitsArray)) {
+                        readAllMetadata = true;
+                        // It's data
+                        if (rdt == null) {
+                            // need to find the type - only needs to be done once per device type
+                            // Check to find the device in the device_type table
+                            try {
+                                rdt = this.recordingDeviceReferenceCache.findRecordingDeviceType(type, make, model, displayName);
+                            } catch (EmptyResultDataAccessException e) {
+                                // Device does NOT exist in the database
+                                // if not in db add it
+                                rdt = updateRecordingDeviceType(rdt, type, make, model, displayName);
+                            }
+                        }
+                        int columnCount = parser.getFieldCount();
+                        if (columnCount > columnsArray.length || columnCount > unitsArray.length || columnCount > formatArray.length) {
+                            throwBadRequest400("Data line for device: " + displayName + " has more columns than are defined in the metadata: " + parser.getLine());
+                        }
+                        Date dataPointTime = null;
+                        for (int columnNo = 0; columnNo < columnCount; columnNo++) {
+                            if (columnNo == 0) {
+                                try {
+                                    // The concentrator expects the incoming string representation of the time to be UTC in ISO
+                                    dataPointTime = new Date(parser.getTimeField(0));
+                                } catch (ParseException ex) {
+                                    throwBadRequest400("Datapoint time for device: " + displayName + " is in an invalid format: " + parser.getField(0));
+                                }
+                            } else {
+                                String data = parser.getField(columnNo);
+                                RecordingDeviceAttribute rda = null;
+                                try {
+                                    rda = this.recordingDeviceReferenceCache.findRecordingDeviceAttribute(rdt, columnsArray[columnNo], unitsArray[columnNo], formatArray[columnNo]);
+                                } catch (EmptyResultDataAccessException e) {
+                                    // Attribute Name does NOT exist in the database
+                                    // add new entry to DB
+                                    rda = updateRecordingDeviceAttribute(rda, rdt, columnsArray[columnNo], unitsArray[columnNo], formatArray[columnNo]);
+                                }
+                                if (batchIngest) {
+                                    // Duplicates are removed for the whole payload in one query once all of its lines have been read
+                                    if (rda != null) {
+                                        pendingData.add(createRecordingDeviceData(rda, patient, data, dataPointTime, scheduleeffectivedate, scheduleexpirydate));
+                                    }
+                                    continue;
+                                }
+                                //First check for duplicates - this is only to record the delta on machines with storage
+                                boolean writeData = false;
+                                List<RecordingDeviceData> dd = null;
+                                try {
+                                    dd = this.recordingDeviceDataDAO.isAlreadyStored(rda, patient, data, dataPointTime);
+                                    if (dd.isEmpty()) {
+                                        writeData = true;
+                                    } else {
+                                        System.out.println("Duplicate data: " + data + " @ " + dataPointTime.getTime());
                                         break;
                                     }
+                                } catch (Exception e) {
+                                    System.out.println("exception thrown when finding if data is already stored");
+                                    break;
+                                }
 
-                                    //Now that the attribute id is found write device data
-                                    if (rda != null && writeData) {
-                                        RecordingDeviceData d = new RecordingDeviceData();
-                                        d.setAttributeId(rda);
-                                        d.setPatientUuid(patient);
-                                        d.setDataValue(data);
-                                        d.setDataValueTime(dataPointTime);
-                                        // Set the timedownloaded value in order to mark 
-                                        //(using a trusted, recently synchronised timestamp 
-                                        // for clinical systems to guage if data has been downloaded)
-//                                        d.setDownloadedTime(new Date());
-                                        d.setScheduleEffectiveTime(scheduleeffectivedate);
-                                        d.setScheduleExpiryTime(scheduleexpirydate);
-
-                                        try {
-                                            this.recordingDeviceDataDAO.save(d);
-                                            rowsWrittenToDBPerPayload++;
-                                            totalRowsWrittenToDB++;
-                                        } catch (Exception e) {
-                                            logger.log(MediPiNativeFormat.class.getName() + ".dbIssue", "Attempt to write data for " + type + " to DB failed");
-                                            throw new InternalServerError500Exception("Attempt to write data for " + type + " to DB failed");
-
-                                        }
-                                    }
+                                //Now that the attribute id is found write device data
+                                if (rda != null && writeData) {
+                                    RecordingDeviceData d = createRecordingDeviceData(rda, patient, data, dataPointTime, scheduleeffectivedate, scheduleexpirydate);
+
+                                    try {
+                                        this.recordingDeviceDataDAO.save(d);
+                                        rowsWrittenToDBPerPayload++;
+                                        totalRowsWrittenToDB++;
+                                    } catch (Exception e) {
+                                        logger.log(MediPiNativeFormat.class.getName() + ".dbIssue", "Attempt to write data for " + type + " to DB failed");
+                                        throw new InternalServerError500Exception("Attempt to write data for " + type + " to DB failed");
 
+                                    }
                                 }
-                                columnNo++;
 
                             }
-                        } else {
-                            throwBadRequest400("Unable to parse the content from the payload with profile Id: " + pay.getProfileId());
                         }
+                    } else {
+                        throwBadRequest400("Unable to parse the content from the payload with profile Id: " + pay.getProfileId());
+                    }
+                }
+                if (batchIngest && !pendingData.isEmpty()) {
+                    List<RecordingDeviceData> newData = removeAlreadyStored(pendingData, patient);
+                    try {
+                        totalBatchesWrittenToDB += this.recordingDeviceDataDAO.saveBatch(newData, batchSize);
+                        rowsWrittenToDBPerPayload += newData.size();
+                        totalRowsWrittenToDB += newData.size();
+                    } catch (Exception e) {
+                        logger.log(MediPiNativeFormat.class.getName() + ".dbIssue", "Attempt to batch write data for " + type + " to DB failed: " + e.getLocalizedMessage());
+                        throw new InternalServerError500Exception("Attempt to write data for " + type + " to DB failed");
                     }
-                    // failure in reading bufferedReader
-                } catch (IOException e) {
-                    throwBadRequest400("Unable to parse the content from the payload with profile Id: " + pay.getProfileId());
                 }
                 logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", rowsWrittenToDBPerPayload + " rows of data written to the DB for payload: " + type);
 
             }
-            if (successfullyProcessedSubmission != null && totalRowsWrittenToDB > 0) {
+            if (logger.isLoggable(MediPiNativeFormat.class.getName() + ".dbInfo")) {
+                logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", "Recording device reference cache - " + recordingDeviceReferenceCache.getStatistics());
+            }
+            if (batchIngest) {
+                long elapsedMillis = Math.max(1, (System.nanoTime() - ingestStartTime) / 1000000);
+                logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", "Batch ingest for patient " + patient.getPatientUuid() + ": " + totalRowsWrittenToDB + " rows in " + totalBatchesWrittenToDB + " batches over " + elapsedMillis + "ms (" + (totalRowsWrittenToDB * 1000L / elapsedMillis) + " rows/sec)");
+            }
+            if (totalRowsWrittenToDB > 0) {
                 logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", totalRowsWrittenToDB + " rows of data written to the DB in total for transaction covered by trackingID: " + trackingId);
                 System.out.println("Patient " + patient.getPatientUuid() + " has submitted " + totalRowsWrittenToDB + " pieces of data at " + new Date());
-                Runtime runtime = Runtime.getRuntime();
-                try {
-                    String script = successfullyProcessedSubmission.replace("__PATIENT_UUID__", patient.getPatientUuid());
-                    Process process = runtime.exec(script);
-                    int resultCode = process.waitFor();
-                    if (resultCode == 0) {
-                        // all is good
-                    }
-                } catch (Throwable ex) {
-                    logger.log(MediPiNativeFormat.class.getName() + ".curlIssue", "Attempt to curl notification for " + patient.getPatientUuid() + " failed @" + new Date() + " because " + ex.getLocalizedMessage());
-                    System.out.println("Attempt to curl notification for " + patient.getPatientUuid() + " failed @" + new Date() + " because " + ex.getLocalizedMessage());
+                // the notification is sent asynchronously once this transaction has committed
+                submissionNotificationDispatcher.submissionReceived(patient.getPatientUuid(), totalRowsWrittenToDB);
+                // subscribers to the data change feed are told of the patient's group once this transaction has committed
+                Patient registeredPatient = patientDAO.findByPrimaryKey(patient.getPatientUuid());
+                if (registeredPatient != null && registeredPatient.getPatientGroupUuid() != null) {
+                    dataChangeFeed.dataWritten(registeredPatient.getPatientGroupUuid().getPatientGroupUuid());
                 }
             }
             if (totalRowsWrittenToDB == 0) {
@@ -335,6 +385,7 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
             rdt.setModel(model);
             rdt.setDisplayName(displayName);
             recordingDeviceTypeDAO.save(rdt);
+            recordingDeviceReferenceCache.typeCreated(rdt);
         } catch (EntityExistsException e) {
             throwBadRequest400("Device: " + type + " " + make + " " + model + " " + displayName + " already exists in RECORDING_DEVICE_TYPE table in the DB");
         }
@@ -351,12 +402,76 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
             rda.setAttributeUnits(attributeUnits);
             rda.setTypeId(rdt);
             recordingDeviceAttributeDAO.save(rda);
+            recordingDeviceReferenceCache.attributeCreated(rda);
         } catch (EntityExistsException e) {
             throwBadRequest400("Attribute: " + attributeName + attributeUnits + attributeType + " already exists for device " + attributeName + " " + attributeUnits + " " + attributeType + " in RECORDING_DEVICE_ATTRIBUTE table in the DB");
         }
         return rda;
     }
 
+    private String[] splitMetadataValue(MediPiNativePayloadParser parser, String value, DeviceDataDO pay) {
+        if (parser.getDataDelimiter() == null) {
+            throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId() + " metadata->datadelimiter must be defined before columns, format and units");
+        }
+        return parser.splitMetadataValue(value);
+    }
+
+    private RecordingDeviceData createRecordingDeviceData(RecordingDeviceAttribute rda, Patient patient, String data, Date dataPointTime, Date scheduleeffectivedate, Date scheduleexpirydate) {
+        RecordingDeviceData d = new RecordingDeviceData();
+        d.setAttributeId(rda);
+        d.setPatientUuid(patient);
+        d.setDataValue(data);
+        d.setDataValueTime(dataPointTime);
+        // Set the timedownloaded value in order to mark 
+        //(using a trusted, recently synchronised timestamp 
+        // for clinical systems to guage if data has been downloaded)
+//        d.setDownloadedTime(new Date());
+        d.setScheduleEffectiveTime(scheduleeffectivedate);
+        d.setScheduleExpiryTime(scheduleexpirydate);
+        return d;
+    }
+
+    /**
+     * Removes any data points which have already been persisted for the
+     * patient, or which are repeated within the payload itself. The DB is
+     * queried once for the time span covered by the data points rather than
+     * once per data point
+     *
+     * @param pendingData data points parsed from a single device payload
+     * @param patient the patient who submitted the data
+     * @return data points which are not yet stored in the DB
+     */
+    private List<RecordingDeviceData> removeAlreadyStored(List<RecordingDeviceData> pendingData, Patient patient) {
+        Date startTime = pendingData.get(0).getDataValueTime();
+        Date endTime = startTime;
+        for (RecordingDeviceData d : pendingData) {
+            if (d.getDataValueTime().before(startTime)) {
+                startTime = d.getDataValueTime();
+            }
+            if (d.getDataValueTime().after(endTime)) {
+                endTime = d.getDataValueTime();
+            }
+        }
+        HashSet<String> storedKeys = new HashSet<>();
+        for (Object[] stored : this.recordingDeviceDataDAO.findStoredKeysByPatientAndPeriod(patient, startTime, endTime)) {
+            storedKeys.add(dataKey((Integer) stored[0], (Date) stored[1], (String) stored[2]));
+        }
+        List<RecordingDeviceData> newData = new ArrayList<>(pendingData.size());
+        for (RecordingDeviceData d : pendingData) {
+            if (storedKeys.add(dataKey(d.getAttributeId().getAttributeId(), d.getDataValueTime(), d.getDataValue()))) {
+                newData.add(d);
+            }
+        }
+        if (newData.size() != pendingData.size()) {
+            System.out.println("Duplicate data: " + (pendingData.size() - newData.size()) + " data points already stored for patient " + patient.getPatientUuid());
+        }
+        return newData;
+    }
+
+    private String dataKey(Integer attributeId, Date dataValueTime, String dataValue) {
+        return attributeId + "|" + dataValueTime.getTime() + "|" + dataValue;
+    }
+
     private void throwBadRequest400(String message) throws BadRequest400Exception {
         throwBadRequest400(message, "");
     }
@@ -0,0 +1,300 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.dataformat;
+
+import com.fasterxml.jackson.databind.util.ISO8601Utils;
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single pass tokeniser for the MediPi "Native" payload format.
+ *
+ * A payload consists of metadata lines of the form
+ * metadata-&gt;key-&gt;value followed by lines of data separated by the
+ * delimiter declared in the metadata. The parser walks the payload String
+ * once, line by line, recording the start and end of each field in reusable
+ * arrays rather than splitting the line. No regular expressions are used and
+ * field values are only copied out of the payload when they are asked for.
+ *
+ * Instances are not thread safe and are intended to be used for a single
+ * payload
+ *
+ * @author rick@robinsonhq.com
+ */
+public class MediPiNativePayloadParser {
+
+    private static final String METADATA = "metadata";
+    private static final String METADATASEPARATOR = "->";
+    private static final DateTimeFormatter ISO8601FORMAT = DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+
+    private final String payload;
+    private final int length;
+    private int position = 0;
+    private int lineStart;
+    private int lineEnd;
+    private boolean metadataLine;
+    private String dataDelimiter;
+    private int fieldCount;
+    private int[] fieldStart = new int[16];
+    private int[] fieldEnd = new int[16];
+
+    /**
+     * Constructor
+     *
+     * @param payload the device payload in MediPi Native format
+     */
+    public MediPiNativePayloadParser(String payload) {
+        this.payload = payload;
+        this.length = payload.length();
+    }
+
+    /**
+     * Sets the delimiter used to separate the columns of the data lines and
+     * the columns, format and units metadata
+     *
+     * @param dataDelimiter delimiter as declared in metadata-&gt;datadelimiter
+     */
+    public void setDataDelimiter(String dataDelimiter) {
+        this.dataDelimiter = dataDelimiter;
+    }
+
+    /**
+     * @return the delimiter used to separate the columns of the data lines or
+     * null if it has not yet been set
+     */
+    public String getDataDelimiter() {
+        return dataDelimiter;
+    }
+
+    /**
+     * Moves the parser on to the next line of the payload and tokenises it
+     *
+     * @return true if there is a line to be read, false at the end of the
+     * payload
+     */
+    public boolean next() {
+        if (position >= length) {
+            return false;
+        }
+        lineStart = position;
+        int newLine = payload.indexOf('\n', position);
+        if (newLine == -1) {
+            lineEnd = length;
+            position = length;
+        } else {
+            lineEnd = newLine;
+            position = newLine + 1;
+        }
+        if (lineEnd > lineStart && payload.charAt(lineEnd - 1) == '\r') {
+            lineEnd--;
+        }
+        metadataLine = payload.startsWith(METADATA + METADATASEPARATOR, lineStart) && lineEnd >= lineStart + METADATA.length() + METADATASEPARATOR.length();
+        if (metadataLine) {
+            tokenise(lineStart + METADATA.length() + METADATASEPARATOR.length(), METADATASEPARATOR);
+        } else if (dataDelimiter != null) {
+            tokenise(lineStart, dataDelimiter);
+        } else {
+            fieldCount = 0;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the current line is a metadata line
+     */
+    public boolean isMetadata() {
+        return metadataLine;
+    }
+
+    /**
+     * For a metadata line, the number of fields following the metadata
+     * prefix. For a data line, the number of columns
+     *
+     * @return number of fields in the current line
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Returns a field from the current line. For metadata lines field 0 is the
+     * metadata key
+     *
+     * @param index index of the field
+     * @return the field value
+     */
+    public String getField(int index) {
+        return payload.substring(fieldStart[index], fieldEnd[index]);
+    }
+
+    /**
+     * Tests a field of the current line against a value without copying it
+     *
+     * @param index index of the field
+     * @param value value to compare with
+     * @return true if the field is equal to the value
+     */
+    public boolean fieldEquals(int index, String value) {
+        int fieldLength = fieldEnd[index] - fieldStart[index];
+        return fieldLength == value.length() && payload.regionMatches(fieldStart[index], value, 0, fieldLength);
+    }
+
+    /**
+     * Parses a field of the current line as an ISO8601 date/time
+     *
+     * @param index index of the field
+     * @return milliseconds since the epoch
+     * @throws ParseException if the field is not a valid ISO8601 date/time
+     */
+    public long getTimeField(int index) throws ParseException {
+        return parseTime(payload, fieldStart[index], fieldEnd[index]);
+    }
+
+    /**
+     * @return the whole of the current line - used for reporting errors
+     */
+    public String getLine() {
+        return payload.substring(lineStart, lineEnd);
+    }
+
+    /**
+     * Splits a metadata value (e.g. columns, format or units) using the data
+     * delimiter
+     *
+     * @param value metadata value
+     * @return array of the delimited values
+     */
+    public String[] splitMetadataValue(String value) {
+        List<String> values = new ArrayList<>();
+        int start = 0;
+        int end;
+        while ((end = value.indexOf(dataDelimiter, start)) != -1) {
+            values.add(value.substring(start, end));
+            start = end + dataDelimiter.length();
+        }
+        values.add(value.substring(start));
+        removeTrailingEmpty(values);
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * Parses an ISO8601 date/time held in a String. The form produced by
+     * MediPi patient units (yyyy-MM-dd'T'HH:mm:ss.SSS'Z') is read directly
+     * from the characters; any other form is passed to the java.time ISO
+     * offset date/time parser and finally to the lenient Jackson ISO8601
+     * parser used by earlier versions of the concentrator
+     *
+     * @param text String containing the date/time
+     * @param start index of the first character of the date/time
+     * @param end index after the last character of the date/time
+     * @return milliseconds since the epoch
+     * @throws ParseException if the text is not a valid ISO8601 date/time
+     */
+    public static long parseTime(String text, int start, int end) throws ParseException {
+        int len = end - start;
+        if ((len == 20 || len == 24) && text.charAt(end - 1) == 'Z'
+                && text.charAt(start + 4) == '-' && text.charAt(start + 7) == '-' && text.charAt(start + 10) == 'T'
+                && text.charAt(start + 13) == ':' && text.charAt(start + 16) == ':' && (len == 20 || text.charAt(start + 19) == '.')) {
+            int year = digits(text, start, 4);
+            int month = digits(text, start + 5, 2);
+            int day = digits(text, start + 8, 2);
+            int hour = digits(text, start + 11, 2);
+            int minute = digits(text, start + 14, 2);
+            int second = digits(text, start + 17, 2);
+            int millis = len == 24 ? digits(text, start + 20, 3) : 0;
+            if (year >= 0 && month >= 0 && day >= 0 && hour >= 0 && minute >= 0 && second >= 0 && millis >= 0) {
+                try {
+                    return LocalDateTime.of(year, month, day, hour, minute, second).toEpochSecond(ZoneOffset.UTC) * 1000L + millis;
+                } catch (DateTimeException e) {
+                    throw new ParseException("Invalid date/time: " + text.substring(start, end), start);
+                }
+            }
+        }
+        String value = text.substring(start, end);
+        try {
+            return OffsetDateTime.parse(value, ISO8601FORMAT).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // fall back to the lenient parser for other ISO8601 forms
+            return ISO8601Utils.parse(value, new ParsePosition(0)).getTime();
+        }
+    }
+
+    private static int digits(String text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private void tokenise(int start, String separator) {
+        fieldCount = 0;
+        int end;
+        while ((end = indexOfInLine(separator, start)) != -1) {
+            addField(start, end);
+            start = end + separator.length();
+        }
+        addField(start, lineEnd);
+        // As with String.split, trailing empty fields are ignored
+        while (fieldCount > 1 && fieldStart[fieldCount - 1] == fieldEnd[fieldCount - 1]) {
+            fieldCount--;
+        }
+    }
+
+    private int indexOfInLine(String separator, int from) {
+        // bounded by the end of the line so that a separator missing from the rest of the payload is not searched for
+        char first = separator.charAt(0);
+        int last = lineEnd - separator.length();
+        for (int i = from; i <= last; i++) {
+            if (payload.charAt(i) == first && payload.regionMatches(i, separator, 0, separator.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void addField(int start, int end) {
+        if (fieldCount == fieldStart.length) {
+            int[] newStart = new int[fieldCount * 2];
+            int[] newEnd = new int[fieldCount * 2];
+            System.arraycopy(fieldStart, 0, newStart, 0, fieldCount);
+            System.arraycopy(fieldEnd, 0, newEnd, 0, fieldCount);
+            fieldStart = newStart;
+            fieldEnd = newEnd;
+        }
+        fieldStart[fieldCount] = start;
+        fieldEnd[fieldCount] = end;
+        fieldCount++;
+    }
+
+    private void removeTrailingEmpty(List<String> values) {
+        while (values.size() > 1 && values.get(values.size() - 1).isEmpty()) {
+            values.remove(values.size() - 1);
+        }
+    }
+}
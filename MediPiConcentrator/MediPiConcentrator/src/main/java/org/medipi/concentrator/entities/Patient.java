@@ -38,6 +38,7 @@ import javax.xml.bind.annotation.XmlTransient;
 @Entity
 @Table(name = "patient")
 @NamedQueries({
+    @NamedQuery(name = "Patient.findByPatientUuids", query = "SELECT p FROM Patient p WHERE p.patientUuid IN :patientUuids"),
     @NamedQuery(name = "Patient.findByGroup", query = "SELECT p FROM Patient p WHERE p.patientGroupUuid.patientGroupUuid = :patientGroupUuid"),
     @NamedQuery(name = "Patient.findAll", query = "SELECT p FROM Patient p"),
     @NamedQuery(name = "Patient.findByPatientUuid", query = "SELECT p FROM Patient p WHERE p.patientUuid = :patientUuid")})
@@ -0,0 +1,128 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.entities;
+
+import java.io.Serializable;
+import java.util.Date;
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Entity Class to manage DB access for patient_upload. A row is written for
+ * each upload which has been processed so that a payload resent by a patient
+ * unit which did not receive the acknowledgement is not stored twice
+ *
+ * @author rick@robinsonhq.com
+ */
+@Entity
+@Table(name = "patient_upload")
+@XmlRootElement
+@NamedQueries({
+    @NamedQuery(name = "PatientUpload.findAll", query = "SELECT p FROM PatientUpload p"),
+    @NamedQuery(name = "PatientUpload.findByPatientUuid", query = "SELECT p FROM PatientUpload p WHERE p.patientUuid = :patientUuid")})
+public class PatientUpload implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    @Id
+    @Basic(optional = false)
+    @NotNull
+    @Size(min = 1, max = 100)
+    @Column(name = "upload_uuid")
+    private String uploadUuid;
+    @Basic(optional = false)
+    @NotNull
+    @Size(min = 1, max = 100)
+    @Column(name = "patient_uuid")
+    private String patientUuid;
+    @Basic(optional = false)
+    @NotNull
+    @Column(name = "upload_date")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date uploadDate;
+
+    public PatientUpload() {
+    }
+
+    public PatientUpload(String uploadUuid) {
+        this.uploadUuid = uploadUuid;
+    }
+
+    public PatientUpload(String uploadUuid, String patientUuid, Date uploadDate) {
+        this.uploadUuid = uploadUuid;
+        this.patientUuid = patientUuid;
+        this.uploadDate = uploadDate;
+    }
+
+    public String getUploadUuid() {
+        return uploadUuid;
+    }
+
+    public void setUploadUuid(String uploadUuid) {
+        this.uploadUuid = uploadUuid;
+    }
+
+    public String getPatientUuid() {
+        return patientUuid;
+    }
+
+    public void setPatientUuid(String patientUuid) {
+        this.patientUuid = patientUuid;
+    }
+
+    public Date getUploadDate() {
+        return uploadDate;
+    }
+
+    public void setUploadDate(Date uploadDate) {
+        this.uploadDate = uploadDate;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        hash += (uploadUuid != null ? uploadUuid.hashCode() : 0);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        // TODO: Warning - this method won't work in the case the id fields are not set
+        if (!(object instanceof PatientUpload)) {
+            return false;
+        }
+        PatientUpload other = (PatientUpload) object;
+        if ((this.uploadUuid == null && other.uploadUuid != null) || (this.uploadUuid != null && !this.uploadUuid.equals(other.uploadUuid))) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "org.medipi.concentrator.entities.PatientUpload[ uploadUuid=" + uploadUuid + " ]";
+    }
+
+}
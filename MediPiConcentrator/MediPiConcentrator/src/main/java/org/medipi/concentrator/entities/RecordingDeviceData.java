@@ -46,7 +46,9 @@ import org.hibernate.annotations.GenerationTime;
     @NamedQuery(name = "RecordingDeviceData.isAlreadyStored", query = "SELECT d FROM RecordingDeviceData d WHERE d.attributeId = :attributeId AND d.dataValue = :dataValue AND d.dataValueTime = :dataValueTime AND d.patientUuid = :patientUuid"),
     @NamedQuery(name = "RecordingDeviceData.findBypatientUuidAfterDate", query = "SELECT d FROM RecordingDeviceData d, RecordingDeviceAttribute a, RecordingDeviceType t WHERE d.attributeId = a.attributeId AND a.typeId =t.typeId AND d.patientUuid.patientUuid = :patientUuid AND d.dataValueTime > :requestDate AND t.type = :type ORDER BY d.dataValueTime"),
     @NamedQuery(name = "RecordingDeviceData.findByTypeAttributeAndData", query = "SELECT d FROM RecordingDeviceData d, RecordingDeviceAttribute a, RecordingDeviceType t WHERE d.attributeId = a.attributeId AND a.typeId =t.typeId AND d.patientUuid.patientUuid = :patientUuid AND t.type = :type AND a.attributeName = :attributeName AND d.dataValueTime = :dataValueTime AND d.dataValue = :dataValue"),
+    @NamedQuery(name = "RecordingDeviceData.findStoredKeysByPatientAndPeriod", query = "SELECT d.attributeId.attributeId, d.dataValueTime, d.dataValue FROM RecordingDeviceData d WHERE d.patientUuid = :patientUuid AND d.dataValueTime >= :startTime AND d.dataValueTime <= :endTime"),
     @NamedQuery(name = "RecordingDeviceData.findByPatientAndDownloadedTime", query = "SELECT d FROM RecordingDeviceData d, Patient p WHERE d.patientUuid.patientUuid = p.patientUuid AND p.patientUuid = :patientUuid AND d.downloadedTime > :downloadedTime AND d.downloadedTime<= :endTime"),
+    @NamedQuery(name = "RecordingDeviceData.findByGroupAfterDownloadCursor", query = "SELECT d FROM RecordingDeviceData d JOIN FETCH d.attributeId a JOIN FETCH a.typeId JOIN FETCH d.patientUuid p JOIN FETCH p.patientGroupUuid g WHERE g.patientGroupUuid = :patientGroupUuid AND (d.downloadedTime > :downloadedTime OR (d.downloadedTime = :downloadedTime AND d.dataId > :dataId)) AND d.downloadedTime <= :endTime ORDER BY d.downloadedTime, d.dataId"),
     //
     @NamedQuery(name = "RecordingDeviceData.findAll", query = "SELECT d FROM RecordingDeviceData d"),
     @NamedQuery(name = "RecordingDeviceData.findByDataId", query = "SELECT d FROM RecordingDeviceData d WHERE d.dataId = :dataId"),
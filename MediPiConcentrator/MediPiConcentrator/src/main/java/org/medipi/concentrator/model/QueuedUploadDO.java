@@ -0,0 +1,109 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.model;
+
+import java.io.Serializable;
+import java.util.Date;
+import org.medipi.model.EncryptedAndSignedUploadDO;
+
+/**
+ * This is the container data object for a patient upload which has been
+ * accepted by the concentrator and is held in the ingest queue until it is
+ * written to the DB. The upload remains encrypted while it is queued
+ *
+ * @author rick@robinsonhq.com
+ */
+public class QueuedUploadDO implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private String trackingId;
+    private long sequence;
+    private String deviceId;
+    private String patientUuid;
+    private String dataFormat;
+    private Date acceptedTime;
+    private EncryptedAndSignedUploadDO upload;
+
+    public QueuedUploadDO() {
+    }
+
+    public QueuedUploadDO(String trackingId, long sequence, String deviceId, String patientUuid, String dataFormat, EncryptedAndSignedUploadDO upload) {
+        this.trackingId = trackingId;
+        this.sequence = sequence;
+        this.deviceId = deviceId;
+        this.patientUuid = patientUuid;
+        this.dataFormat = dataFormat;
+        this.upload = upload;
+        this.acceptedTime = new Date();
+    }
+
+    public String getTrackingId() {
+        return trackingId;
+    }
+
+    public void setTrackingId(String trackingId) {
+        this.trackingId = trackingId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public void setDeviceId(String deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    public String getPatientUuid() {
+        return patientUuid;
+    }
+
+    public void setPatientUuid(String patientUuid) {
+        this.patientUuid = patientUuid;
+    }
+
+    public String getDataFormat() {
+        return dataFormat;
+    }
+
+    public void setDataFormat(String dataFormat) {
+        this.dataFormat = dataFormat;
+    }
+
+    public Date getAcceptedTime() {
+        return acceptedTime;
+    }
+
+    public void setAcceptedTime(Date acceptedTime) {
+        this.acceptedTime = acceptedTime;
+    }
+
+    public EncryptedAndSignedUploadDO getUpload() {
+        return upload;
+    }
+
+    public void setUpload(EncryptedAndSignedUploadDO upload) {
+        this.upload = upload;
+    }
+
+}
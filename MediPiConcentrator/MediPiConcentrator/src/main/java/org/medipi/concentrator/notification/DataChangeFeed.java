@@ -0,0 +1,344 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.notification;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.utilities.Utilities;
+import org.medipi.model.DataChangesDO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.async.DeferredResult;
+
+/**
+ * Feed of the patient groups which have had new data committed to the DB.
+ *
+ * Each commit of new data is given the next number in a sequence and every
+ * patient group which it touched is marked with that number. A subscriber
+ * passes the last sequence number it has seen and receives the patient groups
+ * marked since then. If there are none the request is held open until new data
+ * is committed or the wait expires, so subscribers learn of new data as soon
+ * as it is committed without repeatedly querying the DB. The feed is held in
+ * memory, so each start of the concentrator has a new feedId and subscribers
+ * presenting another feedId are told to resynchronise all their groups.
+ *
+ * The feed also tracks the ingest transactions which are still in progress.
+ * Rows are timestamped when their transaction starts but only become visible
+ * when it commits, so data requests must not read beyond the start of the
+ * oldest ingest still in progress (less the configured back off period) or
+ * rows committed later could be missed. A commit is therefore only published
+ * once this end time has passed the start of its ingest, so that subscribers
+ * are able to read the new data as soon as they are told of it
+ *
+ * @author rick@robinsonhq.com
+ */
+@Component
+public class DataChangeFeed {
+
+    private static final String MEDIPICONCENTRATORDATABASEBACKOFFPERIOD = "medipi.concentrator.database.backoffperiod";
+    private static final long DEFAULTBACKOFFPERIOD = 10000;
+    private static final String MEDIPICONCENTRATORDATAFEEDMAXIMUMWAIT = "medipi.concentrator.datafeed.maximumwait";
+    private static final String MEDIPICONCENTRATORDATAFEEDMAXIMUMSUBSCRIBERS = "medipi.concentrator.datafeed.maximumsubscribers";
+    private static final long DEFAULTMAXIMUMWAIT = 60000;
+    private static final int DEFAULTMAXIMUMSUBSCRIBERS = 100;
+
+    private final String feedId = UUID.randomUUID().toString();
+    private final Object lock = new Object();
+    private long sequence = 0;
+    private final Map<String, Long> groupSequence = new ConcurrentHashMap<>();
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private final AtomicLong ingestTokens = new AtomicLong();
+    private final Map<Long, Long> ingestsInProgress = new ConcurrentHashMap<>();
+    // committed ingests waiting for the end time to pass their start
+    private final List<Commit> unpublished = new ArrayList<>();
+    private boolean publishScheduled = false;
+    private final ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "data-change-feed");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong held = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Autowired
+    private Utilities utils;
+
+    /**
+     * Method to record that an ingest transaction has started. It is tracked
+     * until the transaction completes and any patient groups passed to
+     * dataWritten are published once it commits
+     */
+    public void ingestStarted() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive() || TransactionSynchronizationManager.hasResource(this)) {
+            return;
+        }
+        final Long token = ingestTokens.incrementAndGet();
+        final Set<String> groups = new HashSet<>();
+        final long started = System.currentTimeMillis();
+        ingestsInProgress.put(token, started);
+        TransactionSynchronizationManager.bindResource(this, groups);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(DataChangeFeed.this);
+                ingestsInProgress.remove(token);
+                if (status == TransactionSynchronization.STATUS_COMMITTED && !groups.isEmpty()) {
+                    synchronized (unpublished) {
+                        unpublished.add(new Commit(started, groups));
+                    }
+                }
+                // this may have been holding back the end time of other commits
+                publishReady();
+            }
+        });
+    }
+
+    /**
+     * Method to record that new data has been written for a patient group. The
+     * group is published when the current transaction commits
+     *
+     * @param patientGroupUuid the patient group of the patient whose data has
+     * been written
+     */
+    @SuppressWarnings("unchecked")
+    public void dataWritten(String patientGroupUuid) {
+        if (patientGroupUuid == null) {
+            return;
+        }
+        Set<String> groups = (Set<String>) TransactionSynchronizationManager.getResource(this);
+        if (groups != null) {
+            groups.add(patientGroupUuid);
+        } else {
+            Set<String> g = new HashSet<>();
+            g.add(patientGroupUuid);
+            synchronized (unpublished) {
+                unpublished.add(new Commit(System.currentTimeMillis(), g));
+            }
+            publishReady();
+        }
+    }
+
+    /**
+     * @return the end time for data requests: the start of the oldest ingest
+     * still in progress, or now if there is none, less the back off period
+     * which allows for any difference between the concentrator's and the DB's
+     * clocks
+     */
+    public Date getEndTime() {
+        long stable = System.currentTimeMillis();
+        for (Long started : ingestsInProgress.values()) {
+            stable = Math.min(stable, started);
+        }
+        return new Date(stable - getLongProperty(MEDIPICONCENTRATORDATABASEBACKOFFPERIOD, DEFAULTBACKOFFPERIOD));
+    }
+
+    /**
+     * Method to subscribe to the patient groups which have had new data
+     * committed since a sequence number. The result is set immediately if
+     * there are any, otherwise when new data is committed or after the wait
+     *
+     * @param subscriberFeedId the feedId returned by the previous request or
+     * null for the first request
+     * @param since the sequence number returned by the previous request
+     * @param wait maximum time in ms to wait for new data
+     * @return the changes since the sequence number
+     */
+    public DeferredResult<DataChangesDO> subscribe(String subscriberFeedId, Long since, long wait) {
+        long w = Math.max(0, Math.min(wait, getLongProperty(MEDIPICONCENTRATORDATAFEEDMAXIMUMWAIT, DEFAULTMAXIMUMWAIT)));
+        synchronized (lock) {
+            if (subscriberFeedId == null || !feedId.equals(subscriberFeedId) || since == null || since > sequence) {
+                return completed(new DataChangesDO(feedId, sequence, true));
+            }
+            DataChangesDO changes = changesSince(since);
+            if (!changes.getPatientGroupUuids().isEmpty() || w == 0) {
+                return completed(changes);
+            }
+            if (subscribers.size() >= getLongProperty(MEDIPICONCENTRATORDATAFEEDMAXIMUMSUBSCRIBERS, DEFAULTMAXIMUMSUBSCRIBERS)) {
+                refused.incrementAndGet();
+                return completed(changes);
+            }
+            final Subscriber s = new Subscriber(since, new DeferredResult<>(w, changes));
+            s.result.onCompletion(() -> {
+                synchronized (lock) {
+                    subscribers.remove(s);
+                }
+            });
+            subscribers.add(s);
+            held.incrementAndGet();
+            return s.result;
+        }
+    }
+
+    /**
+     * @return a string representation of the feed counters
+     */
+    public String getStatistics() {
+        int waiting;
+        synchronized (lock) {
+            waiting = subscribers.size();
+        }
+        int pending;
+        synchronized (unpublished) {
+            pending = unpublished.size();
+        }
+        return "sequence: " + published.get() + ", unpublished commits: " + pending + ", waiting subscribers: " + waiting + ", held: " + held.get() + ", refused: " + refused.get() + ", ingests in progress: " + ingestsInProgress.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        publisher.shutdownNow();
+    }
+
+    /**
+     * Publish the commits whose data can now be read. Any which remain are
+     * checked again when an ingest completes or once enough time has passed
+     */
+    private void publishReady() {
+        publishReady(false);
+    }
+
+    private void publishReady(boolean scheduledRun) {
+        Set<String> groups = new HashSet<>();
+        long delay = -1;
+        synchronized (unpublished) {
+            if (scheduledRun) {
+                publishScheduled = false;
+            }
+            long endTime = getEndTime().getTime();
+            for (Iterator<Commit> it = unpublished.iterator(); it.hasNext();) {
+                Commit c = it.next();
+                if (c.started <= endTime) {
+                    groups.addAll(c.groups);
+                    it.remove();
+                }
+            }
+            if (!unpublished.isEmpty() && !publishScheduled) {
+                long earliest = Long.MAX_VALUE;
+                for (Commit c : unpublished) {
+                    earliest = Math.min(earliest, c.started);
+                }
+                delay = Math.max(1, earliest - endTime);
+                publishScheduled = true;
+            }
+        }
+        if (delay > 0) {
+            try {
+                publisher.schedule(() -> publishReady(true), delay, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException re) {
+                // the feed is shutting down
+            }
+        }
+        if (!groups.isEmpty()) {
+            publish(groups);
+        }
+    }
+
+    private void publish(Set<String> groups) {
+        List<Subscriber> ready;
+        synchronized (lock) {
+            sequence++;
+            for (String g : groups) {
+                groupSequence.put(g, sequence);
+            }
+            ready = new ArrayList<>(subscribers);
+            subscribers.clear();
+        }
+        published.incrementAndGet();
+        for (Subscriber s : ready) {
+            s.result.setResult(changesSince(s.since));
+        }
+        String location = DataChangeFeed.class.getName() + ".info";
+        if (logger.isLoggable(location)) {
+            logger.log(location, "New data committed for patient groups " + groups + " - " + getStatistics());
+        }
+    }
+
+    private DataChangesDO changesSince(long since) {
+        DataChangesDO changes;
+        synchronized (lock) {
+            changes = new DataChangesDO(feedId, sequence, false);
+        }
+        for (Map.Entry<String, Long> e : groupSequence.entrySet()) {
+            if (e.getValue() > since && e.getValue() <= changes.getSequence()) {
+                changes.addPatientGroupUuid(e.getKey());
+            }
+        }
+        return changes;
+    }
+
+    private DeferredResult<DataChangesDO> completed(DataChangesDO changes) {
+        DeferredResult<DataChangesDO> result = new DeferredResult<>();
+        result.setResult(changes);
+        return result;
+    }
+
+    private long getLongProperty(String name, long defaultValue) {
+        String s = utils.getProperties().getProperty(name);
+        if (s != null && s.trim().length() != 0) {
+            try {
+                long l = Long.parseLong(s.trim());
+                if (l >= 0) {
+                    return l;
+                }
+            } catch (NumberFormatException numberFormatException) {
+                logger.log(DataChangeFeed.class.getName() + ".error", "Error - Cant read " + name + " from the properties file: " + numberFormatException.getLocalizedMessage());
+            }
+        }
+        return defaultValue;
+    }
+
+    private static class Commit {
+
+        private final long started;
+        private final Set<String> groups;
+
+        Commit(long started, Set<String> groups) {
+            this.started = started;
+            this.groups = groups;
+        }
+    }
+
+    private static class Subscriber {
+
+        private final long since;
+        private final DeferredResult<DataChangesDO> result;
+
+        Subscriber(long since, DeferredResult<DataChangesDO> result) {
+            this.since = since;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.notification;
+
+import java.nio.charset.StandardCharsets;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Submission notifier which POSTs a message to a URL (e.g. a Slack incoming
+ * webhook) using a single, pooled in-process HTTP client. The text
+ * __PATIENT_UUID__ in the message body is replaced with the patient's uuid and
+ * __ROWS__ with the number of rows written
+ *
+ * @author rick@robinsonhq.com
+ */
+public class HttpSubmissionNotifier implements SubmissionNotifier {
+
+    private final String url;
+    private final String body;
+    private final ContentType contentType;
+    private final CloseableHttpClient client;
+
+    /**
+     * Constructor
+     *
+     * @param url URL to which notifications are posted
+     * @param body template of the message body
+     * @param contentType MIME type of the message body
+     * @param timeout connection and read timeout in milliseconds
+     */
+    public HttpSubmissionNotifier(String url, String body, String contentType, int timeout) {
+        this.url = url;
+        this.body = body;
+        this.contentType = ContentType.create(contentType, StandardCharsets.UTF_8);
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(timeout)
+                .setConnectionRequestTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .build();
+        this.client = HttpClients.custom()
+                .setDefaultRequestConfig(config)
+                .setMaxConnTotal(4)
+                .setMaxConnPerRoute(4)
+                .build();
+    }
+
+    @Override
+    public void notify(String patientUuid, int rows) throws Exception {
+        HttpPost post = new HttpPost(url);
+        post.setEntity(new StringEntity(body.replace("__PATIENT_UUID__", patientUuid).replace("__ROWS__", String.valueOf(rows)), contentType));
+        try (CloseableHttpResponse response = client.execute(post)) {
+            int status = response.getStatusLine().getStatusCode();
+            // read the whole response so that the connection can be reused
+            EntityUtils.consume(response.getEntity());
+            if (status < 200 || status >= 300) {
+                throw new Exception("notification endpoint returned HTTP status " + status);
+            }
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return "HTTP POST to " + url;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.notification;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Submission notifier which runs an external script, as earlier versions of
+ * the concentrator did. The text __PATIENT_UUID__ in the script is replaced
+ * with the patient's uuid. The script is abandoned if it does not complete
+ * within the timeout
+ *
+ * @author rick@robinsonhq.com
+ */
+public class ScriptSubmissionNotifier implements SubmissionNotifier {
+
+    private final String script;
+    private final int timeout;
+
+    /**
+     * Constructor
+     *
+     * @param script command line of the script to be run
+     * @param timeout time in milliseconds to wait for the script to complete
+     */
+    public ScriptSubmissionNotifier(String script, int timeout) {
+        this.script = script;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void notify(String patientUuid, int rows) throws Exception {
+        Process process = Runtime.getRuntime().exec(script.replace("__PATIENT_UUID__", patientUuid));
+        if (!process.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+            process.destroyForcibly();
+            throw new Exception("notification script did not complete within " + timeout + "ms");
+        }
+        if (process.exitValue() != 0) {
+            throw new Exception("notification script returned " + process.exitValue());
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return "script " + script;
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.notification;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.utilities.Utilities;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Asynchronous dispatcher of notifications that a patient's submission has
+ * been successfully received.
+ *
+ * Notifications are only queued once the transaction which wrote the
+ * submission has committed, so the ingest transaction never waits for
+ * notification I/O and nothing is sent for a submission which is rolled back.
+ * The queue is bounded and holds at most one notification per patient:
+ * further submissions from a patient whose notification has not yet been sent
+ * are coalesced into it. Notifications are delivered by a small pool of
+ * threads and a failed delivery is retried with an increasing delay. A
+ * notification waiting to be retried does not hold a delivery thread: it is
+ * put back on the queue when its delay has elapsed and is coalesced with any
+ * notification queued for the same patient in the meantime.
+ *
+ * Notifications are sent using an HttpSubmissionNotifier when a URL is
+ * configured, otherwise using a ScriptSubmissionNotifier when the legacy
+ * script is configured. If neither is configured no notifications are sent
+ *
+ * @author rick@robinsonhq.com
+ */
+@Component
+public class SubmissionNotificationDispatcher {
+
+    private static final String NOTIFICATIONPREFIX = "medipi.concentrator.submissionnotification.";
+    private static final String URL = "url";
+    private static final String BODY = "body";
+    private static final String CONTENTTYPE = "contenttype";
+    private static final String TIMEOUT = "timeout";
+    private static final String QUEUESIZE = "queuesize";
+    private static final String WORKERS = "workers";
+    private static final String MAXIMUMATTEMPTS = "maximumattempts";
+    private static final String RETRYDELAY = "retrydelay";
+    private static final String SUCCESSFULLYPROCESSEDSUBMISSIONSCRIPT = "medipi.concentrator.successfullyprocessedsubmissionscript";
+    private static final String DEFAULTBODY = "{\"text\":\"patient=__PATIENT_UUID__\"}";
+    private static final String DEFAULTCONTENTTYPE = "application/json";
+    private static final long MAXIMUMRETRYDELAY = 60000;
+
+    private SubmissionNotifier notifier;
+    private int queueSize = 1000;
+    private int workers = 2;
+    private int maximumAttempts = 5;
+    private long retryDelay = 1000;
+    private ExecutorService executor;
+    private ScheduledExecutorService retryScheduler;
+    private volatile boolean running = false;
+    private final LinkedHashMap<String, PendingNotification> pending = new LinkedHashMap<>();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maximumLatency = new AtomicLong();
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Autowired
+    private Utilities utils;
+
+    /**
+     * Method to read the configuration, choose the notifier and start the
+     * delivery threads
+     *
+     * @return null if the dispatcher started or no notifier is configured,
+     * otherwise an error message
+     */
+    public String init() {
+        int timeout;
+        try {
+            timeout = getIntProperty(TIMEOUT, 10000);
+            queueSize = getIntProperty(QUEUESIZE, queueSize);
+            workers = getIntProperty(WORKERS, workers);
+            maximumAttempts = getIntProperty(MAXIMUMATTEMPTS, maximumAttempts);
+            retryDelay = getIntProperty(RETRYDELAY, (int) retryDelay);
+        } catch (NumberFormatException nfe) {
+            return "Submission notification configuration is not valid: " + nfe.getLocalizedMessage();
+        }
+        String url = getProperty(NOTIFICATIONPREFIX + URL);
+        String script = getProperty(SUCCESSFULLYPROCESSEDSUBMISSIONSCRIPT);
+        if (url != null) {
+            String body = getProperty(NOTIFICATIONPREFIX + BODY);
+            String contentType = getProperty(NOTIFICATIONPREFIX + CONTENTTYPE);
+            notifier = new HttpSubmissionNotifier(url, body == null ? DEFAULTBODY : body, contentType == null ? DEFAULTCONTENTTYPE : contentType, timeout);
+        } else if (script != null) {
+            notifier = new ScriptSubmissionNotifier(script, timeout);
+        } else {
+            return null;
+        }
+        running = true;
+        executor = Executors.newFixedThreadPool(workers);
+        retryScheduler = Executors.newSingleThreadScheduledExecutor();
+        for (int i = 0; i < workers; i++) {
+            executor.execute(this::deliver);
+        }
+        logger.log(SubmissionNotificationDispatcher.class.getName() + ".info", "Submission notifications will be sent using " + notifier.getDescription());
+        return null;
+    }
+
+    /**
+     * Method to record that data has been written to the DB for a patient. The
+     * notification is queued when the current transaction commits
+     *
+     * @param patientUuid uuid of the patient who has submitted data
+     * @param rows number of rows of data written to the DB
+     */
+    public void submissionReceived(final String patientUuid, final int rows) {
+        if (notifier == null) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    enqueue(patientUuid, rows);
+                }
+            });
+        } else {
+            enqueue(patientUuid, rows);
+        }
+    }
+
+    /**
+     * @return a string representation of the notification counters and
+     * delivery latency
+     */
+    public String getStatistics() {
+        long d = delivered.get();
+        int depth;
+        synchronized (pending) {
+            depth = pending.size();
+        }
+        return "pending: " + depth + ", queued: " + queued.get() + ", coalesced: " + coalesced.get() + ", dropped: " + dropped.get()
+                + ", delivered: " + d + ", retried: " + retried.get() + ", failed: " + failed.get()
+                + ", latency avg: " + (d == 0 ? 0 : totalLatency.get() / d) + "ms max: " + maximumLatency.get() + "ms";
+    }
+
+    /**
+     * Stop the delivery threads. Notifications which have not been sent are
+     * discarded
+     */
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (retryScheduler != null) {
+            retryScheduler.shutdownNow();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void enqueue(String patientUuid, int rows) {
+        synchronized (pending) {
+            PendingNotification pn = pending.get(patientUuid);
+            if (pn != null) {
+                pn.rows += rows;
+                coalesced.incrementAndGet();
+                return;
+            }
+            if (pending.size() >= queueSize) {
+                dropped.incrementAndGet();
+                logger.log(SubmissionNotificationDispatcher.class.getName() + ".error", "Submission notification queue is full - notification for " + patientUuid + " dropped");
+                return;
+            }
+            pending.put(patientUuid, new PendingNotification(patientUuid, rows));
+            queued.incrementAndGet();
+            pending.notify();
+        }
+    }
+
+    private PendingNotification take() throws InterruptedException {
+        synchronized (pending) {
+            while (pending.isEmpty()) {
+                pending.wait();
+            }
+            Iterator<PendingNotification> it = pending.values().iterator();
+            PendingNotification pn = it.next();
+            it.remove();
+            return pn;
+        }
+    }
+
+    private void deliver() {
+        while (running) {
+            PendingNotification pn;
+            try {
+                pn = take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            pn.attempts++;
+            try {
+                notifier.notify(pn.patientUuid, pn.rows);
+                long latency = (System.nanoTime() - pn.queuedTime) / 1000000;
+                delivered.incrementAndGet();
+                totalLatency.addAndGet(latency);
+                maximumLatency.accumulateAndGet(latency, Math::max);
+                String location = SubmissionNotificationDispatcher.class.getName() + ".info";
+                if (logger.isLoggable(location)) {
+                    logger.log(location, "Submission notification for " + pn.patientUuid + " delivered in " + latency + "ms - " + getStatistics());
+                }
+            } catch (Exception ex) {
+                logger.log(SubmissionNotificationDispatcher.class.getName() + ".curlIssue", "Attempt " + pn.attempts + " to send submission notification for " + pn.patientUuid + " failed because " + ex.getLocalizedMessage());
+                if (pn.attempts >= maximumAttempts) {
+                    failed.incrementAndGet();
+                } else {
+                    retry(pn);
+                }
+            }
+        }
+    }
+
+    private void retry(PendingNotification pn) {
+        retried.incrementAndGet();
+        long delay = pn.delay == 0 ? retryDelay : pn.delay;
+        pn.delay = Math.min(delay * 2, MAXIMUMRETRYDELAY);
+        try {
+            retryScheduler.schedule(() -> requeue(pn), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            // shutting down - the notification is discarded
+        }
+    }
+
+    private void requeue(PendingNotification pn) {
+        synchronized (pending) {
+            PendingNotification queuedNotification = pending.get(pn.patientUuid);
+            if (queuedNotification != null) {
+                // a later submission is already waiting to be notified - it covers this one too
+                queuedNotification.rows += pn.rows;
+                coalesced.incrementAndGet();
+                return;
+            }
+            pending.put(pn.patientUuid, pn);
+            pending.notify();
+        }
+    }
+
+    private String getProperty(String name) {
+        String s = utils.getProperties().getProperty(name);
+        return s == null || s.trim().length() == 0 ? null : s.trim();
+    }
+
+    private int getIntProperty(String name, int defaultValue) {
+        String s = getProperty(NOTIFICATIONPREFIX + name);
+        if (s == null) {
+            return defaultValue;
+        }
+        int i = Integer.parseInt(s);
+        if (i < 1) {
+            throw new NumberFormatException(NOTIFICATIONPREFIX + name + " must be greater than 0");
+        }
+        return i;
+    }
+
+    private static class PendingNotification {
+
+        private final String patientUuid;
+        private final long queuedTime = System.nanoTime();
+        private int rows;
+        private int attempts;
+        private long delay;
+
+        PendingNotification(String patientUuid, int rows) {
+            this.patientUuid = patientUuid;
+            this.rows = rows;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.notification;
+
+/**
+ * Interface for classes which tell an external system that a patient's
+ * submission has been successfully received and written to the DB.
+ *
+ * Notifiers are called by the SubmissionNotificationDispatcher on its own
+ * threads after the submission has been committed
+ *
+ * @author rick@robinsonhq.com
+ */
+public interface SubmissionNotifier {
+
+    /**
+     * Send a notification for a patient
+     *
+     * @param patientUuid uuid of the patient who has submitted data
+     * @param rows number of rows of data written to the DB since the last
+     * notification for the patient
+     * @throws Exception if the notification could not be delivered. The
+     * dispatcher will retry the notification
+     */
+    public void notify(String patientUuid, int rows) throws Exception;
+
+    /**
+     * @return a short description of the notifier for use in logs
+     */
+    public String getDescription();
+}
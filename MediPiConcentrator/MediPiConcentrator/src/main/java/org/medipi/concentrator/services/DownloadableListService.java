@@ -18,7 +18,6 @@ package org.medipi.concentrator.services;
 import java.security.NoSuchAlgorithmException;
 import static org.springframework.hateoas.mvc.ControllerLinkBuilder.*;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import ma.glasnost.orika.MapperFacade;
 import org.medipi.concentrator.controllers.DownloadServiceController;
@@ -108,7 +107,7 @@ public class DownloadableListService {
                     List<PatientDownloadable> pdList = patientDownloadableDAOImpl.getPatientDownloads(patientUuid);
                     // If there are no entries, an empty list is returned
                     if (!pdList.isEmpty()) {
-                        logger.log(DownloadableListService.class.getName(), new Date().toString() + " Download List returned to patientUuid: " + patientUuid + " using deviceId: " + hardware_name);
+                        logger.log(DownloadableListService.class.getName(), "Download List returned to patientUuid: " + patientUuid + " using deviceId: " + hardware_name);
                         for (PatientDownloadable pd : pdList) {
                             DownloadableDO d = this.mapperFacade.map(pd, DownloadableDO.class);
                             d.setDownloadType("PATIENTMESSAGE");
@@ -122,7 +121,7 @@ public class DownloadableListService {
                     List<HardwareDownloadable> hdList = hardwareDownloadableDAOImpl.getHardwareDownloads(hardware_name);
                     // If there are no entries, an empty list is returned
                     if (!hdList.isEmpty()) {
-                        logger.log(DownloadableListService.class.getName(), new Date().toString() + " Download List returned to hardwareName: " + patientUuid + " using deviceId: " + hardware_name);
+                        logger.log(DownloadableListService.class.getName(), "Download List returned to hardwareName: " + patientUuid + " using deviceId: " + hardware_name);
                         for (HardwareDownloadable hd : hdList) {
                             DownloadableDO d = this.mapperFacade.map(hd, DownloadableDO.class);
                             d.setDownloadType("HARDWAREUPDATE");
@@ -138,7 +137,7 @@ public class DownloadableListService {
                     List<AllHardwareDownloadable> ahdList = allHardwareDownloadableDAOImpl.getHardwareDownloads(hardware_name);
                     // If there are no entries, an empty list is returned
                     if (!ahdList.isEmpty()) {
-                        logger.log(DownloadableListService.class.getName(), new Date().toString() + " Download List returned to hardwareName: " + patientUuid + " using deviceId: " + hardware_name);
+                        logger.log(DownloadableListService.class.getName(), "Download List returned to hardwareName: " + patientUuid + " using deviceId: " + hardware_name);
                         for (AllHardwareDownloadable ahd : ahdList) {
                             DownloadableDO d = this.mapperFacade.map(ahd, DownloadableDO.class);
                             d.setDownloadType("HARDWAREUPDATE");
@@ -154,10 +153,10 @@ public class DownloadableListService {
 
             }
         } catch (Exception e) {
-            logger.log(DownloadableListService.class.getName(), new Date().toString() + " Error when trying to download List returned to hardwareName: " + patientUuid + " using deviceId: " + hardware_name + " Error: " + e.getMessage());
+            logger.log(DownloadableListService.class.getName(), "Error when trying to download List returned to hardwareName: " + patientUuid + " using deviceId: " + hardware_name + " Error: " + e.getMessage());
             throw new InternalServerError500Exception("Internal Server Error");
         }
-        logger.log(DownloadableListService.class.getName(), new Date().toString() + " Error when trying to download List returned to hardwareName: " + patientUuid + " using deviceId: " + hardware_name);
+        logger.log(DownloadableListService.class.getName(), "Error when trying to download List returned to hardwareName: " + patientUuid + " using deviceId: " + hardware_name);
         throw new InternalServerError500Exception("Internal Server Error");
     }
 
@@ -140,7 +140,7 @@ public class HardwareDownloadableService {
         header.set("Content-Disposition",
                 "attachment; filename=" + fileName.replace(" ", "_"));
         header.setContentLength(fsr.contentLength());
-        logger.log(HardwareDownloadableService.class.getName(), new Date().toString() + " Hardware Downloadable item: " + downloadable_uuid + " downloaded");
+        logger.log(HardwareDownloadableService.class.getName(), "Hardware Downloadable item: " + downloadable_uuid + " downloaded");
         ResponseEntity<FileSystemResource> response = new ResponseEntity<>(fsr, header, HttpStatus.OK);
         return response;
     }
@@ -172,7 +172,7 @@ public class HardwareDownloadableService {
                 hardwareDownloadableDAOImpl.update(hd);
                 DownloadableDO d = this.mapperFacade.map(hd, DownloadableDO.class);
 
-                logger.log(HardwareDownloadableService.class.getName(), new Date().toString() + " Patient Downloadable item: " + downloadable_uuid + " acknowledged");
+                logger.log(HardwareDownloadableService.class.getName(), "Patient Downloadable item: " + downloadable_uuid + " acknowledged");
                 return new ResponseEntity<>(d, HttpStatus.OK);
             } catch (Exception e) {
                 throw new InternalServerError500Exception("Internal Server Error");
@@ -213,7 +213,7 @@ public class HardwareDownloadableService {
             allHardwareDownloadedDAOImpl.save(ahd);
             DownloadableDO d = this.mapperFacade.map(ahde, DownloadableDO.class);
             d.setDownloadedDate(ahd.getDownloadedDate());
-            logger.log(HardwareDownloadableService.class.getName(), new Date().toString() + " Patient Downloadable item: " + downloadable_uuid + " acknowledged");
+            logger.log(HardwareDownloadableService.class.getName(), "Patient Downloadable item: " + downloadable_uuid + " acknowledged");
             return new ResponseEntity<>(d, HttpStatus.OK);
         } catch (Exception e) {
             throw new InternalServerError500Exception("Internal Server Error" + e.getLocalizedMessage());
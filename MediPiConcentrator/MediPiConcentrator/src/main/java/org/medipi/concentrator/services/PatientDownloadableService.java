@@ -89,7 +89,7 @@ public class PatientDownloadableService {
                     "attachment; filename=" + fileName.replace(" ", "_"));
             header.setContentLength(fsr.contentLength());
 
-            logger.log(PatientDownloadableService.class.getName(), new Date().toString() + " Patient Downloadable item: " + downloadable_uuid + " downloaded");
+            logger.log(PatientDownloadableService.class.getName(), "Patient Downloadable item: " + downloadable_uuid + " downloaded");
             ResponseEntity<FileSystemResource> response = new ResponseEntity<>(fsr, header, HttpStatus.OK);
             return response;
         } catch (Exception e) {
@@ -121,7 +121,7 @@ public class PatientDownloadableService {
             patientDownloadableDAOImpl.update(pd);
             DownloadableDO d = this.mapperFacade.map(pd, DownloadableDO.class);
 
-            logger.log(PatientDownloadableService.class.getName(), new Date().toString() + " Patient Downloadable item: " + downloadable_uuid + " acknowledged");
+            logger.log(PatientDownloadableService.class.getName(), "Patient Downloadable item: " + downloadable_uuid + " acknowledged");
             return new ResponseEntity<>(d, HttpStatus.OK);
         } catch (Exception e) {
             throw new InternalServerError500Exception("Internal Server Error");
@@ -19,8 +19,13 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import org.medipi.concentrator.controllers.PatientMessagingServiceController;
 import org.medipi.concentrator.controllers.PatientUploadServiceController;
@@ -36,6 +41,10 @@ import org.medipi.concentrator.exception.InternalServerError500Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
 import org.medipi.concentrator.utilities.Utilities;
 import org.medipi.security.CertificateDefinitions;
+import org.medipi.model.DirectMessageBatchDO;
+import org.medipi.model.DirectMessageBatchItemDO;
+import org.medipi.model.DirectMessageBatchResultDO;
+import org.medipi.model.DirectMessageStatusDO;
 import org.medipi.model.EncryptedAndSignedUploadDO;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -44,6 +53,9 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * Service class to allow 3rd party clinical systems to send encrypted and
@@ -55,6 +67,12 @@ import org.springframework.transaction.annotation.Transactional;
 @Service
 public class PatientMessagingService {
 
+    private static final String MEDIPICONCENTRATORDIRECTMESSAGEMAXBATCHSIZE = "medipi.concentrator.directmessage.maxbatchsize";
+    private static final int DEFAULTMAXBATCHSIZE = 500;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private UploadEncryptionAdapter signingAdapter;
+
     @Autowired
     private MediPiLogger logger;
 
@@ -91,7 +109,7 @@ public class PatientMessagingService {
     @Transactional(rollbackFor = RuntimeException.class)
     public ResponseEntity<EncryptedAndSignedUploadDO> persistDirectMessage(String patientUuid, EncryptedAndSignedUploadDO content, int messageType) {
         try {
-            logger.log(PatientMessagingService.class.getName(), new Date().toString() + " Encrypted Direct Message Payload with uuid: " + content.getUploadUuid() + " has been sucessfully decrypted. Patient uuid: " + patientUuid);
+            logger.log(PatientMessagingService.class.getName(), "Encrypted Direct Message Payload with uuid: " + content.getUploadUuid() + " has been sucessfully decrypted. Patient uuid: " + patientUuid);
             //validate that the patient is registered with this DB
             Patient patient = patientDAOImpl.findByPrimaryKey(patientUuid);
             if (patient == null) {
@@ -108,59 +126,14 @@ public class PatientMessagingService {
             }
 
             try {
-                FileOutputStream fop = null;
                 try {
-                    Date messageDate = new Date();
-                    StringBuilder fnb = new StringBuilder();
-                    switch (messageType) {
-                        case PatientMessagingServiceController.ALERT:
-                            fnb.append(alertmessagedir);
-                            fnb.append(System.getProperty("file.separator"));
-                            fnb.append(messageDate.getTime());
-                            fnb.append("-Alert");
-                            break;
-                        case PatientMessagingServiceController.SIMPLEMESSAGE:
-                            fnb.append(simplemessagedir);
-                            fnb.append(System.getProperty("file.separator"));
-                            fnb.append(messageDate.getTime());
-                            fnb.append("-SimpleMessage");
-                            break;
-                        default:
-                            break;
-                    }
-                    fnb.append(".txt");
-                    File file = new File(fnb.toString());
-                    fop = new FileOutputStream(file);
-                    // if file doesnt exists, then create it
-                    if (!file.exists()) {
-                        file.createNewFile();
-                    }
-                    writeJSON(content, fop);
-                    fop.flush();
-                    fop.close();
-
-                    PatientDownloadable pd = new PatientDownloadable(UUID.randomUUID().toString());
-                    pd.setPatientUuid(patient);
-                    pd.setScriptLocation(fnb.toString());
-                    pd.setVersion("1.0");
-                    pd.setVersionAuthor("concentrator-created");
-                    pd.setVersionDate(messageDate);
-                    pd.setSignature(createSignature(pd, file.getName()));
-
+                    PatientDownloadable pd = writeDirectMessage(patient, content, messageType);
                     patientDownloadableDAOImpl.save(pd);
 
-                    logger.log(PatientUploadServiceController.class.getName(), new Date().toString() + " Written Direct Message for Patient: " + patientUuid);
+                    logger.log(PatientUploadServiceController.class.getName(), "Written Direct Message for Patient: " + patientUuid);
                 } catch (IOException e) {
                     logger.log(PatientUploadServiceController.class.getName() + ".error", "Cannot save outbound Direct Message message payload to local drive - check the configured directory: " + alertmessagedir);
                     throw new InternalServerError500Exception("Unable to save Direct Message to file and persist to DB: " + e.getLocalizedMessage());
-                } finally {
-                    try {
-                        if (fop != null) {
-                            fop.close();
-                        }
-                    } catch (IOException e) {
-                        logger.log(PatientUploadServiceController.class.getName() + ".error", "Cannot save outbound Direct Message message payload to local drive - check the configured directory: " + alertmessagedir);
-                    }
                 }
 
                 return new ResponseEntity<>(HttpStatus.OK);
@@ -172,31 +145,212 @@ public class PatientMessagingService {
         }
     }
 
-    private void writeJSON(EncryptedAndSignedUploadDO encryptedAndSignedUploadDO, FileOutputStream f) throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.writeValue(f, encryptedAndSignedUploadDO);
+    /**
+     * Batch Direct Message interface. Each message in the batch is saved and
+     * made available to its patient in the same way as persistDirectMessage,
+     * but the patients and their certificates are looked up once for the whole
+     * batch and all the downloadables are written to the DB in a single
+     * transaction.
+     *
+     * A message which is not addressed to a registered patient with a
+     * certificate, or which cannot be written to file, is reported in the
+     * result with the status it would have received on its own and the rest of
+     * the batch is still persisted. If the downloadables cannot be written to
+     * the DB the whole batch fails
+     *
+     * @param batch batch of Encrypted and Signed Data objects, each with the
+     * patientUuid of its recipient
+     * @param messageType type of all the messages in the batch
+     * @return status of each message in the same order as the batch
+     */
+    @Transactional(rollbackFor = RuntimeException.class)
+    public ResponseEntity<DirectMessageBatchResultDO> persistDirectMessages(DirectMessageBatchDO batch, int messageType) {
+        if (batch == null || batch.getMessages() == null || batch.getMessages().isEmpty()) {
+            throw new BadRequest400Exception("The direct message batch is empty");
+        }
+        int maxBatchSize = getMaxBatchSize();
+        if (batch.getMessages().size() > maxBatchSize) {
+            throw new BadRequest400Exception("The direct message batch contains " + batch.getMessages().size() + " messages but no more than " + maxBatchSize + " are accepted");
+        }
+        Set<String> patientUuids = new HashSet<>();
+        for (DirectMessageBatchItemDO item : batch.getMessages()) {
+            if (item != null && item.getPatientUuid() != null) {
+                patientUuids.add(item.getPatientUuid());
+            }
+        }
+        Map<String, Patient> patients = new HashMap<>();
+        Set<String> certifiedPatients = new HashSet<>();
+        if (!patientUuids.isEmpty()) {
+            try {
+                for (Patient patient : patientDAOImpl.findByPatientUuids(patientUuids)) {
+                    patients.put(patient.getPatientUuid(), patient);
+                }
+                for (PatientCertificate patientCertificate : patientCertificateDAOImpl.findByPatientUuids(patientUuids)) {
+                    certifiedPatients.add(patientCertificate.getPatientUuid());
+                }
+            } catch (Exception e) {
+                throw new InternalServerError500Exception("Internal Server Error " + e.getLocalizedMessage());
+            }
+        }
 
+        DirectMessageBatchResultDO result = new DirectMessageBatchResultDO();
+        List<PatientDownloadable> downloadables = new ArrayList<>();
+        for (DirectMessageBatchItemDO item : batch.getMessages()) {
+            String patientUuid = item == null ? null : item.getPatientUuid();
+            EncryptedAndSignedUploadDO content = item == null ? null : item.getMessage();
+            String uploadUuid = content == null ? null : content.getUploadUuid();
+            if (patientUuid == null || content == null) {
+                result.addResult(new DirectMessageStatusDO(patientUuid, uploadUuid, HttpStatus.BAD_REQUEST.value(), "The message or its patientUuid is missing"));
+                continue;
+            }
+            Patient patient = patients.get(patientUuid);
+            if (patient == null) {
+                result.addResult(new DirectMessageStatusDO(patientUuid, uploadUuid, HttpStatus.BAD_REQUEST.value(), "The patient is not registered on the concentrator"));
+                continue;
+            }
+            if (!certifiedPatients.contains(patientUuid)) {
+                result.addResult(new DirectMessageStatusDO(patientUuid, uploadUuid, HttpStatus.BAD_REQUEST.value(), "The patient certificate is not registered on the concentrator"));
+                continue;
+            }
+            try {
+                downloadables.add(writeDirectMessage(patient, content, messageType));
+                result.addResult(new DirectMessageStatusDO(patientUuid, uploadUuid, HttpStatus.OK.value(), null));
+            } catch (Exception e) {
+                logger.log(PatientMessagingService.class.getName() + ".error", "Cannot save outbound Direct Message with uuid: " + uploadUuid + " for Patient: " + patientUuid + " - " + e.getLocalizedMessage());
+                result.addResult(new DirectMessageStatusDO(patientUuid, uploadUuid, HttpStatus.INTERNAL_SERVER_ERROR.value(), "Unable to save Direct Message to file: " + e.getLocalizedMessage()));
+            }
+        }
+        try {
+            patientDownloadableDAOImpl.saveBatch(downloadables, maxBatchSize);
+        } catch (Exception e) {
+            throw new InternalServerError500Exception("Unable to persist Direct Messages to DB: " + e.getLocalizedMessage());
+        }
+        logger.log(PatientMessagingService.class.getName(), "Written " + downloadables.size() + " of " + batch.getMessages().size() + " Direct Messages in batch");
+        return new ResponseEntity<>(result, HttpStatus.OK);
     }
 
-    private String createSignature(PatientDownloadable d, String fileName) throws NoSuchAlgorithmException, Exception {
-        // THIS IS AS A STAND IN FOR WHEN AN INTERFACE IDS CREATED WHICH WILL SIGN THE DB ENTRY
-        UploadEncryptionAdapter uploadEncryptionAdapter = new UploadEncryptionAdapter();
-        CertificateDefinitions cd;
-        cd = fetchClinicianSigningCerts();
-        String error = uploadEncryptionAdapter.init(cd, UploadEncryptionAdapter.SIGNMODE);
-        if (error != null) {
-            throw new Exception("Signing initailisation failed - " + error);
+    /**
+     * Write the message to its own file and create the signed downloadable
+     * which makes it available to the patient. The file is removed if the
+     * transaction is rolled back
+     */
+    private PatientDownloadable writeDirectMessage(Patient patient, EncryptedAndSignedUploadDO content, int messageType) throws Exception {
+        Date messageDate = new Date();
+        final File file = createMessageFile(messageDate, messageType);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status != TransactionSynchronization.STATUS_COMMITTED) {
+                        file.delete();
+                    }
+                }
+            });
+        }
+        try (FileOutputStream fop = new FileOutputStream(file)) {
+            MAPPER.writeValue(fop, content);
         }
+
+        PatientDownloadable pd = new PatientDownloadable(UUID.randomUUID().toString());
+        pd.setPatientUuid(patient);
+        pd.setScriptLocation(file.getPath());
+        pd.setVersion("1.0");
+        pd.setVersionAuthor("concentrator-created");
+        pd.setVersionDate(messageDate);
+        pd.setSignature(createSignature(pd, file.getName()));
+        return pd;
+    }
+
+    /**
+     * Create a new empty file for a message. Messages are named after the time
+     * they were received and a sequence number is added when several are
+     * received in the same millisecond so that none is overwritten
+     */
+    private File createMessageFile(Date messageDate, int messageType) throws IOException {
+        String directory;
+        String suffix;
+        switch (messageType) {
+            case PatientMessagingServiceController.ALERT:
+                directory = alertmessagedir;
+                suffix = "-Alert.txt";
+                break;
+            case PatientMessagingServiceController.SIMPLEMESSAGE:
+                directory = simplemessagedir;
+                suffix = "-SimpleMessage.txt";
+                break;
+            default:
+                throw new IOException("Unknown direct message type: " + messageType);
+        }
+        String prefix = directory + System.getProperty("file.separator") + messageDate.getTime();
+        File file = new File(prefix + suffix);
+        for (int i = 1; !file.createNewFile(); i++) {
+            file = new File(prefix + "-" + i + suffix);
+        }
+        return file;
+    }
+
+    private String createSignature(PatientDownloadable d, String fileName) throws Exception {
+        // THIS IS AS A STAND IN FOR WHEN AN INTERFACE IDS CREATED WHICH WILL SIGN THE DB ENTRY
         StringBuilder digestSubject = new StringBuilder();
         digestSubject.append(d.getDownloadableUuid())
                 .append(fileName)
                 .append(d.getVersion())
                 .append(d.getVersionAuthor())
                 .append(d.getVersionDate().getTime());
-        String signature = uploadEncryptionAdapter.signPayload(digestSubject.toString().getBytes());
+        String signature = getSigningAdapter().signPayload(digestSubject.toString().getBytes());
         return signature;
     }
 
+    /**
+     * Reloads the clinician signing key if its keystore has been replaced on
+     * disk. If the signing adapter has not yet been used there is nothing to
+     * reload - it reads the current keystore when it is first used
+     *
+     * @return null if the signing key was reloaded or the adapter is not in
+     * use, otherwise an error message
+     * @throws Exception
+     */
+    public String reloadSigningAdapter() throws Exception {
+        UploadEncryptionAdapter adapter;
+        synchronized (this) {
+            adapter = signingAdapter;
+        }
+        return adapter == null ? null : adapter.reload();
+    }
+
+    /**
+     * The signing adapter only holds the clinician signing key so it is
+     * initialised once and shared by all messages. It is kept up to date by
+     * reloadSigningAdapter
+     */
+    private synchronized UploadEncryptionAdapter getSigningAdapter() throws Exception {
+        if (signingAdapter == null) {
+            UploadEncryptionAdapter uploadEncryptionAdapter = new UploadEncryptionAdapter();
+            CertificateDefinitions cd = fetchClinicianSigningCerts();
+            String error = uploadEncryptionAdapter.init(cd, UploadEncryptionAdapter.SIGNMODE);
+            if (error != null) {
+                throw new Exception("Signing initailisation failed - " + error);
+            }
+            signingAdapter = uploadEncryptionAdapter;
+        }
+        return signingAdapter;
+    }
+
+    private int getMaxBatchSize() {
+        String maxBatchSizeString = utils.getProperties().getProperty(MEDIPICONCENTRATORDIRECTMESSAGEMAXBATCHSIZE);
+        if (maxBatchSizeString != null && maxBatchSizeString.trim().length() != 0) {
+            try {
+                int maxBatchSize = Integer.parseInt(maxBatchSizeString.trim());
+                if (maxBatchSize > 0) {
+                    return maxBatchSize;
+                }
+            } catch (NumberFormatException numberFormatException) {
+                logger.log(PatientMessagingService.class.getName() + ".error", "Error - Cant read the direct message maximum batch size from the properties file: " + numberFormatException.getLocalizedMessage());
+            }
+        }
+        return DEFAULTMAXBATCHSIZE;
+    }
+
     private CertificateDefinitions fetchClinicianSigningCerts() throws Exception {
         CertificateDefinitions cd = new CertificateDefinitions(utils.getProperties());
         cd.setSIGNKEYSTORELOCATION("medipi.json.sign.keystore.clinician.location", CertificateDefinitions.INTERNAL);
@@ -0,0 +1,369 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
+import org.medipi.concentrator.exception.BadRequest400Exception;
+import org.medipi.concentrator.exception.NotAcceptable406Exception;
+import org.medipi.concentrator.exception.ServiceUnavailable503Exception;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.model.QueuedUploadDO;
+import org.medipi.concentrator.utilities.Utilities;
+import org.medipi.model.DevicesPayloadDO;
+import org.medipi.model.EncryptedAndSignedUploadDO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+/**
+ * Durable ingest queue for patient uploads which have been accepted by the
+ * concentrator but not yet written to the DB.
+ *
+ * Each accepted upload is written, still encrypted, to its own file in the
+ * queue directory and synced to disk before the upload is acknowledged. The
+ * file name starts with a sequence number so that the queue can be rebuilt in
+ * the order the uploads were accepted when the concentrator restarts.
+ *
+ * Uploads are drained into the DB by a fixed number of worker lanes. All the
+ * uploads for a patient are handled by the same lane so that they are
+ * processed in the order in which they were accepted. The payload which was
+ * decrypted and verified when the upload was accepted is handed to the lane
+ * with it so the signature is not checked twice - only uploads requeued from
+ * the queue directory after a restart are decrypted and verified again. An
+ * upload which fails because it is invalid (e.g. it does not decrypt or parse)
+ * is moved to the quarantine directory straight away. The patient unit has
+ * already been told that any other upload was accepted, so any other failure
+ * (e.g. the DB being unavailable) is retried until it succeeds, with a delay
+ * which doubles up to the maximum retry delay. The retry is scheduled rather
+ * than waited for on the lane, so whilst an upload is waiting to be retried
+ * only the later uploads for the same patient are held back behind it
+ *
+ * @author rick@robinsonhq.com
+ */
+@Component
+public class PatientUploadQueue {
+
+    private static final String ASYNCUPLOADPREFIX = "medipi.concentrator.asyncupload.";
+    private static final String ENABLED = "enabled";
+    private static final String DIRECTORY = "directory";
+    private static final String WORKERS = "workers";
+    private static final String MAXIMUMQUEUED = "maximumqueued";
+    private static final String MAXIMUMRETRYDELAY = "maximumretrydelay";
+    private static final String RETRYDELAY = "retrydelay";
+    private static final String QUARANTINE = "quarantine";
+    private static final String SUFFIX = ".json";
+    private static final String TEMPORARYSUFFIX = ".tmp";
+
+    private boolean enabled = false;
+    private File queueDirectory;
+    private File quarantineDirectory;
+    private int workers = 4;
+    private int maximumQueued = 10000;
+    private long retryDelay = 1000;
+    private long maximumRetryDelay = 300000;
+    private ExecutorService[] lanes;
+    private ScheduledExecutorService retryScheduler;
+    // uploads held back behind an upload for the same patient which is waiting to be retried.
+    // Each patient's queue is only touched by the patient's lane
+    private final Map<String, Queue<QueuedUpload>> heldUploads = new ConcurrentHashMap<>();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong quarantined = new AtomicLong();
+
+    @Autowired
+    private PatientUploadService patientUploadService;
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Autowired
+    private Utilities utils;
+
+    /**
+     * Method to read the configuration, create the queue directories and start
+     * the worker lanes. Any uploads left in the queue directory from a
+     * previous run are queued again in the order in which they were accepted
+     *
+     * @return null if the queue started or is disabled, otherwise an error
+     * message
+     */
+    public String init() {
+        String e = utils.getProperties().getProperty(ASYNCUPLOADPREFIX + ENABLED);
+        enabled = e != null && e.trim().toLowerCase().startsWith("y");
+        if (!enabled) {
+            return null;
+        }
+        String dir = utils.getProperties().getProperty(ASYNCUPLOADPREFIX + DIRECTORY);
+        if (dir == null || dir.trim().length() == 0) {
+            return "Asynchronous upload queue directory is not set";
+        }
+        queueDirectory = new File(dir.trim());
+        quarantineDirectory = new File(queueDirectory, QUARANTINE);
+        if (!quarantineDirectory.isDirectory() && !quarantineDirectory.mkdirs()) {
+            return "Cannot create asynchronous upload queue directory: " + quarantineDirectory;
+        }
+        try {
+            workers = getIntProperty(WORKERS, workers);
+            maximumQueued = getIntProperty(MAXIMUMQUEUED, maximumQueued);
+            retryDelay = getIntProperty(RETRYDELAY, (int) retryDelay);
+            maximumRetryDelay = Math.max(retryDelay, getIntProperty(MAXIMUMRETRYDELAY, (int) maximumRetryDelay));
+        } catch (NumberFormatException nfe) {
+            return "Asynchronous upload queue configuration is not valid: " + nfe.getLocalizedMessage();
+        }
+        lanes = new ExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor();
+        }
+        retryScheduler = Executors.newSingleThreadScheduledExecutor();
+        // remove anything which was being written when the concentrator stopped - it was never acknowledged
+        for (File f : queueDirectory.listFiles((File d, String name) -> name.endsWith(TEMPORARYSUFFIX))) {
+            f.delete();
+        }
+        // requeue anything left from the previous run
+        File[] files = queueDirectory.listFiles((File d, String name) -> name.endsWith(SUFFIX));
+        Arrays.sort(files);
+        for (File f : files) {
+            try {
+                QueuedUploadDO qu = mapper.readValue(f, QueuedUploadDO.class);
+                sequence.set(Math.max(sequence.get(), qu.getSequence()));
+                queued.incrementAndGet();
+                // the file may have been altered whilst the concentrator was stopped so it is verified again
+                submit(qu, f, null);
+            } catch (IOException ex) {
+                logger.log(PatientUploadQueue.class.getName() + ".error", "Unable to read queued upload " + f + " - quarantining: " + ex.getLocalizedMessage());
+                quarantine(f);
+            }
+        }
+        logger.log(PatientUploadQueue.class.getName() + ".info", "Asynchronous upload queue started with " + workers + " workers and " + queued.get() + " uploads queued from the previous run");
+        return null;
+    }
+
+    /**
+     * @return true if uploads are to be accepted and processed asynchronously
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Durably queue an upload which has been verified by the concentrator
+     *
+     * @param deviceId incoming deviceId parameter from RESTful message
+     * @param patientUuid incoming patientUuid parameter from RESTful message
+     * @param dataFormat incoming Data-Format HTTP header
+     * @param upload encrypted and signed upload
+     * @param payload the upload's payload which has been decrypted and had its
+     * signature verified
+     * @return tracking id for the queued upload
+     * @throws ServiceUnavailable503Exception if the queue is full or the
+     * upload cannot be written to disk
+     */
+    public String enqueue(String deviceId, String patientUuid, String dataFormat, EncryptedAndSignedUploadDO upload, DevicesPayloadDO payload) {
+        if (queued.incrementAndGet() > maximumQueued) {
+            queued.decrementAndGet();
+            logger.log(PatientUploadQueue.class.getName() + ".error", "Asynchronous upload queue is full - upload from patientUuid: " + patientUuid + " refused");
+            throw new ServiceUnavailable503Exception("The concentrator is busy - please try again later");
+        }
+        QueuedUploadDO qu = new QueuedUploadDO(UUID.randomUUID().toString(), sequence.incrementAndGet(), deviceId, patientUuid, dataFormat, upload);
+        File f = new File(queueDirectory, String.format("%020d_%s%s", qu.getSequence(), qu.getTrackingId(), SUFFIX));
+        File tmp = new File(queueDirectory, f.getName() + TEMPORARYSUFFIX);
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                mapper.writeValue(fos, qu);
+                fos.getFD().sync();
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            queued.decrementAndGet();
+            tmp.delete();
+            logger.log(PatientUploadQueue.class.getName() + ".error", "Unable to write upload to the asynchronous upload queue: " + ex.getLocalizedMessage());
+            throw new ServiceUnavailable503Exception("The concentrator is unable to accept the upload - please try again later");
+        }
+        accepted.incrementAndGet();
+        submit(qu, f, payload);
+        return qu.getTrackingId();
+    }
+
+    /**
+     * @return a string representation of the queue depth and counters
+     */
+    public String getStatistics() {
+        return "queued: " + queued.get() + ", accepted: " + accepted.get() + ", processed: " + processed.get() + ", retried: " + retried.get() + ", quarantined: " + quarantined.get();
+    }
+
+    /**
+     * Stop the worker lanes. Uploads which have not been processed remain in
+     * the queue directory and are processed when the concentrator restarts
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (retryScheduler != null) {
+            // uploads waiting to be retried stay in the queue directory
+            retryScheduler.shutdownNow();
+        }
+        if (lanes != null) {
+            for (ExecutorService lane : lanes) {
+                lane.shutdownNow();
+            }
+            for (ExecutorService lane : lanes) {
+                try {
+                    lane.awaitTermination(30, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private void submit(QueuedUploadDO qu, File f, DevicesPayloadDO payload) {
+        QueuedUpload u = new QueuedUpload(qu, f, payload, retryDelay);
+        getLane(u).execute(() -> process(u));
+    }
+
+    private ExecutorService getLane(QueuedUpload u) {
+        return lanes[(u.qu.getPatientUuid().hashCode() & Integer.MAX_VALUE) % lanes.length];
+    }
+
+    private void process(QueuedUpload u) {
+        Queue<QueuedUpload> held = heldUploads.get(u.qu.getPatientUuid());
+        if (held != null) {
+            // an earlier upload for this patient is waiting to be retried
+            held.add(u);
+            return;
+        }
+        attempt(u);
+    }
+
+    private void attempt(QueuedUpload u) {
+        QueuedUploadDO qu = u.qu;
+        u.attempt++;
+        try {
+            ResponseEntity<?> r;
+            if (u.payload != null) {
+                r = patientUploadService.processRecordingDeviceData(qu.getDeviceId(), qu.getPatientUuid(), qu.getDataFormat(), u.payload);
+            } else {
+                r = patientUploadService.uploadRecordingDeviceData(qu.getDeviceId(), qu.getPatientUuid(), qu.getDataFormat(), qu.getUpload());
+            }
+            if (r.getStatusCode().is2xxSuccessful()) {
+                processed.incrementAndGet();
+                String location = PatientUploadQueue.class.getName() + ".info";
+                if (logger.isLoggable(location)) {
+                    logger.log(location, "Queued upload with trackingId: " + qu.getTrackingId() + " processed - " + getStatistics());
+                }
+                if (!u.file.delete()) {
+                    logger.log(PatientUploadQueue.class.getName() + ".error", "Unable to remove processed upload from the queue: " + u.file);
+                }
+            } else {
+                retry(u, "status " + r.getStatusCode());
+                return;
+            }
+        } catch (BadRequest400Exception | NotAcceptable406Exception ex) {
+            // the upload itself is at fault and will never succeed
+            logger.log(PatientUploadQueue.class.getName() + ".error", "Queued upload with trackingId: " + qu.getTrackingId() + " is invalid - quarantining: " + ex.getLocalizedMessage());
+            quarantine(u.file);
+        } catch (Exception ex) {
+            retry(u, ex.getLocalizedMessage());
+            return;
+        }
+        queued.decrementAndGet();
+        // release any uploads for the patient which were held back behind this one in the order they were accepted
+        Queue<QueuedUpload> held = heldUploads.remove(qu.getPatientUuid());
+        if (held != null) {
+            for (QueuedUpload h = held.poll(); h != null; h = held.poll()) {
+                process(h);
+            }
+        }
+    }
+
+    private void retry(QueuedUpload u, String reason) {
+        QueuedUploadDO qu = u.qu;
+        logger.log(PatientUploadQueue.class.getName() + ".error", "Attempt " + u.attempt + " to process queued upload with trackingId: " + qu.getTrackingId() + " failed: " + reason + " - retrying in " + u.delay + "ms");
+        retried.incrementAndGet();
+        // hold back the patient's later uploads until this one has been dealt with
+        heldUploads.putIfAbsent(qu.getPatientUuid(), new ArrayDeque<>());
+        long delay = u.delay;
+        u.delay = Math.min(u.delay * 2, maximumRetryDelay);
+        try {
+            retryScheduler.schedule(() -> getLane(u).execute(() -> attempt(u)), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            // shutting down - the upload stays in the queue directory
+        }
+    }
+
+    private void quarantine(File f) {
+        quarantined.incrementAndGet();
+        try {
+            Files.move(f.toPath(), new File(quarantineDirectory, f.getName()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            logger.log(PatientUploadQueue.class.getName() + ".error", "Unable to quarantine queued upload " + f + ": " + ex.getLocalizedMessage());
+        }
+    }
+
+    private int getIntProperty(String name, int defaultValue) {
+        String s = utils.getProperties().getProperty(ASYNCUPLOADPREFIX + name);
+        if (s == null || s.trim().length() == 0) {
+            return defaultValue;
+        }
+        int i = Integer.parseInt(s.trim());
+        if (i < 1) {
+            throw new NumberFormatException(ASYNCUPLOADPREFIX + name + " must be greater than 0");
+        }
+        return i;
+    }
+
+    /**
+     * An upload which is being processed by a lane together with its retry
+     * state
+     */
+    private static class QueuedUpload {
+
+        private final QueuedUploadDO qu;
+        private final File file;
+        private final DevicesPayloadDO payload;
+        private int attempt = 0;
+        private long delay;
+
+        QueuedUpload(QueuedUploadDO qu, File file, DevicesPayloadDO payload, long delay) {
+            this.qu = qu;
+            this.file = file;
+            this.payload = payload;
+            this.delay = delay;
+        }
+    }
+}
@@ -18,14 +18,21 @@ package org.medipi.concentrator.services;
 import java.util.Date;
 import javax.servlet.ServletContext;
 import org.medipi.concentrator.dataformat.PatientUploadDataFormat;
+import org.medipi.security.CertificateValidationCache;
+import org.medipi.security.KeyMaterialUnavailableException;
 import org.medipi.security.UploadEncryptionAdapter;
+import org.medipi.concentrator.dao.PatientUploadDAO;
 import org.medipi.concentrator.entities.Patient;
+import org.medipi.concentrator.entities.PatientUpload;
 import org.medipi.concentrator.exception.BadRequest400Exception;
 import org.medipi.concentrator.exception.InternalServerError500Exception;
+import org.medipi.concentrator.exception.ServiceUnavailable503Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.notification.DataChangeFeed;
 import org.medipi.concentrator.utilities.Utilities;
 import org.medipi.model.DevicesPayloadDO;
 import org.medipi.model.EncryptedAndSignedUploadDO;
+import org.medipi.model.PayloadCodec;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -57,9 +64,15 @@ public class PatientUploadService {
     @Autowired
     private PatientDeviceValidationService patientDeviceValidationService;
 
+    @Autowired
+    private DataChangeFeed dataChangeFeed;
+
     @Autowired
     private UploadEncryptionAdapter patientEncryptionAdapter;
 
+    @Autowired
+    private PatientUploadDAO patientUploadDAO;
+
     /**
      * uploadRecordingDevice - Method to decide that data is to be uploaded and
      * based upon the configuration choose a data format of the uploaded data.
@@ -75,33 +88,123 @@ public class PatientUploadService {
      */
     @Transactional(rollbackFor = RuntimeException.class)
     public ResponseEntity<?> uploadRecordingDeviceData(String hardware_name, String patientUuid, String dataFormat, EncryptedAndSignedUploadDO content) {
+        // track the ingest from the start of the transaction as that is when its data is timestamped
+        dataChangeFeed.ingestStarted();
         // OK device and patient are now veried as being registered with each other
         ResponseEntity<?> r = this.patientDeviceValidationService.validate(hardware_name, patientUuid);
         if (r.getStatusCode() == HttpStatus.ACCEPTED || r.getStatusCode() == HttpStatus.OK) {
-            // using the HTTP header Data-Format choose the incoming message data format
-            if (servletCtx.getAttribute(dataFormat) != null) {
-                PatientUploadDataFormat patientUploadFormat = (PatientUploadDataFormat) servletCtx.getAttribute(dataFormat);
-                DevicesPayloadDO payload = null;
-                try {
-                    payload = (DevicesPayloadDO) patientEncryptionAdapter.decryptAndVerify(content);
-                    logger.log(PatientUploadService.class.getName(), new Date().toString() + " Encrypted Payload with uuid: " + content.getUploadUuid() + " has been sucessfully decrypted. Upload date: " + payload.getUploadedDate() + "decrypted uuid: " + payload.getUploadUuid());
-                } catch (Exception e) {
-                    throw new BadRequest400Exception("Decryption exception: " + e.getLocalizedMessage());
-                }
-                if (patientUploadFormat.process(payload, new Patient(patientUuid))) {
-                    return r;
-                } else {
-                    throw new InternalServerError500Exception("Internal Server Error");
-                }
-
-            } else {
-                //The Data-Format HTTP header in the incoming request is missing or not a supported format 
-                logger.log(PatientUploadService.class.getName() + ".dataValidationIssue", "The Data-Format HTTP header in the incoming request is missing or not a supported format: " + dataFormat);
-                throw new BadRequest400Exception("The Data-Format HTTP header in the incoming request is missing or not a supported format: " + dataFormat);
+            PatientUploadDataFormat patientUploadFormat = getPatientUploadDataFormat(dataFormat);
+            return store(r, patientUploadFormat, decryptAndVerify(dataFormat, content), patientUuid);
+        }
+        return new ResponseEntity(HttpStatus.INTERNAL_SERVER_ERROR);
+    }
 
-            }
+    /**
+     * processRecordingDeviceData - Method to write an upload which has already
+     * been decrypted and had its signature verified by
+     * acceptRecordingDeviceData to the DB. The device and patient are
+     * validated again as the registration may have changed whilst the upload
+     * was queued
+     *
+     * @param hardware_name incoming deviceId parameter from RESTful message
+     * @param patientUuid incoming patientUuid parameter from RESTful message
+     * @param dataFormat incoming Data-Format HTTP header parameter from RESTful
+     * message
+     * @param payload decrypted and verified payload
+     * @return status only response
+     */
+    @Transactional(rollbackFor = RuntimeException.class)
+    public ResponseEntity<?> processRecordingDeviceData(String hardware_name, String patientUuid, String dataFormat, DevicesPayloadDO payload) {
+        // track the ingest from the start of the transaction as that is when its data is timestamped
+        dataChangeFeed.ingestStarted();
+        ResponseEntity<?> r = this.patientDeviceValidationService.validate(hardware_name, patientUuid);
+        if (r.getStatusCode() == HttpStatus.ACCEPTED || r.getStatusCode() == HttpStatus.OK) {
+            PatientUploadDataFormat patientUploadFormat = getPatientUploadDataFormat(dataFormat);
+            return store(r, patientUploadFormat, payload, patientUuid);
         }
         return new ResponseEntity(HttpStatus.INTERNAL_SERVER_ERROR);
     }
 
+    /**
+     * acceptRecordingDeviceData - Method to verify an upload before it is
+     * queued for asynchronous processing. The device and patient are validated,
+     * the data format is checked and the payload is decrypted and its
+     * signature verified but nothing is written to the DB
+     *
+     * @param hardware_name incoming deviceId parameter from RESTful message
+     * @param patientUuid incoming patientUuid parameter from RESTful message
+     * @param dataFormat incoming Data-Format HTTP header parameter from RESTful
+     * message
+     * @param content incoming message contents
+     * @return the decrypted and verified payload if the upload can be queued,
+     * otherwise null
+     */
+    public DevicesPayloadDO acceptRecordingDeviceData(String hardware_name, String patientUuid, String dataFormat, EncryptedAndSignedUploadDO content) {
+        ResponseEntity<?> r = this.patientDeviceValidationService.validate(hardware_name, patientUuid);
+        if (r.getStatusCode() == HttpStatus.ACCEPTED || r.getStatusCode() == HttpStatus.OK) {
+            getPatientUploadDataFormat(dataFormat);
+            return decryptAndVerify(dataFormat, content);
+        }
+        return null;
+    }
+
+    private ResponseEntity<?> store(ResponseEntity<?> r, PatientUploadDataFormat patientUploadFormat, DevicesPayloadDO payload, String patientUuid) {
+        // Patient units resend an upload under the same signed uuid when they did not
+        // receive the acknowledgement, so a previously processed upload is acknowledged again without being stored
+        if (patientUploadDAO.isAlreadyProcessed(payload.getUploadUuid())) {
+            logger.log(PatientUploadService.class.getName() + ".info", "Upload with uuid: " + payload.getUploadUuid() + " from patient: " + patientUuid + " has already been processed and has been ignored");
+            return r;
+        }
+        if (patientUploadFormat.process(payload, new Patient(patientUuid))) {
+            if (payload.getUploadUuid() != null) {
+                patientUploadDAO.save(new PatientUpload(payload.getUploadUuid(), patientUuid, new Date()));
+            }
+            return r;
+        } else {
+            throw new InternalServerError500Exception("Internal Server Error");
+        }
+    }
+
+    private PatientUploadDataFormat getPatientUploadDataFormat(String dataFormat) {
+        // using the HTTP header Data-Format choose the incoming message data format and check the codec and compression of the payload.
+        // Compressed payloads are marked in their signed header and are decompressed by the encryption adapter
+        String format = PayloadCodec.getDataFormat(dataFormat);
+        String codec = PayloadCodec.getCodec(dataFormat);
+        if (codec != null && !PayloadCodec.isSupported(codec)) {
+            logger.log(PatientUploadService.class.getName() + ".dataValidationIssue", "The Data-Format HTTP header in the incoming request declares an unsupported codec: " + dataFormat);
+            throw new BadRequest400Exception("The Data-Format HTTP header in the incoming request declares an unsupported codec: " + dataFormat);
+        }
+        String compression = PayloadCodec.getCompression(dataFormat);
+        if (compression != null && !UploadEncryptionAdapter.isCompressionSupported(compression)) {
+            logger.log(PatientUploadService.class.getName() + ".dataValidationIssue", "The Data-Format HTTP header in the incoming request declares an unsupported compression: " + dataFormat);
+            throw new BadRequest400Exception("The Data-Format HTTP header in the incoming request declares an unsupported compression: " + dataFormat);
+        }
+        if (format == null || servletCtx.getAttribute(format) == null) {
+            //The Data-Format HTTP header in the incoming request is missing or not a supported format 
+            logger.log(PatientUploadService.class.getName() + ".dataValidationIssue", "The Data-Format HTTP header in the incoming request is missing or not a supported format: " + dataFormat);
+            throw new BadRequest400Exception("The Data-Format HTTP header in the incoming request is missing or not a supported format: " + dataFormat);
+        }
+        return (PatientUploadDataFormat) servletCtx.getAttribute(format);
+    }
+
+    private DevicesPayloadDO decryptAndVerify(String dataFormat, EncryptedAndSignedUploadDO content) {
+        try {
+            DevicesPayloadDO payload = (DevicesPayloadDO) patientEncryptionAdapter.decryptAndVerify(content, PayloadCodec.getCodec(dataFormat));
+            if (logger.isLoggable(PatientUploadService.class.getName())) {
+                logger.log(PatientUploadService.class.getName(), "Encrypted Payload with uuid: " + content.getUploadUuid() + " has been sucessfully decrypted. Upload date: " + payload.getUploadedDate() + "decrypted uuid: " + payload.getUploadUuid());
+            }
+            String location = PatientUploadService.class.getName() + ".info";
+            if (logger.isLoggable(location)) {
+                logger.log(location, CertificateValidationCache.getInstance().getStatistics());
+            }
+            return payload;
+        } catch (KeyMaterialUnavailableException e) {
+            // the concentrator's own key material is at fault - the upload can be sent again later
+            logger.log(PatientUploadService.class.getName() + ".error", "Unable to decrypt upload with uuid: " + content.getUploadUuid() + " - " + e.getLocalizedMessage());
+            throw new ServiceUnavailable503Exception("The concentrator is unable to decrypt the upload - please try again later");
+        } catch (Exception e) {
+            throw new BadRequest400Exception("Decryption exception: " + e.getLocalizedMessage());
+        }
+    }
+
 }
@@ -20,7 +20,6 @@ import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Date;
 import org.medipi.concentrator.dao.PatientCertificateDAOImpl;
 import org.medipi.concentrator.entities.PatientCertificate;
 import org.medipi.concentrator.exception.InternalServerError500Exception;
@@ -74,11 +73,11 @@ public class PublicCertificateService {
             try {
                 p = Paths.get(fileName);
             } catch (InvalidPathException e) {
-                logger.log(PublicCertificateService.class.getName() + ".error", new Date().toString() + " Cannot find the requested file at " + fileName);
+                logger.log(PublicCertificateService.class.getName() + ".error", "Cannot find the requested file at " + fileName);
                 throw new InternalServerError500Exception("Internal Server Error " + e.getLocalizedMessage());
             }
             byte[] encoded = Files.readAllBytes(p);
-            logger.log(PublicCertificateService.class.getName(), new Date().toString() + " Patient Certificate item: " + patientUuid + " downloaded");
+            logger.log(PublicCertificateService.class.getName(), "Patient Certificate item: " + patientUuid + " downloaded");
             ResponseEntity<byte[]> response = new ResponseEntity<>(encoded, HttpStatus.OK);
             return response;
         } catch (NotFound404Exception | InternalServerError500Exception | IOException e) {
@@ -15,22 +15,28 @@
  */
 package org.medipi.concentrator.services;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
-import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import javax.servlet.http.HttpServletResponse;
 import ma.glasnost.orika.MapperFacade;
 import org.medipi.concentrator.dao.PatientDAOImpl;
 import org.medipi.concentrator.dao.RecordingDeviceDataDAOImpl;
 import org.medipi.concentrator.entities.Patient;
 import org.medipi.concentrator.entities.RecordingDeviceData;
+import org.medipi.concentrator.exception.BadRequest400Exception;
 import org.medipi.concentrator.exception.InternalServerError500Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.notification.DataChangeFeed;
 import org.medipi.concentrator.model.PatientDataRequestDO;
 import org.medipi.concentrator.utilities.Utilities;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -45,7 +51,10 @@ import org.springframework.transaction.annotation.Transactional;
 @Service
 public class RequestDataService {
 
-    private static final String MEDIPICONCENTRATORDATABASEBACKOFFPERIOD = "medipi.concentrator.database.backoffperiod";
+    private static final String MEDIPICONCENTRATORREQUESTDATAPAGESIZE = "medipi.concentrator.requestdata.pagesize";
+    private static final int DEFAULTPAGESIZE = 5000;
+    private static final int BATCHSIZE = 500;
+    private static final String CURSORSEPARATOR = "-";
 
     @Autowired
     private RecordingDeviceDataDAOImpl recordingDeviceDataDAOImpl;
@@ -56,9 +65,15 @@ public class RequestDataService {
     @Autowired
     private MapperFacade mapperFacade;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
     @Autowired
     private Utilities utils;
 
+    @Autowired
+    private DataChangeFeed dataChangeFeed;
+
     /**
      * A date query parameter is passed to the interface with a requesting
      * patient group parameter. This defines at what point the requesting system
@@ -70,29 +85,14 @@ public class RequestDataService {
      */
     @Transactional(rollbackFor = RuntimeException.class)
     public ResponseEntity<List<PatientDataRequestDO>> getData(String patientGroupUuid, Date lastDownloadDate) {
-        String backoffPeriodString = utils.getProperties().getProperty(MEDIPICONCENTRATORDATABASEBACKOFFPERIOD);
-        int backoffPeriod;
-        if (backoffPeriodString == null || backoffPeriodString.trim().length() == 0) {
-            backoffPeriod = 10000;
-        } else {
-            try {
-                backoffPeriod = Integer.parseInt(backoffPeriodString);
-            } catch (NumberFormatException numberFormatException) {
-                MediPiLogger.getInstance().log(RequestDataService.class.getName() + "error", "Error - Cant read the back off period from the properties file: " + numberFormatException.getLocalizedMessage());
-                System.out.println("Error - Cant read the back off period from the properties file: " + numberFormatException.getLocalizedMessage());
-                backoffPeriod = 10000;
-            }
-        }
         try {
             SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS zzz");
             List<PatientDataRequestDO> responsePayload = new ArrayList<>();
             List<Patient> pList = patientDAOImpl.findByGroup(patientGroupUuid);
-            // to allow the DB to settle to any data not yet arrived do not attempt to pull any data within the last x seconds
-            Instant nowInstant = Instant.now();
-            Instant endInstant = nowInstant.minusMillis(backoffPeriod);
-            Date endTime = Date.from(endInstant);
+            // do not attempt to pull any data from within x seconds of the start of the oldest ingest which has not yet committed
+            Date endTime = dataChangeFeed.getEndTime();
 
-            if (lastDownloadDate.toInstant().plusMillis(backoffPeriod).isAfter(nowInstant)) {
+            if (!lastDownloadDate.before(endTime)) {
                 System.out.println("-------");
                 System.out.println("request time of last data item downloaded is too soon: " + sdf.format(lastDownloadDate));
                 System.out.println("now time: " + sdf.format(new Date()));
@@ -128,4 +128,138 @@ public class RequestDataService {
         }
     }
 
+    /**
+     * Streams one page of the data for all the patients in a patient group
+     * directly to the response.
+     *
+     * Rather than querying each patient in turn and building the whole
+     * response in memory, a single query for the group returns the data in
+     * order of downloaded time and data id, and each row is written to the
+     * response as it is read from the DB. The rows are read in small batches,
+     * each continuing from the last row of the previous batch, so only one
+     * batch is held in memory at a time. At most limit rows are returned. If
+     * there may be more data a continuation cursor is returned which, when
+     * passed to the next request, resumes immediately after the last row
+     * returned. The end time of the request is carried in the cursor so that
+     * all the pages of one synchronisation cover the same period.
+     *
+     * The response is a JSON object containing the patient group, the end
+     * time of the synchronisation in epoch millis, the data as a list of
+     * PatientDataRequestDO (consecutive rows for the same patient are grouped
+     * together), the number of rows and the cursor for the next page, which is
+     * null when there is no more data
+     *
+     * @param patientGroupUuid patient group UUID to be requested
+     * @param lastDownloadDate last download date. Ignored if a cursor is
+     * passed
+     * @param cursor continuation cursor returned by the previous page or null
+     * to start from the last download date
+     * @param limit maximum number of data points to be returned or null for the
+     * configured page size
+     * @param response response to which the page is written
+     * @throws IOException if the response cannot be written
+     */
+    @Transactional(readOnly = true)
+    public void streamData(String patientGroupUuid, Date lastDownloadDate, String cursor, Integer limit, HttpServletResponse response) throws IOException {
+        int pageSize = getPageSize();
+        if (limit != null) {
+            if (limit < 1) {
+                throw new BadRequest400Exception("The limit must be greater than 0");
+            }
+            pageSize = Math.min(limit, pageSize);
+        }
+        Date afterTime;
+        int afterDataId;
+        Date endTime;
+        if (cursor == null) {
+            // do not attempt to pull any data from within x seconds of the start of the oldest ingest which has not yet committed
+            endTime = dataChangeFeed.getEndTime();
+            if (!lastDownloadDate.before(endTime)) {
+                response.setStatus(HttpStatus.NO_CONTENT.value());
+                return;
+            }
+            afterTime = lastDownloadDate;
+            afterDataId = Integer.MAX_VALUE;
+        } else {
+            String[] c = cursor.split(CURSORSEPARATOR);
+            try {
+                if (c.length != 3) {
+                    throw new NumberFormatException(cursor);
+                }
+                afterTime = new Date(Long.parseLong(c[0]));
+                afterDataId = Integer.parseInt(c[1]);
+                endTime = new Date(Long.parseLong(c[2]));
+            } catch (NumberFormatException nfe) {
+                throw new BadRequest400Exception("Invalid continuation cursor: " + cursor);
+            }
+        }
+        List<RecordingDeviceData> batch = recordingDeviceDataDAOImpl.findByGroupAfterDownloadCursor(patientGroupUuid, afterTime, afterDataId, endTime, Math.min(BATCHSIZE, pageSize));
+        if (batch.isEmpty()) {
+            response.setStatus(HttpStatus.NO_CONTENT.value());
+            return;
+        }
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        JsonGenerator jg = objectMapper.getFactory().createGenerator(response.getOutputStream());
+        jg.writeStartObject();
+        jg.writeStringField("patientGroupUuid", patientGroupUuid);
+        jg.writeNumberField("endTime", endTime.getTime());
+        jg.writeArrayFieldStart("data");
+        String currentPatient = null;
+        RecordingDeviceData last = null;
+        int rows = 0;
+        while (!batch.isEmpty()) {
+            for (RecordingDeviceData rdd : batch) {
+                String patientUuid = rdd.getPatientUuid().getPatientUuid();
+                if (!patientUuid.equals(currentPatient)) {
+                    if (currentPatient != null) {
+                        jg.writeEndArray();
+                        jg.writeEndObject();
+                    }
+                    jg.writeStartObject();
+                    jg.writeStringField("patientUuid", patientUuid);
+                    jg.writeArrayFieldStart("recordingDeviceDataList");
+                    currentPatient = patientUuid;
+                }
+                jg.writeObject(this.mapperFacade.map(rdd, RecordingDeviceData.class));
+                last = rdd;
+                rows++;
+            }
+            jg.flush();
+            if (batch.size() < BATCHSIZE || rows == pageSize) {
+                break;
+            }
+            // nothing read is changed so detach the rows already written to keep the session small
+            recordingDeviceDataDAOImpl.getEntityManager().clear();
+            batch = recordingDeviceDataDAOImpl.findByGroupAfterDownloadCursor(patientGroupUuid, last.getDownloadedTime(), last.getDataId(), endTime, Math.min(BATCHSIZE, pageSize - rows));
+        }
+        jg.writeEndArray();
+        jg.writeEndObject();
+        jg.writeEndArray();
+        jg.writeNumberField("rows", rows);
+        if (rows == pageSize) {
+            jg.writeStringField("nextCursor", last.getDownloadedTime().getTime() + CURSORSEPARATOR + last.getDataId() + CURSORSEPARATOR + endTime.getTime());
+        } else {
+            jg.writeNullField("nextCursor");
+        }
+        jg.writeEndObject();
+        jg.close();
+        System.out.println("patient group:" + patientGroupUuid + " streamed data items:" + rows);
+    }
+
+    private int getPageSize() {
+        String pageSizeString = utils.getProperties().getProperty(MEDIPICONCENTRATORREQUESTDATAPAGESIZE);
+        if (pageSizeString != null && pageSizeString.trim().length() != 0) {
+            try {
+                int pageSize = Integer.parseInt(pageSizeString.trim());
+                if (pageSize > 0) {
+                    return pageSize;
+                }
+            } catch (NumberFormatException numberFormatException) {
+                MediPiLogger.getInstance().log(RequestDataService.class.getName() + ".error", "Error - Cant read the request data page size from the properties file: " + numberFormatException.getLocalizedMessage());
+            }
+        }
+        return DEFAULTPAGESIZE;
+    }
+
 }
@@ -0,0 +1,189 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javafx.application.Platform;
+import javafx.scene.layout.BorderPane;
+import org.medipi.devices.Element;
+import org.medipi.logging.MediPiLogger;
+
+/**
+ * Class to instantiate and initialise the elements defined in the MediPi
+ * properties file when MediPi starts.
+ *
+ * The elements are initialised on worker threads so that the JavaFX
+ * application thread is free to show the dashboard while they load. Elements
+ * which can be initialised concurrently (see
+ * Element.canInitialiseConcurrently()) are initialised in parallel. An element
+ * which cannot waits until all the elements defined before it have been
+ * initialised and added to MediPi as it may use them during its own
+ * initialisation. Elements are always added to MediPi in the order in which
+ * they are defined and their tiles appear on the dashboard as they are added.
+ *
+ * The time taken to initialise each element is logged. An element which has
+ * not initialised within the timeout is reported and not loaded so that one
+ * hanging device driver does not stop the rest of MediPi from loading
+ *
+ * @author rick@robinsonhq.com
+ */
+class ElementLoader {
+
+    private static final String ELEMENTINITIALISATIONTIMEOUT = "medipi.elementinitialisation.timeout";
+    private static final long DEFAULTTIMEOUT = 60;
+    private final MediPi medipi;
+    private final Properties properties;
+    private final long timeout;
+    private final ExecutorService initService;
+
+    /**
+     * Constructor
+     *
+     * @param medipi reference to MediPi
+     * @param properties MediPi properties
+     * @throws NumberFormatException if the timeout property is not a number
+     * greater than 0
+     */
+    ElementLoader(MediPi medipi, Properties properties) throws NumberFormatException {
+        this.medipi = medipi;
+        this.properties = properties;
+        String t = properties.getProperty(ELEMENTINITIALISATIONTIMEOUT);
+        if (t == null || t.trim().length() == 0) {
+            timeout = DEFAULTTIMEOUT;
+        } else {
+            timeout = Long.parseLong(t.trim());
+            if (timeout <= 0) {
+                throw new NumberFormatException(ELEMENTINITIALISATIONTIMEOUT + " must be greater than 0");
+            }
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        initService = Executors.newCachedThreadPool((Runnable r) -> {
+            Thread thread = new Thread(r, "MediPi-element-init-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Method to load the elements in the background. When all the elements
+     * have been loaded MediPi is informed on the JavaFX application thread
+     *
+     * @param classTokens element class tokens in the order in which they are
+     * defined
+     */
+    void load(List<String> classTokens) {
+        Thread loader = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            List<LoadedElement> group = new ArrayList<>();
+            for (String classToken : classTokens) {
+                LoadedElement le = new LoadedElement(classToken);
+                if (le.element == null || le.element.canInitialiseConcurrently()) {
+                    le.future = initService.submit(le::initialise);
+                    group.add(le);
+                } else {
+                    // wait for everything before this element to be added
+                    addAll(group);
+                    group.clear();
+                    le.future = initService.submit(le::initialise);
+                    addAll(Collections.singletonList(le));
+                }
+            }
+            addAll(group);
+            initService.shutdown();
+            MediPiLogger.getInstance().log(MediPi.class.getName() + ".startup", "All elements initialised in " + (System.currentTimeMillis() - start) + "ms");
+            Platform.runLater(medipi::elementsLoaded);
+        }, "MediPi-element-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    // wait for each element in turn and add it to MediPi in order. Every element
+    // in the group shares the same deadline
+    private void addAll(List<LoadedElement> group) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        for (LoadedElement le : group) {
+            try {
+                BorderPane tile = le.future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (tile != null) {
+                    FutureTask<Void> add = new FutureTask<>(() -> {
+                        medipi.addElement(le.element, tile);
+                        return null;
+                    });
+                    Platform.runLater(add);
+                    add.get();
+                }
+            } catch (TimeoutException te) {
+                le.future.cancel(true);
+                MediPiMessageBox.getInstance().makeErrorMessage("Cannot instantiate an element: \n" + le.classToken + " - " + le.elementClass + " - it has not initialised within " + timeout + " seconds", null);
+            } catch (ExecutionException ee) {
+                Exception ex = ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+                MediPiMessageBox.getInstance().makeErrorMessage("Cannot instantiate an element: \n" + le.classToken + " - " + le.elementClass, ex);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private class LoadedElement {
+
+        private final String classToken;
+        private final String elementClass;
+        private Element element = null;
+        private Exception instantiationException = null;
+        private Future<BorderPane> future;
+
+        private LoadedElement(String classToken) {
+            this.classToken = classToken;
+            this.elementClass = properties.getProperty(MediPi.ELEMENTNAMESPACESTEM + classToken + ".class");
+            try {
+                element = (Element) Class.forName(elementClass).newInstance();
+                element.setMediPi(medipi);
+                element.setClassToken(classToken);
+            } catch (Exception ex) {
+                instantiationException = ex;
+            }
+        }
+
+        // returns the dashboard tile of the element or null if it failed to initialise
+        private BorderPane initialise() throws Exception {
+            if (instantiationException != null) {
+                throw instantiationException;
+            }
+            long start = System.currentTimeMillis();
+            String initError = element.init();
+            element.setElementTitle();
+            if (initError != null) {
+                MediPiMessageBox.getInstance().makeErrorMessage("Cannot instantiate an element: \n" + classToken + " - " + elementClass + " - " + initError, null);
+                return null;
+            }
+            BorderPane tile = element.getDashboardTile();
+            MediPiLogger.getInstance().log(MediPi.class.getName() + ".startup", "Element " + classToken + " initialised in " + (System.currentTimeMillis() - start) + "ms");
+            return tile;
+        }
+    }
+}
@@ -56,6 +56,7 @@ import javafx.geometry.HPos;
 import javafx.geometry.Insets;
 import javafx.geometry.Orientation;
 import javafx.geometry.Pos;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
@@ -168,6 +169,7 @@ public class MediPi extends Application implements UnlockConsumer {
     private final ArrayList<Element> elements = new ArrayList<>();
     private final ScrollPane dashTileSc = new ScrollPane();
     private VBox subWindow;
+    private TilePane dashTile;
     // Fatal error flag to stop use of MediPi - one way there is no set back to false
     private boolean fatalError = false;
     private final StringBuilder fatalErrorLog = new StringBuilder("There has been a fatal error: \n");
@@ -191,7 +193,7 @@ public class MediPi extends Application implements UnlockConsumer {
     private final Label patientSurname = new Label();
     private final Label nhsNumber = new Label();
     private final Label dob = new Label();
-    private Scheduler scheduler = null;
+    private volatile Scheduler scheduler = null;
     private String cssfile = null;
     private BooleanProperty unlocked = new SimpleBooleanProperty(false);
     private PollDownloads pim;
@@ -356,6 +358,7 @@ public class MediPi extends Application implements UnlockConsumer {
                 makeFatalErrorMessage("MediPi log directory is not set", null);
                 return;
             } else if (new File(log).isDirectory()) {
+                MediPiLogger.getInstance().configure(properties);
                 MediPiLogger.getInstance().setAppName("MEDIPI", log);
                 MediPiLogger.getInstance().log(MediPi.class.getName() + "startup", versionIdent);
             } else {
@@ -674,7 +677,6 @@ public class MediPi extends Application implements UnlockConsumer {
 
             lowerBanner.setRight(connectionLEDs);
             // Set up the Dashboard view
-            TilePane dashTile;
             dashTile = new TilePane();
             dashTile.setMinWidth(800);
             dashTile.setId("mainwindow-dashboard");
@@ -740,26 +742,18 @@ public class MediPi extends Application implements UnlockConsumer {
             // Add dashboard Tiles to the initial GUI structure
             String e = properties.getProperty(ELEMENTS);
             if (e != null && e.trim().length() != 0) {
+                ArrayList<String> classTokens = new ArrayList<>();
                 ConfigurationStringTokeniser cst = new ConfigurationStringTokeniser(e);
                 while (cst.hasMoreTokens()) {
-                    String classToken = cst.nextToken();
-                    String elementClass = properties.getProperty(ELEMENTNAMESPACESTEM + classToken + ".class");
-                    try {
-                        Element elem = (Element) Class.forName(elementClass).newInstance();
-                        elem.setMediPi(this);
-                        elem.setClassToken(classToken);
-                        String initError = elem.init();
-                        elem.setElementTitle();
-                        if (initError == null) {
-                            dashTile.getChildren().add(elem.getDashboardTile());
-                            elements.add(elem);
-                            subWindow.getChildren().add(elem.getWindowComponent());
-                        } else {
-                            MediPiMessageBox.getInstance().makeErrorMessage("Cannot instantiate an element: \n" + classToken + " - " + elementClass + " - " + initError, null);
-                        }
-                    } catch (Exception ex) {
-                        MediPiMessageBox.getInstance().makeErrorMessage("Cannot instantiate an element: \n" + classToken + " - " + elementClass, ex);
-                    }
+                    classTokens.add(cst.nextToken());
+                }
+                // The elements are initialised in the background and their tiles
+                // are added to the dashboard as they become ready
+                try {
+                    new ElementLoader(this, properties).load(classTokens);
+                } catch (NumberFormatException nfe) {
+                    makeFatalErrorMessage("Unable to load the elements - make sure that the element initialisation timeout is set correctly", nfe);
+                    return;
                 }
             } else {
                 makeFatalErrorMessage("No Elements have been defined", null);
@@ -774,35 +768,6 @@ public class MediPi extends Application implements UnlockConsumer {
                     System.exit(0);
                 });
             });
-            boolean downloadUpdates = false;
-            // what should MediPi do when exitting?
-            String downloadUpdatesString = properties.getProperty(MEDIPIDOWNLOADABLEDOWNLOADUPDATES);
-            if (downloadUpdatesString == null || downloadUpdatesString.trim().length() == 0 || downloadUpdatesString.toLowerCase().startsWith("n")) {
-                downloadUpdates = false;
-            } else {
-                downloadUpdates = true;
-            }
-
-            if (downloadUpdates) {
-                // add a ahndler for harware updates from MediPI Concentrator
-                dhm.addHandler("HARDWAREUPDATE", new HardwareHandler(properties));
-            }
-
-            if (dhm.hasHandlers()) {
-                // Start the downloadable timer. This wakes up every definable period (default set to 30s) 
-                // and performs functions to send restful messages to retreive the downloadable entities - Hardware and Patient Messages
-                try {
-                    String time = getProperties().getProperty(MEDIPIDOWNLOADPOLLPERIOD);
-                    if (time == null || time.trim().length() == 0) {
-                        time = "30";
-                    }
-                    incomingMessageCheckPeriod = Integer.parseInt(time);
-                    pim = new PollDownloads(this);
-                } catch (Exception nfe) {
-                    makeFatalErrorMessage("Unable to start the download service - make sure that " + MEDIPIDOWNLOADPOLLPERIOD + " property is set correctly", null);
-                    return;
-                }
-            }
             //set debug mode
             if (debugMode) {
                 System.setOut(ps);
@@ -823,6 +788,70 @@ public class MediPi extends Application implements UnlockConsumer {
         }
     }
 
+    /**
+     * Method to add an initialised element to MediPi. The element's tile is
+     * added to the dashboard straight away but its window is only added to
+     * the main window when it is first shown
+     *
+     * @param elem initialised element
+     * @param tile dashboard tile of the element
+     */
+    void addElement(Element elem, BorderPane tile) {
+        Node window = elem.getWindowComponent();
+        elem.hideDeviceWindow();
+        window.visibleProperty().addListener(new ChangeListener<Boolean>() {
+            @Override
+            public void changed(ObservableValue<? extends Boolean> observable, Boolean oldValue, Boolean newValue) {
+                if (newValue) {
+                    window.visibleProperty().removeListener(this);
+                    subWindow.getChildren().add(window);
+                }
+            }
+        });
+        dashTile.getChildren().add(tile);
+        elements.add(elem);
+    }
+
+    /**
+     * Method called once all the elements have been loaded to start the
+     * services which depend upon them
+     */
+    void elementsLoaded() {
+        boolean downloadUpdates = false;
+        // what should MediPi do when exitting?
+        String downloadUpdatesString = properties.getProperty(MEDIPIDOWNLOADABLEDOWNLOADUPDATES);
+        if (downloadUpdatesString == null || downloadUpdatesString.trim().length() == 0 || downloadUpdatesString.toLowerCase().startsWith("n")) {
+            downloadUpdates = false;
+        } else {
+            downloadUpdates = true;
+        }
+
+        if (downloadUpdates) {
+            // add a ahndler for harware updates from MediPI Concentrator
+            dhm.addHandler("HARDWAREUPDATE", new HardwareHandler(properties));
+        }
+
+        if (dhm.hasHandlers()) {
+            // Start the downloadable timer. This wakes up every definable period (default set to 30s) 
+            // and performs functions to send restful messages to retreive the downloadable entities - Hardware and Patient Messages
+            try {
+                String time = getProperties().getProperty(MEDIPIDOWNLOADPOLLPERIOD);
+                if (time == null || time.trim().length() == 0) {
+                    time = "30";
+                }
+                incomingMessageCheckPeriod = Integer.parseInt(time);
+                pim = new PollDownloads(this);
+            } catch (Exception nfe) {
+                makeFatalErrorMessage("Unable to start the download service - make sure that " + MEDIPIDOWNLOADPOLLPERIOD + " property is set correctly", null);
+                return;
+            }
+        }
+        // MediPi may have been unlocked while the elements were loading
+        if (unlocked.get()) {
+            startPollService();
+        }
+    }
+
     /**
      * Display Patient details in the Patient Banner
      *
@@ -858,7 +887,9 @@ public class MediPi extends Application implements UnlockConsumer {
 
         Optional<ButtonType> result = alert.showAndWait();
         if (result.get() == ButtonType.YES) {
-            POLLSERVICE.shutdownNow();
+            if (POLLSERVICE != null) {
+                POLLSERVICE.shutdownNow();
+            }
             WIFIMONITORSERVICE.shutdownNow();
             if (closeLinuxOS) {
                 executeCommand("sudo shutdown -h now");
@@ -1041,7 +1072,12 @@ public class MediPi extends Application implements UnlockConsumer {
     @Override
     public void unlocked() {
         unlocked.set(true);
-        if (dhm.hasHandlers()) {
+        startPollService();
+    }
+
+    private void startPollService() {
+        // the poller is created once all the elements have been loaded
+        if (pim != null && dhm.hasHandlers()) {
             // Start the downloadable timer. This wakes up every definable period (default set to 30s) 
             // and performs functions to send restful messages to retreive the downloadable entities - Hardware and Patient Messages
             try {
@@ -1057,7 +1093,10 @@ public class MediPi extends Application implements UnlockConsumer {
     @Override
     public void locked() {
         unlocked.set(false);
-        POLLSERVICE.shutdownNow();
+        // the poller is not started until all the elements have been loaded
+        if (POLLSERVICE != null) {
+            POLLSERVICE.shutdownNow();
+        }
     }
 
 }
@@ -17,7 +17,6 @@ package org.medipi.devices;
 
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.UUID;
 import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 
@@ -347,54 +346,19 @@ public abstract class BloodPressure extends Device {
      */
     @Override
     public DeviceDataDO getData() {
-        DeviceDataDO payload = new DeviceDataDO(UUID.randomUUID().toString());
-        StringBuilder sb = new StringBuilder();
-        //Add MetaData
-        sb.append("metadata->persist->medipiversion->").append(medipi.getVersion()).append("\n");
-        for (String s : metadata) {
-            sb.append("metadata->persist->").append(s).append("\n");
-        }
-        sb.append("metadata->make->").append(getMake()).append("\n");
-        sb.append("metadata->model->").append(getModel()).append("\n");
-        sb.append("metadata->displayname->").append(getSpecificDeviceDisplayName()).append("\n");
-        sb.append("metadata->datadelimiter->").append(medipi.getDataSeparator()).append("\n");
-        if (medipi.getScheduler() != null) {
-            sb.append("metadata->scheduleeffectivedate->").append(Utilities.ISO8601FORMATDATEMILLI_UTC.format(schedStartTime)).append("\n");
-            sb.append("metadata->scheduleexpirydate->").append(Utilities.ISO8601FORMATDATEMILLI_UTC.format(schedExpireTime)).append("\n");
-        }
-        sb.append("metadata->columns->");
-        for (String string : columns) {
-            sb.append(string).append(medipi.getDataSeparator());
-        }
-        //replace the last separator with a new line
-        sb.replace(sb.length() - medipi.getDataSeparator().length(), sb.length(), "\n");
-
-        sb.append("metadata->format->");
-        for (String string : format) {
-            sb.append(string).append(medipi.getDataSeparator());
-        }
-        //replace the last separator with a new line
-        sb.replace(sb.length() - medipi.getDataSeparator().length(), sb.length(), "\n");
-
-        sb.append("metadata->units->");
-        for (String string : units) {
-            sb.append(string).append(medipi.getDataSeparator());
-        }
-        //replace the last separator with a new line
-        sb.replace(sb.length() - medipi.getDataSeparator().length(), sb.length(), "\n");
-
-        // Add Downloaded data
-        for (ArrayList<String> dataLine : deviceData) {
-            for (String data : dataLine) {
-                sb.append(data).append(separator);
-            }
-            //replace the last separator with a new line
-            sb.replace(sb.length() - separator.length(), sb.length(), "\n");
-        }
-
-        payload.setProfileId(profileId);
-        payload.setPayload(sb.toString());
-        return payload;
+        // capture the data now as the payload is written when it is transmitted
+        ArrayList<String> persist = new ArrayList<>(metadata);
+        ArrayList<ArrayList<String>> rows = new ArrayList<>(deviceData);
+        Instant start = schedStartTime;
+        Instant expire = schedExpireTime;
+        return getWrittenData(profileId, out -> {
+            writeMetadata(out, persist, start, expire);
+            writeMetadataList(out, "columns", columns);
+            writeMetadataList(out, "format", format);
+            writeMetadataList(out, "units", units);
+            // Add Downloaded data
+            writeRows(out, rows);
+        });
     }
 
     /**
@@ -15,8 +15,13 @@
  */
 package org.medipi.devices;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.StringProperty;
@@ -28,6 +33,8 @@ import javafx.scene.layout.VBox;
 import javafx.scene.text.Text;
 import javafx.scene.text.TextAlignment;
 import org.medipi.model.DeviceDataDO;
+import org.medipi.model.PayloadWriter;
+import org.medipi.utilities.Utilities;
 
 /**
  * Main abstract class for Medical devices.
@@ -44,6 +51,11 @@ import org.medipi.model.DeviceDataDO;
  * transposing the raw data from the device into a common format which can be
  * passed to its generic abstract class.
  *
+ * Devices may return their data with a PayloadWriter rather than a String
+ * payload (see getWrittenData). The payload is then written in the MediPi
+ * native format straight into the encoding and compression of the upload
+ * when it is transmitted and is never held in memory as a whole
+ *
  * @author rick@robinsonhq.com
  */
 public abstract class Device extends Element {
@@ -81,6 +93,98 @@ public abstract class Device extends Element {
      */
     public abstract DeviceDataDO getData() throws Exception;
 
+    /**
+     * Devices are independent of each other so can be initialised at the same
+     * time as other Elements at startup
+     *
+     * @return true
+     */
+    @Override
+    public boolean canInitialiseConcurrently() {
+        return true;
+    }
+
+    /**
+     * Method to create a DeviceDataDO whose payload is written by a
+     * PayloadWriter when the data is transmitted. As the payload may be
+     * written after this method has returned and more than once, the writer
+     * must only use data captured when this method is called
+     *
+     * @param profileId profile ID to be used to identify the data
+     * @param writer writer of the payload
+     * @return DeviceDataDO representation of the data
+     */
+    protected DeviceDataDO getWrittenData(String profileId, PayloadWriter writer) {
+        DeviceDataDO payload = new DeviceDataDO(UUID.randomUUID().toString());
+        payload.setProfileId(profileId);
+        payload.setPayloadWriter(writer);
+        return payload;
+    }
+
+    /**
+     * Method to write the metadata which starts the payload of every device
+     *
+     * @param out writer of the payload
+     * @param persist metadata to be persisted in addition to the MediPi
+     * version
+     * @param schedStartTime start of the schedule in which the data was taken
+     * @param schedExpireTime expiry of the schedule in which the data was
+     * taken
+     * @throws IOException
+     */
+    protected void writeMetadata(Writer out, List<String> persist, Instant schedStartTime, Instant schedExpireTime) throws IOException {
+        out.append("metadata->persist->medipiversion->").append(medipi.getVersion()).append("\n");
+        for (String s : persist) {
+            out.append("metadata->persist->").append(s).append("\n");
+        }
+        out.append("metadata->make->").append(getMake()).append("\n");
+        out.append("metadata->model->").append(getModel()).append("\n");
+        out.append("metadata->displayname->").append(getSpecificDeviceDisplayName()).append("\n");
+        out.append("metadata->datadelimiter->").append(medipi.getDataSeparator()).append("\n");
+        if (medipi.getScheduler() != null) {
+            out.append("metadata->scheduleeffectivedate->").append(Utilities.ISO8601FORMATDATEMILLI_UTC.format(schedStartTime)).append("\n");
+            out.append("metadata->scheduleexpirydate->").append(Utilities.ISO8601FORMATDATEMILLI_UTC.format(schedExpireTime)).append("\n");
+        }
+    }
+
+    /**
+     * Method to write a metadata line holding a separated list of values e.g.
+     * the columns
+     *
+     * @param out writer of the payload
+     * @param name name of the metadata e.g. columns
+     * @param values values
+     * @throws IOException
+     */
+    protected void writeMetadataList(Writer out, String name, List<String> values) throws IOException {
+        out.append("metadata->").append(name).append("->");
+        writeLine(out, values);
+    }
+
+    /**
+     * Method to write the rows of data recorded by the device
+     *
+     * @param out writer of the payload
+     * @param rows rows of data
+     * @throws IOException
+     */
+    protected void writeRows(Writer out, List<? extends List<String>> rows) throws IOException {
+        for (List<String> row : rows) {
+            writeLine(out, row);
+        }
+    }
+
+    private void writeLine(Writer out, List<String> values) throws IOException {
+        String separator = medipi.getDataSeparator();
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                out.append(separator);
+            }
+            out.append(values.get(i));
+        }
+        out.append("\n");
+    }
+
     /**
      * Method to set the data payload
      *
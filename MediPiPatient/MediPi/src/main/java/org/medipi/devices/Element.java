@@ -441,6 +441,20 @@ public abstract class Element {
      */
     public abstract String init() throws Exception;
 
+    /**
+     * Method to define whether this Element can be initialised at the same
+     * time as other Elements at startup. An Element which cannot is only
+     * initialised once all the Elements defined before it have been loaded,
+     * so that it may use them (e.g. through MediPi.getElements()). Elements
+     * are initialised away from the JavaFX application thread in either case
+     *
+     * @return true if this Element does not use other Elements in its
+     * initialisation
+     */
+    public boolean canInitialiseConcurrently() {
+        return false;
+    }
+
     /**
      * Abstract getter for the Element Name
      *
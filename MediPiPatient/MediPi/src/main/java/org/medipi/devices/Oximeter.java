@@ -17,7 +17,6 @@ package org.medipi.devices;
 
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.UUID;
 import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.property.IntegerProperty;
@@ -52,6 +51,10 @@ import org.medipi.utilities.Utilities;
  * to other classes and allows the classes which are specific to a particular
  * device to set data
  *
+ * Devices which stream their samples may pass them as an OximeterSampleBuffer
+ * rather than as rows of strings. The samples are only formatted when the
+ * data is requested for transmission
+ *
  * @author rick@robinsonhq.com
  */
 public abstract class Oximeter extends Device {
@@ -60,6 +63,7 @@ public abstract class Oximeter extends Device {
     private static final String PROFILEID = "urn:nhs-en:profile:Oximeter";
     protected Button actionButton;
     private ArrayList<ArrayList<String>> deviceData = new ArrayList<>();
+    private OximeterSampleBuffer samples = null;
     private Instant schedStartTime = null;
     private Instant schedExpireTime = null;
     private VBox oxiWindow;
@@ -259,6 +263,7 @@ public abstract class Oximeter extends Device {
     @Override
     public void resetDevice() {
         deviceData = new ArrayList<>();
+        samples = null;
         hasData.set(false);
         metadata.clear();
         pulse.set(0);
@@ -276,55 +281,34 @@ public abstract class Oximeter extends Device {
      */
     @Override
     public DeviceDataDO getData() {
-        DeviceDataDO payload = new DeviceDataDO(UUID.randomUUID().toString());
-        StringBuilder sb = new StringBuilder();
-
-        //Add MetaData
-        sb.append("metadata->persist->medipiversion->").append(medipi.getVersion()).append("\n");
-        for (String s : metadata) {
-            sb.append("metadata->persist->").append(s).append("\n");
-        }
-        sb.append("metadata->make->").append(getMake()).append("\n");
-        sb.append("metadata->model->").append(getModel()).append("\n");
-        sb.append("metadata->displayname->").append(getSpecificDeviceDisplayName()).append("\n");
-        sb.append("metadata->datadelimiter->").append(separator).append("\n");
-        if (medipi.getScheduler() != null) {
-            sb.append("metadata->scheduleeffectivedate->").append(Utilities.ISO8601FORMATDATEMILLI_UTC.format(schedStartTime)).append("\n");
-            sb.append("metadata->scheduleexpirydate->").append(Utilities.ISO8601FORMATDATEMILLI_UTC.format(schedExpireTime)).append("\n");
-        }
-        sb.append("metadata->columns->");
-        for (String string : columns) {
-            sb.append(string).append(separator);
-        }
-        //replace the last separator with a new line
-        sb.replace(sb.length() - separator.length(), sb.length(), "\n");
-
-        sb.append("metadata->format->");
-        for (String string : format) {
-            sb.append(string).append(separator);
-        }
-        //replace the last separator with a new line
-        sb.replace(sb.length() - separator.length(), sb.length(), "\n");
-
-        sb.append("metadata->units->");
-        for (String string : units) {
-            sb.append(string).append(separator);
-        }
-        //replace the last separator with a new line
-        sb.replace(sb.length() - separator.length(), sb.length(), "\n");
-
-        // Add Downloaded data
-        for (ArrayList<String> dataLine : deviceData) {
-            for (String data : dataLine) {
-                sb.append(data).append(separator);
+        // capture the data now as the payload is written when it is transmitted
+        ArrayList<String> persist = new ArrayList<>(metadata);
+        ArrayList<ArrayList<String>> rows = new ArrayList<>(deviceData);
+        OximeterSampleBuffer streamed = samples;
+        Instant start = schedStartTime;
+        Instant expire = schedExpireTime;
+        return getWrittenData(PROFILEID, out -> {
+            writeMetadata(out, persist, start, expire);
+            writeMetadataList(out, "columns", columns);
+            writeMetadataList(out, "format", format);
+            writeMetadataList(out, "units", units);
+            // Add Downloaded data
+            writeRows(out, rows);
+            // Add streamed data
+            if (streamed != null) {
+                for (int i = 0; i < streamed.size(); i++) {
+                    out.append(Utilities.ISO8601FORMATDATEMILLI_UTC.format(Instant.ofEpochMilli(streamed.getTime(i)))).append(separator);
+                    out.append(String.valueOf(streamed.getPulse(i))).append(separator);
+                    out.append(String.valueOf(streamed.getSpO2(i)));
+                    if (streamed.hasWave()) {
+                        float w = streamed.getWave(i);
+                        out.append(separator);
+                        out.append(w == (int) w ? String.valueOf((int) w) : String.valueOf(w));
+                    }
+                    out.append("\n");
+                }
             }
-            //replace the last separator with a new line
-            sb.replace(sb.length() - separator.length(), sb.length(), "\n");
-        }
-
-        payload.setProfileId(PROFILEID);
-        payload.setPayload(sb.toString());
-        return payload;
+        });
     }
 
     @Override
@@ -353,6 +337,32 @@ public abstract class Oximeter extends Device {
 
     }
 
+    /**
+     * Set the data streamed from the device. Samples with timestamps which
+     * are not acceptable are discarded from the buffer
+     *
+     * @param data samples streamed from the device
+     */
+    public void setData(OximeterSampleBuffer data) {
+        int[] range = deviceTimestampChecker.checkTimestamp(data::getTime, data.size());
+        String dataCheckMessage = null;
+        if ((dataCheckMessage = deviceTimestampChecker.getMessages()) != null) {
+            MediPiMessageBox.getInstance().makeMessage(getSpecificDeviceDisplayName() + "\n" + dataCheckMessage);
+        }
+        if (range != null) {
+            data.retain(range[0], range[1]);
+            int last = data.size() - 1;
+            displayData(Instant.ofEpochMilli(data.getTime(last)), data.getPulse(last), data.getSpO2(last));
+            hasData.set(true);
+            samples = data;
+            Scheduler scheduler = null;
+            if ((scheduler = medipi.getScheduler()) != null) {
+                schedStartTime = scheduler.getCurrentScheduleStartTime();
+                schedExpireTime = scheduler.getCurrentScheduleExpiryTime();
+            }
+        }
+    }
+
     protected void displayData(Instant time, int pulse, int spo2) {
         Platform.runLater(() -> {
             this.pulse.set(pulse);
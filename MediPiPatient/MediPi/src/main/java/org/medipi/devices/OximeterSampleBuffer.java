@@ -0,0 +1,183 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices;
+
+/**
+ * Columnar ring buffer for the samples streamed from an oximeter.
+ *
+ * Streaming oximeters send around 60 samples a second. Rather than creating a
+ * set of strings for every sample, each sample is written directly into
+ * primitive arrays which are allocated once when the recording starts so that
+ * the memory used by a recording is bounded. When the buffer is full either
+ * the oldest samples are overwritten, which is used when only the means are
+ * transmitted, or new samples are refused so that a transmitted series is
+ * never missing its start. The means are kept over every sample recorded,
+ * including any which have been overwritten, but not over refused samples.
+ *
+ * Samples are written by the serial listener and read by the UI and
+ * transmitter threads so all access is synchronised
+ *
+ * @author rick@robinsonhq.com
+ */
+public class OximeterSampleBuffer {
+
+    private final long[] times;
+    private final short[] pulse;
+    private final short[] spO2;
+    private final float[] wave;
+    private final boolean overwrite;
+    private int head = 0;
+    private int size = 0;
+    private long recorded = 0;
+    private long sumPulse = 0;
+    private long sumSpO2 = 0;
+
+    /**
+     * Constructor
+     *
+     * @param capacity maximum number of samples held
+     * @param withWave whether the pulse waveform is to be held
+     * @param overwrite whether the oldest samples are overwritten when the
+     * buffer is full rather than new samples being refused
+     */
+    public OximeterSampleBuffer(int capacity, boolean withWave, boolean overwrite) {
+        this.overwrite = overwrite;
+        times = new long[capacity];
+        pulse = new short[capacity];
+        spO2 = new short[capacity];
+        wave = withWave ? new float[capacity] : null;
+    }
+
+    /**
+     * Add a sample. If the buffer is full the oldest sample is overwritten or
+     * the sample is refused
+     *
+     * @param epochMilli time of the sample
+     * @param pulseRate pulse in BPM
+     * @param spO2Rate SpO2 in %
+     * @param waveForm pulse waveform value - ignored if the waveform is not
+     * held
+     * @return false if the sample was refused because the buffer is full
+     */
+    public synchronized boolean add(long epochMilli, int pulseRate, int spO2Rate, float waveForm) {
+        int i = (head + size) % times.length;
+        if (size == times.length) {
+            if (!overwrite) {
+                return false;
+            }
+            head = (head + 1) % times.length;
+        } else {
+            size++;
+        }
+        times[i] = epochMilli;
+        pulse[i] = (short) pulseRate;
+        spO2[i] = (short) spO2Rate;
+        if (wave != null) {
+            wave[i] = waveForm;
+        }
+        recorded++;
+        sumPulse += pulseRate;
+        sumSpO2 += spO2Rate;
+        return true;
+    }
+
+    /**
+     * Discard the samples outside of a range. Used when some of the samples
+     * are rejected by their timestamp
+     *
+     * @param from index of the first sample to keep
+     * @param to index after the last sample to keep
+     */
+    public synchronized void retain(int from, int to) {
+        head = (head + from) % times.length;
+        size = to - from;
+    }
+
+    /**
+     * @return the number of samples held
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the buffer is full and does not overwrite its oldest
+     * samples, so no more samples can be recorded
+     */
+    public synchronized boolean isFull() {
+        return !overwrite && size == times.length;
+    }
+
+    /**
+     * @return the number of samples recorded including those overwritten
+     */
+    public synchronized long getRecordedCount() {
+        return recorded;
+    }
+
+    /**
+     * @return true if the waveform is held
+     */
+    public boolean hasWave() {
+        return wave != null;
+    }
+
+    /**
+     * @param index index of the sample where 0 is the oldest sample held
+     * @return time of the sample in epoch milliseconds
+     */
+    public synchronized long getTime(int index) {
+        return times[(head + index) % times.length];
+    }
+
+    /**
+     * @param index index of the sample where 0 is the oldest sample held
+     * @return pulse in BPM
+     */
+    public synchronized int getPulse(int index) {
+        return pulse[(head + index) % times.length];
+    }
+
+    /**
+     * @param index index of the sample where 0 is the oldest sample held
+     * @return SpO2 in %
+     */
+    public synchronized int getSpO2(int index) {
+        return spO2[(head + index) % times.length];
+    }
+
+    /**
+     * @param index index of the sample where 0 is the oldest sample held
+     * @return pulse waveform value
+     */
+    public synchronized float getWave(int index) {
+        return wave[(head + index) % times.length];
+    }
+
+    /**
+     * @return mean pulse of all the samples recorded
+     */
+    public synchronized int getMeanPulse() {
+        return recorded == 0 ? 0 : (int) (sumPulse / recorded);
+    }
+
+    /**
+     * @return mean SpO2 of all the samples recorded
+     */
+    public synchronized int getMeanSpO2() {
+        return recorded == 0 ? 0 : (int) (sumSpO2 / recorded);
+    }
+}
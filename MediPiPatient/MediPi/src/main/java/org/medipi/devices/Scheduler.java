@@ -26,6 +26,7 @@ import java.nio.file.Path;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.UUID;
 import java.util.concurrent.Executors;
@@ -180,6 +181,17 @@ public class Scheduler extends Device {
 
     }
 
+    /**
+     * The Scheduler registers itself with MediPi during its initialisation and
+     * is used by other Elements so it is initialised on its own
+     *
+     * @return false
+     */
+    @Override
+    public boolean canInitialiseConcurrently() {
+        return false;
+    }
+
     /**
      * Initiation method called for this Element.
      *
@@ -732,55 +744,29 @@ public class Scheduler extends Device {
 
     @Override
     public DeviceDataDO getData() {
-        DeviceDataDO payload = new DeviceDataDO(UUID.randomUUID().toString());
-        String separator = medipi.getDataSeparator();
-        StringBuilder sb = new StringBuilder();
-        //Add MetaData
-        sb.append("metadata->persist->medipiversion->").append(medipi.getVersion()).append("\n");
-        sb.append("metadata->make->").append(getMake()).append("\n");
-        sb.append("metadata->model->").append(getModel()).append("\n");
-        sb.append("metadata->displayname->").append(getSpecificDeviceDisplayName()).append("\n");
-        sb.append("metadata->datadelimiter->").append(medipi.getDataSeparator()).append("\n");
-        sb.append("metadata->scheduleeffectivedate->").append(Utilities.ISO8601FORMATDATEMILLI_UTC.format(getCurrentScheduleStartTime())).append("\n");
-        sb.append("metadata->scheduleexpirydate->").append(Utilities.ISO8601FORMATDATEMILLI_UTC.format(getCurrentScheduleExpiryTime())).append("\n");
-        sb.append("metadata->columns->")
-                .append("iso8601time").append(medipi.getDataSeparator())
-                .append("id").append(medipi.getDataSeparator())
-                .append("type").append(medipi.getDataSeparator())
-                .append("repeat").append(medipi.getDataSeparator())
-                .append("devices").append("\n");
-        sb.append("metadata->format->")
-                .append("DATE").append(medipi.getDataSeparator())
-                .append("STRING").append(medipi.getDataSeparator())
-                .append("STRING").append(medipi.getDataSeparator())
-                .append("INTEGER").append(medipi.getDataSeparator())
-                .append("STRING").append("\n");
-        sb.append("metadata->units->")
-                .append("NONE").append(medipi.getDataSeparator())
-                .append("NONE").append(medipi.getDataSeparator())
-                .append("NONE").append(medipi.getDataSeparator())
-                .append("NONE").append(medipi.getDataSeparator())
-                .append("NONE").append("\n");
-        for (ScheduleItem sched : deviceData) {
-            sb.append(Instant.ofEpochMilli(sched.getTime()).toString());
-            sb.append(separator);
-            sb.append(sched.getUUIDDisp());
-            sb.append(separator);
-            sb.append(sched.getEventTypeDisp());
-            sb.append(separator);
-            sb.append(sched.getRepeatDisp());
-            sb.append(separator);
-            StringBuilder devices = new StringBuilder();
-            for (String dev : sched.getDeviceSched()) {
-                devices.append(dev);
-                devices.append(" ");
+        // capture the data now as the payload is written when it is transmitted
+        ArrayList<ScheduleItem> items = new ArrayList<>(deviceData);
+        Instant start = getCurrentScheduleStartTime();
+        Instant expire = getCurrentScheduleExpiryTime();
+        return getWrittenData(PROFILEID, out -> {
+            writeMetadata(out, new ArrayList<>(), start, expire);
+            writeMetadataList(out, "columns", Arrays.asList("iso8601time", "id", "type", "repeat", "devices"));
+            writeMetadataList(out, "format", Arrays.asList("DATE", "STRING", "STRING", "INTEGER", "STRING"));
+            writeMetadataList(out, "units", Arrays.asList("NONE", "NONE", "NONE", "NONE", "NONE"));
+            String separator = medipi.getDataSeparator();
+            for (ScheduleItem sched : items) {
+                out.append(Instant.ofEpochMilli(sched.getTime()).toString());
+                out.append(separator);
+                out.append(sched.getUUIDDisp());
+                out.append(separator);
+                out.append(sched.getEventTypeDisp());
+                out.append(separator);
+                out.append(String.valueOf(sched.getRepeatDisp()));
+                out.append(separator);
+                out.append(String.join(" ", sched.getDeviceSched()).trim());
+                out.append("\n");
             }
-            sb.append(devices.toString().trim());
-            sb.append("\n");
-        }
-        payload.setProfileId(PROFILEID);
-        payload.setPayload(sb.toString());
-        return payload;
+        });
     }
 
     @Override
@@ -57,9 +57,11 @@ import org.medipi.DashboardTile;
 import org.medipi.MediPi;
 import org.medipi.MediPiMessageBox;
 import org.medipi.MediPiProperties;
+import org.medipi.messaging.TransmissionOutbox;
 import org.medipi.security.CertificateDefinitions;
 import org.medipi.model.DevicesPayloadDO;
 import org.medipi.model.EncryptedAndSignedUploadDO;
+import org.medipi.model.PayloadCodec;
 import org.medipi.utilities.Utilities;
 
 /**
@@ -83,6 +85,11 @@ import org.medipi.utilities.Utilities;
  * transmitted using the device certificate to communicate to the concentrator
  * using TLSMA
  *
+ * The encrypted and signed data is sealed into the TransmissionOutbox on the
+ * local drive when the patient transmits, so the patient does not need to be
+ * connected to transmit. The outbox sends it to the concentrator as soon as
+ * the connection is available
+ *
  *
  * There is some functionality left in here to be used in the future but is not
  * currently employed: Transmit Status
@@ -96,8 +103,29 @@ public abstract class Transmitter extends Element {
 
     private static final String INTERACTION = "urn:nhs-itk:interaction:MediPi";
     private static final String OUTBOUNDPAYLOAD = "medipi.outboundpayload";
+    private static final String PAYLOADCODEC = "medipi.transmit.payloadcodec";
+    private static final String PAYLOADCOMPRESSION = "medipi.transmit.compression";
     private static final String NAME = "Transmitter";
     private static final String DISPLAYNAME = "MediPi Transmitter";
+    private static final String DATAFORMAT = "MediPiNative";
+
+    /**
+     * Outcome of transmitting a single upload to the concentrator
+     */
+    public enum Outcome {
+        /**
+         * the concentrator has acknowledged the upload
+         */
+        TRANSMITTED,
+        /**
+         * the concentrator will never accept the upload
+         */
+        REJECTED,
+        /**
+         * the upload could not be sent and is to be retried
+         */
+        FAILED
+    }
 
     private final ScrollPane transmitDataBoxSc = new ScrollPane();
     private final BooleanProperty isTransmitting = new SimpleBooleanProperty(false);
@@ -107,6 +135,7 @@ public abstract class Transmitter extends Element {
     protected String auditIdentity;
     private ArrayList<Element> transmitterElementList = new ArrayList<>();
     private final BooleanProperty taskRunningProperty = new SimpleBooleanProperty(false);
+    private TransmissionOutbox outbox;
 
     /**
      * Transmit button
@@ -233,7 +262,7 @@ public abstract class Transmitter extends Element {
         ObservableList<BooleanProperty> chkList;
         chkList = FXCollections.observableList(al);
         BooleanBinding bb = conjunction(chkList);
-        transmitButton.disableProperty().bind(bb.not().or(medipi.wifiSync.not()).or(taskRunningProperty));
+        transmitButton.disableProperty().bind(bb.not().or(taskRunningProperty));
 
         transmitterWindow.getChildren()
                 .addAll(
@@ -247,6 +276,13 @@ public abstract class Transmitter extends Element {
 
         transmitButton();
 
+        outbox = new TransmissionOutbox(medipi, this);
+        String outboxError = outbox.init();
+        if (outboxError != null) {
+            return outboxError;
+        }
+        outbox.start();
+
         return null;
     }
 
@@ -332,6 +368,8 @@ public abstract class Transmitter extends Element {
                                 if (error != null) {
                                     throw new Exception(error);
                                 }
+                                uploadEncryptionAdapter.setPayloadCodec(getPayloadCodec());
+                                uploadEncryptionAdapter.setCompression(getPayloadCompression());
                                 EncryptedAndSignedUploadDO encryptedMessage = uploadEncryptionAdapter.encryptAndSign(devicesPayload);
                                 try {
                                     // save a copy of the data to file if required
@@ -392,41 +430,35 @@ public abstract class Transmitter extends Element {
                                         }
 
                                     }
-                                    // Send message
-                                    if (transmit(encryptedMessage)) {
-                                        // if it is being run as part of a schedule then write TRANSMITTED line back to Schedule
-                                        ArrayList<String> transmitList = new ArrayList<>();
-                                        for (Element e : transmitterElementList) {
-                                            CheckBox cb = deviceCheckBox.get(e.getClassTokenName());
-                                            if (cb != null && cb.isSelected() && cb.isVisible()) {
-                                                if (isThisElementPartOfAScheduleExecution.get()) {
-                                                    transmitList.add(e.getClassTokenName());
-                                                }
-                                                if (Device.class.isAssignableFrom(e.getClass())) {
-                                                    Device d = (Device) e;
-                                                    Platform.runLater(() -> {
-                                                        d.resetDevice();
-                                                    });
-                                                }
+                                    // Seal the message into the outbox - it is sent when the connection is available
+                                    outbox.seal(devicesPayload.getUploadUuid(), getDataFormat(), encryptedMessage);
+                                    // if it is being run as part of a schedule then write TRANSMITTED line back to Schedule
+                                    ArrayList<String> transmitList = new ArrayList<>();
+                                    for (Element e : transmitterElementList) {
+                                        CheckBox cb = deviceCheckBox.get(e.getClassTokenName());
+                                        if (cb != null && cb.isSelected() && cb.isVisible()) {
+                                            if (isThisElementPartOfAScheduleExecution.get()) {
+                                                transmitList.add(e.getClassTokenName());
+                                            }
+                                            if (Device.class.isAssignableFrom(e.getClass())) {
+                                                Device d = (Device) e;
+                                                Platform.runLater(() -> {
+                                                    d.resetDevice();
+                                                });
                                             }
                                         }
-                                        if (isThisElementPartOfAScheduleExecution.get()) {
-                                            medipi.getScheduler().addScheduleData("TRANSMITTED", Instant.now(), transmitList);
-                                        }
-                                        medipi.callDashboard();
-
-                                        Platform.runLater(() -> {
-                                            medipi.resetAllDevices();
-                                            MediPiMessageBox.getInstance().makeMessage(getTransmissionResponse());
-                                        });
-
-                                    } else {
-                                        Platform.runLater(() -> {
-                                            MediPiMessageBox.getInstance().makeErrorMessage(getTransmissionResponse(), null);
-                                        });
                                     }
+                                    if (isThisElementPartOfAScheduleExecution.get()) {
+                                        medipi.getScheduler().addScheduleData("TRANSMITTED", Instant.now(), transmitList);
+                                    }
+                                    medipi.callDashboard();
+
+                                    Platform.runLater(() -> {
+                                        medipi.resetAllDevices();
+                                        MediPiMessageBox.getInstance().makeMessage("Thank you! Your recordings have been saved and will be sent to your clinician.");
+                                    });
                                 } catch (Exception ex) {
-                                    MediPiMessageBox.getInstance().makeErrorMessage("Error transmitting message to recipient", ex);
+                                    MediPiMessageBox.getInstance().makeErrorMessage("Error saving the message for transmission", ex);
                                 }
                             } catch (Exception ex) {
                                 MediPiMessageBox.getInstance().makeErrorMessage("Error encrypting and signing the data payload", ex);
@@ -505,12 +537,67 @@ public abstract class Transmitter extends Element {
     }
 
     /**
-     * Transmit the message using the chosen method
+     * Get the codec used to encode the payload before it is signed and
+     * encrypted. The concentrator is told which codec has been used in the
+     * Data-Format header
+     *
+     * @return codec token or null if the payload is to be Java serialized
+     */
+    protected String getPayloadCodec() {
+        String codec = medipi.getProperties().getProperty(PAYLOADCODEC);
+        if (codec == null || codec.trim().isEmpty()) {
+            return null;
+        }
+        return codec.trim();
+    }
+
+    /**
+     * Get the compression applied to the payload before it is signed and
+     * encrypted. The concentrator is told which compression has been used in
+     * the Data-Format header
+     *
+     * @return compression token or null if the payload is not compressed
+     */
+    protected String getPayloadCompression() {
+        String compression = medipi.getProperties().getProperty(PAYLOADCOMPRESSION);
+        if (compression == null || compression.trim().isEmpty()) {
+            return null;
+        }
+        return compression.trim();
+    }
+
+    /**
+     * Get the Data-Format header which tells the concentrator how the payload
+     * has been encoded. It is sealed into the outbox with the payload
+     *
+     * @return Data-Format header
+     */
+    protected String getDataFormat() {
+        return PayloadCodec.getDataFormatHeader(DATAFORMAT, getPayloadCodec(), getPayloadCompression());
+    }
+
+    /**
+     * Open a session in which one or more messages are transmitted
+     *
+     * @return true if messages can be transmitted
+     */
+    public abstract boolean openTransmissionSession();
+
+    /**
+     * Transmit the message using the chosen method. Called by the
+     * TransmissionOutbox between opening and closing a session
      *
      * @param message - payload to be wrapped and transmitted
-     * @return String - if transmission was successful return null
+     * @param dataFormat - Data-Format header sealed with the payload
+     * @return Outcome - whether the message was transmitted, rejected or is
+     * to be retried
+     */
+    public abstract Outcome transmit(EncryptedAndSignedUploadDO message, String dataFormat);
+
+    /**
+     * Close the session opened by openTransmissionSession
      */
-    public abstract Boolean transmit(EncryptedAndSignedUploadDO message);
+    public abstract void closeTransmissionSession();
 
     /**
      * Get the transmission response message
@@ -15,13 +15,8 @@
  */
 package org.medipi.devices.drivers;
 
-import java.io.BufferedReader;
-import java.io.IOException;
 import java.time.Instant;
-import java.time.ZonedDateTime;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.regex.Pattern;
 import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.concurrent.Task;
@@ -29,8 +24,8 @@ import org.medipi.logging.MediPiLogger;
 import org.medipi.MediPi;
 import org.medipi.MediPiMessageBox;
 import org.medipi.devices.Oximeter;
+import org.medipi.devices.OximeterSampleBuffer;
 import org.medipi.devices.drivers.domain.CMS50DPlusMeasurement;
-import org.medipi.utilities.Utilities;
 
 /**
  * An implementation of a specific device - ContecCMS50DPlus retrieving data
@@ -43,6 +38,12 @@ import org.medipi.utilities.Utilities;
  * This class defines the device which is to be connected, defines the data to
  * be collected and passes this forward to the generic device class
  *
+ * The streamed samples are held in an OximeterSampleBuffer of at most
+ * .data.maximumsamples samples and the display is refreshed from it a few
+ * times a second. When only the averages are transmitted the oldest samples
+ * are overwritten once the buffer is full, otherwise the recording is stopped
+ * and the patient is told so that the transmitted series is complete
+ *
  * @author rick@robinsonhq.com
  */
 public class ContecCMS50DPlus extends Oximeter {
@@ -52,16 +53,12 @@ public class ContecCMS50DPlus extends Oximeter {
     private static final String DISPLAYNAME = "Contec CMS50D+ Finger Pulse Oximeter";
     private static final String RECORD = "Record";
     private static final String STOP = "Stop";
+    private static final long DISPLAYREFRESHPERIOD = 250;
     private CMS50DPlusMeasurement measurement;
-    private int spO2DataCounter = 1;
-    private int pulseRateDataCounter = 1;
-    private int sumPulseRate = 0;
-    private int sumSpO2Rate = 0;
-    private int meanPulse = 0;
-    private int meanSpO2 = 0;
-    private Instant endTime;
     private boolean transmitAverages = true;
-    private ArrayList<ArrayList<String>> verboseDeviceData = new ArrayList<>();
+    // 10 minutes of samples at 60 samples a second
+    private int maximumSamples = 36000;
+    private OximeterSampleBuffer samples;
     /**
      * The main task. It is exposed to allow the concrete driver class to
      * control the main task. This is due to the fact that the device is
@@ -92,6 +89,17 @@ public class ContecCMS50DPlus extends Oximeter {
         } else {
             transmitAverages = !b.toLowerCase().startsWith("n");
         }
+        String max = medipi.getProperties().getProperty(MediPi.ELEMENTNAMESPACESTEM + getClassTokenName() + ".data.maximumsamples");
+        if (max != null && max.trim().length() > 0) {
+            try {
+                maximumSamples = Integer.parseInt(max.trim());
+                if (maximumSamples < 1) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException nfe) {
+                return "Cannot set the maximum number of samples for " + MAKE + " " + MODEL + " - for " + deviceNamespace + ".data.maximumsamples";
+            }
+        }
 
         initialButtonText = RECORD;
         initialGraphic = medipi.utils.getImageView("medipi.images.record", 20, 20);
@@ -114,7 +122,7 @@ public class ContecCMS50DPlus extends Oximeter {
         if (!transmitAverages) {
             units.add("NONE");
         }
-        measurement = new CMS50DPlusMeasurement(portName, medipi.getDataSeparator());
+        measurement = new CMS50DPlusMeasurement(portName);
         return super.init();
     }
 
@@ -137,6 +145,7 @@ public class ContecCMS50DPlus extends Oximeter {
     }
 
     private void processData() {
+        samples = new OximeterSampleBuffer(maximumSamples, !transmitAverages, transmitAverages);
         task = new Task<String>() {
             ArrayList<ArrayList<String>> data = new ArrayList<>();
 
@@ -144,40 +153,32 @@ public class ContecCMS50DPlus extends Oximeter {
             protected String call() throws Exception {
                 try {
                     updateValue("Is the device plugged in?");
-                    BufferedReader stdInput = measurement.startSerialDevice(task);
-                    if (stdInput != null) {
+                    if (measurement.startSerialDevice(task, samples)) {
                         updateValue("No readings taken");
-                        String readData = new String();
-                        while (true) {
+                        while (!isCancelled()) {
                             try {
-                                readData = stdInput.readLine();
-                            } catch (IOException i) {
-                                // This happens when the connection is dropped when stop is pressed
+                                Thread.sleep(DISPLAYREFRESHPERIOD);
+                            } catch (InterruptedException ie) {
+                                // This happens when stop is pressed
                                 break;
                             }
-                            if (readData == null) {
+                            if (samples.isFull()) {
+                                // no more samples can be held - end the recording with the samples taken so far
+                                measurement.stopSerialDevice();
+                                String message = "The maximum recording time has been reached and the recording has been stopped";
+                                MediPiMessageBox.getInstance().makeMessage(getSpecificDeviceDisplayName() + "\n" + message);
+                                displayData(Instant.ofEpochMilli(samples.getTime(samples.size() - 1)), samples.getMeanPulse(), samples.getMeanSpO2());
+                                return "INPROGRESS";
+                            }
+                            if (measurement.isStopping() && !isCancelled()) {
+                                // the connection to the device has been dropped
                                 return "no data from device";
-                            } else if (readData.equals("-1")) {
-                                return "end of data stream from oximeter";
-                            } else {
-                                String[] line = readData.split(Pattern.quote(separator));
-                                ArrayList<String> lineList = new ArrayList<>(Arrays.asList(line));
-                                ZonedDateTime zdt = ZonedDateTime.parse(line[0], Utilities.ISO8601FORMATDATEMILLI_UTC);
-                                final Instant timestamp = zdt.toInstant();
-                                final int pulse = Integer.parseInt(line[1]);
-                                final int spO2 = Integer.parseInt(line[2]);
-                                if (transmitAverages) {
-                                    lineList.remove(3);
-                                }
-                                // add the data to the data array
-                                if (pulse > 0 && spO2 > 0) {
-                                    updateValue("INPROGRESS");
-                                    verboseDeviceData.add(lineList);
-                                    // add the data to the screen display - this might be a graph/table 
-                                    // or just a simple result of the last measure
-                                    averageAndDisplay(timestamp, pulse, spO2);
-                                }
-
+                            }
+                            if (samples.size() > 0) {
+                                updateValue("INPROGRESS");
+                                // add the data to the screen display - this might be a graph/table
+                                // or just a simple result of the mean measures
+                                displayData(Instant.ofEpochMilli(samples.getTime(samples.size() - 1)), samples.getMeanPulse(), samples.getMeanSpO2());
                             }
                         }
                     }
@@ -224,17 +225,17 @@ public class ContecCMS50DPlus extends Oximeter {
             }
 
             private void makeDataAvailableForDownload() {
-                if (!verboseDeviceData.isEmpty()) {
+                if (samples.size() > 0) {
                     if (transmitAverages) {
                         ArrayList<String> al = new ArrayList<>();
-                        al.add(endTime.toString());
-                        al.add(String.valueOf(meanPulse));
-                        al.add(String.valueOf(meanSpO2));
+                        al.add(Instant.ofEpochMilli(samples.getTime(samples.size() - 1)).toString());
+                        al.add(String.valueOf(samples.getMeanPulse()));
+                        al.add(String.valueOf(samples.getMeanSpO2()));
                         data.add(al);
+                        setData(data);
                     } else {
-                        data = verboseDeviceData;
+                        setData(samples);
                     }
-                    setData(data);
                 }
             }
         };
@@ -298,41 +299,4 @@ public class ContecCMS50DPlus extends Oximeter {
     public String getSpecificDeviceDisplayName() {
         return DISPLAYNAME;
     }
-
-    // initialises the device window and the data behind it
-    @Override
-    public void resetDevice() {
-        spO2DataCounter = 1;
-        pulseRateDataCounter = 1;
-        sumPulseRate = 0;
-        sumSpO2Rate = 0;
-        endTime = null;
-        meanPulse = 0;
-        meanSpO2 = 0;
-        super.resetDevice();
-    }
-
-    /**
-     * Add data to the graph
-     *
-     * @param time as UNIX epoch time format
-     * @param pulseRate in BPM
-     * @param spO2 in %
-     * @param waveForm
-     */
-    public void averageAndDisplay(Instant time, int pulseRate, int spO2) {
-
-        endTime = time;
-        if (pulseRate != 0) {
-            sumPulseRate = sumPulseRate + pulseRate;
-            meanPulse = sumPulseRate / pulseRateDataCounter;
-            pulseRateDataCounter++;
-        }
-        if (spO2 != 0) {
-            sumSpO2Rate = sumSpO2Rate + spO2;
-            meanSpO2 = sumSpO2Rate / spO2DataCounter;
-            spO2DataCounter++;
-        }
-        displayData(endTime, meanPulse, meanSpO2);
-    }
 }
@@ -21,19 +21,13 @@ import gnu.io.SerialPort;
 import gnu.io.SerialPortEvent;
 import gnu.io.SerialPortEventListener;
 import gnu.io.UnsupportedCommOperationException;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.time.Instant;
 import java.util.Enumeration;
 import java.util.TooManyListenersException;
 import javafx.concurrent.Task;
-import org.medipi.logging.MediPiLogger;
 import org.medipi.MediPiMessageBox;
-import org.medipi.utilities.Utilities;
+import org.medipi.devices.OximeterSampleBuffer;
 
 /**
  * An implementation of a specific device - ContecCMS50DPlus retrieving data
@@ -43,6 +37,8 @@ import org.medipi.utilities.Utilities;
  * the USB and streaming it to the Device class. Uses RXTX library for serial
  * communication under the GNU Lesser General Public License
  *
+ * Each sample is decoded from its packet straight into an OximeterSampleBuffer
+ *
  * @author rick@robinsonhq.com
  */
 public class CMS50DPlusMeasurement implements SerialPortEventListener {
@@ -58,17 +54,14 @@ public class CMS50DPlusMeasurement implements SerialPortEventListener {
     boolean fingerOut = false;
     boolean probeError = false;
     private final String portName;
-    private BufferedReader dataReader;
-    protected PipedOutputStream pos = new PipedOutputStream();
+    private OximeterSampleBuffer samples;
     private Task task;
-    private final String separator;
 
     /**
      * Constructor for ContecCMS50DPlus
      * @param pn
      */
-    public CMS50DPlusMeasurement(String pn, String separator) {
-        this.separator = separator;
+    public CMS50DPlusMeasurement(String pn) {
         portName = pn;
 
     }
@@ -77,10 +70,12 @@ public class CMS50DPlusMeasurement implements SerialPortEventListener {
      * Opens the USB serial connection and prepares for serial data
      *
      * @param task
-     * @return BufferedReader to set up the data stream
+     * @param samples buffer into which the samples are written
+     * @return true if the serial data stream has been started
      */
-    public BufferedReader startSerialDevice(Task task) {
+    public boolean startSerialDevice(Task task, OximeterSampleBuffer samples) {
         this.task = task;
+        this.samples = samples;
         stopping = false;
         portList = CommPortIdentifier.getPortIdentifiers();
         StringBuilder errorString = new StringBuilder();
@@ -114,11 +109,8 @@ public class CMS50DPlusMeasurement implements SerialPortEventListener {
                                 SerialPort.PARITY_ODD);
                         nanoTime = System.nanoTime();
                         epochTimeAtStart = System.currentTimeMillis();
-                        pos = new PipedOutputStream();
-                        PipedInputStream pis = new PipedInputStream(pos);
-                        dataReader = new BufferedReader(new InputStreamReader(pis));
-                        return dataReader;
-                    } catch (UnsupportedCommOperationException | IOException e) {
+                        return true;
+                    } catch (UnsupportedCommOperationException e) {
                         errorString.append("Port:").append(portName).append("- device driver doesn't allow the serial port parameters\n");
                             System.out.println(e);
                     }
@@ -129,7 +121,14 @@ public class CMS50DPlusMeasurement implements SerialPortEventListener {
         if (errorString.length() == 0) {
             errorString.append("Device not accessible - is it attached/in range?");
         }
-        return null;
+        return false;
+    }
+
+    /**
+     * @return true if the serial port has been stopped
+     */
+    public boolean isStopping() {
+        return stopping;
     }
 
     /**
@@ -146,16 +145,6 @@ public class CMS50DPlusMeasurement implements SerialPortEventListener {
                 //do nothing - just need to remove if it's there
             }
             serialPort.close();
-            try {
-                dataReader.close();
-            } catch (IOException ex) {
-                MediPiLogger.getInstance().log(CMS50DPlusMeasurement.class.getName() + ".stopserialdevice-datareader", ex);
-            }
-            try {
-                pos.close();
-            } catch (IOException ex) {
-                MediPiLogger.getInstance().log(CMS50DPlusMeasurement.class.getName() + ".stopserialdevice-pos", ex);
-            }
         }
         return stopping;
     }
@@ -200,7 +189,6 @@ public class CMS50DPlusMeasurement implements SerialPortEventListener {
                             if ((b & 128) != 0) {
                                 //System.out.println((b&0x80)+" "+idx);
                                 if (idx == 5 && (packet[0] & 128) != 0) {
-                                    String[] line = new String[3];
                                     // 1st byte
                                     // signalStrength
                                     //output[0] = String.valueOf(packet[0] & 0x0f);
@@ -212,7 +200,7 @@ public class CMS50DPlusMeasurement implements SerialPortEventListener {
                                     // output[3] = String.valueOf((packet[0] & 0x40) != 0);
                                     // # 2nd byte
                                     // pulseWaveform
-                                    line[2] = String.valueOf(packet[1]);
+                                    int pulseWaveform = packet[1];
                                     // # 3rd byte
                                     // barGraph
                                     // output[5] = String.valueOf(packet[2] & 0x0f);
@@ -226,10 +214,9 @@ public class CMS50DPlusMeasurement implements SerialPortEventListener {
                                     // pulseRate
                                     int i = (packet[2] & 0x40) << 1;
                                     i |= packet[3] & 0x7f;
-                                    line[0] = String.valueOf(i);
                                     //5th byte
                                     //bloodSpO2
-                                    line[1] = String.valueOf(packet[4] & 127);
+                                    int spO2 = packet[4] & 127;
                                     if (fingerOut) {
                                             System.out.println("finger out");
                                         if (probeError) {
@@ -238,19 +225,10 @@ public class CMS50DPlusMeasurement implements SerialPortEventListener {
                                             stopSerialDevice();
                                         }
                                     }
-                                    if (!stopping) {
-                                        Instant time = Instant.ofEpochMilli(Math.round(System.nanoTime() / 1000000L) - Math.round(nanoTime / 1000000L) + epochTimeAtStart);
-                                        StringBuilder sb = new StringBuilder(Utilities.ISO8601FORMATDATEMILLI_UTC.format(time));
-                                        sb.append(separator);
-                                        sb.append(line[0]);
-                                        sb.append(separator);
-                                        sb.append(line[1]);
-                                        sb.append(separator);
-                                        sb.append(line[2]);
-                                        sb.append("\n");
-                                        pos.write(sb.toString().getBytes());
-                                        pos.flush();
-                                            System.out.print(String.valueOf(fingerOut) + String.valueOf(probeError) + sb.toString());
+                                    // samples without a reading are not recorded
+                                    if (!stopping && i > 0 && spO2 > 0) {
+                                        long time = System.nanoTime() / 1000000L - nanoTime / 1000000L + epochTimeAtStart;
+                                        samples.add(time, i, spO2, pulseWaveform);
                                     }
                                 }
                                 packet = new int[5];
@@ -20,6 +20,7 @@ import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.function.IntToLongFunction;
 import org.medipi.MediPi;
 import org.medipi.devices.Element;
 import org.medipi.devices.Scheduler;
@@ -158,6 +159,78 @@ public class DeviceTimestampChecker {
 
     }
 
+    /**
+     * Check the timestamps of a series of samples held in time order, such as
+     * those streamed from a device, without creating a row for each sample.
+     * The same tests are applied as for a list of rows and as the samples are
+     * in time order the samples which pass always form a single range
+     *
+     * @param epochMilli function returning the time of the sample at an index
+     * @param count number of samples
+     * @return the range of samples to keep as {from, to} with to being
+     * exclusive or null if all the samples are rejected
+     */
+    public int[] checkTimestamp(IntToLongFunction epochMilli, int count) {
+        dataResponseMessage = new StringBuilder();
+        tooOldMessage = false;
+        outsideThresholdPeriodMessage = false;
+        futureMessage = false;
+        if (count == 0) {
+            dataResponseMessage.append("No data is available from the device.\n");
+            return null;
+        }
+        Instant now = Instant.now();
+        int[] range = {0, count};
+        if (storedDeviceTimestampDeviation == -1 && realtimeDeviceTimestampDeviation == -1) {
+            Scheduler scheduler = null;
+            if ((scheduler = medipi.getScheduler()) != null && enforceWithinCurrentScheduledPeriod) {
+                long start = scheduler.getCurrentScheduleStartTime().toEpochMilli();
+                long expiry = scheduler.getCurrentScheduleExpiryTime().toEpochMilli();
+                while (range[0] < count && epochMilli.applyAsLong(range[0]) <= start) {
+                    range[0]++;
+                }
+                range[1] = range[0];
+                while (range[1] < count && epochMilli.applyAsLong(range[1]) < expiry) {
+                    range[1]++;
+                }
+                outsideThresholdPeriodMessage = range[1] - range[0] < count;
+            }
+        } else {
+            if (realtimeDeviceTimestampDeviation != -1) {
+                long postLimit = now.plus(realtimeDeviceTimestampDeviation, ChronoUnit.MINUTES).toEpochMilli();
+                long priorLimit = now.minus(realtimeDeviceTimestampDeviation, ChronoUnit.MINUTES).toEpochMilli();
+                if (epochMilli.applyAsLong(count - 1) > postLimit) {
+                    futureMessage = true;
+                    return null;
+                }
+                tooOldMessage = epochMilli.applyAsLong(0) <= priorLimit;
+                if (epochMilli.applyAsLong(count - 1) <= priorLimit) {
+                    return null;
+                }
+            }
+            if (storedDeviceTimestampDeviation != -1) {
+                int futureTollerance = realtimeDeviceTimestampDeviation != -1 ? realtimeDeviceTimestampDeviation : 0;
+                long postLimit = now.plus(futureTollerance, ChronoUnit.MINUTES).toEpochMilli();
+                long priorLimit = now.minus(storedDeviceTimestampDeviation, ChronoUnit.MINUTES).toEpochMilli();
+                while (range[0] < count && epochMilli.applyAsLong(range[0]) <= priorLimit) {
+                    tooOldMessage = true;
+                    range[0]++;
+                }
+                if (range[0] < count && epochMilli.applyAsLong(count - 1) > postLimit) {
+                    futureMessage = true;
+                    return null;
+                }
+            }
+        }
+        if (range[0] == range[1]) {
+            return null;
+        }
+        if (latestValueOnly) {
+            range[0] = range[1] - 1;
+        }
+        return range;
+    }
+
     private ArrayList<ArrayList<String>> isStoredInPeriod(ArrayList<ArrayList<String>> inArray, int futureTollerance) {
         Instant now = Instant.now();
         ArrayList<ArrayList<String>> returnList = new ArrayList<ArrayList<String>>();
@@ -0,0 +1,90 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.messaging;
+
+import java.io.Serializable;
+import java.util.Date;
+import org.medipi.model.EncryptedAndSignedUploadDO;
+
+/**
+ * Class to contain an upload which has been sealed into the transmission
+ * outbox together with the details needed to send it to the concentrator
+ *
+ * @author rick@robinsonhq.com
+ */
+public class OutboxEntryDO implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private long sequence;
+    private String uploadUuid;
+    private String dataFormat;
+    private Date sealedDate;
+    private EncryptedAndSignedUploadDO upload;
+
+    /**
+     * Constructor
+     */
+    public OutboxEntryDO() {
+    }
+
+    public OutboxEntryDO(long sequence, String uploadUuid, String dataFormat, Date sealedDate, EncryptedAndSignedUploadDO upload) {
+        this.sequence = sequence;
+        this.uploadUuid = uploadUuid;
+        this.dataFormat = dataFormat;
+        this.sealedDate = sealedDate;
+        this.upload = upload;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public String getUploadUuid() {
+        return uploadUuid;
+    }
+
+    public void setUploadUuid(String uploadUuid) {
+        this.uploadUuid = uploadUuid;
+    }
+
+    public String getDataFormat() {
+        return dataFormat;
+    }
+
+    public void setDataFormat(String dataFormat) {
+        this.dataFormat = dataFormat;
+    }
+
+    public Date getSealedDate() {
+        return sealedDate;
+    }
+
+    public void setSealedDate(Date sealedDate) {
+        this.sealedDate = sealedDate;
+    }
+
+    public EncryptedAndSignedUploadDO getUpload() {
+        return upload;
+    }
+
+    public void setUpload(EncryptedAndSignedUploadDO upload) {
+        this.upload = upload;
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.messaging;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javafx.application.Platform;
+import javafx.beans.value.ObservableValue;
+import org.medipi.MediPi;
+import org.medipi.MediPiMessageBox;
+import org.medipi.devices.Transmitter;
+import org.medipi.logging.MediPiLogger;
+import org.medipi.model.EncryptedAndSignedUploadDO;
+
+/**
+ * Durable store-and-forward outbox for uploads made by the Transmitter.
+ *
+ * When the patient transmits, the encrypted and signed upload is sealed into
+ * its own file in the outbox directory and synced to disk. The file name
+ * starts with a sequence number so that uploads are sent in the order they
+ * were sealed, including those left in the outbox when MediPi was switched
+ * off.
+ *
+ * A single sender thread drains the outbox whenever an upload is sealed or
+ * the wifi connection returns. Up to batchsize uploads are sent in each
+ * transmission session so that the VPN is opened once per batch rather than
+ * once per upload. An upload is only removed from the outbox once the
+ * concentrator has acknowledged it. An upload rejected by the concentrator is
+ * moved to the rejected directory, or if that is not possible renamed out of
+ * the outbox or deleted, and the patient is told once. Any other failure
+ * stops the drain and it is retried after a delay which doubles up to the
+ * maximum retry delay. Each upload keeps the uuid it was signed with so a
+ * resend of an upload whose acknowledgement was lost is ignored by the
+ * concentrator
+ *
+ * @author rick@robinsonhq.com
+ */
+public class TransmissionOutbox {
+
+    private static final String OUTBOXPREFIX = "medipi.transmit.outbox.";
+    private static final String DIRECTORY = "directory";
+    private static final String BATCHSIZE = "batchsize";
+    private static final String RETRYDELAY = "retrydelay";
+    private static final String MAXIMUMRETRYDELAY = "maximumretrydelay";
+    private static final String REJECTED = "rejected";
+    private static final String SUFFIX = ".json";
+    private static final String TEMPORARYSUFFIX = ".tmp";
+    private static final String REJECTEDSUFFIX = ".rejected";
+
+    private final MediPi medipi;
+    private final Transmitter transmitter;
+    private File outboxDirectory;
+    private File rejectedDirectory;
+    private int batchSize = 10;
+    private long retryDelay = 30000;
+    private long maximumRetryDelay = 900000;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicLong sequence = new AtomicLong();
+    // rejected uploads which could not be moved, renamed or deleted - they are not sent again
+    private final Set<String> rejectedNames = ConcurrentHashMap.newKeySet();
+    private final Object lock = new Object();
+    private boolean woken = false;
+    private boolean resetRetryDelay = false;
+    private Thread sender;
+
+    /**
+     * Constructor
+     *
+     * @param medipi MediPi main class
+     * @param transmitter transmitter used to send the sealed uploads
+     */
+    public TransmissionOutbox(MediPi medipi, Transmitter transmitter) {
+        this.medipi = medipi;
+        this.transmitter = transmitter;
+    }
+
+    /**
+     * Method to read the configuration and create the outbox directories.
+     * Anything which was being sealed when MediPi stopped is removed as it was
+     * never confirmed to the patient
+     *
+     * @return null if the outbox is ready, otherwise an error message
+     */
+    public String init() {
+        String dir = medipi.getProperties().getProperty(OUTBOXPREFIX + DIRECTORY);
+        if (dir == null || dir.trim().length() == 0) {
+            return "Transmission outbox directory is not set: " + OUTBOXPREFIX + DIRECTORY;
+        }
+        outboxDirectory = new File(dir.trim());
+        rejectedDirectory = new File(outboxDirectory, REJECTED);
+        if (!rejectedDirectory.isDirectory() && !rejectedDirectory.mkdirs()) {
+            return "Cannot create transmission outbox directory: " + rejectedDirectory;
+        }
+        try {
+            batchSize = getIntProperty(BATCHSIZE, batchSize);
+            retryDelay = getIntProperty(RETRYDELAY, (int) retryDelay);
+            maximumRetryDelay = Math.max(retryDelay, getIntProperty(MAXIMUMRETRYDELAY, (int) maximumRetryDelay));
+        } catch (NumberFormatException nfe) {
+            return "Transmission outbox configuration is not valid: " + nfe.getLocalizedMessage();
+        }
+        for (File f : outboxDirectory.listFiles((File d, String name) -> name.endsWith(TEMPORARYSUFFIX))) {
+            f.delete();
+        }
+        for (File f : listPending()) {
+            sequence.set(Math.max(sequence.get(), getSequence(f)));
+        }
+        return null;
+    }
+
+    /**
+     * Start the sender thread. It is woken whenever the wifi connection
+     * returns so that anything in the outbox is sent straight away
+     */
+    public void start() {
+        medipi.wifiSync.addListener((ObservableValue<? extends Boolean> observable, Boolean oldValue, Boolean newValue) -> {
+            if (newValue) {
+                wake(true);
+            }
+        });
+        sender = new Thread(this::send, "MediPi-TransmissionOutbox");
+        sender.setDaemon(true);
+        sender.start();
+        MediPiLogger.getInstance().log(TransmissionOutbox.class.getName() + ".info", "Transmission outbox started with " + listPending().length + " uploads waiting to be sent");
+    }
+
+    /**
+     * Durably seal an upload into the outbox and wake the sender
+     *
+     * @param uploadUuid uuid the upload was signed with
+     * @param dataFormat Data-Format header to be sent with the upload
+     * @param upload encrypted and signed upload
+     * @throws IOException if the upload cannot be written to disk
+     */
+    public void seal(String uploadUuid, String dataFormat, EncryptedAndSignedUploadDO upload) throws IOException {
+        OutboxEntryDO entry = new OutboxEntryDO(sequence.incrementAndGet(), uploadUuid, dataFormat, new Date(), upload);
+        File f = new File(outboxDirectory, String.format("%020d_%s%s", entry.getSequence(), uploadUuid, SUFFIX));
+        File tmp = new File(outboxDirectory, f.getName() + TEMPORARYSUFFIX);
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                mapper.writeValue(fos, entry);
+                fos.getFD().sync();
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            tmp.delete();
+            throw ex;
+        }
+        MediPiLogger.getInstance().log(TransmissionOutbox.class.getName() + ".info", "Upload with uuid: " + uploadUuid + " sealed into the transmission outbox");
+        wake(false);
+    }
+
+    /**
+     * @return the number of uploads waiting to be sent
+     */
+    public int getPendingCount() {
+        return listPending().length;
+    }
+
+    private void wake(boolean reset) {
+        synchronized (lock) {
+            woken = true;
+            resetRetryDelay = resetRetryDelay || reset;
+            lock.notifyAll();
+        }
+    }
+
+    private void send() {
+        long delay = retryDelay;
+        // wait for a wake up unless a retry is due
+        long wait = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                synchronized (lock) {
+                    if (!woken) {
+                        lock.wait(wait);
+                    }
+                    woken = false;
+                    if (resetRetryDelay) {
+                        delay = retryDelay;
+                        resetRetryDelay = false;
+                    }
+                }
+            } catch (InterruptedException ie) {
+                return;
+            }
+            if (!medipi.wifiSync.get()) {
+                // the wifi listener wakes the sender when the connection returns
+                wait = 0;
+            } else if (drain()) {
+                delay = retryDelay;
+                wait = 0;
+            } else {
+                MediPiLogger.getInstance().log(TransmissionOutbox.class.getName() + ".error", "Transmission outbox could not be sent - retrying in " + delay + "ms. " + getPendingCount() + " uploads waiting");
+                wait = delay;
+                delay = Math.min(delay * 2, maximumRetryDelay);
+            }
+        }
+    }
+
+    /**
+     * Send everything in the outbox one batch at a time
+     *
+     * @return true if the outbox was emptied
+     */
+    private boolean drain() {
+        File[] pending = listPending();
+        for (int start = 0; start < pending.length; start += batchSize) {
+            File[] batch = Arrays.copyOfRange(pending, start, Math.min(start + batchSize, pending.length));
+            if (!transmitter.openTransmissionSession()) {
+                return false;
+            }
+            try {
+                for (File f : batch) {
+                    if (!sendEntry(f)) {
+                        return false;
+                    }
+                }
+            } finally {
+                transmitter.closeTransmissionSession();
+            }
+        }
+        return true;
+    }
+
+    private boolean sendEntry(File f) {
+        OutboxEntryDO entry;
+        try {
+            entry = mapper.readValue(f, OutboxEntryDO.class);
+        } catch (IOException ex) {
+            MediPiLogger.getInstance().log(TransmissionOutbox.class.getName() + ".error", "Unable to read upload " + f + " from the transmission outbox: " + ex.getLocalizedMessage());
+            reject(f, "One of your saved recordings could not be read and has not been sent to your clinician.");
+            return true;
+        }
+        switch (transmitter.transmit(entry.getUpload(), entry.getDataFormat())) {
+            case TRANSMITTED:
+                MediPiLogger.getInstance().log(TransmissionOutbox.class.getName() + ".info", "Upload with uuid: " + entry.getUploadUuid() + " sealed at " + entry.getSealedDate() + " has been sent");
+                if (!f.delete()) {
+                    MediPiLogger.getInstance().log(TransmissionOutbox.class.getName() + ".error", "Unable to remove sent upload from the transmission outbox: " + f);
+                }
+                return true;
+            case REJECTED:
+                MediPiLogger.getInstance().log(TransmissionOutbox.class.getName() + ".error", "Upload with uuid: " + entry.getUploadUuid() + " was rejected by the concentrator: " + transmitter.getTransmissionResponse());
+                reject(f, "Your recordings taken at " + entry.getSealedDate() + " could not be accepted by your clinician's system: " + transmitter.getTransmissionResponse());
+                return true;
+            case FAILED:
+            default:
+                return false;
+        }
+    }
+
+    private void reject(File f, String message) {
+        try {
+            Files.move(f.toPath(), new File(rejectedDirectory, f.getName()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            MediPiLogger.getInstance().log(TransmissionOutbox.class.getName() + ".error", "Unable to move rejected upload " + f + " out of the transmission outbox: " + ex.getLocalizedMessage());
+            // the upload must not be sent again, so take it out of the outbox some other way
+            if (f.renameTo(new File(outboxDirectory, f.getName() + REJECTEDSUFFIX))) {
+                MediPiLogger.getInstance().log(TransmissionOutbox.class.getName() + ".error", "Rejected upload " + f + " has been renamed with the suffix " + REJECTEDSUFFIX);
+            } else if (f.delete()) {
+                MediPiLogger.getInstance().log(TransmissionOutbox.class.getName() + ".error", "Rejected upload " + f + " has been deleted");
+            } else {
+                MediPiLogger.getInstance().log(TransmissionOutbox.class.getName() + ".error", "Unable to remove rejected upload " + f + " - it will not be sent again until MediPi is restarted");
+                rejectedNames.add(f.getName());
+            }
+        }
+        Platform.runLater(() -> {
+            MediPiMessageBox.getInstance().makeErrorMessage(message, null);
+        });
+    }
+
+    private File[] listPending() {
+        File[] files = outboxDirectory.listFiles((File d, String name) -> name.endsWith(SUFFIX) && !rejectedNames.contains(name));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private long getSequence(File f) {
+        try {
+            return Long.parseLong(f.getName().substring(0, f.getName().indexOf('_')));
+        } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+            return 0;
+        }
+    }
+
+    private int getIntProperty(String name, int defaultValue) {
+        String s = medipi.getProperties().getProperty(OUTBOXPREFIX + name);
+        if (s == null || s.trim().length() == 0) {
+            return defaultValue;
+        }
+        int i = Integer.parseInt(s.trim());
+        if (i < 1) {
+            throw new NumberFormatException(OUTBOXPREFIX + name + " must be greater than 0");
+        }
+        return i;
+    }
+}
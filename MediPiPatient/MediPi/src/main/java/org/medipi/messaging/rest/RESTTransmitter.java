@@ -29,7 +29,8 @@ import org.medipi.model.EncryptedAndSignedUploadDO;
  * Concrete class to call the Restful Transmitter and return the outcome.
  *
  * The Restful Transmitter instance accepts an EncryptedAndSignedDO and will
- * transmit it to the concentrator using the restful interface on there
+ * transmit it to the concentrator using the restful interface on there. The
+ * VPN is opened once for each batch of uploads sent from the outbox
  *
  * @author rick@robinsonhq.com
  */
@@ -41,6 +42,9 @@ public class RESTTransmitter extends Transmitter {
 
     private String resourcePath;
     private String transmissionResponse = "";
+    private String patientCertName;
+    private String deviceCertName;
+    private UUID sessionUuid;
 
     /**
      * Constructor for RESTTransmitter
@@ -74,39 +78,58 @@ public class RESTTransmitter extends Transmitter {
     }
 
     /**
-     * Transmit the message using the chosen method
+     * Open the VPN connection (if enabled) used to transmit a batch of
+     * messages
      *
-     * @param message - Encrypted and signed payload to be transmitted
-     * @return String - if transmission was successful return null
+     * @return true if messages can be transmitted
      */
     @Override
-    public Boolean transmit(EncryptedAndSignedUploadDO message) {
-        UUID uuid = UUID.randomUUID();
-        VPNServiceManager vpnm = null;
+    public boolean openTransmissionSession() {
+        //Collect patient and hardware device names to be used as part of the restful path
+        patientCertName = System.getProperty("medipi.patient.cert.name");
+        if (patientCertName == null || patientCertName.trim().length() == 0) {
+            transmissionResponse = "Patient identity not set";
+            MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".error", "Patient identity not set");
+            return false;
+        }
+        deviceCertName = System.getProperty("medipi.device.cert.name");
+        if (deviceCertName == null || deviceCertName.trim().length() == 0) {
+            transmissionResponse = "Device identity not set";
+            MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".error", "Device identity not set");
+            return false;
+        }
+        sessionUuid = UUID.randomUUID();
         try {
-            //Collect patient and hardware device names to be used as part of the restful path
-            String patientCertName = System.getProperty("medipi.patient.cert.name");
-            if (patientCertName == null || patientCertName.trim().length() == 0) {
-                transmissionResponse = "Patient identity not set";
-                MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".error", "Patient identity not set");
-                return false;
-            }
-            String deviceCertName = System.getProperty("medipi.device.cert.name");
-            if (deviceCertName == null || deviceCertName.trim().length() == 0) {
-                transmissionResponse = "Device identity not set";
-                MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".error", "Device identity not set");
-                return false;
-            }
-            vpnm = VPNServiceManager.getInstance();
+            VPNServiceManager vpnm = VPNServiceManager.getInstance();
             if (vpnm.isEnabled()) {
-                vpnm.VPNConnection(VPNServiceManager.OPEN, uuid);
+                vpnm.VPNConnection(VPNServiceManager.OPEN, sessionUuid);
             }
+            return true;
+        } catch (Exception ex) {
+            MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".error", "Unable to open the VPN connection: " + ex.getLocalizedMessage());
+            transmissionResponse = "Unable to open the VPN connection: " + ex.getLocalizedMessage();
+            closeTransmissionSession();
+            return false;
+        }
+    }
+
+    /**
+     * Transmit the message using the chosen method
+     *
+     * @param message - Encrypted and signed payload to be transmitted
+     * @param dataFormat - Data-Format header sealed with the payload
+     * @return Outcome - whether the message was transmitted, rejected or is
+     * to be retried
+     */
+    @Override
+    public Outcome transmit(EncryptedAndSignedUploadDO message, String dataFormat) {
+        try {
             HashMap<String, Object> params = new HashMap<>();
             params.put("deviceId", deviceCertName);
             params.put("patientId", patientCertName);
 
             HashMap<String, String> headers = new HashMap<>();
-            headers.put("Data-Format", "MediPiNative");
+            headers.put("Data-Format", dataFormat);
 
             MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".info", "New Patient Upload started - MediPiUploadEnvelope UUID: " + message.getUploadUuid());
 
@@ -118,50 +141,59 @@ public class RESTTransmitter extends Transmitter {
                 if (postResponse.getStatus() == Response.Status.OK.getStatusCode() || postResponse.getStatus() == Response.Status.ACCEPTED.getStatusCode()) {
                     MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".info", "New Patient Upload successfully sent - MediPiUploadEnvelope UUID: " + message.getUploadUuid());
                     transmissionResponse = "Thank you! Your recordings have been sent to your clinician.";
-                    return true;
+                    return Outcome.TRANSMITTED;
                 } else {
                     //ERROR RESPONSE
+                    transmissionResponse = postResponse.readEntity(String.class);
                     switch (postResponse.getStatus()) {
-                        // BAD REQUEST
+                        // NOT ACCEPTABLE
+                        case 406:
+                            // the upload itself is at fault and resending it will not help
+                            return Outcome.REJECTED;
+                        // BAD REQUEST - the concentrator may be unable to decrypt or verify the upload
+                        // because of a fault with its own key material, so the upload is sent again later
                         case 400:
-                        // ***************** DO SOMETHING WITH 400 *******************
                         // NOT FOUND
                         case 404:
                         // This is returned when the hardware name and patientId do not match
-                        // ***************** DO SOMETHING WITH 404 *******************
-                        // NOT ACCEPTABLE
-                        case 406:
-                        // ***************** DO SOMETHING WITH 406 *******************
                         case 417:
                         // UPDATE REQUIRED
                         case 426:
-                        // ***************** DO SOMETHING WITH 426 *******************
                         // INTERNAL SERVER ERROR    
                         case 500:
                         default:
-                            transmissionResponse = postResponse.readEntity(String.class);
-                            return false;
+                            return Outcome.FAILED;
                     }
                 }
             }
         } catch (ProcessingException pe) {
             MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".error", "Attempt to send data failed - MediPi Concentrator is not available - please try again later. " + pe.getLocalizedMessage());
             transmissionResponse = "Attempt to send data failed - MediPi Concentrator is not available - please try again later.";
-            return false;
+            return Outcome.FAILED;
         } catch (Exception ex) {
             MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".error", "Error transmitting message to recipient: " + ex.getLocalizedMessage());
             transmissionResponse = "Error transmitting message to recipient: " + ex.getLocalizedMessage();
-            return false;
-        } finally {
-            if (vpnm != null && vpnm.isEnabled()) {
-                try {
-                    vpnm.VPNConnection(VPNServiceManager.CLOSE,uuid);
-                } catch (Exception ex) {
-                    MediPiLogger.getInstance().log(RESTTransmitter.class.getName(), ex);
-                }
+            return Outcome.FAILED;
+        }
+        return Outcome.FAILED;
+    }
+
+    /**
+     * Close the VPN connection (if enabled) opened by
+     * openTransmissionSession
+     */
+    @Override
+    public void closeTransmissionSession() {
+        try {
+            VPNServiceManager vpnm = VPNServiceManager.getInstance();
+            if (sessionUuid != null && vpnm.isEnabled()) {
+                vpnm.VPNConnection(VPNServiceManager.CLOSE, sessionUuid);
             }
+        } catch (Exception ex) {
+            MediPiLogger.getInstance().log(RESTTransmitter.class.getName(), ex);
+        } finally {
+            sessionUuid = null;
         }
-        return false;
     }
 
     @Override